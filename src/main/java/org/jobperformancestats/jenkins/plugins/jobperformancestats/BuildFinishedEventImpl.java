@@ -94,6 +94,7 @@ public class BuildFinishedEventImpl implements JobPerformanceStatsEvent {
     payload.put("buildurl", buildurl);
     payload.put("starttime", starttime);
     payload.put("job", job);
+    payload.put("jobfullname", builddata.get("jobfullname"));
     payload.put("result", builddata.get("result"));
     payload.put("duration", builddata.getDouble("duration"));
     payload.put("tags", JobPerformanceStatsUtilities.assembleTags(builddata, tags));
@@ -0,0 +1,417 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Shared non-blocking HTTP client, used instead of {@link JobPerformanceStatsHttpClient} when the
+ * <code>ASYNC</code> {@link Transport} is configured.
+ *
+ * <p>Requests are multiplexed by a few I/O dispatcher threads, so the thread that sends a request
+ * returns at once and is told about the response through a {@link Callback}. The number of
+ * requests in flight is capped: once the cap is reached, requests are queued, never the thread
+ * that sends them, and are sent as requests in flight complete (see {@link InFlight}). Callbacks
+ * run on the I/O dispatcher threads and must not block; work that may block, such as sending
+ * another request, is handed to the {@link JobPerformanceStatsExecutor}.
+ */
+public class JobPerformanceStatsAsyncHttpClient {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsAsyncHttpClient.class.getName());
+  private static final Charset UTF_8 = Charset.forName("utf-8");
+  static final int DEFAULT_MAX_IN_FLIGHT = 64;
+  static final int DEFAULT_IO_THREADS = 2;
+
+  private static CloseableHttpAsyncClient client;
+  private static RequestConfig requestConfig;
+  private static InFlight inFlight;
+
+  /**
+   * How requests are sent to ELK.
+   */
+  public enum Transport {
+    /** One thread per request in flight, through {@link JobPerformanceStatsHttpClient}. */
+    BLOCKING,
+    /** Non-blocking I/O on a few threads, through {@link JobPerformanceStatsAsyncHttpClient}. */
+    ASYNC
+  }
+
+  /**
+   * Told about the outcome of a request.
+   *
+   * @param <T> - The result of the request.
+   */
+  public interface Callback<T> {
+    /**
+     * @param result - The result of the request.
+     */
+    void completed(T result);
+
+    /**
+     * @param e - Why the request failed.
+     */
+    void failed(Exception e);
+  }
+
+  private JobPerformanceStatsAsyncHttpClient() { }
+
+  /**
+   * @return true if the <code>ASYNC</code> transport is configured.
+   */
+  public static boolean isEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && parseTransport(descriptor.getHttpTransport()) == Transport.ASYNC;
+  }
+
+  static Transport parseTransport(final String transport) {
+    if (transport == null) {
+      return Transport.BLOCKING;
+    }
+    try {
+      return Transport.valueOf(transport);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown transport '%s', using %s", transport, Transport.BLOCKING));
+      return Transport.BLOCKING;
+    }
+  }
+
+  /**
+   * Sends a request without waiting for its response, once fewer requests than the cap are in
+   * flight. The request goes through the {@link JobPerformanceStatsCircuitBreaker} of its
+   * endpoint, but is not retried.
+   *
+   * @param request - The request to send. Its entity must be repeatable.
+   * @param callback - Told about the response, whatever its status, or about the failure, a
+   *                   {@link SaturatedException} if the request waited too long to be sent.
+   */
+  public static void execute(final HttpRequestBase request,
+                             final Callback<JobPerformanceStatsHttpClient.Response> callback) {
+    final String endpoint = JobPerformanceStatsHttpClient.endpoint(request.getURI());
+    final JobPerformanceStatsCircuitBreaker breaker = JobPerformanceStatsCircuitBreaker.forEndpoint(endpoint);
+
+    final CloseableHttpAsyncClient httpClient;
+    final RequestConfig config;
+    final InFlight limit;
+    synchronized (JobPerformanceStatsAsyncHttpClient.class) {
+      if (client == null) {
+        create();
+      }
+      httpClient = client;
+      config = requestConfig;
+      limit = inFlight;
+    }
+
+    limit.submit(new Runnable() {
+      @Override
+      public void run() {
+        send(httpClient, config, request, endpoint, breaker, limit, callback);
+      }
+    }, callback);
+  }
+
+  /**
+   * Sends a request once it holds a permit of the cap.
+   */
+  private static void send(final CloseableHttpAsyncClient httpClient, final RequestConfig config,
+                           final HttpRequestBase request, final String endpoint,
+                           final JobPerformanceStatsCircuitBreaker breaker, final InFlight limit,
+                           final Callback<JobPerformanceStatsHttpClient.Response> callback) {
+    if (!breaker.allowRequest()) {
+      limit.release();
+      callback.failed(new JobPerformanceStatsCircuitBreaker.OpenException(endpoint));
+      return;
+    }
+
+    HttpClientContext context = HttpClientContext.create();
+    HttpHost proxy = JobPerformanceStatsHttpClient.getProxy(request.getURI().getHost(), context);
+    request.setConfig(proxy != null ? RequestConfig.copy(config).setProxy(proxy).build() : config);
+    try {
+      httpClient.execute(request, context, new Outcome(breaker, limit, callback));
+    } catch (IllegalStateException e) {
+      // The client was closed while the request was queued
+      limit.release();
+      breaker.onCancelled();
+      callback.failed(new InterruptedIOException("Request cancelled: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * Reports the outcome of a request to its breaker and its sender, and releases its permit.
+   */
+  static class Outcome implements FutureCallback<HttpResponse> {
+    private final JobPerformanceStatsCircuitBreaker breaker;
+    private final InFlight limit;
+    private final Callback<JobPerformanceStatsHttpClient.Response> callback;
+
+    Outcome(final JobPerformanceStatsCircuitBreaker breaker, final InFlight limit,
+            final Callback<JobPerformanceStatsHttpClient.Response> callback) {
+      this.breaker = breaker;
+      this.limit = limit;
+      this.callback = callback;
+    }
+
+    @Override
+    public void completed(final HttpResponse response) {
+      JobPerformanceStatsHttpClient.Response result;
+      try {
+        String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), UTF_8) : "";
+        result = new JobPerformanceStatsHttpClient.Response(response, body);
+      } catch (IOException e) {
+        failed(e);
+        return;
+      }
+      limit.release();
+      if (JobPerformanceStatsHttpClient.isRetryable(result.getStatus())) {
+        breaker.onFailure();
+      } else {
+        breaker.onSuccess();
+      }
+      callback.completed(result);
+    }
+
+    @Override
+    public void failed(final Exception e) {
+      limit.release();
+      breaker.onFailure();
+      callback.failed(e);
+    }
+
+    @Override
+    public void cancelled() {
+      limit.release();
+      // Neither a success nor a failure, but a cancelled probe must let the next request probe
+      breaker.onCancelled();
+      callback.failed(new InterruptedIOException("Request cancelled"));
+    }
+  }
+
+  /**
+   * Caps the number of requests in flight without making the threads that send them wait. A
+   * request over the cap is queued, and sent from the {@link JobPerformanceStatsExecutor} once a
+   * request in flight releases its permit. A queued request fails with a
+   * {@link SaturatedException} once it waited longer than the read timeout, or at once when as
+   * many requests as the cap are queued already.
+   */
+  static class InFlight {
+    private final int max;
+    private final long maxWaitMillis;
+    private final Deque<Waiter> waiting = new ArrayDeque<>();
+    private int count = 0;
+
+    /**
+     * @param max - The maximum number of requests in flight.
+     * @param maxWaitMillis - How long a request may be queued.
+     */
+    InFlight(final int max, final long maxWaitMillis) {
+      this.max = max;
+      this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Runs a sender now if a permit is free, or once one is released. The sender must release its
+     * permit once its request completed.
+     *
+     * @param send - Sends the request.
+     * @param callback - Told about a {@link SaturatedException} if the request cannot be sent.
+     */
+    void submit(final Runnable send, final Callback<?> callback) {
+      final Waiter waiter = new Waiter(send, callback);
+      boolean free;
+      synchronized (this) {
+        free = count < max;
+        if (free) {
+          count++;
+        } else if (waiting.size() < max) {
+          waiting.add(waiter);
+          try {
+            waiter.timeout = JobPerformanceStatsExecutor.get().schedule(new JobPerformanceStatsExecutor.Droppable() {
+              @Override
+              public void run() {
+                expire(waiter);
+              }
+
+              @Override
+              public void dropped() {
+                expire(waiter);
+              }
+            }, maxWaitMillis, TimeUnit.MILLISECONDS);
+          } catch (RejectedExecutionException e) {
+            // Jenkins is stopping, the request waits for a permit without a deadline
+          }
+          return;
+        }
+      }
+      if (free) {
+        send.run();
+      } else {
+        callback.failed(new SaturatedException(max));
+      }
+    }
+
+    /**
+     * Passes the permit of a completed request to the next queued one, or frees it.
+     */
+    void release() {
+      final Waiter next;
+      synchronized (this) {
+        next = waiting.poll();
+        if (next == null) {
+          count--;
+          return;
+        }
+      }
+      if (next.timeout != null) {
+        next.timeout.cancel(false);
+      }
+      // Not on the thread releasing the permit, which may be an I/O dispatcher
+      try {
+        JobPerformanceStatsExecutor.get().execute(new JobPerformanceStatsExecutor.Droppable() {
+          @Override
+          public void run() {
+            next.send.run();
+          }
+
+          @Override
+          public void dropped() {
+            next.callback.failed(new IOException("Jenkins is stopping, the request was not sent"));
+            release();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        next.send.run();
+      }
+    }
+
+    private void expire(final Waiter waiter) {
+      synchronized (this) {
+        if (!waiting.remove(waiter)) {
+          return;
+        }
+      }
+      waiter.callback.failed(new SaturatedException(max));
+    }
+
+    /**
+     * @return the number of requests in flight.
+     */
+    synchronized int getInFlight() {
+      return count;
+    }
+
+    /**
+     * @return the number of requests waiting for a permit.
+     */
+    synchronized int getWaiting() {
+      return waiting.size();
+    }
+
+    private static class Waiter {
+      private final Runnable send;
+      private final Callback<?> callback;
+      private volatile ScheduledFuture<?> timeout;
+
+      Waiter(final Runnable send, final Callback<?> callback) {
+        this.send = send;
+        this.callback = callback;
+      }
+    }
+  }
+
+  /**
+   * Told to the sender of a request that could not be sent, as too many requests were in flight
+   * for too long. It says nothing about the ELK node the request was for.
+   */
+  public static class SaturatedException extends IOException {
+    public SaturatedException(final int maxInFlight) {
+      super(String.format("%s requests already in flight", maxInFlight));
+    }
+  }
+
+  /**
+   * @return the number of requests currently in flight.
+   */
+  public static synchronized int getInFlight() {
+    return inFlight != null ? inFlight.getInFlight() : 0;
+  }
+
+  /**
+   * Closes the shared client after the global configuration changed. Requests in flight are
+   * aborted, and the next request creates a new client with the new settings.
+   */
+  public static synchronized void reconfigure() {
+    close();
+  }
+
+  /**
+   * Stops the I/O dispatcher threads when Jenkins stops.
+   */
+  @Terminator
+  public static synchronized void close() {
+    if (client != null) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        logger.fine(String.format("Error while closing the async HTTP client: %s", e.toString()));
+      }
+      client = null;
+      inFlight = null;
+    }
+  }
+
+  private static void create() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    int connectTimeout = positive(descriptor.getHttpConnectTimeoutMillis(), JobPerformanceStatsHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    int readTimeout = positive(descriptor.getHttpReadTimeoutMillis(), JobPerformanceStatsHttpClient.DEFAULT_READ_TIMEOUT_MILLIS);
+    int ioThreads = positive(descriptor.getHttpAsyncIoThreads(), DEFAULT_IO_THREADS);
+    int maxInFlight = positive(descriptor.getHttpAsyncMaxInFlight(), DEFAULT_MAX_IN_FLIGHT);
+    inFlight = new InFlight(maxInFlight, readTimeout);
+
+    requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .build();
+
+    // Every request in flight holds a connection, so the pool must be at least as large as the cap
+    client = HttpAsyncClients.custom()
+            .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                    .setIoThreadCount(ioThreads)
+                    .setConnectTimeout(connectTimeout)
+                    .setSoTimeout(readTimeout)
+                    .setSoKeepAlive(true)
+                    .build())
+            .setMaxConnTotal(Math.max(maxInFlight, positive(descriptor.getHttpMaxConnections(), JobPerformanceStatsHttpClient.DEFAULT_MAX_CONNECTIONS)))
+            .setMaxConnPerRoute(Math.max(maxInFlight, positive(descriptor.getHttpMaxConnectionsPerRoute(), JobPerformanceStatsHttpClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE)))
+            .setDefaultRequestConfig(requestConfig)
+            .setThreadFactory(new NamingThreadFactory(new DaemonThreadFactory(), "JobPerformanceStats I/O dispatcher"))
+            .useSystemProperties()
+            .build();
+    client.start();
+    logger.fine(String.format("Created async HTTP client (%s I/O threads, %s requests in flight)", ioThreads, maxInFlight));
+  }
+
+  private static int positive(final int value, final int fallback) {
+    return value > 0 ? value : fallback;
+  }
+}
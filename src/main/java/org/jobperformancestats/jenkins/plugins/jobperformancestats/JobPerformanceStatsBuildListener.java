@@ -1,8 +1,6 @@
 package org.jobperformancestats.jenkins.plugins.jobperformancestats;
 
-import com.timgroup.statsd.NonBlockingStatsDClient;
 import com.timgroup.statsd.StatsDClient;
-import com.timgroup.statsd.StatsDClientException;
 import static hudson.Util.fixEmptyAndTrim;
 
 import hudson.EnvVars;
@@ -12,11 +10,11 @@ import hudson.model.AbstractProject;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Queue;
-import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 
 import io.jenkins.blueocean.rest.model.BluePipelineStep;
@@ -33,14 +31,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
-import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
@@ -78,6 +76,9 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
   static final String METRIC = "v1/series";
   static final String EVENT = "v1/events";
   static final String SERVICECHECK = "v1/check_run";
+  // The sketches of this plugin, see JobPerformanceStatsMetricAggregator
+  static final String SKETCH = "v1/sketches";
+  static final String BULK = "_bulk";
   static final Integer OK = 0;
   static final Integer WARNING = 1;
   static final Integer CRITICAL = 2;
@@ -182,119 +183,49 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
     if ( JobPerformanceStatsUtilities.isJobTracked(jobName) ) {
       logger.fine("Completed build!");
 
-      // Collect Data
-      JSONArray stagebuilddata = gatherStageMetadata(run, listener);
-      JSONArray stepbuilddata = gatherStepMetadata(run, listener);
+      JobPerformanceStatsRecord record = completedRecord(run, listener);
 
-      JSONObject builddata = gatherBuildMetadata(run, listener);
-      HashMap<String,String> extraTags = JobPerformanceStatsUtilities.buildExtraTags(run, listener);
-
-      // Get the list of global tags to apply
-      extraTags.putAll(JobPerformanceStatsUtilities.getRegexJobTags(jobName));
-      JSONArray tagArr = JobPerformanceStatsUtilities.assembleTags(builddata, extraTags);
-      JobPerformanceStatsEvent evt = new BuildFinishedEventImpl(builddata, stagebuilddata, stepbuilddata, extraTags);
-      JobPerformanceStatsHttpRequests.sendEvent(evt);
-      gauge("jenkins.job.duration", builddata, "duration", extraTags);
-      if ( "SUCCESS".equals(builddata.get("result")) ) {
-        serviceCheck("jenkins.job.status", JobPerformanceStatsBuildListener.OK, builddata, extraTags);
-      } else {
-        serviceCheck("jenkins.job.status", JobPerformanceStatsBuildListener.CRITICAL, builddata, extraTags);
+      // A restart from now on leaves the build pending, and its documents are sent on startup
+      if (JobPerformanceStatsShippingLedger.isEnabled()) {
+        JobPerformanceStatsShippingLedger.markPending(run);
       }
 
-      // Setup tags for StatsDClient reporting
-      String[] statsdTags = new String[tagArr.size()];
-      for(int i = 0; i < tagArr.size(); i++) {
-        statsdTags[i] = tagArr.getString(i);
-      }
-
-      // Report to StatsDClient
-      if(JobPerformanceStatsUtilities.isValidDaemon(getDescriptor().getDaemonHost()))  {
-        logger.fine(String.format("Sending 'completed' counter to %s ", getDescriptor().getDaemonHost()));
-        StatsDClient statsd = null;
-        try {
-          // The client is a threadpool so instead of creating a new instance of the pool
-          // we lease the exiting one registerd with Jenkins.
-          statsd = getDescriptor().leaseClient();
-          statsd.incrementCounter("completed", statsdTags);
-          logger.fine(String.format("Attempted to send 'completed' counter with tags: %s", Arrays.toString(statsdTags)));
-
-          logger.fine("Computing KPI metrics");
-          // Send KPIs
-          if (run.getResult() == Result.SUCCESS) {
-            long mttr = getMeanTimeToRecovery(run);
-            long cycleTime = getCycleTime(run);
-            long leadTime = run.getDuration() + mttr;
-
-            statsd.gauge("leadtime", leadTime / THOUSAND_DOUBLE, statsdTags);
-            if (cycleTime > 0) {
-              statsd.gauge("cycletime", cycleTime / THOUSAND_DOUBLE, statsdTags);
-            }
-            if (mttr > 0) {
-              statsd.gauge("mttr", mttr / THOUSAND_DOUBLE, statsdTags);
-            }
-          } else {
-            long feedbackTime = run.getDuration();
-            long mtbf = getMeanTimeBetweenFailure(run);
-
-            statsd.gauge("feedbacktime", feedbackTime / THOUSAND_DOUBLE, statsdTags);
-
-            if (mtbf > 0) {
-              statsd.gauge("mtbf", mtbf / THOUSAND_DOUBLE, statsdTags);
-            }
-          }
-
-        } catch (StatsDClientException e) {
-          logger.severe(String.format("Runtime exception thrown using the StatsDClient. Exception: %s", e.getMessage()));
-        } finally {
-          if(statsd != null){
-            try {
-              // StatsDClient needs time to do its' thing. UDP messages fail to send at all without this sleep
-              TimeUnit.MILLISECONDS.sleep(100);
-            } catch (InterruptedException ex) {
-              logger.severe(ex.getMessage());
-            }
-            statsd.stop();
-          }
-        }
-      } else {
-        logger.warning("Invalid dogstats daemon host specificed");
-      }
+      // Hand the collected data over to the queue of every sink, so that a slow ELK, metric
+      // endpoint or StatsD daemon never holds up the thread completing the build, nor each other.
+      JobPerformanceStatsSink.publish(record);
       logger.fine("Finished onCompleted()");
     }
   }
 
-  private long getMeanTimeBetweenFailure(Run<?, ?> run) {
-    Run<?, ?> lastGreenRun = run.getPreviousNotFailedBuild();
-    if (lastGreenRun != null) {
-      return run.getStartTimeInMillis() - lastGreenRun.getStartTimeInMillis();
-    }
-    return 0;
-  }
+  /**
+   * Collects the metadata, stages, steps and tags of a completed build.
+   *
+   * @param run - A Run object representing a particular execution of Job.
+   * @param listener - A TaskListener object which receives events that happen during some
+   *                   operation.
+   * @return the record of the completed build, for the sinks.
+   */
+  JobPerformanceStatsRecord completedRecord(final Run run, @Nonnull final TaskListener listener) {
+    String jobName = run.getParent().getFullName();
 
-  private long getCycleTime(Run<?, ?> run) {
-    Run<?, ?> previousSuccessfulBuild = run.getPreviousSuccessfulBuild();
-    if (previousSuccessfulBuild != null) {
-      return (run.getStartTimeInMillis() + run.getDuration()) -
-              (previousSuccessfulBuild.getStartTimeInMillis() + previousSuccessfulBuild.getDuration());
-    }
-    return 0;
-  }
+    // Collect Data
+    JSONArray stagebuilddata = gatherStageMetadata(run, listener);
+    JSONArray stepbuilddata = gatherStepMetadata(run, listener);
 
-  private long getMeanTimeToRecovery(Run<?, ?> run) {
-    if (buildFailed(run.getPreviousBuiltBuild())) {
-      Run<?, ?> firstFailedRun = run.getPreviousBuiltBuild();
+    final JSONObject builddata = gatherBuildMetadata(run, listener);
+    final HashMap<String,String> extraTags = JobPerformanceStatsUtilities.buildExtraTags(run, listener);
 
-      while (buildFailed(firstFailedRun.getPreviousBuiltBuild())) {
-        firstFailedRun = firstFailedRun.getPreviousBuiltBuild();
-      }
+    // Get the list of global tags to apply
+    extraTags.putAll(JobPerformanceStatsUtilities.getRegexJobTags(jobName));
+    JSONArray tagArr = JobPerformanceStatsUtilities.assembleTags(builddata, extraTags);
+    final JobPerformanceStatsEvent evt = new BuildFinishedEventImpl(builddata, stagebuilddata, stepbuilddata, extraTags);
 
-      return run.getStartTimeInMillis() - firstFailedRun.getStartTimeInMillis();
+    // Setup tags for StatsDClient reporting
+    final String[] statsdTags = new String[tagArr.size()];
+    for(int i = 0; i < tagArr.size(); i++) {
+      statsdTags[i] = tagArr.getString(i);
     }
-    return 0;
-  }
-
-  private boolean buildFailed(Run<?, ?> run) {
-    return run != null && run.getResult() != Result.SUCCESS;
+    return JobPerformanceStatsRecord.completed(run, evt, builddata, extraTags, statsdTags);
   }
 
   /**
@@ -319,6 +250,7 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
     builddata.put("result", run.getResult().toString()); // string
     builddata.put("number", run.number); // int
     builddata.put("job", JobPerformanceStatsUtilities.normalizeFullDisplayName(jobName)); // string
+    builddata.put("jobfullname", jobName); // string
 
 
     // Grab environment variables
@@ -377,6 +309,7 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
             if (node != null) {
               JSONObject stagebuilddata = new JSONObject();
 
+              stagebuilddata.put("id", node.getId());
               stagebuilddata.put("name", node.getDisplayName());
               stagebuilddata.put("starttime", node.getStartTime());
               stagebuilddata.put("status", node.getResult()); //string
@@ -445,6 +378,8 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
                 if (step != null) {
                   JSONObject stepbuilddata = new JSONObject();
 
+                  stepbuilddata.put("id", step.getId());
+                  stepbuilddata.put("stageid", node.getId());
                   stepbuilddata.put("stagename", node.getDisplayName());
                   stepbuilddata.put("name", step.getDisplayName());
                   stepbuilddata.put("starttime", step.getStartTime());
@@ -493,87 +428,6 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
   }
 
 
-  /**
-   * Sends a metric to the JobPerformanceStats API, including the gauge name, and value.
-   *
-   * @param metricName - A String with the name of the metric to record.
-   * @param builddata - A JSONObject containing a builds metadata.
-   * @param key - A String with the name of the build metadata to be found in the {@link JSONObject}
-   *              builddata.
-   * @param extraTags - A list of tags, that are contributed via {@link JobPerformanceStatsJobProperty}.
-   */
-  public final void gauge(final String metricName, final JSONObject builddata,
-                          final String key, final Map<String,String> extraTags) {
-    String builddataKey = JobPerformanceStatsUtilities.nullSafeGetString(builddata, key);
-    logger.fine(String.format("Sending metric '%s' with value %s", metricName, builddataKey));
-
-    // Setup data point, of type [<unix_timestamp>, <value>]
-    JSONArray points = new JSONArray();
-    JSONArray point = new JSONArray();
-
-    long currentTime = System.currentTimeMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG;
-    point.add(currentTime); // current time, s
-    point.add(builddata.get(key));
-    points.add(point); // api expects a list of points
-
-    // Build metric
-    JSONObject metric = new JSONObject();
-    metric.put("metric", metricName);
-    metric.put("points", points);
-    metric.put("type", "gauge");
-    metric.put("host", builddata.get("hostname"));
-    JSONArray myTags = JobPerformanceStatsUtilities.assembleTags(builddata, extraTags);
-    logger.fine(myTags.toString());
-    metric.put("tags", myTags);
-
-    // Place metric as item of series list
-    JSONArray series = new JSONArray();
-    series.add(metric);
-
-    // Add series to payload
-    JSONObject payload = new JSONObject();
-    payload.put("series", series);
-
-    logger.fine(String.format("Resulting payload: %s", payload.toString() ));
-
-    try {
-      JobPerformanceStatsHttpRequests.post(payload, METRIC);
-    } catch (Exception e) {
-      logger.severe(e.toString());
-    }
-  }
-
-  /**
-   * Sends a service check to the JobPerformanceStats API, including the check name, and status.
-   *
-   * @param checkName - A String with the name of the service check to record.
-   * @param status - An Integer with the status code to record for this service check.
-   * @param builddata - A JSONObject containing a builds metadata.
-   * @param extraTags - A list of tags, that are contributed through the {@link JobPerformanceStatsJobProperty}.
-   */
-  public final void serviceCheck(final String checkName, final Integer status,
-                                 final JSONObject builddata, final HashMap<String,String> extraTags) {
-    logger.fine(String.format("Sending service check '%s' with status %s", checkName, status));
-
-    // Build payload
-    JSONObject payload = new JSONObject();
-    payload.put("check", checkName);
-    payload.put("host_name", builddata.get("hostname"));
-    payload.put("timestamp",
-                System.currentTimeMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG); // current time, s
-    payload.put("status", status);
-
-    // Remove result tag, so we don't create multiple service check groups
-    builddata.remove("result");
-    payload.put("tags", JobPerformanceStatsUtilities.assembleTags(builddata, extraTags));
-
-    try {
-      JobPerformanceStatsHttpRequests.post(payload, SERVICECHECK);
-    } catch (Exception e) {
-      logger.severe(e.toString());
-    }
-  }
-
   /**
   * Human-friendly OS name. Commons return values are windows, linux, mac, sunos, freebsd
   *
@@ -588,11 +442,11 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
   /**
    * Getter function for the {@link DescriptorImpl} class.
    *
-   * @return a new {@link DescriptorImpl} class.
+   * @return the {@link DescriptorImpl} registered with Jenkins.
    */
   @Override
   public DescriptorImpl getDescriptor() {
-    return new DescriptorImpl();
+    return JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
   }
 
   /**
@@ -606,20 +460,23 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
   public static class DescriptorImpl extends Descriptor<JobPerformanceStatsBuildListener> {
 
     /**
-     * @return - A {@link StatsDClient} lease for this registered {@link RunListener}
+     * The client is shared by all builds and kept until the daemon host changes or Jenkins stops,
+     * so its sender thread packs the queued metrics into as few UDP datagrams as possible.
+     * Callers release the lease once their metrics are sent, and must not stop the client.
+     *
+     * @return - A {@link StatsDClient} lease for this registered {@link RunListener}, or null if
+     *           the daemon host is invalid.
      */
-    public StatsDClient leaseClient() {
-      try {
-        if(client == null) {
-          client = new NonBlockingStatsDClient("jenkins.job", daemonHost.split(":")[0],
-                  Integer.parseInt(daemonHost.split(":")[1]));
-        } else {
-          logger.warning("StatsDClient is null");
-        }
-      } catch (Exception e) {
-        logger.severe(String.format("Error while configuring StatsDClient. Exception: %s", e.toString()));
-      }
-      return client;
+    public JobPerformanceStatsStatsDClients.Lease leaseClient() {
+      return clients.lease(daemonHost);
+    }
+
+    /**
+     * Stops the {@link StatsDClient} once the builds sending through it released their lease,
+     * sending the metrics it still holds. The next lease creates a new one.
+     */
+    public void releaseClient() {
+      clients.retire();
     }
 
     /**
@@ -634,8 +491,66 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
     private Boolean tagNode = false;
     private String daemonHost = "localhost:8125";
     private String targetMetricURL = "http://10.66.40.115:9091/metrics/";
+    private String elkNodes = "";
+    private String elkNodeSelection = JobPerformanceStatsNodePool.Selection.ROUND_ROBIN.name();
+    private boolean elkNodeDiscovery = false;
+    private String indexMode = JobPerformanceStatsIndexRouter.Mode.DATED.name();
+    private String indexPrefix = JobPerformanceStatsIndexRouter.DEFAULT_PREFIX;
+    private String indexDatePattern = JobPerformanceStatsIndexRouter.DEFAULT_DATE_PATTERN;
+    private String indexFolderPrefixes = "";
+    private String indexRolloverMaxSize = JobPerformanceStatsIndexRollover.DEFAULT_MAX_SIZE;
+    private int indexRolloverMaxAgeDays = JobPerformanceStatsIndexRollover.DEFAULT_MAX_AGE_DAYS;
+    private boolean indexTemplateEnabled = true;
+    private String indexRefreshInterval = JobPerformanceStatsIndexTemplate.DEFAULT_REFRESH_INTERVAL;
+    private String elkEncoding = JobPerformanceStatsJsonWriter.Encoding.JSON.name();
+    private String elkDocumentMode = JobPerformanceStatsHttpRequests.DocumentMode.SEPARATE.name();
+    private boolean elkLifecycleEnabled = false;
+    private boolean shippingLedgerEnabled = true;
+    private boolean rateLimitEnabled = false;
+    private int rateLimitDocsPerSecond = JobPerformanceStatsRateLimiter.DEFAULT_DOCS_PER_SECOND;
+    private int rateLimitBurst = JobPerformanceStatsRateLimiter.DEFAULT_BURST;
+    private int rateLimitMaxDeferred = JobPerformanceStatsRateLimiter.DEFAULT_MAX_DEFERRED;
+    private int metricFlushSeconds = JobPerformanceStatsMetricAggregator.DEFAULT_FLUSH_SECONDS;
+    private boolean durationSketchesEnabled = false;
+    private boolean prometheusEnabled = false;
+    private boolean pushgatewayEnabled = false;
+    private String pushgatewayAddress = "";
+    private String pushgatewayJob = JobPerformanceStatsPushgateway.DEFAULT_JOB;
+    private int pushgatewayIntervalSeconds = JobPerformanceStatsPushgateway.DEFAULT_INTERVAL_SECONDS;
+    private boolean fileSinkEnabled = false;
+    private String fileSinkDirectory = "";
+    private int fileSinkMaxMegabytes = JobPerformanceStatsFileSink.DEFAULT_MAX_MEGABYTES;
+    private int fileSinkRotateMinutes = JobPerformanceStatsFileSink.DEFAULT_ROTATE_MINUTES;
+    private int fileSinkMaxFiles = JobPerformanceStatsFileSink.DEFAULT_MAX_FILES;
+    private int bulkMaxDocs = 500;
+    private long bulkMaxBytes = 5L * 1024 * 1024;
+    private int shippingQueueCapacity = JobPerformanceStatsSinkQueue.DEFAULT_CAPACITY;
+    private int shippingWorkers = JobPerformanceStatsSinkQueue.DEFAULT_WORKERS;
+    private String shippingOverflowPolicy = JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_OLDEST.name();
+    private long shippingBlockTimeoutMillis = JobPerformanceStatsSinkQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    private int httpMaxConnections = JobPerformanceStatsHttpClient.DEFAULT_MAX_CONNECTIONS;
+    private int httpMaxConnectionsPerRoute = JobPerformanceStatsHttpClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int httpConnectTimeoutMillis = JobPerformanceStatsHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int httpReadTimeoutMillis = JobPerformanceStatsHttpClient.DEFAULT_READ_TIMEOUT_MILLIS;
+    private int httpIdleTimeoutSeconds = JobPerformanceStatsHttpClient.DEFAULT_IDLE_TIMEOUT_SECONDS;
+    private String httpTransport = JobPerformanceStatsAsyncHttpClient.Transport.BLOCKING.name();
+    private int httpAsyncMaxInFlight = JobPerformanceStatsAsyncHttpClient.DEFAULT_MAX_IN_FLIGHT;
+    private int httpAsyncIoThreads = JobPerformanceStatsAsyncHttpClient.DEFAULT_IO_THREADS;
+    private boolean gzipEnabled = false;
+    private int gzipThresholdBytes = JobPerformanceStatsHttpClient.DEFAULT_GZIP_THRESHOLD_BYTES;
+    private int gzipLevel = JobPerformanceStatsHttpClient.DEFAULT_GZIP_LEVEL;
+    private int retryMaxAttempts = JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS;
+    private long retryBaseDelayMillis = JobPerformanceStatsHttpClient.DEFAULT_RETRY_BASE_DELAY_MILLIS;
+    private long retryMaxDelayMillis = JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_DELAY_MILLIS;
+    private int breakerFailureThreshold = JobPerformanceStatsCircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+    private int breakerOpenSeconds = JobPerformanceStatsCircuitBreaker.DEFAULT_OPEN_SECONDS;
+    private String breakerFallback = JobPerformanceStatsCircuitBreaker.Fallback.DROP.name();
+    private boolean spoolEnabled = false;
+    private int spoolSegmentMegabytes = JobPerformanceStatsSpool.DEFAULT_SEGMENT_MEGABYTES;
+    private int spoolMaxMegabytes = JobPerformanceStatsSpool.DEFAULT_MAX_MEGABYTES;
+    private int spoolRetentionHours = JobPerformanceStatsSpool.DEFAULT_RETENTION_HOURS;
     //The StatsDClient instance variable. This variable is leased by the RunLIstener
-    private StatsDClient client;
+    private final transient JobPerformanceStatsStatsDClients clients = new JobPerformanceStatsStatsDClients();
 
     /**
      * Runs when the {@link DescriptorImpl} class is created.
@@ -772,6 +687,54 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
       return FormValidation.ok("Valid URL");
     }
 
+    /**
+     * @param indexPrefix - The prefix of index names, or the name of the write alias.
+     * @return a FormValidation object used to display a message to the user on the configuration
+     *         screen.
+     */
+    public FormValidation doCheckIndexPrefix(@QueryParameter("indexPrefix") final String indexPrefix) {
+      String error = JobPerformanceStatsIndexRouter.checkPrefix(indexPrefix);
+      return error != null ? FormValidation.error(error) : FormValidation.ok();
+    }
+
+    /**
+     * @param indexDatePattern - The date pattern appended to dated index names.
+     * @return a FormValidation object used to display a message to the user on the configuration
+     *         screen.
+     */
+    public FormValidation doCheckIndexDatePattern(@QueryParameter("indexDatePattern") final String indexDatePattern) {
+      String error = JobPerformanceStatsIndexRouter.checkDatePattern(indexDatePattern);
+      return error != null ? FormValidation.error(error) : FormValidation.ok();
+    }
+
+    /**
+     * @param indexFolderPrefixes - Lines of <code>folder/full/name=prefix</code>.
+     * @return a FormValidation object used to display a message to the user on the configuration
+     *         screen.
+     */
+    public FormValidation doCheckIndexFolderPrefixes(@QueryParameter("indexFolderPrefixes") final String indexFolderPrefixes) {
+      for (String prefix : JobPerformanceStatsIndexRouter.parseFolderPrefixes(indexFolderPrefixes).values()) {
+        String error = JobPerformanceStatsIndexRouter.checkPrefix(prefix);
+        if (error != null) {
+          return FormValidation.error(error);
+        }
+      }
+      return FormValidation.ok();
+    }
+
+    /**
+     * Fills the overflow policy drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsSinkQueue.OverflowPolicy}.
+     */
+    public ListBoxModel doFillShippingOverflowPolicyItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsSinkQueue.OverflowPolicy policy : JobPerformanceStatsSinkQueue.OverflowPolicy.values()) {
+        items.add(policy.name());
+      }
+      return items;
+    }
+
     /**
      * Indicates if this builder can be used with all kinds of project types.
      *
@@ -810,6 +773,121 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
       //this.setApiKey(formData.getString("apiKey"));
       this.setHostname(formData.getString("hostname"));
 
+      // Grab the ELK nodes, the node pool is rebuilt on next use
+      this.setElkNodes(formData.optString("elkNodes", elkNodes));
+      this.setElkNodeSelection(formData.optString("elkNodeSelection", elkNodeSelection));
+      this.setElkNodeDiscovery(formData.optBoolean("elkNodeDiscovery", elkNodeDiscovery));
+      JobPerformanceStatsNodePool.reconfigure();
+
+      // Grab the StatsD daemon, the client is recreated on next lease if it changed
+      String previousDaemonHost = daemonHost;
+      this.setDaemonHost(formData.optString("daemonHost", daemonHost));
+      if (daemonHost != null && !daemonHost.equals(previousDaemonHost)) {
+        releaseClient();
+      }
+
+      // Grab the index routing, the router is rebuilt on next use. Names ELK would refuse are
+      // rejected here rather than failing every build afterwards
+      String error = JobPerformanceStatsIndexRouter.checkPrefix(formData.optString("indexPrefix", indexPrefix));
+      if (error != null) {
+        throw new FormException(error, "indexPrefix");
+      }
+      error = JobPerformanceStatsIndexRouter.checkDatePattern(formData.optString("indexDatePattern", indexDatePattern));
+      if (error != null) {
+        throw new FormException(error, "indexDatePattern");
+      }
+      for (String prefix : JobPerformanceStatsIndexRouter.parseFolderPrefixes(
+              formData.optString("indexFolderPrefixes", indexFolderPrefixes)).values()) {
+        error = JobPerformanceStatsIndexRouter.checkPrefix(prefix);
+        if (error != null) {
+          throw new FormException(error, "indexFolderPrefixes");
+        }
+      }
+      this.setIndexMode(formData.optString("indexMode", indexMode));
+      this.setIndexPrefix(formData.optString("indexPrefix", indexPrefix));
+      this.setIndexDatePattern(formData.optString("indexDatePattern", indexDatePattern));
+      this.setIndexFolderPrefixes(formData.optString("indexFolderPrefixes", indexFolderPrefixes));
+      this.setIndexRolloverMaxSize(formData.optString("indexRolloverMaxSize", indexRolloverMaxSize));
+      this.setIndexRolloverMaxAgeDays(formData.optInt("indexRolloverMaxAgeDays", indexRolloverMaxAgeDays));
+      JobPerformanceStatsIndexRouter.reconfigure();
+
+      // Grab the index template settings, the template is installed once the configuration is saved
+      this.setIndexTemplateEnabled(formData.optBoolean("indexTemplateEnabled", indexTemplateEnabled));
+      this.setIndexRefreshInterval(formData.optString("indexRefreshInterval", indexRefreshInterval));
+
+      // Grab the _bulk request limits and encoding
+      this.setElkEncoding(formData.optString("elkEncoding", elkEncoding));
+      this.setElkDocumentMode(formData.optString("elkDocumentMode", elkDocumentMode));
+      this.setElkLifecycleEnabled(formData.optBoolean("elkLifecycleEnabled", elkLifecycleEnabled));
+      this.setBulkMaxDocs(formData.optInt("bulkMaxDocs", bulkMaxDocs));
+      this.setBulkMaxBytes(formData.optLong("bulkMaxBytes", bulkMaxBytes));
+
+      // Grab the shipping queue settings, the queue is rebuilt on next use
+      this.setShippingQueueCapacity(formData.optInt("shippingQueueCapacity", shippingQueueCapacity));
+      this.setShippingWorkers(formData.optInt("shippingWorkers", shippingWorkers));
+      this.setShippingOverflowPolicy(formData.optString("shippingOverflowPolicy", shippingOverflowPolicy));
+      this.setShippingBlockTimeoutMillis(formData.optLong("shippingBlockTimeoutMillis", shippingBlockTimeoutMillis));
+      this.setShippingLedgerEnabled(formData.optBoolean("shippingLedgerEnabled", shippingLedgerEnabled));
+
+      // Grab the rate limit settings, the rate limiter is rebuilt on next use
+      this.setRateLimitEnabled(formData.optBoolean("rateLimitEnabled", rateLimitEnabled));
+      this.setRateLimitDocsPerSecond(formData.optInt("rateLimitDocsPerSecond", rateLimitDocsPerSecond));
+      this.setRateLimitBurst(formData.optInt("rateLimitBurst", rateLimitBurst));
+      this.setRateLimitMaxDeferred(formData.optInt("rateLimitMaxDeferred", rateLimitMaxDeferred));
+      JobPerformanceStatsRateLimiter.reconfigure();
+
+      // Grab the metric flush interval, used from the next flush on
+      this.setMetricFlushSeconds(formData.optInt("metricFlushSeconds", metricFlushSeconds));
+      this.setDurationSketchesEnabled(formData.optBoolean("durationSketchesEnabled", durationSketchesEnabled));
+      this.setPrometheusEnabled(formData.optBoolean("prometheusEnabled", prometheusEnabled));
+
+      // Grab the Pushgateway settings, used from the next push on
+      this.setPushgatewayEnabled(formData.optBoolean("pushgatewayEnabled", pushgatewayEnabled));
+      this.setPushgatewayAddress(formData.optString("pushgatewayAddress", pushgatewayAddress));
+      this.setPushgatewayJob(formData.optString("pushgatewayJob", pushgatewayJob));
+      this.setPushgatewayIntervalSeconds(formData.optInt("pushgatewayIntervalSeconds", pushgatewayIntervalSeconds));
+      JobPerformanceStatsSink.reconfigure();
+
+      // Grab the NDJSON file settings, the file is reopened on next use
+      this.setFileSinkEnabled(formData.optBoolean("fileSinkEnabled", fileSinkEnabled));
+      this.setFileSinkDirectory(formData.optString("fileSinkDirectory", fileSinkDirectory));
+      this.setFileSinkMaxMegabytes(formData.optInt("fileSinkMaxMegabytes", fileSinkMaxMegabytes));
+      this.setFileSinkRotateMinutes(formData.optInt("fileSinkRotateMinutes", fileSinkRotateMinutes));
+      this.setFileSinkMaxFiles(formData.optInt("fileSinkMaxFiles", fileSinkMaxFiles));
+      JobPerformanceStatsFileSink.reconfigure();
+
+      // Grab the HTTP connection pool settings, the pool is rebuilt on next use
+      this.setHttpMaxConnections(formData.optInt("httpMaxConnections", httpMaxConnections));
+      this.setHttpMaxConnectionsPerRoute(formData.optInt("httpMaxConnectionsPerRoute", httpMaxConnectionsPerRoute));
+      this.setHttpConnectTimeoutMillis(formData.optInt("httpConnectTimeoutMillis", httpConnectTimeoutMillis));
+      this.setHttpReadTimeoutMillis(formData.optInt("httpReadTimeoutMillis", httpReadTimeoutMillis));
+      this.setHttpIdleTimeoutSeconds(formData.optInt("httpIdleTimeoutSeconds", httpIdleTimeoutSeconds));
+      this.setHttpTransport(formData.optString("httpTransport", httpTransport));
+      this.setHttpAsyncMaxInFlight(formData.optInt("httpAsyncMaxInFlight", httpAsyncMaxInFlight));
+      this.setHttpAsyncIoThreads(formData.optInt("httpAsyncIoThreads", httpAsyncIoThreads));
+      JobPerformanceStatsHttpClient.reconfigure();
+      JobPerformanceStatsAsyncHttpClient.reconfigure();
+
+      // Grab the request body compression settings
+      this.setGzipEnabled(formData.optBoolean("gzipEnabled", gzipEnabled));
+      this.setGzipThresholdBytes(formData.optInt("gzipThresholdBytes", gzipThresholdBytes));
+      this.setGzipLevel(formData.optInt("gzipLevel", gzipLevel));
+
+      // Grab the retry and circuit breaker settings, they apply to the next request
+      this.setRetryMaxAttempts(formData.optInt("retryMaxAttempts", retryMaxAttempts));
+      this.setRetryBaseDelayMillis(formData.optLong("retryBaseDelayMillis", retryBaseDelayMillis));
+      this.setRetryMaxDelayMillis(formData.optLong("retryMaxDelayMillis", retryMaxDelayMillis));
+      this.setBreakerFailureThreshold(formData.optInt("breakerFailureThreshold", breakerFailureThreshold));
+      this.setBreakerOpenSeconds(formData.optInt("breakerOpenSeconds", breakerOpenSeconds));
+      this.setBreakerFallback(formData.optString("breakerFallback", breakerFallback));
+
+      // Grab the on-disk spool settings, the spool is reopened on next use
+      this.setSpoolEnabled(formData.optBoolean("spoolEnabled", spoolEnabled));
+      this.setSpoolSegmentMegabytes(formData.optInt("spoolSegmentMegabytes", spoolSegmentMegabytes));
+      this.setSpoolMaxMegabytes(formData.optInt("spoolMaxMegabytes", spoolMaxMegabytes));
+      this.setSpoolRetentionHours(formData.optInt("spoolRetentionHours", spoolRetentionHours));
+      JobPerformanceStatsSpool.reconfigure();
+
       // Grab blacklist
       //this.setBlacklist(formData.getString("blacklist"));
 
@@ -826,28 +904,15 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
       } else {
         this.setTagNode(false);
       }
-
-      daemonHost = formData.getString("daemonHost");
-      //When form is saved...reinitialize the StatsDClient.
-      //We need to stop the old one first. And create a new one with the new data from
-      //The global configuration
-      if (client != null) {
-        try {
-          client.stop();
-          String hp = daemonHost.split(":")[0];
-          int pp = Integer.parseInt(daemonHost.split(":")[1]);
-          client = new NonBlockingStatsDClient("jenkins.job", hp, pp);
-          logger.finer(String.format("Created new DogStatsD client (%s:%S)!", hp, pp));
-        } catch (Exception e) {
-          logger.severe(String.format("Unable to create new StatsDClient. Exception: %s", e.toString()));
-        }
-      }
       */
       // Grab API URL
       //targetMetricURL = formData.getString("targetMetricURL");
 
       // Persist global configuration information
       save();
+      // The endpoint, prefixes or refresh interval may have changed
+      JobPerformanceStatsIndexTemplate.installAsync();
+      JobPerformanceStatsIndexRouter.createAliases();
       return super.configure(req, formData);
     }
 
@@ -995,5 +1060,920 @@ public class JobPerformanceStatsBuildListener extends RunListener<Run>
     public void setTargetMetricURL(String targetMetricURL) {
       this.targetMetricURL = targetMetricURL;
     }
+
+    /**
+     * @return The maximum number of documents sent in a single ELK _bulk request
+     */
+    public int getBulkMaxDocs() {
+      return bulkMaxDocs;
+    }
+
+    /**
+     * @param bulkMaxDocs - The maximum number of documents sent in a single ELK _bulk request
+     */
+    public void setBulkMaxDocs(int bulkMaxDocs) {
+      this.bulkMaxDocs = bulkMaxDocs;
+    }
+
+    /**
+     * @return The maximum size, in bytes, of a single ELK _bulk request body
+     */
+    public long getBulkMaxBytes() {
+      return bulkMaxBytes;
+    }
+
+    /**
+     * @param bulkMaxBytes - The maximum size, in bytes, of a single ELK _bulk request body
+     */
+    public void setBulkMaxBytes(long bulkMaxBytes) {
+      this.bulkMaxBytes = bulkMaxBytes;
+    }
+
+    /**
+     * @return The maximum number of builds waiting in the shipping queue
+     */
+    public int getShippingQueueCapacity() {
+      return shippingQueueCapacity;
+    }
+
+    /**
+     * @param shippingQueueCapacity - The maximum number of builds waiting in the shipping queue
+     */
+    public void setShippingQueueCapacity(int shippingQueueCapacity) {
+      this.shippingQueueCapacity = shippingQueueCapacity;
+    }
+
+    /**
+     * @return The number of threads shipping data to ELK and the metric endpoints
+     */
+    public int getShippingWorkers() {
+      return shippingWorkers;
+    }
+
+    /**
+     * @param shippingWorkers - The number of threads shipping data to ELK and the metric endpoints
+     */
+    public void setShippingWorkers(int shippingWorkers) {
+      this.shippingWorkers = shippingWorkers;
+    }
+
+    /**
+     * @return The name of the {@link JobPerformanceStatsSinkQueue.OverflowPolicy} used when the queue is full
+     */
+    public String getShippingOverflowPolicy() {
+      return shippingOverflowPolicy;
+    }
+
+    /**
+     * @param shippingOverflowPolicy - The name of the {@link JobPerformanceStatsSinkQueue.OverflowPolicy}
+     *                                 used when the queue is full
+     */
+    public void setShippingOverflowPolicy(String shippingOverflowPolicy) {
+      this.shippingOverflowPolicy = shippingOverflowPolicy;
+    }
+
+    /**
+     * @return How long, in milliseconds, the BLOCK overflow policy waits for room in the queue
+     */
+    public long getShippingBlockTimeoutMillis() {
+      return shippingBlockTimeoutMillis;
+    }
+
+    /**
+     * @param shippingBlockTimeoutMillis - How long, in milliseconds, the BLOCK overflow policy waits
+     *                                     for room in the queue
+     */
+    public void setShippingBlockTimeoutMillis(long shippingBlockTimeoutMillis) {
+      this.shippingBlockTimeoutMillis = shippingBlockTimeoutMillis;
+    }
+
+    /**
+     * @return The maximum number of pooled HTTP connections
+     */
+    public int getHttpMaxConnections() {
+      return httpMaxConnections;
+    }
+
+    /**
+     * @param httpMaxConnections - The maximum number of pooled HTTP connections
+     */
+    public void setHttpMaxConnections(int httpMaxConnections) {
+      this.httpMaxConnections = httpMaxConnections;
+    }
+
+    /**
+     * @return The maximum number of pooled HTTP connections to a single host
+     */
+    public int getHttpMaxConnectionsPerRoute() {
+      return httpMaxConnectionsPerRoute;
+    }
+
+    /**
+     * @param httpMaxConnectionsPerRoute - The maximum number of pooled HTTP connections to a single host
+     */
+    public void setHttpMaxConnectionsPerRoute(int httpMaxConnectionsPerRoute) {
+      this.httpMaxConnectionsPerRoute = httpMaxConnectionsPerRoute;
+    }
+
+    /**
+     * @return The HTTP connect timeout, in milliseconds
+     */
+    public int getHttpConnectTimeoutMillis() {
+      return httpConnectTimeoutMillis;
+    }
+
+    /**
+     * @param httpConnectTimeoutMillis - The HTTP connect timeout, in milliseconds
+     */
+    public void setHttpConnectTimeoutMillis(int httpConnectTimeoutMillis) {
+      this.httpConnectTimeoutMillis = httpConnectTimeoutMillis;
+    }
+
+    /**
+     * @return The HTTP read timeout, in milliseconds
+     */
+    public int getHttpReadTimeoutMillis() {
+      return httpReadTimeoutMillis;
+    }
+
+    /**
+     * @param httpReadTimeoutMillis - The HTTP read timeout, in milliseconds
+     */
+    public void setHttpReadTimeoutMillis(int httpReadTimeoutMillis) {
+      this.httpReadTimeoutMillis = httpReadTimeoutMillis;
+    }
+
+    /**
+     * @return How long, in seconds, an idle pooled connection is kept open
+     */
+    public int getHttpIdleTimeoutSeconds() {
+      return httpIdleTimeoutSeconds;
+    }
+
+    /**
+     * @param httpIdleTimeoutSeconds - How long, in seconds, an idle pooled connection is kept open
+     */
+    public void setHttpIdleTimeoutSeconds(int httpIdleTimeoutSeconds) {
+      this.httpIdleTimeoutSeconds = httpIdleTimeoutSeconds;
+    }
+
+    /**
+     * @return Whether request bodies are gzip-compressed
+     */
+    public boolean isGzipEnabled() {
+      return gzipEnabled;
+    }
+
+    /**
+     * @param gzipEnabled - Whether request bodies are gzip-compressed
+     */
+    public void setGzipEnabled(boolean gzipEnabled) {
+      this.gzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * @return The smallest request body, in bytes, that gets compressed
+     */
+    public int getGzipThresholdBytes() {
+      return gzipThresholdBytes;
+    }
+
+    /**
+     * @param gzipThresholdBytes - The smallest request body, in bytes, that gets compressed
+     */
+    public void setGzipThresholdBytes(int gzipThresholdBytes) {
+      this.gzipThresholdBytes = gzipThresholdBytes;
+    }
+
+    /**
+     * @return The gzip compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public int getGzipLevel() {
+      return gzipLevel;
+    }
+
+    /**
+     * @param gzipLevel - The gzip compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public void setGzipLevel(int gzipLevel) {
+      this.gzipLevel = gzipLevel;
+    }
+
+    /**
+     * @return The ELK nodes requests are spread across, separated by commas or new lines
+     */
+    public String getElkNodes() {
+      return elkNodes;
+    }
+
+    /**
+     * @param elkNodes - The ELK nodes requests are spread across, separated by commas or new lines
+     */
+    public void setElkNodes(String elkNodes) {
+      this.elkNodes = elkNodes;
+    }
+
+    /**
+     * @return How an ELK node is picked for a request, one of {@link JobPerformanceStatsNodePool.Selection}
+     */
+    public String getElkNodeSelection() {
+      return elkNodeSelection;
+    }
+
+    /**
+     * @param elkNodeSelection - How an ELK node is picked for a request, one of {@link JobPerformanceStatsNodePool.Selection}
+     */
+    public void setElkNodeSelection(String elkNodeSelection) {
+      this.elkNodeSelection = elkNodeSelection;
+    }
+
+    /**
+     * Fills the node selection drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsNodePool.Selection}.
+     */
+    public ListBoxModel doFillElkNodeSelectionItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsNodePool.Selection selection : JobPerformanceStatsNodePool.Selection.values()) {
+        items.add(selection.name());
+      }
+      return items;
+    }
+
+    /**
+     * @return Whether more ELK nodes are discovered through the _nodes/http API
+     */
+    public boolean isElkNodeDiscovery() {
+      return elkNodeDiscovery;
+    }
+
+    /**
+     * @param elkNodeDiscovery - Whether more ELK nodes are discovered through the _nodes/http API
+     */
+    public void setElkNodeDiscovery(boolean elkNodeDiscovery) {
+      this.elkNodeDiscovery = elkNodeDiscovery;
+    }
+
+    /**
+     * @return How index names are built, one of {@link JobPerformanceStatsIndexRouter.Mode}
+     */
+    public String getIndexMode() {
+      return indexMode;
+    }
+
+    /**
+     * @param indexMode - How index names are built, one of {@link JobPerformanceStatsIndexRouter.Mode}
+     */
+    public void setIndexMode(String indexMode) {
+      this.indexMode = indexMode;
+    }
+
+    /**
+     * Fills the index mode drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsIndexRouter.Mode}.
+     */
+    public ListBoxModel doFillIndexModeItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsIndexRouter.Mode mode : JobPerformanceStatsIndexRouter.Mode.values()) {
+        items.add(mode.name());
+      }
+      return items;
+    }
+
+    /**
+     * @return The prefix of index names, or the name of the write alias
+     */
+    public String getIndexPrefix() {
+      return indexPrefix;
+    }
+
+    /**
+     * @param indexPrefix - The prefix of index names, or the name of the write alias
+     */
+    public void setIndexPrefix(String indexPrefix) {
+      this.indexPrefix = indexPrefix;
+    }
+
+    /**
+     * @return The date pattern appended to dated index names, applied to the build start time in UTC
+     */
+    public String getIndexDatePattern() {
+      return indexDatePattern;
+    }
+
+    /**
+     * @param indexDatePattern - The date pattern appended to dated index names, applied to the build start time in UTC
+     */
+    public void setIndexDatePattern(String indexDatePattern) {
+      this.indexDatePattern = indexDatePattern;
+    }
+
+    /**
+     * @return The index prefixes of folders, one folder=prefix per line
+     */
+    public String getIndexFolderPrefixes() {
+      return indexFolderPrefixes;
+    }
+
+    /**
+     * @param indexFolderPrefixes - The index prefixes of folders, one folder=prefix per line
+     */
+    public void setIndexFolderPrefixes(String indexFolderPrefixes) {
+      this.indexFolderPrefixes = indexFolderPrefixes;
+    }
+
+    /**
+     * @return The size at which a write alias rolls over to a new index, such as 50gb
+     */
+    public String getIndexRolloverMaxSize() {
+      return indexRolloverMaxSize;
+    }
+
+    /**
+     * @param indexRolloverMaxSize - The size at which a write alias rolls over to a new index, such as 50gb
+     */
+    public void setIndexRolloverMaxSize(String indexRolloverMaxSize) {
+      this.indexRolloverMaxSize = indexRolloverMaxSize;
+    }
+
+    /**
+     * @return The age, in days, at which a write alias rolls over to a new index
+     */
+    public int getIndexRolloverMaxAgeDays() {
+      return indexRolloverMaxAgeDays;
+    }
+
+    /**
+     * @param indexRolloverMaxAgeDays - The age, in days, at which a write alias rolls over to a new index
+     */
+    public void setIndexRolloverMaxAgeDays(int indexRolloverMaxAgeDays) {
+      this.indexRolloverMaxAgeDays = indexRolloverMaxAgeDays;
+    }
+
+    /**
+     * @return Whether the plugin installs the index template of its documents
+     */
+    public boolean isIndexTemplateEnabled() {
+      return indexTemplateEnabled;
+    }
+
+    /**
+     * @param indexTemplateEnabled - Whether the plugin installs the index template of its documents
+     */
+    public void setIndexTemplateEnabled(boolean indexTemplateEnabled) {
+      this.indexTemplateEnabled = indexTemplateEnabled;
+    }
+
+    /**
+     * @return The refresh interval set by the index template, such as 30s
+     */
+    public String getIndexRefreshInterval() {
+      return indexRefreshInterval;
+    }
+
+    /**
+     * @param indexRefreshInterval - The refresh interval set by the index template, such as 30s
+     */
+    public void setIndexRefreshInterval(String indexRefreshInterval) {
+      this.indexRefreshInterval = indexRefreshInterval;
+    }
+
+    /**
+     * @return How documents are encoded in _bulk requests, one of {@link JobPerformanceStatsJsonWriter.Encoding}
+     */
+    public String getElkEncoding() {
+      return elkEncoding;
+    }
+
+    /**
+     * @param elkEncoding - How documents are encoded in _bulk requests, one of {@link JobPerformanceStatsJsonWriter.Encoding}
+     */
+    public void setElkEncoding(String elkEncoding) {
+      this.elkEncoding = elkEncoding;
+    }
+
+    /**
+     * Fills the encoding drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsJsonWriter.Encoding}.
+     */
+    public ListBoxModel doFillElkEncodingItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsJsonWriter.Encoding encoding : JobPerformanceStatsJsonWriter.Encoding.values()) {
+        items.add(encoding.name());
+      }
+      return items;
+    }
+
+    /**
+     * @return How the metrics of a build are laid out in ELK, one of {@link JobPerformanceStatsHttpRequests.DocumentMode}
+     */
+    public String getElkDocumentMode() {
+      return elkDocumentMode;
+    }
+
+    /**
+     * @param elkDocumentMode - How the metrics of a build are laid out in ELK, one of {@link JobPerformanceStatsHttpRequests.DocumentMode}
+     */
+    public void setElkDocumentMode(String elkDocumentMode) {
+      this.elkDocumentMode = elkDocumentMode;
+    }
+
+    /**
+     * Fills the document mode drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsHttpRequests.DocumentMode}.
+     */
+    public ListBoxModel doFillElkDocumentModeItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsHttpRequests.DocumentMode mode : JobPerformanceStatsHttpRequests.DocumentMode.values()) {
+        items.add(mode.name());
+      }
+      return items;
+    }
+
+    /**
+     * @return Whether a lifecycle document is kept up to date for each build
+     */
+    public boolean isElkLifecycleEnabled() {
+      return elkLifecycleEnabled;
+    }
+
+    /**
+     * @param elkLifecycleEnabled - Whether a lifecycle document is kept up to date for each build
+     */
+    public void setElkLifecycleEnabled(boolean elkLifecycleEnabled) {
+      this.elkLifecycleEnabled = elkLifecycleEnabled;
+    }
+
+    /**
+     * @return How requests are sent to ELK, one of {@link JobPerformanceStatsAsyncHttpClient.Transport}
+     */
+    public String getHttpTransport() {
+      return httpTransport;
+    }
+
+    /**
+     * @param httpTransport - How requests are sent to ELK, one of {@link JobPerformanceStatsAsyncHttpClient.Transport}
+     */
+    public void setHttpTransport(String httpTransport) {
+      this.httpTransport = httpTransport;
+    }
+
+    /**
+     * Fills the transport drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsAsyncHttpClient.Transport}.
+     */
+    public ListBoxModel doFillHttpTransportItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsAsyncHttpClient.Transport transport : JobPerformanceStatsAsyncHttpClient.Transport.values()) {
+        items.add(transport.name());
+      }
+      return items;
+    }
+
+    /**
+     * @return The maximum number of asynchronous requests in flight
+     */
+    public int getHttpAsyncMaxInFlight() {
+      return httpAsyncMaxInFlight;
+    }
+
+    /**
+     * @param httpAsyncMaxInFlight - The maximum number of asynchronous requests in flight
+     */
+    public void setHttpAsyncMaxInFlight(int httpAsyncMaxInFlight) {
+      this.httpAsyncMaxInFlight = httpAsyncMaxInFlight;
+    }
+
+    /**
+     * @return The number of I/O dispatcher threads of the asynchronous transport
+     */
+    public int getHttpAsyncIoThreads() {
+      return httpAsyncIoThreads;
+    }
+
+    /**
+     * @param httpAsyncIoThreads - The number of I/O dispatcher threads of the asynchronous transport
+     */
+    public void setHttpAsyncIoThreads(int httpAsyncIoThreads) {
+      this.httpAsyncIoThreads = httpAsyncIoThreads;
+    }
+
+    /**
+     * @return Whether build documents are also appended to rolling NDJSON files
+     */
+    public boolean isFileSinkEnabled() {
+      return fileSinkEnabled;
+    }
+
+    /**
+     * @param fileSinkEnabled - Whether build documents are also appended to rolling NDJSON files
+     */
+    public void setFileSinkEnabled(boolean fileSinkEnabled) {
+      this.fileSinkEnabled = fileSinkEnabled;
+    }
+
+    /**
+     * @return The directory of the NDJSON files, empty for a folder of the Jenkins home
+     */
+    public String getFileSinkDirectory() {
+      return fileSinkDirectory;
+    }
+
+    /**
+     * @param fileSinkDirectory - The directory of the NDJSON files, empty for a folder of the Jenkins home
+     */
+    public void setFileSinkDirectory(String fileSinkDirectory) {
+      this.fileSinkDirectory = fileSinkDirectory;
+    }
+
+    /**
+     * @return The size in megabytes an NDJSON file is rotated at
+     */
+    public int getFileSinkMaxMegabytes() {
+      return fileSinkMaxMegabytes;
+    }
+
+    /**
+     * @param fileSinkMaxMegabytes - The size in megabytes an NDJSON file is rotated at
+     */
+    public void setFileSinkMaxMegabytes(int fileSinkMaxMegabytes) {
+      this.fileSinkMaxMegabytes = fileSinkMaxMegabytes;
+    }
+
+    /**
+     * @return The age in minutes an NDJSON file is rotated at, 0 to only rotate by size
+     */
+    public int getFileSinkRotateMinutes() {
+      return fileSinkRotateMinutes;
+    }
+
+    /**
+     * @param fileSinkRotateMinutes - The age in minutes an NDJSON file is rotated at, 0 to only rotate by size
+     */
+    public void setFileSinkRotateMinutes(int fileSinkRotateMinutes) {
+      this.fileSinkRotateMinutes = fileSinkRotateMinutes;
+    }
+
+    /**
+     * @return The number of rotated NDJSON files kept
+     */
+    public int getFileSinkMaxFiles() {
+      return fileSinkMaxFiles;
+    }
+
+    /**
+     * @param fileSinkMaxFiles - The number of rotated NDJSON files kept
+     */
+    public void setFileSinkMaxFiles(int fileSinkMaxFiles) {
+      this.fileSinkMaxFiles = fileSinkMaxFiles;
+    }
+
+    /**
+     * @return Whether the documents acknowledged for each build are recorded, to send the rest after a restart
+     */
+    public boolean isShippingLedgerEnabled() {
+      return shippingLedgerEnabled;
+    }
+
+    /**
+     * @param shippingLedgerEnabled - Whether the documents acknowledged for each build are recorded, to send the rest after a restart
+     */
+    public void setShippingLedgerEnabled(boolean shippingLedgerEnabled) {
+      this.shippingLedgerEnabled = shippingLedgerEnabled;
+    }
+
+    /**
+     * @return Whether outgoing documents and metrics go through the rate limiter
+     */
+    public boolean isRateLimitEnabled() {
+      return rateLimitEnabled;
+    }
+
+    /**
+     * @param rateLimitEnabled - Whether outgoing documents and metrics go through the rate limiter
+     */
+    public void setRateLimitEnabled(boolean rateLimitEnabled) {
+      this.rateLimitEnabled = rateLimitEnabled;
+    }
+
+    /**
+     * @return The number of documents and metric posts sent per second once the burst is used up
+     */
+    public int getRateLimitDocsPerSecond() {
+      return rateLimitDocsPerSecond;
+    }
+
+    /**
+     * @param rateLimitDocsPerSecond - The number of documents and metric posts sent per second once the burst is used up
+     */
+    public void setRateLimitDocsPerSecond(int rateLimitDocsPerSecond) {
+      this.rateLimitDocsPerSecond = rateLimitDocsPerSecond;
+    }
+
+    /**
+     * @return The number of documents and metric posts sent at once before the rate applies
+     */
+    public int getRateLimitBurst() {
+      return rateLimitBurst;
+    }
+
+    /**
+     * @param rateLimitBurst - The number of documents and metric posts sent at once before the rate applies
+     */
+    public void setRateLimitBurst(int rateLimitBurst) {
+      this.rateLimitBurst = rateLimitBurst;
+    }
+
+    /**
+     * @return The number of stage and step documents kept waiting for the rate limit before they are shed
+     */
+    public int getRateLimitMaxDeferred() {
+      return rateLimitMaxDeferred;
+    }
+
+    /**
+     * @param rateLimitMaxDeferred - The number of stage and step documents kept waiting for the rate limit before they are shed
+     */
+    public void setRateLimitMaxDeferred(int rateLimitMaxDeferred) {
+      this.rateLimitMaxDeferred = rateLimitMaxDeferred;
+    }
+
+    /**
+     * @return How often, in seconds, the collected metrics are posted to the metric endpoint, 0 to post them right away
+     */
+    public int getMetricFlushSeconds() {
+      return metricFlushSeconds;
+    }
+
+    /**
+     * @param metricFlushSeconds - How often, in seconds, the collected metrics are posted to the metric endpoint, 0 to post them right away
+     */
+    public void setMetricFlushSeconds(int metricFlushSeconds) {
+      this.metricFlushSeconds = metricFlushSeconds;
+    }
+
+    /**
+     * @return Whether job, stage and step durations are kept in quantile sketches
+     */
+    public boolean isDurationSketchesEnabled() {
+      return durationSketchesEnabled;
+    }
+
+    /**
+     * @param durationSketchesEnabled - Whether job, stage and step durations are kept in quantile sketches
+     */
+    public void setDurationSketchesEnabled(boolean durationSketchesEnabled) {
+      this.durationSketchesEnabled = durationSketchesEnabled;
+    }
+
+    /**
+     * @return Whether build metrics are served at JENKINS_URL/prometheus
+     */
+    public boolean isPrometheusEnabled() {
+      return prometheusEnabled;
+    }
+
+    /**
+     * @param prometheusEnabled - Whether build metrics are served at JENKINS_URL/prometheus
+     */
+    public void setPrometheusEnabled(boolean prometheusEnabled) {
+      this.prometheusEnabled = prometheusEnabled;
+    }
+
+    /**
+     * @return Whether build metrics are pushed to a Prometheus Pushgateway
+     */
+    public boolean isPushgatewayEnabled() {
+      return pushgatewayEnabled;
+    }
+
+    /**
+     * @param pushgatewayEnabled - Whether build metrics are pushed to a Prometheus Pushgateway
+     */
+    public void setPushgatewayEnabled(boolean pushgatewayEnabled) {
+      this.pushgatewayEnabled = pushgatewayEnabled;
+    }
+
+    /**
+     * @return The host and port of the Pushgateway
+     */
+    public String getPushgatewayAddress() {
+      return pushgatewayAddress;
+    }
+
+    /**
+     * @param pushgatewayAddress - The host and port of the Pushgateway
+     */
+    public void setPushgatewayAddress(String pushgatewayAddress) {
+      this.pushgatewayAddress = pushgatewayAddress;
+    }
+
+    /**
+     * @return The job name the metrics are grouped under on the Pushgateway
+     */
+    public String getPushgatewayJob() {
+      return pushgatewayJob;
+    }
+
+    /**
+     * @param pushgatewayJob - The job name the metrics are grouped under on the Pushgateway
+     */
+    public void setPushgatewayJob(String pushgatewayJob) {
+      this.pushgatewayJob = pushgatewayJob;
+    }
+
+    /**
+     * @return Seconds between two pushes to the Pushgateway
+     */
+    public int getPushgatewayIntervalSeconds() {
+      return pushgatewayIntervalSeconds;
+    }
+
+    /**
+     * @param pushgatewayIntervalSeconds - Seconds between two pushes to the Pushgateway
+     */
+    public void setPushgatewayIntervalSeconds(int pushgatewayIntervalSeconds) {
+      this.pushgatewayIntervalSeconds = pushgatewayIntervalSeconds;
+    }
+
+    /**
+     * @return The known ELK nodes and their health, shown on the configuration page, or none
+     *         until a request created the node pool
+     */
+    public List<JobPerformanceStatsNodePool.Node> getElkNodeStatus() {
+      JobPerformanceStatsNodePool pool = JobPerformanceStatsNodePool.peek();
+      return pool != null ? pool.getNodes() : Collections.<JobPerformanceStatsNodePool.Node>emptyList();
+    }
+
+    /**
+     * @return The maximum number of attempts of a request, including the first one
+     */
+    public int getRetryMaxAttempts() {
+      return retryMaxAttempts;
+    }
+
+    /**
+     * @param retryMaxAttempts - The maximum number of attempts of a request, including the first one
+     */
+    public void setRetryMaxAttempts(int retryMaxAttempts) {
+      this.retryMaxAttempts = retryMaxAttempts;
+    }
+
+    /**
+     * @return The backoff, in milliseconds, before the first retry
+     */
+    public long getRetryBaseDelayMillis() {
+      return retryBaseDelayMillis;
+    }
+
+    /**
+     * @param retryBaseDelayMillis - The backoff, in milliseconds, before the first retry
+     */
+    public void setRetryBaseDelayMillis(long retryBaseDelayMillis) {
+      this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
+
+    /**
+     * @return The maximum backoff, in milliseconds, between two attempts
+     */
+    public long getRetryMaxDelayMillis() {
+      return retryMaxDelayMillis;
+    }
+
+    /**
+     * @param retryMaxDelayMillis - The maximum backoff, in milliseconds, between two attempts
+     */
+    public void setRetryMaxDelayMillis(long retryMaxDelayMillis) {
+      this.retryMaxDelayMillis = retryMaxDelayMillis;
+    }
+
+    /**
+     * @return The number of consecutive failures that opens the circuit breaker of an endpoint
+     */
+    public int getBreakerFailureThreshold() {
+      return breakerFailureThreshold;
+    }
+
+    /**
+     * @param breakerFailureThreshold - The number of consecutive failures that opens the circuit breaker of an endpoint
+     */
+    public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+      this.breakerFailureThreshold = breakerFailureThreshold;
+    }
+
+    /**
+     * @return How long, in seconds, an open circuit breaker waits before probing the endpoint
+     */
+    public int getBreakerOpenSeconds() {
+      return breakerOpenSeconds;
+    }
+
+    /**
+     * @param breakerOpenSeconds - How long, in seconds, an open circuit breaker waits before probing the endpoint
+     */
+    public void setBreakerOpenSeconds(int breakerOpenSeconds) {
+      this.breakerOpenSeconds = breakerOpenSeconds;
+    }
+
+    /**
+     * @return What happens to ELK documents that could not be sent, one of {@link JobPerformanceStatsCircuitBreaker.Fallback}
+     */
+    public String getBreakerFallback() {
+      return breakerFallback;
+    }
+
+    /**
+     * @param breakerFallback - What happens to ELK documents that could not be sent, one of {@link JobPerformanceStatsCircuitBreaker.Fallback}
+     */
+    public void setBreakerFallback(String breakerFallback) {
+      this.breakerFallback = breakerFallback;
+    }
+
+    /**
+     * Fills the fallback drop-down of the configuration screen.
+     *
+     * @return a ListBoxModel with one entry per {@link JobPerformanceStatsCircuitBreaker.Fallback}.
+     */
+    public ListBoxModel doFillBreakerFallbackItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (JobPerformanceStatsCircuitBreaker.Fallback fallback : JobPerformanceStatsCircuitBreaker.Fallback.values()) {
+        items.add(fallback.name());
+      }
+      return items;
+    }
+
+    /**
+     * @return The counters of the documents sent to ELK since Jenkins started, shown on the configuration page
+     */
+    public JobPerformanceStatsBulkWriter.Stats getBulkStats() {
+      return JobPerformanceStatsBulkWriter.STATS;
+    }
+
+    /**
+     * @return The circuit breakers of the endpoints contacted since Jenkins started, shown on the configuration page
+     */
+    public List<JobPerformanceStatsCircuitBreaker> getCircuitBreakers() {
+      return JobPerformanceStatsCircuitBreaker.all();
+    }
+
+    /**
+     * @return Whether ELK documents are written to the on-disk spool before they are sent
+     */
+    public boolean isSpoolEnabled() {
+      return spoolEnabled;
+    }
+
+    /**
+     * @param spoolEnabled - Whether ELK documents are written to the on-disk spool before they are sent
+     */
+    public void setSpoolEnabled(boolean spoolEnabled) {
+      this.spoolEnabled = spoolEnabled;
+    }
+
+    /**
+     * @return The size of a spool segment file, in megabytes
+     */
+    public int getSpoolSegmentMegabytes() {
+      return spoolSegmentMegabytes;
+    }
+
+    /**
+     * @param spoolSegmentMegabytes - The size of a spool segment file, in megabytes
+     */
+    public void setSpoolSegmentMegabytes(int spoolSegmentMegabytes) {
+      this.spoolSegmentMegabytes = spoolSegmentMegabytes;
+    }
+
+    /**
+     * @return The maximum size of the spool, in megabytes
+     */
+    public int getSpoolMaxMegabytes() {
+      return spoolMaxMegabytes;
+    }
+
+    /**
+     * @param spoolMaxMegabytes - The maximum size of the spool, in megabytes
+     */
+    public void setSpoolMaxMegabytes(int spoolMaxMegabytes) {
+      this.spoolMaxMegabytes = spoolMaxMegabytes;
+    }
+
+    /**
+     * @return How long, in hours, unsent documents are kept in the spool
+     */
+    public int getSpoolRetentionHours() {
+      return spoolRetentionHours;
+    }
+
+    /**
+     * @param spoolRetentionHours - How long, in hours, unsent documents are kept in the spool
+     */
+    public void setSpoolRetentionHours(int spoolRetentionHours) {
+      this.spoolRetentionHours = spoolRetentionHours;
+    }
   }
 }
@@ -0,0 +1,138 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+/**
+ * Parsed response of an Elasticsearch <code>_bulk</code> request. ELK answers a bulk request
+ * with a single status for the whole request and one status per item, so a request can
+ * succeed while some of its documents were rejected.
+ */
+public class JobPerformanceStatsBulkResponse {
+
+  private final int accepted;
+  private final List<String> acceptedIds;
+  private final List<Item> failures;
+
+  JobPerformanceStatsBulkResponse(final int accepted, final List<Item> failures) {
+    this(accepted, Collections.<String>emptyList(), failures);
+  }
+
+  JobPerformanceStatsBulkResponse(final int accepted, final List<String> acceptedIds, final List<Item> failures) {
+    this.accepted = accepted;
+    this.acceptedIds = acceptedIds;
+    this.failures = failures;
+  }
+
+  /**
+   * Parses the body returned by the <code>_bulk</code> endpoint.
+   *
+   * @param body - The raw JSON response body.
+   * @return a {@link JobPerformanceStatsBulkResponse} with the per-item results.
+   */
+  public static JobPerformanceStatsBulkResponse parse(final String body) {
+    JSONObject json = (JSONObject) JSONSerializer.toJSON(body);
+    JSONArray items = json.optJSONArray("items");
+    if (items == null) {
+      return new JobPerformanceStatsBulkResponse(0, Collections.<Item>emptyList());
+    }
+
+    int accepted = 0;
+    List<String> acceptedIds = new ArrayList<>();
+    List<Item> failures = new ArrayList<>();
+    for (int i = 0; i < items.size(); i++) {
+      // Each item is keyed by its action name, e.g. {"index":{"_id":...,"status":201}}
+      JSONObject wrapper = items.getJSONObject(i);
+      if (wrapper.isEmpty()) {
+        continue;
+      }
+      JSONObject result = wrapper.getJSONObject((String) wrapper.keySet().iterator().next());
+      int status = result.optInt("status", 0);
+      if (status >= 200 && status < 300) {
+        accepted++;
+        acceptedIds.add(result.optString("_id"));
+      } else {
+        JSONObject error = result.optJSONObject("error");
+        String reason = error != null ? error.optString("type") + ": " + error.optString("reason")
+                                      : "unknown error";
+        failures.add(new Item(i, result.optString("_id"), status, reason));
+      }
+    }
+    return new JobPerformanceStatsBulkResponse(accepted, acceptedIds, failures);
+  }
+
+  /**
+   * @return the number of documents ELK accepted.
+   */
+  public int getAccepted() {
+    return accepted;
+  }
+
+  /**
+   * @return the ids of the documents ELK accepted, in request order.
+   */
+  public List<String> getAcceptedIds() {
+    return acceptedIds;
+  }
+
+  /**
+   * @return the items ELK did not accept, in request order.
+   */
+  public List<Item> getFailures() {
+    return failures;
+  }
+
+  /**
+   * A single document that was not accepted by ELK.
+   */
+  public static class Item {
+    private final int position;
+    private final String id;
+    private final int status;
+    private final String reason;
+
+    Item(final int position, final String id, final int status, final String reason) {
+      this.position = position;
+      this.id = id;
+      this.status = status;
+      this.reason = reason;
+    }
+
+    /**
+     * @return the position of the document in the bulk request.
+     */
+    public int getPosition() {
+      return position;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    /**
+     * @return true if ELK rejected the document because it is overloaded, and it may be sent
+     *         again later.
+     */
+    public boolean isRetryable() {
+      return status == 429 || status == 503 || reason.startsWith("es_rejected_execution_exception");
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s (status %s): %s", id, status, reason);
+    }
+  }
+}
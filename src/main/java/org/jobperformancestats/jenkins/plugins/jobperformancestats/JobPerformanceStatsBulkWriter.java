@@ -0,0 +1,558 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * Collects job, stage and step documents into Elasticsearch <code>_bulk</code> requests.
+ *
+ * <p>Documents are buffered as NDJSON (one action line and one source line per document) in a
+ * pooled {@link JobPerformanceStatsJsonWriter} buffer, and sent whenever the configured document
+ * count or byte size would be exceeded, and once more when the writer is closed. With the Smile
+ * encoding each action and source ends with the 0xFF end marker instead of a newline.
+ *
+ * <p>When a {@link JobPerformanceStatsSpool} is given, documents are appended to the spool
+ * instead, and sent by the {@link JobPerformanceStatsSpoolReplayer}. The spool only holds JSON.
+ *
+ * <p>With the <code>ASYNC</code> {@link JobPerformanceStatsAsyncHttpClient.Transport}, requests
+ * are sent without waiting for their response: the writer only counts documents that could not be
+ * handed over, and the outcome of each request is added to {@link #STATS} once it completes.
+ */
+public class JobPerformanceStatsBulkWriter {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsBulkWriter.class.getName());
+  static final Stats STATS = new Stats();
+  private static final int RETRY_ON_CONFLICT = 3;
+
+  private final int maxDocs;
+  private final long maxBytes;
+  private final JobPerformanceStatsSpool spool;
+  private final JobPerformanceStatsJsonWriter.Encoding encoding;
+  // The body of the pending request, reused across requests
+  private final JobPerformanceStatsJsonWriter body;
+  private final boolean async;
+  private JobPerformanceStatsShippingLedger ledger;
+  private int pendingDocs = 0;
+  private int accepted = 0;
+  private int failed = 0;
+  private int spooled = 0;
+
+  /**
+   * @param maxDocs - The maximum number of documents sent in a single request.
+   * @param maxBytes - The maximum size, in bytes, of a single request body.
+   */
+  public JobPerformanceStatsBulkWriter(final int maxDocs, final long maxBytes) {
+    this(maxDocs, maxBytes, null);
+  }
+
+  /**
+   * @param maxDocs - The maximum number of documents sent in a single request.
+   * @param maxBytes - The maximum size, in bytes, of a single request body.
+   * @param spool - The spool documents are written to first, or null to send them directly.
+   */
+  public JobPerformanceStatsBulkWriter(final int maxDocs, final long maxBytes, final JobPerformanceStatsSpool spool) {
+    this(maxDocs, maxBytes, spool, JobPerformanceStatsJsonWriter.Encoding.JSON);
+  }
+
+  /**
+   * @param maxDocs - The maximum number of documents sent in a single request.
+   * @param maxBytes - The maximum size, in bytes, of a single request body.
+   * @param spool - The spool documents are written to first, or null to send them directly.
+   * @param encoding - How documents are encoded, JSON when they are spooled.
+   */
+  public JobPerformanceStatsBulkWriter(final int maxDocs, final long maxBytes, final JobPerformanceStatsSpool spool,
+                                       final JobPerformanceStatsJsonWriter.Encoding encoding) {
+    this.maxDocs = Math.max(1, maxDocs);
+    this.maxBytes = Math.max(1, maxBytes);
+    this.spool = spool;
+    this.encoding = spool == null && encoding != null ? encoding : JobPerformanceStatsJsonWriter.Encoding.JSON;
+    this.body = JobPerformanceStatsJsonWriter.acquire(this.encoding);
+    this.async = spool == null && JobPerformanceStatsAsyncHttpClient.isEnabled();
+  }
+
+  /**
+   * @param ledger - The ledger the documents ELK accepted or that were spooled are recorded in,
+   *                 or null.
+   */
+  public void setLedger(final JobPerformanceStatsShippingLedger ledger) {
+    this.ledger = ledger;
+  }
+
+  /**
+   * @return how documents are encoded. Sources given to {@link #add} must use the same encoding.
+   */
+  public JobPerformanceStatsJsonWriter.Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Adds a document to the current request, sending the pending documents first if adding it
+   * would exceed the configured limits.
+   *
+   * @param index - The name of the index the document is written to.
+   * @param id - The document id.
+   * @param source - The source of the document, in the encoding of this writer. It is copied, so
+   *                 the writer can be reused.
+   * @throws IOException if a pending request fails to be sent.
+   */
+  public void add(final String index, final String id, final JobPerformanceStatsJsonWriter source) throws IOException {
+    append("index", index, id, source);
+  }
+
+  /**
+   * Adds an update of a document to the current request, sending the pending documents first if
+   * adding it would exceed the configured limits.
+   *
+   * @param index - The name of the index the document is written to.
+   * @param id - The document id.
+   * @param source - The body of the update, such as a partial <code>doc</code> or a
+   *                 <code>script</code>, with the <code>upsert</code> document indexed when the
+   *                 document does not exist yet. It is copied, so the writer can be reused.
+   * @throws IOException if a pending request fails to be sent.
+   */
+  public void update(final String index, final String id, final JobPerformanceStatsJsonWriter source) throws IOException {
+    append("update", index, id, source);
+  }
+
+  private void append(final String action, final String index, final String id,
+                      final JobPerformanceStatsJsonWriter source) throws IOException {
+    int start = body.size();
+    body.beginObject().name(action).beginObject()
+            .field("_index", index).field("_type", "doc").field("_id", id);
+    if ("update".equals(action)) {
+      // Updates of the same document may be applied concurrently by several shipping workers
+      body.field("retry_on_conflict", RETRY_ON_CONFLICT);
+    }
+    body.endObject().endObject().newline();
+    body.raw(source).newline();
+    if (spool != null) {
+      // The spool keeps each document as the two NDJSON lines of its bulk item
+      try {
+        spool.append(body.buffer(), start, body.size() - start);
+      } finally {
+        body.reset();
+      }
+      if (ledger != null) {
+        // The spool is durable, the replayer sends the document even after a restart
+        ledger.acknowledged(Collections.singletonList(id));
+      }
+      return;
+    }
+    if (pendingDocs > 0 && (pendingDocs >= maxDocs || body.size() > maxBytes)) {
+      send(start);
+    }
+    pendingDocs++;
+  }
+
+  /**
+   * Sends the pending documents as one <code>_bulk</code> request.
+   *
+   * @return the parsed response, or null if there was nothing to send or documents are spooled.
+   * @throws IOException if the request fails.
+   */
+  public JobPerformanceStatsBulkResponse flush() throws IOException {
+    if (spool != null) {
+      JobPerformanceStatsSpoolReplayer.notifyAppended();
+      return null;
+    }
+    if (pendingDocs == 0) {
+      return null;
+    }
+    return send(body.size());
+  }
+
+  /**
+   * Sends the first bytes of the body, which hold the pending documents, and keeps the rest.
+   *
+   * <p>Items ELK rejected because it is overloaded (429 or 503) are sent again, alone, after a
+   * backoff, up to the configured number of attempts. The retries are scheduled on the
+   * {@link JobPerformanceStatsExecutor} rather than waited for, and only counted in {@link #STATS}.
+   * Other rejected items are not retried.
+   */
+  private JobPerformanceStatsBulkResponse send(final int length) throws IOException {
+    if (async) {
+      // The body is reused for the next documents while this request is in flight
+      try {
+        sendAsync(Arrays.copyOf(body.buffer(), length), length, pendingDocs, 1);
+      } finally {
+        body.discard(length);
+        pendingDocs = 0;
+      }
+      return null;
+    }
+    byte[] bytes = body.buffer();
+    int docs = pendingDocs;
+    try {
+      JobPerformanceStatsBulkResponse response;
+      try {
+        logger.finer(String.format("Sending %s documents (%s bytes)", docs, length));
+        String result = JobPerformanceStatsHttpRequests.sendBulkRequest(bytes, length, encoding);
+        response = JobPerformanceStatsBulkResponse.parse(result);
+      } catch (IOException e) {
+        if (spoolFallback(bytes, length)) {
+          logger.warning(String.format("Unable to send %s documents, spooled them instead: %s", docs, e.toString()));
+          spooled += docs;
+          return null;
+        }
+        failed += docs;
+        STATS.failed.addAndGet(docs);
+        throw e;
+      }
+
+      accepted += response.getAccepted();
+      STATS.accepted.addAndGet(response.getAccepted());
+      if (ledger != null) {
+        ledger.acknowledged(response.getAcceptedIds());
+      }
+      List<JobPerformanceStatsBulkResponse.Item> retryable = new ArrayList<>();
+      for (JobPerformanceStatsBulkResponse.Item failure : response.getFailures()) {
+        if (failure.isRetryable()) {
+          retryable.add(failure);
+        } else {
+          failed++;
+          STATS.rejected.incrementAndGet();
+          logger.warning(String.format("ELK rejected document %s", failure));
+        }
+      }
+      if (retryable.isEmpty()) {
+        return response;
+      }
+
+      byte[] retryBytes = retryBody(bytes, length, retryable);
+      if (maxAttempts() <= 1) {
+        if (spoolFallback(retryBytes, retryBytes.length)) {
+          logger.warning(String.format("ELK is still throttling %s documents, spooled them instead", retryable.size()));
+          spooled += retryable.size();
+        } else {
+          logger.warning(String.format("ELK is still throttling %s documents, dropping them: %s",
+                  retryable.size(), retryable.get(0)));
+          failed += retryable.size();
+          STATS.rejected.addAndGet(retryable.size());
+        }
+        return response;
+      }
+      STATS.retried.addAndGet(retryable.size());
+      retry(retryBytes, retryable.size(), 1);
+      return response;
+    } finally {
+      body.discard(length);
+      pendingDocs = 0;
+    }
+  }
+
+  /**
+   * @return a body holding only the given items of another one.
+   */
+  private byte[] retryBody(final byte[] bytes, final int size, final List<JobPerformanceStatsBulkResponse.Item> items) {
+    JobPerformanceStatsJsonWriter next = JobPerformanceStatsJsonWriter.acquire();
+    try {
+      int[] offsets = itemOffsets(bytes, size, encoding.getSeparator());
+      for (JobPerformanceStatsBulkResponse.Item item : items) {
+        int position = item.getPosition();
+        next.raw(bytes, offsets[position], offsets[position + 1] - offsets[position]);
+      }
+      return Arrays.copyOf(next.buffer(), next.size());
+    } finally {
+      JobPerformanceStatsJsonWriter.release(next);
+    }
+  }
+
+  /**
+   * Sends a body through the {@link JobPerformanceStatsAsyncHttpClient}. Failed requests and items
+   * ELK throttled are sent again like {@link #send(int)} does.
+   *
+   * @param bytes - The body, owned by the request.
+   * @param size - The length of the body.
+   * @param docs - The number of documents in the body.
+   * @param attempt - The attempt number, starting at 1.
+   */
+  private void sendAsync(final byte[] bytes, final int size, final int docs, final int attempt) {
+    logger.finer(String.format("Sending %s documents (%s bytes) asynchronously", docs, size));
+    JobPerformanceStatsHttpRequests.sendBulkRequestAsync(bytes, size, encoding, new JobPerformanceStatsAsyncHttpClient.Callback<String>() {
+      @Override
+      public void completed(final String result) {
+        retried(JobPerformanceStatsBulkResponse.parse(result), bytes, size, attempt);
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        if (attempt < maxAttempts() && !(e instanceof JobPerformanceStatsCircuitBreaker.OpenException)
+                && !(e instanceof JobPerformanceStatsHttpRequests.StatusException
+                     && !JobPerformanceStatsHttpClient.isRetryable(((JobPerformanceStatsHttpRequests.StatusException) e).getStatus()))) {
+          retry(bytes, docs, attempt);
+        } else {
+          giveUp(bytes, size, docs, e.toString(), false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends a retried body again through the blocking {@link JobPerformanceStatsHttpClient}, from
+   * the {@link JobPerformanceStatsExecutor}. The node pool retries failed requests itself.
+   */
+  private void resend(final byte[] bytes, final int docs, final int attempt) {
+    logger.finer(String.format("Sending %s documents (%s bytes) again", docs, bytes.length));
+    JobPerformanceStatsBulkResponse response;
+    try {
+      response = JobPerformanceStatsBulkResponse.parse(JobPerformanceStatsHttpRequests.sendBulkRequest(bytes, bytes.length, encoding));
+    } catch (IOException e) {
+      giveUp(bytes, bytes.length, docs, e.toString(), false);
+      return;
+    }
+    retried(response, bytes, bytes.length, attempt);
+  }
+
+  /**
+   * Counts the outcome of a request sent from the background, and schedules another attempt for
+   * the items ELK throttled.
+   */
+  private void retried(final JobPerformanceStatsBulkResponse response, final byte[] bytes, final int size, final int attempt) {
+    STATS.accepted.addAndGet(response.getAccepted());
+    if (ledger != null && !response.getAcceptedIds().isEmpty()) {
+      // The ledger writes to disk, which the I/O threads must not wait for
+      Runnable acknowledge = new Runnable() {
+        @Override
+        public void run() {
+          ledger.acknowledged(response.getAcceptedIds());
+        }
+      };
+      try {
+        JobPerformanceStatsExecutor.get().submit(acknowledge);
+      } catch (RejectedExecutionException e) {
+        acknowledge.run();
+      }
+    }
+    List<JobPerformanceStatsBulkResponse.Item> retryable = new ArrayList<>();
+    for (JobPerformanceStatsBulkResponse.Item failure : response.getFailures()) {
+      if (failure.isRetryable()) {
+        retryable.add(failure);
+      } else {
+        STATS.rejected.incrementAndGet();
+        logger.warning(String.format("ELK rejected document %s", failure));
+      }
+    }
+    if (retryable.isEmpty()) {
+      return;
+    }
+
+    // Keep only the throttled items for the next attempt
+    byte[] retryBytes = retryBody(bytes, size, retryable);
+    if (attempt >= maxAttempts()) {
+      giveUp(retryBytes, retryBytes.length, retryable.size(),
+              String.format("ELK is still throttling them: %s", retryable.get(0)), true);
+      return;
+    }
+    STATS.retried.addAndGet(retryable.size());
+    retry(retryBytes, retryable.size(), attempt);
+  }
+
+  /**
+   * Schedules the next attempt of a body on the {@link JobPerformanceStatsExecutor}, after a
+   * backoff, without holding a thread in the meantime.
+   */
+  private void retry(final byte[] bytes, final int docs, final int attempt) {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    long delay = JobPerformanceStatsHttpClient.backoff(attempt, descriptor);
+    logger.fine(String.format("Sending %s documents again in %s ms", docs, delay));
+    try {
+      JobPerformanceStatsExecutor.get().schedule(new JobPerformanceStatsExecutor.Droppable() {
+        @Override
+        public void run() {
+          if (async) {
+            sendAsync(bytes, bytes.length, docs, attempt + 1);
+          } else {
+            resend(bytes, docs, attempt + 1);
+          }
+        }
+
+        @Override
+        public void dropped() {
+          giveUp(bytes, bytes.length, docs, "Jenkins is stopping", false);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      giveUp(bytes, bytes.length, docs, "Jenkins is stopping", false);
+    }
+  }
+
+  /**
+   * Spools or drops documents sent from the background, from the
+   * {@link JobPerformanceStatsExecutor} as the spool writes to disk, or from the calling thread
+   * once Jenkins is stopping.
+   */
+  private void giveUp(final byte[] bytes, final int size, final int docs, final String reason, final boolean throttled) {
+    JobPerformanceStatsExecutor.Droppable task = new JobPerformanceStatsExecutor.Droppable() {
+      @Override
+      public void run() {
+        if (spoolFallback(bytes, size)) {
+          logger.warning(String.format("Unable to send %s documents, spooled them instead: %s", docs, reason));
+        } else {
+          logger.warning(String.format("Unable to send %s documents, dropping them: %s", docs, reason));
+          (throttled ? STATS.rejected : STATS.failed).addAndGet(docs);
+        }
+      }
+
+      @Override
+      public void dropped() {
+        run();
+      }
+    };
+    try {
+      JobPerformanceStatsExecutor.get().submit(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  private static int maxAttempts() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor.getRetryMaxAttempts() > 0 ? descriptor.getRetryMaxAttempts()
+                                                : JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS;
+  }
+
+  /**
+   * @return the offset of every bulk item in an NDJSON body, followed by the end of the body.
+   */
+  static int[] itemOffsets(final byte[] bytes, final int length) {
+    return itemOffsets(bytes, length, (byte) '\n');
+  }
+
+  /**
+   * @param separator - The byte ending each action and source, a newline or the Smile end marker.
+   * @return the offset of every bulk item in a body, followed by the end of the body.
+   */
+  static int[] itemOffsets(final byte[] bytes, final int length, final byte separator) {
+    int lines = 0;
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] == separator) {
+        lines++;
+      }
+    }
+    int[] offsets = new int[lines / 2 + 1];
+    int item = 1;
+    lines = 0;
+    for (int i = 0; i < length && item < offsets.length; i++) {
+      if (bytes[i] == separator && ++lines % 2 == 0) {
+        offsets[item++] = i + 1;
+      }
+    }
+    return offsets;
+  }
+
+  /**
+   * Writes an NDJSON body to the spool when the configured
+   * {@link JobPerformanceStatsCircuitBreaker.Fallback} is to spool documents that could not be sent.
+   *
+   * @return true if the documents were spooled.
+   */
+  private boolean spoolFallback(final byte[] bytes, final int length) {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (JobPerformanceStatsCircuitBreaker.parseFallback(descriptor.getBreakerFallback())
+            != JobPerformanceStatsCircuitBreaker.Fallback.SPOOL) {
+      return false;
+    }
+    if (encoding != JobPerformanceStatsJsonWriter.Encoding.JSON) {
+      logger.fine(String.format("%s documents cannot be spooled", encoding));
+      return false;
+    }
+    JobPerformanceStatsSpool fallback = JobPerformanceStatsSpool.open();
+    if (fallback == null) {
+      return false;
+    }
+    try {
+      // Each spool record holds the two NDJSON lines of one bulk item
+      int[] offsets = itemOffsets(bytes, length);
+      for (int i = 0; i + 1 < offsets.length; i++) {
+        fallback.append(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+      }
+      JobPerformanceStatsSpoolReplayer.notifyAppended();
+      return true;
+    } catch (IOException e) {
+      logger.severe(String.format("Unable to spool documents that could not be sent: %s", e.toString()));
+      return false;
+    }
+  }
+
+  /**
+   * Sends any remaining documents and releases the request buffer. The writer cannot be used
+   * afterwards.
+   *
+   * @throws IOException if the last request fails.
+   */
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      JobPerformanceStatsJsonWriter.release(body);
+    }
+  }
+
+  /**
+   * @return the number of documents ELK accepted so far.
+   */
+  public int getAccepted() {
+    return accepted;
+  }
+
+  /**
+   * @return the number of documents that could not be sent and were spooled instead so far.
+   */
+  public int getSpooled() {
+    return spooled;
+  }
+
+  /**
+   * @return the number of documents that were rejected or could not be sent so far.
+   */
+  public int getFailed() {
+    return failed;
+  }
+
+  /**
+   * Document counters of every bulk request sent since Jenkins started, including replays of the
+   * spool.
+   */
+  public static class Stats {
+    final AtomicLong accepted = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong retried = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @return the number of documents ELK accepted.
+     */
+    public long getAccepted() {
+      return accepted.get();
+    }
+
+    /**
+     * @return the number of documents ELK rejected for good.
+     */
+    public long getRejected() {
+      return rejected.get();
+    }
+
+    /**
+     * @return the number of documents sent again because ELK was throttling.
+     */
+    public long getRetried() {
+      return retried.get();
+    }
+
+    /**
+     * @return the number of documents lost because their request failed.
+     */
+    public long getFailed() {
+      return failed.get();
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker guarding one endpoint (scheme, host and port).
+ *
+ * <p>The breaker opens after the configured number of consecutive failures. While it is open
+ * requests fail immediately instead of waiting for a connect timeout each. Once the open period
+ * is over a single probe request is let through (half-open): the breaker closes if it succeeds
+ * and opens again if it fails.
+ */
+public class JobPerformanceStatsCircuitBreaker {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsCircuitBreaker.class.getName());
+  static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  static final int DEFAULT_OPEN_SECONDS = 30;
+
+  private static final ConcurrentMap<String, JobPerformanceStatsCircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+  /**
+   * The state of a breaker.
+   */
+  public enum State {
+    /** Requests are sent. */
+    CLOSED,
+    /** Requests fail immediately. */
+    OPEN,
+    /** A single probe request is sent to find out whether the endpoint recovered. */
+    HALF_OPEN
+  }
+
+  /**
+   * What happens to documents that could not be sent.
+   */
+  public enum Fallback {
+    /** Discard them. */
+    DROP,
+    /** Write them to the on-disk spool, which sends them once the endpoint recovered. */
+    SPOOL
+  }
+
+  /**
+   * The source of the current time, replaced by tests.
+   */
+  interface Clock {
+    Clock SYSTEM = new Clock() {
+      @Override
+      public long millis() {
+        return System.currentTimeMillis();
+      }
+    };
+
+    /**
+     * @return the current time in milliseconds.
+     */
+    long millis();
+  }
+
+  private final String endpoint;
+  // Zero or less to use the global configuration
+  private final int failureThreshold;
+  private final long openMillis;
+  private final Clock clock;
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedAt = 0;
+  private boolean probing = false;
+  private final AtomicLong successes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+
+  JobPerformanceStatsCircuitBreaker(final String endpoint) {
+    this(endpoint, 0, 0, Clock.SYSTEM);
+  }
+
+  /**
+   * @param endpoint - The endpoint, as <code>scheme://host:port</code>.
+   * @param failureThreshold - The consecutive failures that open the breaker, or 0 to use the
+   *                           global configuration.
+   * @param openMillis - How long the breaker stays open, or 0 to use the global configuration.
+   * @param clock - The source of the current time.
+   */
+  JobPerformanceStatsCircuitBreaker(final String endpoint, final int failureThreshold, final long openMillis,
+                                    final Clock clock) {
+    this.endpoint = endpoint;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * @param endpoint - The endpoint, as <code>scheme://host:port</code>.
+   * @return the breaker of the endpoint, created on first use.
+   */
+  public static JobPerformanceStatsCircuitBreaker forEndpoint(final String endpoint) {
+    JobPerformanceStatsCircuitBreaker breaker = breakers.get(endpoint);
+    if (breaker == null) {
+      breakers.putIfAbsent(endpoint, new JobPerformanceStatsCircuitBreaker(endpoint));
+      breaker = breakers.get(endpoint);
+    }
+    return breaker;
+  }
+
+  /**
+   * @return the breakers of every endpoint contacted so far.
+   */
+  public static List<JobPerformanceStatsCircuitBreaker> all() {
+    return new ArrayList<>(breakers.values());
+  }
+
+  /**
+   * Decides whether a request may be sent to the endpoint.
+   *
+   * @return true if the request may be sent, false if it must fail immediately.
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case OPEN:
+        long now = clock.millis();
+        if (now - openedAt < getOpenMillis()) {
+          rejected.incrementAndGet();
+          return false;
+        }
+        logger.info(String.format("Probing %s after %s ms", endpoint, now - openedAt));
+        state = State.HALF_OPEN;
+        probing = true;
+        return true;
+      case HALF_OPEN:
+        if (probing) {
+          rejected.incrementAndGet();
+          return false;
+        }
+        probing = true;
+        return true;
+      case CLOSED:
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Records a request the endpoint answered.
+   */
+  public synchronized void onSuccess() {
+    successes.incrementAndGet();
+    consecutiveFailures = 0;
+    probing = false;
+    if (state != State.CLOSED) {
+      logger.info(String.format("Circuit breaker of %s closed", endpoint));
+      state = State.CLOSED;
+    }
+  }
+
+  /**
+   * Records a request that failed.
+   */
+  public synchronized void onFailure() {
+    failures.incrementAndGet();
+    consecutiveFailures++;
+    probing = false;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= getFailureThreshold())) {
+      logger.warning(String.format("Circuit breaker of %s opened after %s consecutive failures",
+              endpoint, consecutiveFailures));
+      state = State.OPEN;
+      openedAt = clock.millis();
+      opened.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a request abandoned before its outcome was known, such as one cancelled as the client
+   * closed. It is neither a success nor a failure, but if it was the probe of a half-open breaker
+   * the next request probes again.
+   */
+  public synchronized void onCancelled() {
+    probing = false;
+  }
+
+  /**
+   * Records a retried request.
+   */
+  public void onRetry() {
+    retries.incrementAndGet();
+  }
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return the number of requests the endpoint answered.
+   */
+  public long getSuccesses() {
+    return successes.get();
+  }
+
+  /**
+   * @return the number of requests that failed.
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @return the number of requests failed immediately because the breaker was open.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * @return the number of retried requests.
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return the number of times the breaker opened.
+   */
+  public long getOpened() {
+    return opened.get();
+  }
+
+  private int getFailureThreshold() {
+    if (failureThreshold > 0) {
+      return failureThreshold;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    int threshold = descriptor != null ? descriptor.getBreakerFailureThreshold() : 0;
+    return threshold > 0 ? threshold : DEFAULT_FAILURE_THRESHOLD;
+  }
+
+  private long getOpenMillis() {
+    if (openMillis > 0) {
+      return openMillis;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    int seconds = descriptor != null ? descriptor.getBreakerOpenSeconds() : 0;
+    return TimeUnit.SECONDS.toMillis(seconds > 0 ? seconds : DEFAULT_OPEN_SECONDS);
+  }
+
+  static Fallback parseFallback(final String fallback) {
+    if (fallback == null) {
+      return Fallback.DROP;
+    }
+    try {
+      return Fallback.valueOf(fallback);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown fallback '%s', using %s", fallback, Fallback.DROP));
+      return Fallback.DROP;
+    }
+  }
+
+  /**
+   * Thrown instead of sending a request while the breaker of its endpoint is open.
+   */
+  public static class OpenException extends IOException {
+    public OpenException(final String endpoint) {
+      super(String.format("Circuit breaker of %s is open", endpoint));
+    }
+  }
+}
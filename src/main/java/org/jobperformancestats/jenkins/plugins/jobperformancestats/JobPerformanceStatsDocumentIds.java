@@ -0,0 +1,190 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Derives stable ELK document ids, so that re-sending or replaying a document overwrites it
+ * instead of indexing a duplicate.
+ *
+ * <p>An id is the 128-bit MurmurHash3 (x64 variant) of the controller id, the job full name, the
+ * build number, the document type and the pipeline node id of a stage or step, written as 32
+ * hexadecimal characters.
+ */
+public class JobPerformanceStatsDocumentIds {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsDocumentIds.class.getName());
+  private static final Charset UTF_8 = Charset.forName("utf-8");
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  // Separates the id parts, so that ("ab", "c") and ("a", "bc") hash differently
+  private static final char SEPARATOR = '\u0000';
+
+  private static volatile String controllerId;
+
+  private JobPerformanceStatsDocumentIds() { }
+
+  /**
+   * @param job - The full name of the job.
+   * @param number - The build number.
+   * @param type - The document type, such as <code>job</code>, <code>stage</code> or <code>step</code>.
+   * @param nodeId - The id of the stage or step node, or null for a job document.
+   * @return the id of the document.
+   */
+  public static String of(final String job, final long number, final String type, final String nodeId) {
+    return of(getControllerId(), job, number, type, nodeId);
+  }
+
+  /**
+   * @param controller - The id of the Jenkins controller.
+   * @param job - The full name of the job.
+   * @param number - The build number.
+   * @param type - The document type, such as <code>job</code>, <code>stage</code> or <code>step</code>.
+   * @param nodeId - The id of the stage or step node, or null for a job document.
+   * @return the id of the document.
+   */
+  public static String of(final String controller, final String job, final long number, final String type,
+                          final String nodeId) {
+    StringBuilder key = new StringBuilder(64);
+    key.append(controller).append(SEPARATOR)
+            .append(job).append(SEPARATOR)
+            .append(number).append(SEPARATOR)
+            .append(type).append(SEPARATOR)
+            .append(nodeId != null ? nodeId : "");
+    return hash(key.toString());
+  }
+
+  /**
+   * @param content - Any content, such as a whole document.
+   * @return the 128-bit MurmurHash3 of the UTF-8 content, as 32 hexadecimal characters.
+   */
+  public static String hash(final String content) {
+    byte[] bytes = content.getBytes(UTF_8);
+    long[] hash = murmur3(bytes, 0, bytes.length, 0);
+    char[] hex = new char[32];
+    toHex(hash[0], hex, 0);
+    toHex(hash[1], hex, 16);
+    return new String(hex);
+  }
+
+  /**
+   * @return the id of this Jenkins controller, which stays the same across restarts.
+   */
+  static String getControllerId() {
+    String id = controllerId;
+    if (id == null) {
+      Jenkins jenkins = Jenkins.getInstance();
+      id = jenkins != null ? jenkins.getLegacyInstanceId() : null;
+      if (id == null) {
+        logger.fine("Jenkins instance id not found, document ids will not include it");
+        return "";
+      }
+      controllerId = id;
+    }
+    return id;
+  }
+
+  /**
+   * MurmurHash3_x64_128, as published by Austin Appleby.
+   */
+  static long[] murmur3(final byte[] data, final int offset, final int length, final long seed) {
+    long h1 = seed;
+    long h2 = seed;
+    int blocks = length / 16;
+
+    for (int i = 0; i < blocks; i++) {
+      int block = offset + i * 16;
+      long k1 = getLong(data, block);
+      long k2 = getLong(data, block + 8);
+
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= C2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= C1;
+      h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    int tail = offset + blocks * 16;
+    long k1 = 0;
+    long k2 = 0;
+    switch (length & 15) {
+      case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+      case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+      case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+      case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+      case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+      case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+      case 9:
+        k2 ^= (long) (data[tail + 8] & 0xff);
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+      case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+      case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+      case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+      case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+      case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+      case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+      case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+      case 1:
+        k1 ^= (long) (data[tail] & 0xff);
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+      default:
+        break;
+    }
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    return new long[] {h1, h2};
+  }
+
+  private static long getLong(final byte[] data, final int index) {
+    return (data[index] & 0xffL)
+            | (data[index + 1] & 0xffL) << 8
+            | (data[index + 2] & 0xffL) << 16
+            | (data[index + 3] & 0xffL) << 24
+            | (data[index + 4] & 0xffL) << 32
+            | (data[index + 5] & 0xffL) << 40
+            | (data[index + 6] & 0xffL) << 48
+            | (data[index + 7] & 0xffL) << 56;
+  }
+
+  private static long fmix(final long value) {
+    long k = value;
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static void toHex(final long value, final char[] out, final int offset) {
+    for (int i = 0; i < 16; i++) {
+      out[offset + i] = HEX[(int) (value >>> (60 - 4 * i)) & 0xf];
+    }
+  }
+}
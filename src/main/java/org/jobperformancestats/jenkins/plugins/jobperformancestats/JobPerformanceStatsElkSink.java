@@ -0,0 +1,55 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+import hudson.model.Run;
+
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Built-in sink indexing build, stage and step documents in ELK, see
+ * {@link JobPerformanceStatsHttpRequests#put}.
+ */
+@Extension
+public class JobPerformanceStatsElkSink extends JobPerformanceStatsSink {
+
+  @Override
+  public String getName() {
+    return "ELK";
+  }
+
+  /**
+   * @return the configured number of shipping workers, as each completed build is sent in bulk
+   *         requests of its own and the requests of several builds may be in flight at once.
+   */
+  @Override
+  public int getWorkers() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.getShippingWorkers() > 0 ? descriptor.getShippingWorkers()
+                                                                     : JobPerformanceStatsSinkQueue.DEFAULT_WORKERS;
+  }
+
+  @Override
+  public boolean accepts(final JobPerformanceStatsRecord.Type type) {
+    return type == JobPerformanceStatsRecord.Type.BUILD_COMPLETED || type == JobPerformanceStatsRecord.Type.CHECKOUT;
+  }
+
+  @Override
+  public void send(final List<JobPerformanceStatsRecord> records) {
+    for (JobPerformanceStatsRecord record : records) {
+      if (record.getType() != JobPerformanceStatsRecord.Type.BUILD_COMPLETED) {
+        JobPerformanceStatsHttpRequests.sendEvent(record.getEvent());
+        continue;
+      }
+      // Null if the build was deleted since it completed, its documents are still sent
+      Run<?, ?> run = record.getRun();
+      if (JobPerformanceStatsLifecycle.isEnabled() && run != null) {
+        JSONObject builddata = record.getBuildData();
+        JobPerformanceStatsLifecycle.finished(run, builddata.getString("result"), builddata.getDouble("duration"));
+      }
+      JobPerformanceStatsHttpRequests.sendEvent(record.getEvent(),
+              JobPerformanceStatsShippingLedger.isEnabled() && run != null ? JobPerformanceStatsShippingLedger.of(run) : null);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Threads of the plugin for background and delayed work, such as retries after a backoff.
+ *
+ * <p>This work sends HTTP requests and writes to disk, which may take as long as ELK or the disk
+ * is slow. It runs here rather than on the shared Jenkins {@link jenkins.util.Timer}, whose few
+ * threads the rest of Jenkins relies on. Tasks still scheduled when Jenkins stops run before the
+ * threads are stopped, for up to {@link #SHUTDOWN_MILLIS}. The tasks that did not run by then are
+ * dropped, and those that are {@link Droppable} are told so on the thread stopping Jenkins.
+ * Once Jenkins stops, {@link #get()} rejects new tasks, so their callers fall back to running
+ * without the executor.
+ */
+public class JobPerformanceStatsExecutor {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsExecutor.class.getName());
+  static final int THREADS = 4;
+  static final long SHUTDOWN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static ScheduledThreadPoolExecutor executor;
+  private static boolean stopped = false;
+
+  private JobPerformanceStatsExecutor() { }
+
+  /**
+   * A task whose owner must be told when it is dropped before it ran, such as the retry of a
+   * request someone waits for.
+   */
+  interface Droppable extends Runnable {
+    /**
+     * Runs instead of the task when Jenkins stops before it ran. The executor rejects new tasks
+     * by then.
+     */
+    void dropped();
+  }
+
+  /**
+   * @return the executor of the plugin, created on first use.
+   * @throws RejectedExecutionException once Jenkins is stopping.
+   */
+  public static synchronized ScheduledExecutorService get() {
+    if (stopped) {
+      throw new RejectedExecutionException("Jenkins is stopping");
+    }
+    if (executor == null) {
+      executor = create();
+    }
+    return executor;
+  }
+
+  static ScheduledThreadPoolExecutor create() {
+    ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "JobPerformanceStats worker")) {
+      @Override
+      protected <V> RunnableScheduledFuture<V> decorateTask(final Runnable runnable, final RunnableScheduledFuture<V> task) {
+        return runnable instanceof Droppable ? new DroppableTask<>(this, (Droppable) runnable, task) : task;
+      }
+    };
+    created.setKeepAliveTime(60, TimeUnit.SECONDS);
+    created.allowCoreThreadTimeOut(true);
+    created.setRemoveOnCancelPolicy(true);
+    return created;
+  }
+
+  /**
+   * Runs the tasks already submitted or scheduled, then stops the threads when Jenkins stops.
+   */
+  @Terminator
+  public static void shutdown() {
+    ScheduledThreadPoolExecutor running;
+    synchronized (JobPerformanceStatsExecutor.class) {
+      stopped = true;
+      running = executor;
+      executor = null;
+    }
+    if (running != null) {
+      stop(running, SHUTDOWN_MILLIS);
+    }
+  }
+
+  /**
+   * Runs the tasks already submitted or scheduled for up to the given time, then drops the others,
+   * telling those that are {@link Droppable}.
+   *
+   * @param running - The executor to stop.
+   * @param timeoutMillis - How long the tasks may run.
+   * @return the number of tasks dropped.
+   */
+  static int stop(final ScheduledThreadPoolExecutor running, final long timeoutMillis) {
+    running.shutdown();
+    try {
+      if (running.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        return 0;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<Runnable> dropped = running.shutdownNow();
+    logger.warning(String.format("%s background tasks did not run before shutdown", dropped.size()));
+    for (Runnable task : dropped) {
+      if (task instanceof DroppableTask) {
+        try {
+          ((DroppableTask<?>) task).droppable.dropped();
+        } catch (RuntimeException e) {
+          logger.warning(String.format("Unable to drop a background task: %s", e.toString()));
+        }
+      }
+    }
+    return dropped.size();
+  }
+
+  /**
+   * The scheduled task of a {@link Droppable}, which the executor hands back when it is dropped.
+   */
+  private static class DroppableTask<V> implements RunnableScheduledFuture<V> {
+    private final ScheduledThreadPoolExecutor owner;
+    private final Droppable droppable;
+    private final RunnableScheduledFuture<V> task;
+
+    DroppableTask(final ScheduledThreadPoolExecutor owner, final Droppable droppable, final RunnableScheduledFuture<V> task) {
+      this.owner = owner;
+      this.droppable = droppable;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      boolean cancelled = task.cancel(mayInterruptIfRunning);
+      // The queue holds this task rather than the one cancelled
+      if (cancelled) {
+        owner.remove(this);
+      }
+      return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return task.isDone();
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      return task.get();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      return task.get(timeout, unit);
+    }
+
+    @Override
+    public boolean isPeriodic() {
+      return task.isPeriodic();
+    }
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+      return task.getDelay(unit);
+    }
+
+    @Override
+    public int compareTo(final Delayed other) {
+      return task.compareTo(other instanceof DroppableTask ? ((DroppableTask<?>) other).task : other);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Built-in sink appending the job, stage and step documents of builds to rolling NDJSON files,
+ * one document per line, for Filebeat or Logstash to pick up when ELK cannot be reached directly.
+ *
+ * <p>Documents are laid out like the ELK sink sends them, according to the configured
+ * {@link JobPerformanceStatsHttpRequests.DocumentMode}. The lines of a batch are buffered and
+ * written to the file once per batch, see {@link JobPerformanceStatsRollingFile}.
+ */
+@Extension
+public class JobPerformanceStatsFileSink extends JobPerformanceStatsSink {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsFileSink.class.getName());
+  static final String DIRECTORY = "jobperformancestats-ndjson";
+  static final int DEFAULT_MAX_MEGABYTES = 100;
+  static final int DEFAULT_ROTATE_MINUTES = 60;
+  static final int DEFAULT_MAX_FILES = 10;
+  static final int MAX_BATCH_SIZE = 100;
+  private static final long MEGABYTE = 1024L * 1024L;
+
+  private static JobPerformanceStatsRollingFile file;
+
+  @Override
+  public String getName() {
+    return "NDJSON file";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.isFileSinkEnabled();
+  }
+
+  @Override
+  public boolean accepts(final JobPerformanceStatsRecord.Type type) {
+    return type == JobPerformanceStatsRecord.Type.BUILD_COMPLETED;
+  }
+
+  @Override
+  public int getMaxBatchSize() {
+    return MAX_BATCH_SIZE;
+  }
+
+  @Override
+  public void send(final List<JobPerformanceStatsRecord> records) throws IOException {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    final JobPerformanceStatsRollingFile out = file();
+    JobPerformanceStatsHttpRequests.DocumentMode mode = JobPerformanceStatsHttpRequests.parseDocumentMode(descriptor.getElkDocumentMode());
+    JobPerformanceStatsJsonWriter json = JobPerformanceStatsJsonWriter.acquire();
+    try {
+      for (JobPerformanceStatsRecord record : records) {
+        JobPerformanceStatsEvent event = record.getEvent();
+        JSONObject payload = event.createPayload();
+        JSONArray stagepayload = event.createStagePayload();
+        JSONArray steppayload = event.createStepPayload();
+        JobPerformanceStatsHttpRequests.writeDocuments(payload, stagepayload, steppayload, mode, json,
+                new JobPerformanceStatsHttpRequests.DocumentConsumer() {
+                  @Override
+                  public void accept(final String index, final String id, final JobPerformanceStatsRateLimiter.Lane lane,
+                                     final JobPerformanceStatsJsonWriter source) throws IOException {
+                    out.append(source.buffer(), 0, source.size());
+                  }
+                });
+      }
+    } finally {
+      JobPerformanceStatsJsonWriter.release(json);
+      out.flush();
+      // Replaced by a configuration change while the batch was written
+      if (!isCurrent(out)) {
+        out.close();
+      }
+    }
+  }
+
+  private static synchronized boolean isCurrent(final JobPerformanceStatsRollingFile out) {
+    return out == file;
+  }
+
+  @Override
+  public void shutdown() {
+    reconfigure();
+  }
+
+  private static synchronized JobPerformanceStatsRollingFile file() {
+    if (file == null) {
+      JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+      String directory = descriptor.getFileSinkDirectory();
+      int maxMegabytes = descriptor.getFileSinkMaxMegabytes() > 0 ? descriptor.getFileSinkMaxMegabytes() : DEFAULT_MAX_MEGABYTES;
+      int rotateMinutes = descriptor.getFileSinkRotateMinutes() >= 0 ? descriptor.getFileSinkRotateMinutes() : DEFAULT_ROTATE_MINUTES;
+      int maxFiles = descriptor.getFileSinkMaxFiles() > 0 ? descriptor.getFileSinkMaxFiles() : DEFAULT_MAX_FILES;
+      file = new JobPerformanceStatsRollingFile(
+              directory != null && !directory.trim().isEmpty() ? new File(directory.trim())
+                                                               : new File(Jenkins.getInstance().getRootDir(), DIRECTORY),
+              maxMegabytes * MEGABYTE, TimeUnit.MINUTES.toMillis(rotateMinutes), maxFiles);
+    }
+    return file;
+  }
+
+  /**
+   * Closes the file after the global configuration changed, or when Jenkins stops. The next batch
+   * opens it again with the new settings.
+   */
+  public static synchronized void reconfigure() {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        logger.warning(String.format("Unable to close %s: %s", file.getCurrent(), e.toString()));
+      }
+      file = null;
+    }
+  }
+}
@@ -0,0 +1,629 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.ProxyConfiguration;
+import hudson.init.Terminator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import jenkins.model.Jenkins;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Shared, thread-safe HTTP client used for every request sent to ELK and to the metric endpoint.
+ *
+ * <p>Connections are pooled and kept alive between requests, so documents no longer pay for a
+ * new TCP (and TLS) handshake each. Idle and expired connections are evicted in the background.
+ * Requests go through the Jenkins {@link ProxyConfiguration}, like
+ * {@link JobPerformanceStatsHttpRequests#getHttpURLConnection(java.net.URL)}.
+ */
+public class JobPerformanceStatsHttpClient {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsHttpClient.class.getName());
+  private static final Charset UTF_8 = Charset.forName("utf-8");
+  static final int DEFAULT_MAX_CONNECTIONS = 20;
+  static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+  static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+  static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+  static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+  static final int DEFAULT_GZIP_THRESHOLD_BYTES = 1024;
+  static final int DEFAULT_GZIP_LEVEL = 6;
+  static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+  static final long DEFAULT_RETRY_BASE_DELAY_MILLIS = 200;
+  static final long DEFAULT_RETRY_MAX_DELAY_MILLIS = 5000;
+  static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  // The client new requests use, replaced when the configuration changes
+  private static Lease current;
+
+  private JobPerformanceStatsHttpClient() { }
+
+  /**
+   * Sends a request through the shared connection pool and reads the whole response, so that the
+   * connection is released back to the pool.
+   *
+   * <p>Connection errors and 429, 502, 503 and 504 answers are retried with exponential backoff
+   * and full jitter, up to the configured number of attempts, as
+   * {@link #execute(HttpRequestBase, JobPerformanceStatsAsyncHttpClient.Callback)} does. The
+   * calling thread waits for the outcome.
+   *
+   * @param request - The request to send. Its entity must be repeatable.
+   * @return the {@link Response} status, headers and body of the last attempt.
+   * @throws IOException if the last attempt cannot be sent or the response cannot be read,
+   *                     {@link JobPerformanceStatsCircuitBreaker.OpenException} if the breaker is open,
+   *                     or an {@link InterruptedIOException} if the attempts take longer than
+   *                     {@link #maxWaitMillis} allows.
+   */
+  public static Response execute(final HttpRequestBase request) throws IOException {
+    Outcome outcome = new Outcome();
+    execute(request, outcome);
+    return outcome.await(request, maxWaitMillis(JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor()));
+  }
+
+  /**
+   * @return how long all the attempts of a request may take: the connect and read timeouts of
+   *         each attempt, and the longest backoff before each retry.
+   */
+  static long maxWaitMillis(final JobPerformanceStatsBuildListener.DescriptorImpl descriptor) {
+    int attempts = attempts(descriptor);
+    int connectTimeout = positive(descriptor != null ? descriptor.getHttpConnectTimeoutMillis() : 0, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    int readTimeout = positive(descriptor != null ? descriptor.getHttpReadTimeoutMillis() : 0, DEFAULT_READ_TIMEOUT_MILLIS);
+    long maxDelay = descriptor != null && descriptor.getRetryMaxDelayMillis() > 0 ? descriptor.getRetryMaxDelayMillis()
+                                                                                 : DEFAULT_RETRY_MAX_DELAY_MILLIS;
+    // An overloaded server may ask for a longer backoff than the configured one
+    return attempts * (long) (connectTimeout + readTimeout) + (attempts - 1) * Math.max(maxDelay, MAX_RETRY_AFTER_MILLIS);
+  }
+
+  /**
+   * Sends a request through the shared connection pool and reads the whole response.
+   *
+   * <p>The first attempt is sent from the calling thread. Connection errors and 429, 502, 503 and
+   * 504 answers are retried with exponential backoff and full jitter, up to the configured number
+   * of attempts: each retry is scheduled on the {@link JobPerformanceStatsExecutor}, so no thread
+   * is held while backing off. Every attempt goes through the
+   * {@link JobPerformanceStatsCircuitBreaker} of the endpoint, which fails requests immediately
+   * while the endpoint is known to be down.
+   *
+   * @param request - The request to send. Its entity must be repeatable.
+   * @param callback - Told about the {@link Response} of the last attempt, or why it failed. It
+   *                   runs on the calling thread or on a thread of the executor.
+   */
+  public static void execute(final HttpRequestBase request, final JobPerformanceStatsAsyncHttpClient.Callback<Response> callback) {
+    new Attempts(request, callback).run();
+  }
+
+  /**
+   * The attempts of a request, each one run again by the executor after a backoff until the
+   * request succeeds or the attempts are spent. A retry dropped as Jenkins stops fails the request.
+   */
+  private static class Attempts implements JobPerformanceStatsExecutor.Droppable {
+    private final HttpRequestBase request;
+    private final JobPerformanceStatsAsyncHttpClient.Callback<Response> callback;
+    private final String endpoint;
+    private final JobPerformanceStatsCircuitBreaker breaker;
+    private final JobPerformanceStatsBuildListener.DescriptorImpl descriptor;
+    private final int attempts;
+    private int attempt = 0;
+
+    Attempts(final HttpRequestBase request, final JobPerformanceStatsAsyncHttpClient.Callback<Response> callback) {
+      this.request = request;
+      this.callback = callback;
+      this.endpoint = endpoint(request.getURI());
+      this.breaker = JobPerformanceStatsCircuitBreaker.forEndpoint(endpoint);
+      this.descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+      this.attempts = attempts(descriptor);
+    }
+
+    @Override
+    public void run() {
+      attempt++;
+      if (!breaker.allowRequest()) {
+        callback.failed(new JobPerformanceStatsCircuitBreaker.OpenException(endpoint));
+        return;
+      }
+      long delay = backoff(attempt, descriptor);
+      Response response;
+      try {
+        response = send(request);
+      } catch (IOException e) {
+        breaker.onFailure();
+        if (attempt >= attempts) {
+          callback.failed(e);
+          return;
+        }
+        logger.fine(String.format("Request to %s failed, retrying in %s ms: %s", endpoint, delay, e.toString()));
+        retry(delay);
+        return;
+      } catch (RuntimeException e) {
+        // Not retried, but it must still end a half-open probe
+        breaker.onFailure();
+        callback.failed(e);
+        return;
+      }
+      if (!isRetryable(response.getStatus())) {
+        breaker.onSuccess();
+        callback.completed(response);
+        return;
+      }
+      breaker.onFailure();
+      if (attempt >= attempts) {
+        callback.completed(response);
+        return;
+      }
+      // An overloaded server may tell how long to back off
+      delay = Math.max(delay, retryAfter(response.getHeader("Retry-After")));
+      logger.fine(String.format("%s answered %s, retrying in %s ms", endpoint, response.getStatus(), delay));
+      retry(delay);
+    }
+
+    @Override
+    public void dropped() {
+      callback.failed(new IOException("Jenkins is stopping, not retrying the request to " + endpoint));
+    }
+
+    private void retry(final long delay) {
+      breaker.onRetry();
+      try {
+        JobPerformanceStatsExecutor.get().schedule(this, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        callback.failed(new IOException("Jenkins is stopping, not retrying the request to " + endpoint));
+      }
+    }
+  }
+
+  /**
+   * Lets {@link #execute(HttpRequestBase)} wait for the outcome of a request.
+   */
+  private static class Outcome implements JobPerformanceStatsAsyncHttpClient.Callback<Response> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Response response;
+    private volatile Exception error;
+
+    @Override
+    public void completed(final Response result) {
+      response = result;
+      done.countDown();
+    }
+
+    @Override
+    public void failed(final Exception e) {
+      error = e;
+      done.countDown();
+    }
+
+    Response await(final HttpRequestBase request, final long timeoutMillis) throws IOException {
+      try {
+        if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          throw new InterruptedIOException(String.format("No outcome for %s after %s ms", request.getURI(), timeoutMillis));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " + request.getURI());
+      }
+      if (error instanceof IOException) {
+        throw (IOException) error;
+      }
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      }
+      if (error != null) {
+        throw new IOException(error);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * @return the configured number of attempts of a request, retries included.
+   */
+  static int attempts(final JobPerformanceStatsBuildListener.DescriptorImpl descriptor) {
+    return positive(descriptor != null ? descriptor.getRetryMaxAttempts() : 0, DEFAULT_RETRY_MAX_ATTEMPTS);
+  }
+
+  /**
+   * @return the scheme, host and port of a URI, which requests share a circuit breaker by.
+   */
+  static String endpoint(final URI uri) {
+    int port = uri.getPort() != -1 ? uri.getPort() : ("https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80);
+    return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+  }
+
+  /**
+   * Sends a single attempt of a request through the {@link JobPerformanceStatsCircuitBreaker} of
+   * its endpoint, without retries. Meant for requests to ELK nodes: the
+   * {@link JobPerformanceStatsNodePool} sends the request to the next node at once when one
+   * cannot be reached, and retries around all of them.
+   *
+   * @param request - The request to send.
+   * @return the {@link Response} status, headers and body.
+   * @throws IOException if the request cannot be sent or the response cannot be read, or
+   *                     {@link JobPerformanceStatsCircuitBreaker.OpenException} if the breaker is open.
+   */
+  static Response executeAttempt(final HttpRequestBase request) throws IOException {
+    String endpoint = endpoint(request.getURI());
+    JobPerformanceStatsCircuitBreaker breaker = JobPerformanceStatsCircuitBreaker.forEndpoint(endpoint);
+    if (!breaker.allowRequest()) {
+      throw new JobPerformanceStatsCircuitBreaker.OpenException(endpoint);
+    }
+    Response response;
+    try {
+      response = send(request);
+    } catch (IOException | RuntimeException e) {
+      breaker.onFailure();
+      throw e;
+    }
+    if (isRetryable(response.getStatus())) {
+      breaker.onFailure();
+    } else {
+      breaker.onSuccess();
+    }
+    return response;
+  }
+
+  /**
+   * Sends a single attempt of a request through the shared connection pool, without retries and
+   * without the {@link JobPerformanceStatsCircuitBreaker} of its endpoint. Meant for health checks,
+   * which must reach a node while its breaker is open and must not count as its traffic.
+   *
+   * @param request - The request to send.
+   * @return the {@link Response} status, headers and body.
+   * @throws IOException if the request cannot be sent or the response cannot be read.
+   */
+  static Response executeOnce(final HttpRequestBase request) throws IOException {
+    return send(request);
+  }
+
+  private static Response send(final HttpRequestBase request) throws IOException {
+    Lease lease;
+    synchronized (JobPerformanceStatsHttpClient.class) {
+      if (current == null) {
+        current = create();
+      }
+      lease = current;
+      lease.users++;
+    }
+
+    try {
+      HttpClientContext context = HttpClientContext.create();
+      HttpHost proxy = getProxy(request.getURI().getHost(), context);
+      request.setConfig(proxy != null ? RequestConfig.copy(lease.requestConfig).setProxy(proxy).build() : lease.requestConfig);
+
+      try (CloseableHttpResponse response = lease.client.execute(request, context)) {
+        String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), UTF_8) : "";
+        return new Response(response, body);
+      }
+    } finally {
+      lease.release();
+    }
+  }
+
+  static boolean isRetryable(final int status) {
+    return status == 429 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * @param value - The value of a <code>Retry-After</code> header, in seconds or as an HTTP date.
+   * @return the delay it asks for in milliseconds, at most {@link #MAX_RETRY_AFTER_MILLIS}, or 0.
+   */
+  static long retryAfter(final String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return 0;
+    }
+    long delay;
+    try {
+      delay = TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value.trim());
+      delay = date != null ? date.getTime() - System.currentTimeMillis() : 0;
+    }
+    return Math.max(0, Math.min(delay, MAX_RETRY_AFTER_MILLIS));
+  }
+
+  /**
+   * @return a random delay between zero and the exponential backoff of the attempt.
+   */
+  static long backoff(final int attempt, final JobPerformanceStatsBuildListener.DescriptorImpl descriptor) {
+    long base = descriptor != null && descriptor.getRetryBaseDelayMillis() > 0 ? descriptor.getRetryBaseDelayMillis()
+                                                                              : DEFAULT_RETRY_BASE_DELAY_MILLIS;
+    long max = descriptor != null && descriptor.getRetryMaxDelayMillis() > 0 ? descriptor.getRetryMaxDelayMillis()
+                                                                            : DEFAULT_RETRY_MAX_DELAY_MILLIS;
+    long ceiling = Math.min(max, base << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /**
+   * Wraps a request body in an entity, gzip-compressing it when compression is enabled and the
+   * body is at least as large as the configured threshold.
+   *
+   * @param body - The uncompressed request body.
+   * @param contentType - The content type of the body.
+   * @return the entity to send, with a <code>Content-Encoding: gzip</code> header if compressed.
+   * @throws IOException if the body cannot be compressed.
+   */
+  public static HttpEntity entity(final byte[] body, final ContentType contentType) throws IOException {
+    return entity(body, 0, body.length, contentType);
+  }
+
+  /**
+   * Same as {@link #entity(byte[], ContentType)} for part of a byte array, which is not copied
+   * when it is sent uncompressed.
+   *
+   * @param body - The bytes holding the uncompressed request body.
+   * @param offset - The offset of the body.
+   * @param length - The length of the body.
+   * @param contentType - The content type of the body.
+   * @return the entity to send, with a <code>Content-Encoding: gzip</code> header if compressed.
+   * @throws IOException if the body cannot be compressed.
+   */
+  public static HttpEntity entity(final byte[] body, final int offset, final int length,
+                                  final ContentType contentType) throws IOException {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor == null || !descriptor.isGzipEnabled()) {
+      return new ByteArrayEntity(body, offset, length, contentType);
+    }
+    return entity(body, offset, length, contentType, descriptor.getGzipThresholdBytes(), descriptor.getGzipLevel());
+  }
+
+  /**
+   * Same as {@link #entity(byte[], int, int, ContentType)} with compression enabled.
+   *
+   * @param thresholdBytes - The size from which the body is compressed.
+   * @param level - The gzip compression level, from 1 to 9. Other values use the default level.
+   */
+  static HttpEntity entity(final byte[] body, final int offset, final int length, final ContentType contentType,
+                           final int thresholdBytes, final int level) throws IOException {
+    if (length < Math.max(0, thresholdBytes)) {
+      return new ByteArrayEntity(body, offset, length, contentType);
+    }
+    int gzipLevel = level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION ? level : DEFAULT_GZIP_LEVEL;
+    ByteArrayEntity entity = new ByteArrayEntity(gzip(body, offset, length, gzipLevel), contentType);
+    entity.setContentEncoding("gzip");
+    return entity;
+  }
+
+  static byte[] gzip(final byte[] body, final int offset, final int length, final int level) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 4));
+    try (GZIPOutputStream out = new LeveledGZIPOutputStream(compressed, level)) {
+      out.write(body, offset, length);
+    }
+    logger.finer(String.format("Compressed request body from %s to %s bytes", length, compressed.size()));
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Replaces the shared client after the global configuration changed. The next request creates a
+   * new one with the new settings, and the previous one is closed once the requests still using
+   * it completed.
+   */
+  public static synchronized void reconfigure() {
+    close();
+  }
+
+  /**
+   * Releases the pooled connections and the eviction thread when Jenkins stops, once the requests
+   * in flight completed.
+   */
+  @Terminator
+  public static synchronized void close() {
+    if (current != null) {
+      current.retire();
+      current = null;
+    }
+  }
+
+  private static Lease create() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    boolean configured = descriptor != null;
+    int maxConnections = positive(configured ? descriptor.getHttpMaxConnections() : 0, DEFAULT_MAX_CONNECTIONS);
+    int maxPerRoute = positive(configured ? descriptor.getHttpMaxConnectionsPerRoute() : 0, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    final int idleSeconds = positive(configured ? descriptor.getHttpIdleTimeoutSeconds() : 0, DEFAULT_IDLE_TIMEOUT_SECONDS);
+    int connectTimeout = positive(configured ? descriptor.getHttpConnectTimeoutMillis() : 0, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    int readTimeout = positive(configured ? descriptor.getHttpReadTimeoutMillis() : 0, DEFAULT_READ_TIMEOUT_MILLIS);
+
+    PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+    pool.setMaxTotal(maxConnections);
+    pool.setDefaultMaxPerRoute(maxPerRoute);
+    pool.setValidateAfterInactivity(1000);
+
+    RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .build();
+
+    // Keep connections for as long as the server allows, but never longer than the idle timeout
+    ConnectionKeepAliveStrategy keepAlive = new ConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        long max = TimeUnit.SECONDS.toMillis(idleSeconds);
+        return duration > 0 ? Math.min(duration, max) : max;
+      }
+    };
+
+    CloseableHttpClient client = HttpClients.custom()
+            .setConnectionManager(pool)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAlive)
+            .evictExpiredConnections()
+            .evictIdleConnections(idleSeconds, TimeUnit.SECONDS)
+            .useSystemProperties()
+            .build();
+    logger.fine(String.format("Created pooled HTTP client (%s connections, %s per route)", maxConnections, maxPerRoute));
+    return new Lease(client, requestConfig);
+  }
+
+  /**
+   * Resolves the Jenkins proxy to use for a host, registering the proxy credentials on the
+   * request context when they are configured.
+   *
+   * @param host - The host the request is sent to.
+   * @param context - The context of the request.
+   * @return the proxy to use, or null for a direct connection.
+   */
+  static HttpHost getProxy(final String host, final HttpClientContext context) {
+    Jenkins jenkins = Jenkins.getInstance();
+    ProxyConfiguration proxyConfig = jenkins != null ? jenkins.proxy : null;
+    if (proxyConfig == null) {
+      logger.fine("Jenkins proxy configuration not found");
+      return null;
+    }
+
+    Proxy proxy = proxyConfig.createProxy(host);
+    if (proxy == null || proxy.type() != Proxy.Type.HTTP || !(proxy.address() instanceof InetSocketAddress)) {
+      logger.fine("Not using a proxy for this request");
+      return null;
+    }
+
+    logger.fine("Attempting to use the Jenkins proxy configuration");
+    InetSocketAddress address = (InetSocketAddress) proxy.address();
+    HttpHost proxyHost = new HttpHost(address.getHostString(), address.getPort());
+    if (proxyConfig.getUserName() != null) {
+      CredentialsProvider credentials = new BasicCredentialsProvider();
+      credentials.setCredentials(new AuthScope(proxyHost),
+              new UsernamePasswordCredentials(proxyConfig.getUserName(), proxyConfig.getPassword()));
+      context.setCredentialsProvider(credentials);
+    }
+    return proxyHost;
+  }
+
+  private static int positive(final int value, final int fallback) {
+    return value > 0 ? value : fallback;
+  }
+
+  /**
+   * A client and the number of requests using it. A client replaced by {@link #reconfigure()} is
+   * retired rather than closed: closing it would shut its connection pool down under the requests
+   * still using it. The last of them closes it.
+   */
+  private static class Lease {
+    private final CloseableHttpClient client;
+    private final RequestConfig requestConfig;
+    // Guarded by the JobPerformanceStatsHttpClient class lock
+    private int users = 0;
+    private boolean retired = false;
+
+    Lease(final CloseableHttpClient client, final RequestConfig requestConfig) {
+      this.client = client;
+      this.requestConfig = requestConfig;
+    }
+
+    void release() {
+      boolean drained;
+      synchronized (JobPerformanceStatsHttpClient.class) {
+        users--;
+        drained = retired && users == 0;
+      }
+      if (drained) {
+        close();
+      }
+    }
+
+    void retire() {
+      boolean drained;
+      synchronized (JobPerformanceStatsHttpClient.class) {
+        retired = true;
+        drained = users == 0;
+      }
+      if (drained) {
+        close();
+      }
+    }
+
+    private void close() {
+      try {
+        client.close();
+      } catch (IOException e) {
+        logger.fine(String.format("Error while closing the HTTP client: %s", e.toString()));
+      }
+    }
+  }
+
+  /**
+   * {@link GZIPOutputStream} with a configurable compression level.
+   */
+  private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+    LeveledGZIPOutputStream(final OutputStream out, final int level) throws IOException {
+      super(out, 8192);
+      def.setLevel(level);
+    }
+  }
+
+  /**
+   * A fully read HTTP response.
+   */
+  public static class Response {
+    private final int status;
+    private final Header[] headers;
+    private final String body;
+
+    Response(final HttpResponse response, final String body) {
+      this.status = response.getStatusLine().getStatusCode();
+      this.headers = response.getAllHeaders();
+      this.body = body;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * @param name - The name of a response header.
+     * @return the value of the first header with that name, or null.
+     */
+    public String getHeader(final String name) {
+      for (Header header : headers) {
+        if (header.getName().equalsIgnoreCase(name)) {
+          return header.getValue();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return true for a 2xx status.
+     */
+    public boolean isSuccess() {
+      return status >= 200 && status < 300;
+    }
+  }
+}
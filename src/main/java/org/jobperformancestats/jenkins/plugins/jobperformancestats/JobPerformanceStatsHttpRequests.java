@@ -15,8 +15,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
 
-import io.prometheus.client.SimpleCollector;
-import io.prometheus.client.Summary;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -28,12 +26,18 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileWriter;
-import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.PushGateway;
 import java.util.*;
 import java.text.*;
 
-import org.apache.commons.lang.RandomStringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
 
 /**
  *
@@ -43,6 +47,9 @@ import org.apache.commons.lang.RandomStringUtils;
 public class JobPerformanceStatsHttpRequests {
 
   private static final Logger logger =  Logger.getLogger(JobPerformanceStatsHttpRequests.class.getName());
+  private static final ContentType NDJSON = ContentType.create("application/x-ndjson", "utf-8");
+  private static final ContentType SMILE = ContentType.create(JobPerformanceStatsJsonWriter.Encoding.SMILE.getMimeType());
+  private static final FastDateFormat START_TIME_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss'Z'", TimeZone.getTimeZone("UTC"));
   /**
    * Returns an HTTP url connection given a url object. Supports jenkins configured proxy.
    *
@@ -77,46 +84,25 @@ public class JobPerformanceStatsHttpRequests {
     return conn;
   }
 
-  public static void sendHttpRequest(URL baseurl, String jsonInputString) {
-    try {
-      String id = RandomStringUtils.randomAlphanumeric(10);
-      URL url = new URL (baseurl + id);
-      HttpURLConnection con = (HttpURLConnection)url.openConnection();
-      con.setRequestMethod("PUT");
-      con.setRequestProperty("Content-Type", "application/json; utf-8");
-      con.setRequestProperty("Accept", "application/json");
-      con.setDoOutput(true);
-
-      try(OutputStream os = con.getOutputStream()) {
-        byte[] input = jsonInputString.getBytes("utf-8");
-        os.write(input, 0, input.length);
-      }
-      try(BufferedReader br = new BufferedReader(
-              new InputStreamReader(con.getInputStream(), "utf-8"))) {
-        StringBuilder response = new StringBuilder();
-        String responseLine = null;
-        while ((responseLine = br.readLine()) != null) {
-          response.append(responseLine.trim());
-        }
-        System.out.println(response.toString());
-      }
-      if (con != null) {
-        con.disconnect();
-      }
-    } catch (Exception e) {
-      logger.severe(e.toString());
-    }
-  }
-
   /**
    * Sends a an event to the JobPerformanceStats API, including the event payload.
    *
    * @param evt - The finished {@link JobPerformanceStatsEvent} to send
    */
   public static void sendEvent(JobPerformanceStatsEvent evt) {
+    sendEvent(evt, null);
+  }
+
+  /**
+   * Sends a an event to the JobPerformanceStats API, recording the acknowledged documents.
+   *
+   * @param evt - The finished {@link JobPerformanceStatsEvent} to send
+   * @param ledger - The {@link JobPerformanceStatsShippingLedger} of the build, or null
+   */
+  public static void sendEvent(JobPerformanceStatsEvent evt, JobPerformanceStatsShippingLedger ledger) {
     logger.fine("Sending event");
     try {
-      JobPerformanceStatsHttpRequests.put(evt.createPayload(),evt.createStagePayload(),evt.createStepPayload(),JobPerformanceStatsBuildListener.EVENT);
+      JobPerformanceStatsHttpRequests.put(evt.createPayload(),evt.createStagePayload(),evt.createStepPayload(),JobPerformanceStatsBuildListener.EVENT,ledger);
     } catch (Exception e) {
       logger.severe(e.toString());
     }
@@ -131,41 +117,174 @@ public class JobPerformanceStatsHttpRequests {
    * @throws IOException if HttpURLConnection fails to open connection
    */
   public static Boolean put(final JSONObject payload, final JSONArray stagepayload,  final JSONArray steppayload, final String type) throws IOException {
+    return put(payload, stagepayload, steppayload, type, null);
+  }
+
+  /**
+   * Posts the documents of a build, skipping those its ledger holds already.
+   *
+   * @param payload - A JSONObject containing a specific subset of a builds metadata.
+   * @param type - A String containing the URL subpath pertaining to the type of API post required.
+   * @param ledger - The ledger the acknowledged documents are recorded in, or null.
+   * @return a boolean to signify the success or failure of the HTTP POST request.
+   * @throws IOException if HttpURLConnection fails to open connection
+   */
+  public static Boolean put(final JSONObject payload, final JSONArray stagepayload,  final JSONArray steppayload, final String type,
+                            final JobPerformanceStatsShippingLedger ledger) throws IOException {
+    try {
+
+      logger.finer("Writing to ELK start...");
+
+      // Job, stage and step documents of a build are sent together through the _bulk API
+      JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+      // Documents written before the write alias exists would create an index named after it.
+      // Spooled ones wait in the spool until it exists, the others are sent again once it is created
+      String job = payload.optString("jobfullname",
+              JobPerformanceStatsUtilities.nullSafeGetString(payload, "job").replace("%2F", "/"));
+      if (JobPerformanceStatsSpool.get() == null && JobPerformanceStatsIndexRouter.get().hold(job, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            put(payload, stagepayload, steppayload, type, ledger);
+          } catch (IOException e) {
+            logger.severe(e.toString());
+          }
+        }
+      })) {
+        logger.fine(String.format("Holding the documents of %s until its write alias exists", job));
+        return true;
+      }
+      // When spooling is enabled, documents are written to disk first and sent by the replayer
+      final JobPerformanceStatsBulkWriter writer = new JobPerformanceStatsBulkWriter(
+              descriptor.getBulkMaxDocs(), descriptor.getBulkMaxBytes(), JobPerformanceStatsSpool.get(),
+              encoding(descriptor));
+      writer.setLedger(ledger);
+      // Stage and step documents wait for the rate limit, build documents never do
+      final JobPerformanceStatsRateLimiter limiter = JobPerformanceStatsRateLimiter.get();
+      // Every document is encoded into the same pooled buffer, then copied into the bulk request
+      JobPerformanceStatsJsonWriter json = JobPerformanceStatsJsonWriter.acquire(writer.getEncoding());
+      try {
+        writeDocuments(payload, stagepayload, steppayload, parseDocumentMode(descriptor.getElkDocumentMode()), json,
+                new DocumentConsumer() {
+                  @Override
+                  public void accept(final String index, final String id, final JobPerformanceStatsRateLimiter.Lane lane,
+                                     final JobPerformanceStatsJsonWriter source) throws IOException {
+                    if (ledger != null) {
+                      if (ledger.isAcknowledged(id)) {
+                        return;
+                      }
+                      ledger.expect(id);
+                    }
+                    if (limiter != null && !limiter.tryAcquire(lane)) {
+                      limiter.defer(lane, index, id, source, writer.getEncoding(), ledger);
+                      return;
+                    }
+                    writer.add(index, id, source);
+                  }
+                });
+        if (ledger != null) {
+          ledger.seal();
+        }
+      } finally {
+        JobPerformanceStatsJsonWriter.release(json);
+      }
+
+      try {
+        writer.close();
+      } catch (Exception e) {
+        logger.severe(e.toString());
+      }
+
+      logger.finer(String.format("Writing to ELK finish: %s accepted, %s spooled, %s failed",
+              writer.getAccepted(), writer.getSpooled(), writer.getFailed()));
+
+      return writer.getFailed() == 0;
+
+    } catch (Exception e) {
 
+      logger.severe(String.format("Client error: %s", e.toString()));
+
+      return false;
+    }
+  }
+
+  /**
+   * Receives the documents of a build, see {@link #writeDocuments}.
+   */
+  public interface DocumentConsumer {
+    /**
+     * @param index - The index the document belongs to.
+     * @param id - The id of the document, derived from the build.
+     * @param lane - The priority of the document.
+     * @param source - The document. Its buffer is reused for the next document once this returns.
+     * @throws IOException if the document cannot be handled.
+     */
+    void accept(String index, String id, JobPerformanceStatsRateLimiter.Lane lane, JobPerformanceStatsJsonWriter source) throws IOException;
+  }
+
+  /**
+   * Encodes the documents of a build, laid out according to the {@link DocumentMode}, and hands
+   * them to a consumer one at a time. A document that cannot be encoded or consumed is logged and
+   * skipped.
+   *
+   * @param payload - The metadata of the build.
+   * @param stagepayload - The stages of the build.
+   * @param steppayload - The steps of the build.
+   * @param mode - How the documents are laid out.
+   * @param json - The writer every document is encoded into.
+   * @param consumer - Receives each document.
+   */
+  static void writeDocuments(final JSONObject payload, final JSONArray stagepayload, final JSONArray steppayload,
+                             final DocumentMode mode, final JobPerformanceStatsJsonWriter json,
+                             final DocumentConsumer consumer) {
     String number = JobPerformanceStatsUtilities.nullSafeGetString(payload, "number");
     String buildurl = JobPerformanceStatsUtilities.nullSafeGetString(payload, "buildurl").replace("%2F", "/");
     String job = JobPerformanceStatsUtilities.nullSafeGetString(payload, "job").replace("%2F", "/");
     String jobstatus = JobPerformanceStatsUtilities.nullSafeGetString(payload, "alert_type");
     String jobduration = JobPerformanceStatsUtilities.nullSafeGetString(payload, "duration");
     String node = JobPerformanceStatsUtilities.nullSafeGetString(payload, "node");
-
-    String elk_hostname = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor().getHostname();
+    // Document ids are derived from the build, so re-sending a build overwrites its documents
+    String jobfullname = payload.optString("jobfullname", job);
+    long buildnumber = payload.optLong("number");
 
     double duration = Double.parseDouble(jobduration);
     Long starttime = payload.getLong("starttime");
     Long timestamp = (starttime)*1000;
-    String start_time = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").format(new java.util.Date(timestamp));
+    String start_time = START_TIME_FORMAT.format(timestamp);
 
     logger.finer("start_time is "+ start_time);
 
-    try {
-
-      logger.finer("Writing to ELK start...");
-
-      Date date = new Date();
-
-      String index_date = new java.text.SimpleDateFormat("yyyy-MM-dd").format(date);
-      String jsonInputString = "{\"jobstarttime\":\""+ start_time +"\", \"jobname\":\"" + job + "\", \"jobid\":\"" + number + "\", \"jobstatus\":\"" + jobstatus +"\", \"jobduration\":" + duration +", \"joburl\":\"" + buildurl +"\", \"node\":\"" + node +"\", \"type\":\"job\"}";
-      URL baseurl = new URL ("http://" + elk_hostname + ":9200/jenkins-" + index_date +"/doc/");
+    // Every document of the build goes to the index of its start time, whenever it completes
+    String index = JobPerformanceStatsIndexRouter.get().resolve(jobfullname, timestamp);
+    boolean compact = mode == DocumentMode.COMPACT;
 
+    if (compact) {
+      // A single document per build, with its stages and their steps nested inside
+      try {
+        writeBuild(json.reset(), start_time, job, number, jobstatus, duration, buildurl, node, stagepayload, steppayload);
+        consumer.accept(index, JobPerformanceStatsDocumentIds.of(jobfullname, buildnumber, "build", null),
+                JobPerformanceStatsRateLimiter.Lane.BUILD, json);
+      } catch (Exception e) {
+        logger.severe(String.format("Client error in build: %s", e.toString()));
+      }
+    } else {
       try {
-        JobPerformanceStatsHttpRequests.sendHttpRequest(baseurl, jsonInputString);
+        json.reset().beginObject()
+                .field("jobstarttime", start_time)
+                .field("jobname", job)
+                .field("jobid", number)
+                .field("jobstatus", jobstatus)
+                .field("jobduration", duration)
+                .field("joburl", buildurl)
+                .field("node", node)
+                .field("type", "job")
+                .endObject();
+        consumer.accept(index, JobPerformanceStatsDocumentIds.of(jobfullname, buildnumber, "job", null),
+                JobPerformanceStatsRateLimiter.Lane.BUILD, json);
       } catch (Exception e) {
         logger.severe(e.toString());
       }
 
-      logger.finer("Writing to ELK finish...");
-
       try {
         logger.finer("Writing to ELK stage start...");
 
@@ -174,10 +293,19 @@ public class JobPerformanceStatsHttpRequests {
 
           logger.finer("stage infos: ..." + jsonObject.toString());
 
-          String stage_jsonInputString = "{\"jobstarttime\":\"" + jsonObject.getJSONObject("starttime").getString("time")+ "\", \"jobname\":\"" + job + "\", \"jobid\":\"" + number + "\", \"joburl\":\"" + buildurl + "\", \"type\":\"stage\", \"name\":\"" + jsonObject.getString("name") + "\", \"status\":\"" + jsonObject.getString("status") + "\", \"duration\":" + jsonObject.getLong("duration") / 1000 + "}";
-
           try {
-            JobPerformanceStatsHttpRequests.sendHttpRequest(baseurl, stage_jsonInputString);
+            json.reset().beginObject()
+                    .field("jobstarttime", jsonObject.getJSONObject("starttime").getString("time"))
+                    .field("jobname", job)
+                    .field("jobid", number)
+                    .field("joburl", buildurl)
+                    .field("type", "stage")
+                    .field("name", jsonObject.getString("name"))
+                    .field("status", jsonObject.getString("status"))
+                    .field("duration", jsonObject.getLong("duration") / 1000)
+                    .endObject();
+            consumer.accept(index, JobPerformanceStatsDocumentIds.of(jobfullname, buildnumber, "stage",
+                    jsonObject.optString("id", jsonObject.getString("name"))), JobPerformanceStatsRateLimiter.Lane.STAGE, json);
           } catch (Exception e) {
             logger.severe(e.toString());
           }
@@ -190,16 +318,26 @@ public class JobPerformanceStatsHttpRequests {
 
       try {
 
-        logger.finer("Writing to ELK step finish...");
+        logger.finer("Writing to ELK step start...");
 
         for (Object step_obj : steppayload) {
           JSONObject step_jsonObject = (JSONObject) step_obj;
           logger.finer("step infos: ..." + step_jsonObject.toString());
 
-          String step_jsonInputString = "{\"jobstarttime\":\"" + step_jsonObject.getJSONObject("starttime").getString("time") + "\", \"jobname\":\"" + job + "\", \"jobid\":\"" + number + "\", \"joburl\":\"" + buildurl + "\", \"stagename\":\"" + step_jsonObject.getString("stagename") + "\", \"type\":\"step\", \"name\":\"" + step_jsonObject.getString("name") + "\", \"status\":\"" + step_jsonObject.getString("status") + "\", \"duration\":" + step_jsonObject.getLong("duration") / 1000 + "}";
-
           try {
-            JobPerformanceStatsHttpRequests.sendHttpRequest(baseurl, step_jsonInputString);
+            json.reset().beginObject()
+                    .field("jobstarttime", step_jsonObject.getJSONObject("starttime").getString("time"))
+                    .field("jobname", job)
+                    .field("jobid", number)
+                    .field("joburl", buildurl)
+                    .field("stagename", step_jsonObject.getString("stagename"))
+                    .field("type", "step")
+                    .field("name", step_jsonObject.getString("name"))
+                    .field("status", step_jsonObject.getString("status"))
+                    .field("duration", step_jsonObject.getLong("duration") / 1000)
+                    .endObject();
+            consumer.accept(index, JobPerformanceStatsDocumentIds.of(jobfullname, buildnumber, "step",
+                    step_jsonObject.optString("id", step_jsonObject.getString("name"))), JobPerformanceStatsRateLimiter.Lane.STEP, json);
           } catch (Exception e) {
             logger.severe(e.toString());
           }
@@ -210,15 +348,283 @@ public class JobPerformanceStatsHttpRequests {
         logger.severe(String.format("Client error in step: %s", e.toString()));
         //return false;
       }
+    }
+  }
 
-      return true;
+  /**
+   * How the metrics of a build are laid out in ELK.
+   */
+  public enum DocumentMode {
+    /** One job document, plus one document per stage and per step. */
+    SEPARATE,
+    /** One document per build, with stages nested in it and steps nested in their stage. */
+    COMPACT
+  }
 
-    } catch (Exception e) {
+  static DocumentMode parseDocumentMode(final String mode) {
+    if (mode == null) {
+      return DocumentMode.SEPARATE;
+    }
+    try {
+      return DocumentMode.valueOf(mode);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown document mode '%s', using %s", mode, DocumentMode.SEPARATE));
+      return DocumentMode.SEPARATE;
+    }
+  }
 
-      logger.severe(String.format("Client error: %s", e.toString()));
+  /**
+   * Writes the compact document of a build: the fields of the job document, and a
+   * <code>stages</code> array holding each stage with a <code>steps</code> array of its steps.
+   * Steps whose stage is not in the stage metadata get a stage of their own.
+   *
+   * @param json - The writer of the document.
+   * @param stagepayload - The stage metadata, see gatherStageMetadata.
+   * @param steppayload - The step metadata, see gatherStepMetadata.
+   * @return the writer.
+   */
+  static JobPerformanceStatsJsonWriter writeBuild(final JobPerformanceStatsJsonWriter json, final String starttime,
+                                                  final String job, final String number, final String status,
+                                                  final double duration, final String url, final String node,
+                                                  final JSONArray stagepayload, final JSONArray steppayload) {
+    // Steps of each stage, in the order of the stage metadata
+    Map<String, List<JSONObject>> steps = new LinkedHashMap<>();
+    Map<String, JSONObject> stages = new LinkedHashMap<>();
+    if (stagepayload != null) {
+      for (Object obj : stagepayload) {
+        JSONObject stage = (JSONObject) obj;
+        String id = stage.optString("id", stage.optString("name"));
+        stages.put(id, stage);
+        steps.put(id, new ArrayList<JSONObject>());
+      }
+    }
+    if (steppayload != null) {
+      for (Object obj : steppayload) {
+        JSONObject step = (JSONObject) obj;
+        String stageid = step.optString("stageid", step.optString("stagename"));
+        if (!steps.containsKey(stageid)) {
+          JSONObject stage = new JSONObject();
+          stage.put("id", stageid);
+          stage.put("name", step.optString("stagename"));
+          stages.put(stageid, stage);
+          steps.put(stageid, new ArrayList<JSONObject>());
+        }
+        steps.get(stageid).add(step);
+      }
+    }
 
-      return false;
+    json.beginObject()
+            .field("jobstarttime", starttime)
+            .field("jobname", job)
+            .field("jobid", number)
+            .field("jobstatus", status)
+            .field("jobduration", duration)
+            .field("joburl", url)
+            .field("node", node)
+            .field("type", "build");
+    json.name("stages").beginArray();
+    for (Map.Entry<String, JSONObject> entry : stages.entrySet()) {
+      writeNode(json.beginObject(), entry.getValue());
+      json.name("steps").beginArray();
+      for (JSONObject step : steps.get(entry.getKey())) {
+        writeNode(json.beginObject(), step).endObject();
+      }
+      json.endArray().endObject();
     }
+    return json.endArray().endObject();
+  }
+
+  /**
+   * Writes the fields of a stage or step, durations in seconds like their own documents.
+   */
+  private static JobPerformanceStatsJsonWriter writeNode(final JobPerformanceStatsJsonWriter json, final JSONObject node) {
+    json.field("id", node.optString("id", null))
+            .field("name", node.optString("name", null))
+            .field("status", node.optString("status", null));
+    JSONObject starttime = node.optJSONObject("starttime");
+    if (starttime != null && starttime.has("time")) {
+      json.field("starttime", starttime.getLong("time"));
+    }
+    if (node.has("duration")) {
+      json.field("duration", node.optLong("duration") / 1000);
+    }
+    return json;
+  }
+
+  /**
+   * @return the configured encoding of documents, or JSON when they may have to be spooled, as
+   *         the spool only holds JSON.
+   */
+  static JobPerformanceStatsJsonWriter.Encoding encoding(final JobPerformanceStatsBuildListener.DescriptorImpl descriptor) {
+    JobPerformanceStatsJsonWriter.Encoding encoding = parseEncoding(descriptor.getElkEncoding());
+    if (encoding != JobPerformanceStatsJsonWriter.Encoding.JSON
+            && JobPerformanceStatsCircuitBreaker.parseFallback(descriptor.getBreakerFallback())
+               == JobPerformanceStatsCircuitBreaker.Fallback.SPOOL) {
+      return JobPerformanceStatsJsonWriter.Encoding.JSON;
+    }
+    return encoding;
+  }
+
+  static JobPerformanceStatsJsonWriter.Encoding parseEncoding(final String encoding) {
+    if (encoding == null) {
+      return JobPerformanceStatsJsonWriter.Encoding.JSON;
+    }
+    try {
+      return JobPerformanceStatsJsonWriter.Encoding.valueOf(encoding);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown encoding '%s', using %s", encoding, JobPerformanceStatsJsonWriter.Encoding.JSON));
+      return JobPerformanceStatsJsonWriter.Encoding.JSON;
+    }
+  }
+
+  /**
+   * Posts the first bytes of a buffer as a newline-delimited JSON body to the <code>_bulk</code>
+   * endpoint of a node picked by the {@link JobPerformanceStatsNodePool}, trying the other nodes
+   * if it cannot be reached.
+   *
+   * @param body - The buffer holding the NDJSON body, one action line and one source line per document.
+   * @param length - The length of the body.
+   * @return the raw response body returned by ELK.
+   * @throws IOException if no node accepted the request.
+   */
+  public static String sendBulkRequest(final byte[] body, final int length) throws IOException {
+    return sendBulkRequest(body, length, JobPerformanceStatsJsonWriter.Encoding.JSON);
+  }
+
+  /**
+   * Posts the first bytes of a buffer as a <code>_bulk</code> body to a node picked by the
+   * {@link JobPerformanceStatsNodePool}, trying the other nodes at once if it cannot be reached,
+   * and all of them again after a backoff, see {@link JobPerformanceStatsNodePool#executeWithRetries}.
+   *
+   * @param body - The buffer holding the body, one action and one source per document.
+   * @param length - The length of the body.
+   * @param encoding - How the documents of the body are encoded.
+   * @return the raw response body returned by ELK.
+   * @throws IOException if no node accepted the request.
+   */
+  public static String sendBulkRequest(final byte[] body, final int length,
+                                       final JobPerformanceStatsJsonWriter.Encoding encoding) throws IOException {
+    return JobPerformanceStatsNodePool.get().executeWithRetries(new JobPerformanceStatsNodePool.Request<String>() {
+      @Override
+      public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+        return sendBulkRequest(node.resolve(JobPerformanceStatsBuildListener.BULK), body, length, encoding);
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #sendBulkRequest(byte[], int, JobPerformanceStatsJsonWriter.Encoding)} through
+   * the {@link JobPerformanceStatsAsyncHttpClient}, without waiting for the response.
+   *
+   * @param body - The buffer holding the body. It must not change until the callback is told.
+   * @param length - The length of the body.
+   * @param encoding - How the documents of the body are encoded.
+   * @param callback - Told about the raw response body returned by ELK, or a
+   *                   {@link StatusException} for an error status.
+   */
+  public static void sendBulkRequestAsync(final byte[] body, final int length,
+                                          final JobPerformanceStatsJsonWriter.Encoding encoding,
+                                          final JobPerformanceStatsAsyncHttpClient.Callback<String> callback) {
+    JobPerformanceStatsNodePool.get().executeAsync(new JobPerformanceStatsNodePool.AsyncRequest<String>() {
+      @Override
+      public void send(final JobPerformanceStatsNodePool.Node node, final JobPerformanceStatsAsyncHttpClient.Callback<String> result) {
+        HttpPost request;
+        try {
+          request = new HttpPost(node.resolve(JobPerformanceStatsBuildListener.BULK).toString());
+          request.setHeader("Accept", "application/json");
+          request.setEntity(JobPerformanceStatsHttpClient.entity(body, 0, length,
+                  encoding == JobPerformanceStatsJsonWriter.Encoding.SMILE ? SMILE : NDJSON));
+        } catch (IOException e) {
+          result.failed(e);
+          return;
+        }
+        JobPerformanceStatsAsyncHttpClient.execute(request, new JobPerformanceStatsAsyncHttpClient.Callback<JobPerformanceStatsHttpClient.Response>() {
+          @Override
+          public void completed(final JobPerformanceStatsHttpClient.Response response) {
+            if (response.isSuccess()) {
+              result.completed(response.getBody());
+            } else {
+              result.failed(new StatusException(response.getStatus(),
+                      String.format("ELK answered %s: %s", response.getStatus(), response.getBody())));
+            }
+          }
+
+          @Override
+          public void failed(final Exception e) {
+            result.failed(e);
+          }
+        });
+      }
+    }, callback);
+  }
+
+  /**
+   * Sends a request to a node picked by the {@link JobPerformanceStatsNodePool}, trying the other
+   * nodes at once if it cannot be reached, and all of them again after a backoff.
+   *
+   * @param method - The HTTP method, one of GET, HEAD, PUT, POST or DELETE.
+   * @param path - The path of the request, relative to the root of the node.
+   * @param json - The JSON body of the request, or null.
+   * @return the {@link JobPerformanceStatsHttpClient.Response} of the node, whatever its status
+   *         apart from server errors and throttling.
+   * @throws IOException if no node could be reached, or they kept failing or throttling the request.
+   */
+  public static JobPerformanceStatsHttpClient.Response sendElkRequest(final String method, final String path,
+                                                                      final String json) throws IOException {
+    return JobPerformanceStatsNodePool.get().executeWithRetries(new JobPerformanceStatsNodePool.Request<JobPerformanceStatsHttpClient.Response>() {
+      @Override
+      public JobPerformanceStatsHttpClient.Response send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+        String url = node.resolve(path).toString();
+        HttpRequestBase request;
+        if ("PUT".equals(method)) {
+          request = new HttpPut(url);
+        } else if ("POST".equals(method)) {
+          request = new HttpPost(url);
+        } else if ("HEAD".equals(method)) {
+          request = new HttpHead(url);
+        } else if ("DELETE".equals(method)) {
+          request = new HttpDelete(url);
+        } else {
+          request = new HttpGet(url);
+        }
+        request.setHeader("Accept", "application/json");
+        if (json != null && request instanceof HttpEntityEnclosingRequestBase) {
+          ((HttpEntityEnclosingRequestBase) request).setEntity(
+                  JobPerformanceStatsHttpClient.entity(json.getBytes("utf-8"), ContentType.APPLICATION_JSON));
+        }
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.executeAttempt(request);
+        if (response.getStatus() >= 500 || JobPerformanceStatsHttpClient.isRetryable(response.getStatus())) {
+          throw new StatusException(response.getStatus(), String.format("ELK answered %s: %s", response.getStatus(), response.getBody()));
+        }
+        return response;
+      }
+    });
+  }
+
+  /**
+   * Posts the first bytes of a buffer as a <code>_bulk</code> body, without copying them, in a
+   * single attempt.
+   *
+   * @param url - The <code>_bulk</code> URL of the ELK cluster.
+   * @param body - The buffer holding the body.
+   * @param length - The length of the body.
+   * @param encoding - How the documents of the body are encoded.
+   * @return the raw response body returned by ELK, always JSON.
+   * @throws IOException if the request fails or ELK answers with an error status.
+   */
+  private static String sendBulkRequest(final URL url, final byte[] body, final int length,
+                                        final JobPerformanceStatsJsonWriter.Encoding encoding) throws IOException {
+    HttpPost request = new HttpPost(url.toString());
+    // Whatever the body, ask for a JSON response so it can be parsed
+    request.setHeader("Accept", "application/json");
+    request.setEntity(JobPerformanceStatsHttpClient.entity(body, 0, length,
+            encoding == JobPerformanceStatsJsonWriter.Encoding.SMILE ? SMILE : NDJSON));
+
+    JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.executeAttempt(request);
+    if (!response.isSuccess()) {
+      throw new StatusException(response.getStatus(), String.format("ELK answered %s: %s", response.getStatus(), response.getBody()));
+    }
+    return response.getBody();
   }
 
 
@@ -233,27 +639,17 @@ public class JobPerformanceStatsHttpRequests {
    */
   public static Boolean post(final JSONObject payload, final String type) throws IOException {
     String urlParameters = "?api_key=" + Secret.toString(JobPerformanceStatsUtilities.getApiKey());
-    HttpURLConnection conn = null;
     try {
-      logger.finer("Setting up HttpURLConnection...");
-      conn = JobPerformanceStatsHttpRequests.getHttpURLConnection(new URL(JobPerformanceStatsUtilities.getTargetMetricURL() + type + urlParameters));
-      conn.setRequestMethod("POST");
-      conn.setRequestProperty("Content-Type", "application/json");
-      conn.setUseCaches(false);
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream(), "utf-8");
-      logger.finer("Writing to OutputStreamWriter...");
-      wr.write(payload.toString());
-      wr.close();
-      BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream(), "utf-8"));
-      StringBuilder result = new StringBuilder();
-      String line;
-      while ((line = rd.readLine()) != null) {
-        result.append(line);
+      logger.finer("Setting up HttpPost...");
+      HttpPost request = new HttpPost(JobPerformanceStatsUtilities.getTargetMetricURL() + type + urlParameters);
+      request.setEntity(JobPerformanceStatsHttpClient.entity(payload.toString().getBytes("utf-8"), ContentType.APPLICATION_JSON));
+      logger.finer("Writing payload...");
+      JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.execute(request);
+      if (response.getStatus() == JobPerformanceStatsBuildListener.HTTP_FORBIDDEN) {
+        logger.severe("Hmmm, your API key may be invalid. We received a 403 error.");
+        return false;
       }
-      rd.close();
-      JSONObject json = (JSONObject) JSONSerializer.toJSON(result.toString());
+      JSONObject json = (JSONObject) JSONSerializer.toJSON(response.getBody());
       if ("ok".equals(json.getString("status"))) {
         logger.finer(String.format("API call of type '%s' was sent successfully!", type));
         logger.finer(String.format("Payload: %s", payload));
@@ -264,18 +660,28 @@ public class JobPerformanceStatsHttpRequests {
         return false;
       }
     } catch (Exception e) {
-      if (conn.getResponseCode() == JobPerformanceStatsBuildListener.HTTP_FORBIDDEN) {
-        logger.severe("Hmmm, your API key may be invalid. We received a 403 error.");
-      } else {
-        logger.severe(String.format("Client error: %s", e.toString()));
-      }
+      logger.severe(String.format("Client error: %s", e.toString()));
       return false;
-    } finally {
-      if (conn != null) {
-        conn.disconnect();
-      }
-      return true;
     }
   }
 
-}
\ No newline at end of file
+
+  /**
+   * Thrown when ELK answers a request with an error status.
+   */
+  public static class StatusException extends IOException {
+    private final int status;
+
+    public StatusException(final int status, final String message) {
+      super(message);
+      this.status = status;
+    }
+
+    /**
+     * @return the HTTP status ELK answered with.
+     */
+    public int getStatus() {
+      return status;
+    }
+  }
+}
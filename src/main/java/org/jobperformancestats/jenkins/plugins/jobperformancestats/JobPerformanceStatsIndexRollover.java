@@ -0,0 +1,100 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+/**
+ * This class registers an {@link AsyncPeriodicWork} with Jenkins to roll the write aliases of
+ * the {@link JobPerformanceStatsIndexRouter} over to a new index once the current one reaches the
+ * configured size or age, so indices stay a sensible size instead of one small index per day.
+ */
+@Extension
+public class JobPerformanceStatsIndexRollover extends AsyncPeriodicWork {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsIndexRollover.class.getName());
+  private static final long RECURRENCE_PERIOD = TimeUnit.MINUTES.toMillis(5);
+  static final String DEFAULT_MAX_SIZE = "50gb";
+  static final int DEFAULT_MAX_AGE_DAYS = 30;
+
+  public JobPerformanceStatsIndexRollover() {
+    super("JobPerformanceStats ELK index rollover");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return RECURRENCE_PERIOD;
+  }
+
+  @Override
+  protected void execute(final TaskListener listener) {
+    JobPerformanceStatsIndexRouter router = JobPerformanceStatsIndexRouter.get();
+    if (router.getMode() != JobPerformanceStatsIndexRouter.Mode.ALIAS) {
+      return;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    String maxSize = descriptor.getIndexRolloverMaxSize();
+    int maxAgeDays = descriptor.getIndexRolloverMaxAgeDays() > 0 ? descriptor.getIndexRolloverMaxAgeDays() : DEFAULT_MAX_AGE_DAYS;
+
+    JSONObject conditions = new JSONObject();
+    conditions.put("max_size", maxSize != null && !maxSize.trim().isEmpty() ? maxSize.trim() : DEFAULT_MAX_SIZE);
+    conditions.put("max_age", maxAgeDays + "d");
+    JSONObject body = new JSONObject();
+    body.put("conditions", conditions);
+
+    for (String alias : router.getAliases()) {
+      try {
+        JobPerformanceStatsHttpClient.Response response =
+                JobPerformanceStatsHttpRequests.sendElkRequest("POST", alias + "/_rollover", body.toString());
+        if (!response.isSuccess()) {
+          logger.warning(String.format("Unable to roll over %s, ELK answered %s: %s", alias, response.getStatus(), response.getBody()));
+          continue;
+        }
+        JSONObject result = JSONObject.fromObject(response.getBody());
+        if (result.optBoolean("rolled_over")) {
+          logger.info(String.format("Rolled %s over from %s to %s", alias, result.optString("old_index"), result.optString("new_index")));
+        }
+      } catch (Exception e) {
+        logger.warning(String.format("Unable to roll over %s: %s", alias, e.toString()));
+      }
+    }
+  }
+
+  /**
+   * Creates the first index of a write alias, <code>alias-000001</code>, unless the alias
+   * already exists.
+   *
+   * @param alias - The write alias.
+   * @return true if the alias exists or was created.
+   */
+  static boolean bootstrap(final String alias) {
+    try {
+      JobPerformanceStatsHttpClient.Response exists = JobPerformanceStatsHttpRequests.sendElkRequest("HEAD", "_alias/" + alias, null);
+      if (exists.isSuccess()) {
+        return true;
+      }
+      JSONObject writeAlias = new JSONObject();
+      writeAlias.put("is_write_index", true);
+      JSONObject aliases = new JSONObject();
+      aliases.put(alias, writeAlias);
+      JSONObject body = new JSONObject();
+      body.put("aliases", aliases);
+      JobPerformanceStatsHttpClient.Response created =
+              JobPerformanceStatsHttpRequests.sendElkRequest("PUT", alias + "-000001", body.toString());
+      // Another controller may have created it in the meantime
+      if (created.isSuccess() || created.getBody().contains("resource_already_exists_exception")) {
+        logger.info(String.format("Created write alias %s", alias));
+        return true;
+      }
+      logger.warning(String.format("Unable to create write alias %s, ELK answered %s: %s", alias, created.getStatus(), created.getBody()));
+    } catch (Exception e) {
+      logger.warning(String.format("Unable to create write alias %s: %s", alias, e.toString()));
+    }
+    return false;
+  }
+}
@@ -0,0 +1,489 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * Resolves the index a build's documents are written to.
+ *
+ * <p>The index is made of a prefix and, in {@link Mode#DATED} mode, the build start time
+ * formatted in UTC with a configurable pattern, such as <code>jenkins-2019-10-01</code> for
+ * <code>yyyy-MM-dd</code> or <code>jenkins-2019.10</code> for <code>yyyy.MM</code>. So every
+ * document of a build lands in the same index, whenever it completes. In {@link Mode#ALIAS}
+ * mode documents are written to a write alias named after the prefix, which
+ * {@link JobPerformanceStatsIndexRollover} rolls over to a new index once it is large or old
+ * enough. The aliases are created from the {@link JobPerformanceStatsExecutor} when the router is
+ * created. Documents are never written to an alias that does not exist yet, which would let ELK
+ * create a plain index with its name: spooled documents stay in the spool until every alias exists,
+ * see {@link #checkAliases()}, and the others are held until their alias is created, see
+ * {@link #hold(String, Runnable)}.
+ *
+ * <p>Jobs inside configured folders can use their own prefix. Resolved names are cached per
+ * prefix and time bucket (an hour or a day, depending on the pattern).
+ */
+public class JobPerformanceStatsIndexRouter {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsIndexRouter.class.getName());
+  static final String DEFAULT_PREFIX = "jenkins";
+  static final String DEFAULT_DATE_PATTERN = "yyyy-MM-dd";
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  private static final int MAX_CACHED = 1024;
+  // A failed creation of a write alias is tried again at most this often
+  static final long BOOTSTRAP_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  // Tasks held per alias until it is created, the oldest are dropped past this
+  static final int MAX_HELD = 1000;
+  // Characters Elasticsearch does not allow in index names
+  private static final Pattern INVALID_INDEX_CHARACTERS = Pattern.compile("[\\\\/*?\"<>| ,#:A-Z]");
+
+  private static JobPerformanceStatsIndexRouter instance;
+
+  /**
+   * How index names are built.
+   */
+  public enum Mode {
+    /** One index per prefix and time bucket of the build start time. */
+    DATED,
+    /** One write alias per prefix, rolled over by size and age. */
+    ALIAS
+  }
+
+  private final Mode mode;
+  private final String prefix;
+  private final FastDateFormat format;
+  private final long bucketMillis;
+  // Folder full name to prefix, longest folder first so the most specific one wins
+  private final Map<String, String> folderPrefixes;
+  private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+  private final Set<String> aliases = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // Alias to the time its creation was last tried, 0 while it is being created
+  private final Map<String, Long> bootstraps = new HashMap<>();
+  // Alias to the tasks waiting for it to be created, guarded by bootstraps
+  private final Map<String, Deque<Runnable>> held = new HashMap<>();
+  private final Bootstrap bootstrap;
+  private final long bootstrapRetryMillis;
+
+  /**
+   * Creates a write alias, see {@link JobPerformanceStatsIndexRollover#bootstrap(String)}.
+   */
+  interface Bootstrap {
+    Bootstrap ELK = new Bootstrap() {
+      @Override
+      public boolean create(final String alias) {
+        return JobPerformanceStatsIndexRollover.bootstrap(alias);
+      }
+    };
+
+    /**
+     * @param alias - The write alias.
+     * @return true if the alias exists or was created.
+     */
+    boolean create(String alias);
+  }
+
+  /**
+   * @param mode - How index names are built.
+   * @param prefix - The default index prefix.
+   * @param datePattern - The {@link FastDateFormat} pattern of the date suffix, in DATED mode.
+   * @param folderPrefixes - Lines of <code>folder/full/name=prefix</code>.
+   */
+  public JobPerformanceStatsIndexRouter(final Mode mode, final String prefix, final String datePattern,
+                                        final String folderPrefixes) {
+    this(mode, prefix, datePattern, folderPrefixes, Bootstrap.ELK, BOOTSTRAP_RETRY_MILLIS);
+  }
+
+  /**
+   * @param bootstrap - Creates the write aliases, in ALIAS mode.
+   * @param bootstrapRetryMillis - How long to wait before trying again to create an alias.
+   */
+  JobPerformanceStatsIndexRouter(final Mode mode, final String prefix, final String datePattern,
+                                 final String folderPrefixes, final Bootstrap bootstrap, final long bootstrapRetryMillis) {
+    this.bootstrap = bootstrap;
+    this.bootstrapRetryMillis = bootstrapRetryMillis;
+    this.mode = mode != null ? mode : Mode.DATED;
+    this.prefix = prefix != null && !prefix.trim().isEmpty() ? prefix.trim() : DEFAULT_PREFIX;
+    String pattern = datePattern != null && !datePattern.trim().isEmpty() ? datePattern.trim() : DEFAULT_DATE_PATTERN;
+    this.format = FastDateFormat.getInstance(pattern, UTC);
+    this.bucketMillis = bucket(pattern);
+    this.folderPrefixes = parseFolderPrefixes(folderPrefixes);
+  }
+
+  /**
+   * @return the shared router, created from the global configuration on first use.
+   */
+  public static synchronized JobPerformanceStatsIndexRouter get() {
+    if (instance == null) {
+      JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+      instance = new JobPerformanceStatsIndexRouter(parseMode(descriptor.getIndexMode()), descriptor.getIndexPrefix(),
+              descriptor.getIndexDatePattern(), descriptor.getIndexFolderPrefixes());
+      if (instance.mode == Mode.ALIAS) {
+        for (String alias : instance.getPrefixes()) {
+          instance.bootstrap(alias);
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Rebuilds the shared router after the global configuration changed.
+   */
+  public static synchronized void reconfigure() {
+    instance = null;
+  }
+
+  /**
+   * Starts creating the write aliases when Jenkins starts, before the first build completes.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void createAliases() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor != null && parseMode(descriptor.getIndexMode()) == Mode.ALIAS) {
+      get();
+    }
+  }
+
+  static Mode parseMode(final String mode) {
+    if (mode == null) {
+      return Mode.DATED;
+    }
+    try {
+      return Mode.valueOf(mode);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown index mode '%s', using %s", mode, Mode.DATED));
+      return Mode.DATED;
+    }
+  }
+
+  /**
+   * @param job - The full name of the job.
+   * @param startMillis - The build start time, in milliseconds since the epoch.
+   * @return the name of the index or alias the documents of the build are written to.
+   */
+  public String resolve(final String job, final long startMillis) {
+    String jobPrefix = prefixOf(job);
+    if (mode == Mode.ALIAS) {
+      return jobPrefix;
+    }
+    if (bucketMillis <= 0) {
+      return jobPrefix + "-" + format.format(startMillis);
+    }
+    String key = jobPrefix + '@' + startMillis / bucketMillis;
+    String index = cache.get(key);
+    if (index == null) {
+      if (cache.size() >= MAX_CACHED) {
+        cache.clear();
+      }
+      index = jobPrefix + "-" + format.format(startMillis);
+      cache.put(key, index);
+    }
+    return index;
+  }
+
+  /**
+   * Checks that the documents of a job can be sent to ELK. In ALIAS mode, the write alias must
+   * exist first, or ELK would create an index with its name. Never waits for ELK: an alias that
+   * does not exist yet is created in the background.
+   *
+   * @param job - The full name of the job.
+   * @throws AliasNotReadyException if the write alias of the job does not exist yet.
+   */
+  public void checkWritable(final String job) throws AliasNotReadyException {
+    if (mode != Mode.ALIAS) {
+      return;
+    }
+    String alias = prefixOf(job);
+    if (!aliases.contains(alias)) {
+      bootstrap(alias);
+      throw new AliasNotReadyException(alias);
+    }
+  }
+
+  /**
+   * Holds a task sending documents of a job until the write alias of the job exists, in ALIAS
+   * mode, instead of failing it. The held tasks run from the {@link JobPerformanceStatsExecutor}
+   * once the alias is created, and a failed creation is tried again after the retry period for as
+   * long as tasks wait. Past {@link #MAX_HELD} tasks for an alias, the oldest one is dropped.
+   *
+   * @param job - The full name of the job.
+   * @param task - Sends the documents of the job.
+   * @return false if the documents can be sent now, true if the task was held.
+   */
+  public boolean hold(final String job, final Runnable task) {
+    if (mode != Mode.ALIAS) {
+      return false;
+    }
+    String alias = prefixOf(job);
+    synchronized (bootstraps) {
+      // Checked under the lock the tasks are released with, so none is left behind
+      if (aliases.contains(alias)) {
+        return false;
+      }
+      Deque<Runnable> tasks = held.get(alias);
+      if (tasks == null) {
+        tasks = new ArrayDeque<>();
+        held.put(alias, tasks);
+      }
+      if (tasks.size() >= MAX_HELD) {
+        tasks.removeFirst();
+        logger.warning(String.format("Dropped documents waiting for write alias %s, more than %s batches wait",
+                alias, MAX_HELD));
+      }
+      tasks.addLast(task);
+    }
+    bootstrap(alias);
+    return true;
+  }
+
+  /**
+   * Checks that the write alias of every prefix exists, in ALIAS mode, creating the missing ones
+   * in the background. Never waits for ELK.
+   *
+   * @return true if documents of any job can be sent.
+   */
+  public boolean checkAliases() {
+    if (mode != Mode.ALIAS) {
+      return true;
+    }
+    boolean ready = true;
+    for (String alias : getPrefixes()) {
+      if (!aliases.contains(alias)) {
+        bootstrap(alias);
+        ready = false;
+      }
+    }
+    return ready;
+  }
+
+  /**
+   * @param alias - A write alias.
+   * @return the number of tasks waiting for the alias to be created.
+   */
+  int getHeld(final String alias) {
+    synchronized (bootstraps) {
+      Deque<Runnable> tasks = held.get(alias);
+      return tasks != null ? tasks.size() : 0;
+    }
+  }
+
+  /**
+   * Creates a write alias from the {@link JobPerformanceStatsExecutor}, unless it is already being
+   * created or the last attempt failed less than the retry period ago.
+   */
+  private void bootstrap(final String alias) {
+    synchronized (bootstraps) {
+      Long attempted = bootstraps.get(alias);
+      if (aliases.contains(alias) || attempted != null
+              && (attempted == 0 || System.currentTimeMillis() - attempted < bootstrapRetryMillis)) {
+        return;
+      }
+      bootstraps.put(alias, 0L);
+    }
+    try {
+      JobPerformanceStatsExecutor.get().submit(new Runnable() {
+        @Override
+        public void run() {
+          boolean created = false;
+          try {
+            created = bootstrap.create(alias);
+          } finally {
+            List<Runnable> released = new ArrayList<>();
+            boolean waiting;
+            synchronized (bootstraps) {
+              if (created) {
+                aliases.add(alias);
+                Deque<Runnable> tasks = held.remove(alias);
+                if (tasks != null) {
+                  released.addAll(tasks);
+                }
+              }
+              waiting = held.containsKey(alias);
+              bootstraps.put(alias, System.currentTimeMillis());
+            }
+            release(alias, released);
+            if (waiting) {
+              retryBootstrap(alias);
+            }
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (bootstraps) {
+        bootstraps.remove(alias);
+      }
+    }
+  }
+
+  /**
+   * Creates a write alias again once the retry period is over, as tasks wait for it.
+   */
+  private void retryBootstrap(final String alias) {
+    try {
+      JobPerformanceStatsExecutor.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          bootstrap(alias);
+        }
+      }, bootstrapRetryMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      logger.warning(String.format("Unable to create write alias %s again, Jenkins is stopping", alias));
+    }
+  }
+
+  /**
+   * Runs the tasks held until an alias was created.
+   */
+  private void release(final String alias, final List<Runnable> tasks) {
+    for (int i = 0; i < tasks.size(); i++) {
+      try {
+        JobPerformanceStatsExecutor.get().submit(tasks.get(i));
+      } catch (RejectedExecutionException e) {
+        logger.warning(String.format("Dropped %s batches of documents waiting for write alias %s, Jenkins is stopping",
+                tasks.size() - i, alias));
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the write aliases that exist, in ALIAS mode.
+   */
+  public Set<String> getAliases() {
+    return Collections.unmodifiableSet(aliases);
+  }
+
+  /**
+   * @return the default prefix followed by the prefixes of folders.
+   */
+  public Set<String> getPrefixes() {
+    Set<String> prefixes = new LinkedHashSet<>();
+    prefixes.add(prefix);
+    prefixes.addAll(folderPrefixes.values());
+    return prefixes;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  String prefixOf(final String job) {
+    if (job != null) {
+      for (Map.Entry<String, String> entry : folderPrefixes.entrySet()) {
+        if (job.startsWith(entry.getKey() + "/")) {
+          return entry.getValue();
+        }
+      }
+    }
+    return prefix;
+  }
+
+  static Map<String, String> parseFolderPrefixes(final String lines) {
+    Map<String, String> prefixes = new TreeMap<>(new Comparator<String>() {
+      @Override
+      public int compare(final String a, final String b) {
+        return a.length() != b.length() ? b.length() - a.length() : a.compareTo(b);
+      }
+    });
+    if (lines == null) {
+      return prefixes;
+    }
+    for (String line : lines.split("[\\r\\n]+")) {
+      int equals = line.indexOf('=');
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      if (equals <= 0 || equals == line.length() - 1) {
+        logger.warning(String.format("Ignoring folder prefix '%s', expected folder=prefix", line));
+        continue;
+      }
+      prefixes.put(line.substring(0, equals).trim().replaceAll("/+$", ""), line.substring(equals + 1).trim());
+    }
+    return new LinkedHashMap<>(prefixes);
+  }
+
+  /**
+   * @return how long resolved names stay the same for a date pattern: an hour when it contains
+   *         hours, a day otherwise, or 0 when it is finer than an hour.
+   */
+  static long bucket(final String pattern) {
+    String letters = pattern.replaceAll("'[^']*'", "");
+    if (letters.matches(".*[msS].*")) {
+      return 0;
+    }
+    if (letters.matches(".*[HkKh].*")) {
+      return TimeUnit.HOURS.toMillis(1);
+    }
+    return TimeUnit.DAYS.toMillis(1);
+  }
+
+  /**
+   * @param prefix - An index prefix, or the name of a write alias.
+   * @return why the prefix cannot start an Elasticsearch index name, or null if it can.
+   */
+  static String checkPrefix(final String prefix) {
+    if (prefix == null || prefix.trim().isEmpty()) {
+      return null;
+    }
+    String name = prefix.trim();
+    if (INVALID_INDEX_CHARACTERS.matcher(name).find()) {
+      return String.format("'%s' must be lowercase, without spaces nor any of \\ / * ? \" < > | , # :", name);
+    }
+    if (name.startsWith("-") || name.startsWith("_") || name.startsWith("+") || name.equals(".") || name.equals("..")) {
+      return String.format("'%s' must not start with -, _ or +, nor be . or ..", name);
+    }
+    return null;
+  }
+
+  /**
+   * @param pattern - A {@link FastDateFormat} pattern.
+   * @return why the pattern cannot end an Elasticsearch index name, or null if it can.
+   */
+  static String checkDatePattern(final String pattern) {
+    if (pattern == null || pattern.trim().isEmpty()) {
+      return null;
+    }
+    String formatted;
+    try {
+      // A date whose month and day names would be capitalized, and every number has two digits
+      formatted = FastDateFormat.getInstance(pattern.trim(), UTC).format(1569972600000L);
+    } catch (IllegalArgumentException e) {
+      return String.format("'%s' is not a valid date pattern: %s", pattern.trim(), e.getMessage());
+    }
+    if (INVALID_INDEX_CHARACTERS.matcher(formatted).find()) {
+      return String.format("'%s' formats dates as '%s', index names must be lowercase, without spaces "
+              + "nor any of \\ / * ? \" < > | , # :", pattern.trim(), formatted);
+    }
+    return null;
+  }
+
+  /**
+   * Thrown instead of writing documents to a write alias that does not exist yet.
+   */
+  public static class AliasNotReadyException extends IOException {
+    public AliasNotReadyException(final String alias) {
+      super(String.format("Write alias %s does not exist yet, it is being created", alias));
+    }
+  }
+}
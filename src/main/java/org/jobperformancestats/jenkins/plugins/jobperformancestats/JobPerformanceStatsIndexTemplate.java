@@ -0,0 +1,231 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Installs the index template of the documents, so ELK maps them explicitly instead of guessing.
+ *
+ * <p>Without a template, ELK maps every string as both <code>text</code> and <code>keyword</code>
+ * and guesses numeric types. The template maps names and statuses as <code>keyword</code> only
+ * (no norms, doc values kept for aggregations), durations and build numbers as numbers and start
+ * times as dates, keeps URLs out of the index, and rejects unknown fields (<code>dynamic:
+ * strict</code>). The stages and steps of compact build documents are <code>nested</code>, so
+ * each can be filtered and aggregated on its own. It also sets the refresh interval of the
+ * indices.
+ *
+ * <p>The template is versioned: it is installed at startup and whenever the configuration
+ * changes, unless ELK already has this version for the same index patterns and settings.
+ */
+public class JobPerformanceStatsIndexTemplate {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsIndexTemplate.class.getName());
+  static final String NAME = "jobperformancestats";
+  // Increase whenever the mappings change
+  static final int VERSION = 3;
+  static final String DEFAULT_REFRESH_INTERVAL = "30s";
+  // The mapping type of the documents before ELK 7, see the _type of the bulk action lines
+  private static final String TYPE = "doc";
+
+  private JobPerformanceStatsIndexTemplate() { }
+
+  /**
+   * Installs the template once the jobs are loaded, so Jenkins starts without waiting for ELK.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void installOnStartup() {
+    installAsync();
+  }
+
+  /**
+   * Installs the template from the {@link JobPerformanceStatsExecutor}.
+   */
+  public static void installAsync() {
+    JobPerformanceStatsExecutor.get().submit(new Runnable() {
+      @Override
+      public void run() {
+        install();
+      }
+    });
+  }
+
+  /**
+   * Installs the template unless it is disabled or ELK already has it.
+   *
+   * @return true if ELK has the template.
+   */
+  public static synchronized boolean install() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor == null || !descriptor.isIndexTemplateEnabled()) {
+      return false;
+    }
+    String refreshInterval = descriptor.getIndexRefreshInterval();
+    if (refreshInterval == null || refreshInterval.trim().isEmpty()) {
+      refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    }
+    // Dated indices and the indices behind write aliases both start with their prefix
+    List<String> patterns = new ArrayList<>();
+    for (String prefix : JobPerformanceStatsIndexRouter.get().getPrefixes()) {
+      patterns.add(prefix + "-*");
+    }
+
+    try {
+      JobPerformanceStatsHttpClient.Response installed =
+              JobPerformanceStatsHttpRequests.sendElkRequest("GET", "_template/" + NAME, null);
+      if (installed.isSuccess() && isCurrent(JSONObject.fromObject(installed.getBody()).optJSONObject(NAME),
+              patterns, refreshInterval.trim())) {
+        logger.fine(String.format("Index template %s version %s is already installed", NAME, VERSION));
+        return true;
+      }
+
+      JobPerformanceStatsHttpClient.Response root = JobPerformanceStatsHttpRequests.sendElkRequest("GET", "", null);
+      int major = root.isSuccess() ? majorVersion(JSONObject.fromObject(root.getBody())) : 0;
+      JSONObject template = build(patterns, refreshInterval.trim(), major > 0 && major < 7);
+
+      JobPerformanceStatsHttpClient.Response response =
+              JobPerformanceStatsHttpRequests.sendElkRequest("PUT", "_template/" + NAME, template.toString());
+      if (!response.isSuccess()) {
+        logger.warning(String.format("Unable to install index template %s, ELK answered %s: %s",
+                NAME, response.getStatus(), response.getBody()));
+        return false;
+      }
+      logger.info(String.format("Installed index template %s version %s for %s", NAME, VERSION, patterns));
+      return true;
+    } catch (Exception e) {
+      logger.warning(String.format("Unable to install index template %s: %s", NAME, e.toString()));
+      return false;
+    }
+  }
+
+  /**
+   * @param patterns - The index patterns the template applies to.
+   * @param refreshInterval - The refresh interval of the indices.
+   * @param typed - Whether the mappings are nested under the mapping type, as before ELK 7.
+   * @return the body of the template.
+   */
+  static JSONObject build(final List<String> patterns, final String refreshInterval, final boolean typed) {
+    JSONObject properties = new JSONObject();
+    properties.put("type", keyword());
+    properties.put("jobname", keyword());
+    properties.put("jobid", field("long"));
+    properties.put("jobstatus", keyword());
+    properties.put("jobduration", field("double"));
+    properties.put("node", keyword());
+    properties.put("name", keyword());
+    properties.put("stagename", keyword());
+    properties.put("status", keyword());
+    properties.put("duration", field("long"));
+
+    properties.put("jobstarttime", date());
+
+    // Build lifecycle documents
+    properties.put("queueid", field("long"));
+    properties.put("state", keyword());
+    properties.put("phase", field("integer"));
+    properties.put("waiting", field("long"));
+    properties.put("queuedtime", date());
+    properties.put("checkouttime", date());
+    properties.put("endtime", date());
+
+    // Only ever displayed, never searched or aggregated on
+    JSONObject url = keyword();
+    url.put("index", false);
+    url.put("doc_values", false);
+    properties.put("joburl", url);
+
+    // The stages and steps of compact build documents, queried on their own
+    JSONObject stepProperties = nodeProperties();
+    JSONObject steps = field("nested");
+    steps.put("properties", stepProperties);
+    JSONObject stageProperties = nodeProperties();
+    stageProperties.put("steps", steps);
+    JSONObject stages = field("nested");
+    stages.put("properties", stageProperties);
+    properties.put("stages", stages);
+
+    JSONObject mapping = new JSONObject();
+    mapping.put("dynamic", "strict");
+    mapping.put("properties", properties);
+    JSONObject mappings = mapping;
+    if (typed) {
+      mappings = new JSONObject();
+      mappings.put(TYPE, mapping);
+    }
+
+    JSONObject index = new JSONObject();
+    index.put("refresh_interval", refreshInterval);
+    JSONObject settings = new JSONObject();
+    settings.put("index", index);
+
+    JSONObject template = new JSONObject();
+    template.put("index_patterns", JSONArray.fromObject(patterns));
+    template.put("version", VERSION);
+    template.put("settings", settings);
+    template.put("mappings", mappings);
+    return template;
+  }
+
+  /**
+   * @return true if the installed template is this version, for the same patterns and settings.
+   */
+  static boolean isCurrent(final JSONObject installed, final List<String> patterns, final String refreshInterval) {
+    if (installed == null || installed.optInt("version", -1) < VERSION) {
+      return false;
+    }
+    JSONArray installedPatterns = installed.optJSONArray("index_patterns");
+    if (installedPatterns == null || installedPatterns.size() != patterns.size()
+            || !installedPatterns.containsAll(patterns)) {
+      return false;
+    }
+    // ELK returns the settings flattened, such as "index": {"refresh_interval": "30s"}
+    JSONObject settings = installed.optJSONObject("settings");
+    JSONObject index = settings != null ? settings.optJSONObject("index") : null;
+    return index != null && refreshInterval.equals(index.optString("refresh_interval"));
+  }
+
+  private static int majorVersion(final JSONObject root) {
+    JSONObject version = root.optJSONObject("version");
+    String number = version != null ? version.optString("number", "") : "";
+    int dot = number.indexOf('.');
+    try {
+      return Integer.parseInt(dot > 0 ? number.substring(0, dot) : number);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static JSONObject nodeProperties() {
+    JSONObject properties = new JSONObject();
+    properties.put("id", keyword());
+    properties.put("name", keyword());
+    properties.put("status", keyword());
+    properties.put("starttime", date());
+    properties.put("duration", field("long"));
+    return properties;
+  }
+
+  private static JSONObject date() {
+    JSONObject date = field("date");
+    date.put("format", "strict_date_time_no_millis||strict_date_time||epoch_millis");
+    return date;
+  }
+
+  private static JSONObject keyword() {
+    JSONObject keyword = field("keyword");
+    keyword.put("ignore_above", 1024);
+    return keyword;
+  }
+
+  private static JSONObject field(final String type) {
+    JSONObject field = new JSONObject();
+    field.put("type", type);
+    return field;
+  }
+}
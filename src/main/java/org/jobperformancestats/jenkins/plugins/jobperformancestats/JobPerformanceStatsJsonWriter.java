@@ -0,0 +1,490 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Streaming JSON encoder writing UTF-8 straight into a reusable byte buffer.
+ *
+ * <p>Documents are written field by field and string values are escaped as required by the JSON
+ * specification, which concatenated JSON did not do for job, stage or step names holding quotes,
+ * backslashes or control characters. No intermediate Strings are built, which keeps the
+ * allocations down, but a document is not written faster than by concatenation.
+ *
+ * <p>Writers are meant to be obtained with {@link #acquire()} and handed back with
+ * {@link #release(JobPerformanceStatsJsonWriter)}, so the same buffers are used again for every
+ * document.
+ *
+ * <p>A writer is not thread-safe.
+ *
+ * @see JobPerformanceStatsSmileWriter
+ */
+public class JobPerformanceStatsJsonWriter {
+
+  private static final Charset UTF_8 = Charset.forName("utf-8");
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int MAX_POOLED = 16;
+  private static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+  private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+  private static final byte[] NULL = "null".getBytes(UTF_8);
+  private static final byte[] TRUE = "true".getBytes(UTF_8);
+  private static final byte[] FALSE = "false".getBytes(UTF_8);
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(UTF_8);
+
+  private static final Map<Encoding, ArrayDeque<JobPerformanceStatsJsonWriter>> pools = new EnumMap<>(Encoding.class);
+
+  static {
+    for (Encoding encoding : Encoding.values()) {
+      pools.put(encoding, new ArrayDeque<JobPerformanceStatsJsonWriter>());
+    }
+  }
+
+  /**
+   * How documents are encoded in ELK requests.
+   */
+  public enum Encoding {
+    /** JSON text, each document ended by a newline. */
+    JSON("application/x-ndjson", (byte) '\n'),
+    /** Smile, the binary form of JSON, each document ended by the 0xFF end marker. */
+    SMILE("application/smile", (byte) 0xff);
+
+    private final String mimeType;
+    private final byte separator;
+
+    Encoding(final String mimeType, final byte separator) {
+      this.mimeType = mimeType;
+      this.separator = separator;
+    }
+
+    /**
+     * @return the content type of a <code>_bulk</code> body.
+     */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * @return the byte ending each document of a <code>_bulk</code> body.
+     */
+    public byte getSeparator() {
+      return separator;
+    }
+  }
+
+  byte[] buffer;
+  int size = 0;
+  // Whether the next field or value of the current object or array needs a leading comma
+  private boolean comma = false;
+
+  public JobPerformanceStatsJsonWriter() {
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * @param capacity - The initial size of the buffer, in bytes.
+   */
+  public JobPerformanceStatsJsonWriter(final int capacity) {
+    this.buffer = new byte[Math.max(16, capacity)];
+  }
+
+  /**
+   * @return an empty JSON writer, reusing a pooled one when available.
+   */
+  public static JobPerformanceStatsJsonWriter acquire() {
+    return acquire(Encoding.JSON);
+  }
+
+  /**
+   * @param encoding - How the documents are encoded.
+   * @return an empty writer, reusing a pooled one when available.
+   */
+  public static JobPerformanceStatsJsonWriter acquire(final Encoding encoding) {
+    ArrayDeque<JobPerformanceStatsJsonWriter> pool = pools.get(encoding);
+    synchronized (pool) {
+      JobPerformanceStatsJsonWriter writer = pool.poll();
+      if (writer != null) {
+        return writer;
+      }
+    }
+    return encoding == Encoding.SMILE ? new JobPerformanceStatsSmileWriter() : new JobPerformanceStatsJsonWriter();
+  }
+
+  /**
+   * Hands a writer back to the pool. The writer must not be used afterwards.
+   *
+   * @param writer - The writer to reuse, may be null.
+   */
+  public static void release(final JobPerformanceStatsJsonWriter writer) {
+    if (writer == null || writer.buffer.length > MAX_POOLED_CAPACITY) {
+      return;
+    }
+    writer.reset();
+    ArrayDeque<JobPerformanceStatsJsonWriter> pool = pools.get(writer.getEncoding());
+    synchronized (pool) {
+      if (pool.size() < MAX_POOLED) {
+        pool.push(writer);
+      }
+    }
+  }
+
+  /**
+   * @return how this writer encodes documents.
+   */
+  public Encoding getEncoding() {
+    return Encoding.JSON;
+  }
+
+  /**
+   * Empties the writer, keeping its buffer.
+   *
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter reset() {
+    size = 0;
+    comma = false;
+    return this;
+  }
+
+  public JobPerformanceStatsJsonWriter beginObject() {
+    separator();
+    writeByte('{');
+    comma = false;
+    return this;
+  }
+
+  public JobPerformanceStatsJsonWriter endObject() {
+    writeByte('}');
+    comma = true;
+    return this;
+  }
+
+  public JobPerformanceStatsJsonWriter beginArray() {
+    separator();
+    writeByte('[');
+    comma = false;
+    return this;
+  }
+
+  public JobPerformanceStatsJsonWriter endArray() {
+    writeByte(']');
+    comma = true;
+    return this;
+  }
+
+  /**
+   * Writes a field name. It must be followed by a value, an object or an array.
+   *
+   * @param name - The field name.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter name(final String name) {
+    separator();
+    writeString(name);
+    writeByte(':');
+    comma = false;
+    return this;
+  }
+
+  /**
+   * @param value - A string value, written as <code>null</code> when null.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter value(final CharSequence value) {
+    separator();
+    if (value == null) {
+      writeBytes(NULL, 0, NULL.length);
+    } else {
+      writeString(value);
+    }
+    comma = true;
+    return this;
+  }
+
+  /**
+   * @param value - A long value.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter value(final long value) {
+    separator();
+    writeLong(value);
+    comma = true;
+    return this;
+  }
+
+  /**
+   * @param value - A double value, written as <code>null</code> when it is not a finite number.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter value(final double value) {
+    separator();
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      writeBytes(NULL, 0, NULL.length);
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      // Keep the fraction, so ELK maps the field as a floating point number
+      writeLong((long) value);
+      writeTwo('.', '0');
+    } else {
+      writeAscii(Double.toString(value));
+    }
+    comma = true;
+    return this;
+  }
+
+  /**
+   * @param value - A boolean value.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter value(final boolean value) {
+    separator();
+    byte[] literal = value ? TRUE : FALSE;
+    writeBytes(literal, 0, literal.length);
+    comma = true;
+    return this;
+  }
+
+  public JobPerformanceStatsJsonWriter field(final String name, final CharSequence value) {
+    return name(name).value(value);
+  }
+
+  public JobPerformanceStatsJsonWriter field(final String name, final long value) {
+    return name(name).value(value);
+  }
+
+  public JobPerformanceStatsJsonWriter field(final String name, final double value) {
+    return name(name).value(value);
+  }
+
+  public JobPerformanceStatsJsonWriter field(final String name, final boolean value) {
+    return name(name).value(value);
+  }
+
+  /**
+   * Appends raw bytes, such as a newline between NDJSON lines or a document written by another
+   * writer. Starts a new top-level value.
+   *
+   * @param bytes - The bytes to append.
+   * @param offset - The offset of the first byte.
+   * @param length - The number of bytes.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter raw(final byte[] bytes, final int offset, final int length) {
+    writeBytes(bytes, offset, length);
+    comma = false;
+    return this;
+  }
+
+  /**
+   * Appends the content of another writer. Starts a new top-level value.
+   *
+   * @param other - The writer to copy.
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter raw(final JobPerformanceStatsJsonWriter other) {
+    return raw(other.buffer, 0, other.size);
+  }
+
+  /**
+   * Appends a newline, which ends a document of a <code>_bulk</code> body, and starts a new
+   * top-level value.
+   *
+   * @return this writer.
+   */
+  public JobPerformanceStatsJsonWriter newline() {
+    writeByte('\n');
+    comma = false;
+    return this;
+  }
+
+  /**
+   * @return the number of bytes written.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the internal buffer, valid from 0 to {@link #size()}. It is reused, so it must not be
+   *         kept once the writer is reset or released.
+   */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * Discards the first bytes of the buffer, moving the remaining ones to its start.
+   *
+   * @param length - The number of bytes to discard.
+   */
+  public void discard(final int length) {
+    System.arraycopy(buffer, length, buffer, 0, size - length);
+    size -= length;
+  }
+
+  /**
+   * @return a copy of the written bytes.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  /**
+   * @param out - The stream the written bytes are copied to.
+   * @throws IOException if the stream cannot be written.
+   */
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(buffer, 0, size);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, size, UTF_8);
+  }
+
+  private void separator() {
+    if (comma) {
+      writeByte(',');
+    }
+  }
+
+  private void writeString(final CharSequence value) {
+    int length = value.length();
+    ensure(length + 2);
+    buffer[size++] = '"';
+    int i = 0;
+    // Plain ASCII, by far the most common, fits in the space ensured above
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\') {
+        break;
+      }
+      buffer[size++] = (byte) c;
+    }
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+        ensure(1);
+        buffer[size++] = (byte) c;
+      } else if (c < 0x80) {
+        writeEscaped(c);
+      } else if (c < 0x800) {
+        ensure(2);
+        buffer[size++] = (byte) (0xc0 | (c >> 6));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        ensure(4);
+        buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // Unpaired surrogates cannot be encoded in UTF-8
+        writeUnicodeEscape(c);
+      } else {
+        ensure(3);
+        buffer[size++] = (byte) (0xe0 | (c >> 12));
+        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    ensure(1);
+    buffer[size++] = '"';
+  }
+
+  private void writeEscaped(final char c) {
+    switch (c) {
+      case '"':
+        writeTwo('\\', '"');
+        break;
+      case '\\':
+        writeTwo('\\', '\\');
+        break;
+      case '\n':
+        writeTwo('\\', 'n');
+        break;
+      case '\r':
+        writeTwo('\\', 'r');
+        break;
+      case '\t':
+        writeTwo('\\', 't');
+        break;
+      case '\b':
+        writeTwo('\\', 'b');
+        break;
+      case '\f':
+        writeTwo('\\', 'f');
+        break;
+      default:
+        writeUnicodeEscape(c);
+        break;
+    }
+  }
+
+  private void writeTwo(final char first, final char second) {
+    ensure(2);
+    buffer[size++] = (byte) first;
+    buffer[size++] = (byte) second;
+  }
+
+  private void writeUnicodeEscape(final char c) {
+    ensure(6);
+    buffer[size++] = '\\';
+    buffer[size++] = 'u';
+    buffer[size++] = HEX[(c >> 12) & 0xf];
+    buffer[size++] = HEX[(c >> 8) & 0xf];
+    buffer[size++] = HEX[(c >> 4) & 0xf];
+    buffer[size++] = HEX[c & 0xf];
+  }
+
+  private void writeLong(final long value) {
+    if (value == Long.MIN_VALUE) {
+      writeBytes(MIN_LONG, 0, MIN_LONG.length);
+      return;
+    }
+    long remaining = value;
+    ensure(20);
+    if (remaining < 0) {
+      buffer[size++] = '-';
+      remaining = -remaining;
+    }
+    int digits = 1;
+    for (long bound = 10; digits < 19 && remaining >= bound; bound *= 10) {
+      digits++;
+    }
+    for (int i = size + digits - 1; i >= size; i--) {
+      buffer[i] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    }
+    size += digits;
+  }
+
+  private void writeAscii(final String value) {
+    int length = value.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      buffer[size++] = (byte) value.charAt(i);
+    }
+  }
+
+  void writeByte(final char c) {
+    ensure(1);
+    buffer[size++] = (byte) c;
+  }
+
+  void writeBytes(final byte[] bytes, final int offset, final int length) {
+    ensure(length);
+    System.arraycopy(bytes, offset, buffer, size, length);
+    size += length;
+  }
+
+  void ensure(final int extra) {
+    if (size + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+  }
+}
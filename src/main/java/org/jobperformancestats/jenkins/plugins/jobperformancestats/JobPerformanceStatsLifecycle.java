@@ -0,0 +1,387 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps one lifecycle document per build up to date as the build is queued, started, checks out
+ * its sources and finishes.
+ *
+ * <p>The document id is derived from the queue id of the build, which is known as soon as it is
+ * queued. Every event is sent as a bulk <code>update</code>: it creates the document when it does
+ * not exist yet, and otherwise adds its fields to it. The <code>state</code> of the document only
+ * moves forward (queued, running, then finished or cancelled), so events applied out of order do
+ * not bring a finished build back to running. Searching for <code>state:running</code> then lists
+ * the running builds without joining events at query time.
+ *
+ * <p>Events are not sent as they happen: queue and run listeners only add them to a bounded
+ * queue, without ever waiting, as the queue listener runs under the lock of the Jenkins queue.
+ * The events queued within {@link #FLUSH_DELAY_MILLIS} are then sent together, from the
+ * {@link JobPerformanceStatsExecutor}, in bulk requests of up to the configured number of
+ * documents. Events arriving while the queue is full are dropped.
+ *
+ * <p>Documents go to the index of the time the build was queued, as resolved by the
+ * {@link JobPerformanceStatsIndexRouter}. Events of a job whose write alias does not exist yet
+ * are queued again once it is created.
+ */
+public class JobPerformanceStatsLifecycle {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsLifecycle.class.getName());
+  static final String TYPE = "lifecycle";
+  private static final int MAX_TRACKED = 10000;
+  static final int MAX_PENDING = 10000;
+  static final long FLUSH_DELAY_MILLIS = 1000;
+  // Applied when the document exists: add the fields, and only move the state forward
+  static final String SCRIPT = "ctx._source.putAll(params.fields); "
+          + "if (ctx._source.phase == null || ctx._source.phase < params.phase) "
+          + "{ ctx._source.phase = params.phase; ctx._source.state = params.state; }";
+
+  /**
+   * The states of a build, in the order they are reached.
+   */
+  public enum State {
+    QUEUED,
+    RUNNING,
+    FINISHED,
+    CANCELLED
+  }
+
+  // Queue id to the time the build was queued, so later events use the same index
+  private static final Map<Long, Long> queuedAt = Collections.synchronizedMap(new LinkedHashMap<Long, Long>() {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+      return size() > MAX_TRACKED;
+    }
+  });
+  private static final BlockingQueue<Event> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+  private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final Runnable FLUSH = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  private JobPerformanceStatsLifecycle() { }
+
+  /**
+   * @return true if lifecycle documents are enabled.
+   */
+  static boolean isEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.isElkLifecycleEnabled() && !JobPerformanceStatsUtilities.isApiKeyNull();
+  }
+
+  /**
+   * Records a build entering the queue.
+   *
+   * @param queueId - The queue id of the build.
+   * @param job - The full name of the job.
+   * @param since - When the build entered the queue, in milliseconds since the epoch.
+   */
+  static void queued(final long queueId, final String job, final long since) {
+    queuedAt.put(queueId, since);
+    submit(new Event(queueId, job, since, State.QUEUED)
+            .field("queuedtime", since));
+  }
+
+  /**
+   * Records a queued build cancelled before it started.
+   */
+  static void cancelled(final long queueId, final String job, final long since) {
+    queuedAt.remove(queueId);
+    submit(new Event(queueId, job, since, State.CANCELLED)
+            .field("endtime", System.currentTimeMillis()));
+  }
+
+  /**
+   * Records a build starting on an executor.
+   *
+   * @param run - The build.
+   * @param envVars - The environment of the build.
+   */
+  static void started(final Run<?, ?> run, final EnvVars envVars) {
+    long queueId = run.getQueueId();
+    long since = queuedAt(queueId, run);
+    Event event = new Event(queueId, run.getParent().getFullName(), since, State.RUNNING)
+            .field("jobid", run.getNumber())
+            .field("jobstarttime", run.getStartTimeInMillis())
+            .field("waiting", Math.max(0, run.getStartTimeInMillis() - since) / JobPerformanceStatsBuildListener.THOUSAND_LONG);
+    if (envVars != null) {
+      event.field("joburl", envVars.get("BUILD_URL")).field("node", envVars.get("NODE_NAME"));
+    }
+    submit(event);
+  }
+
+  /**
+   * Records a build that checked out its sources.
+   */
+  static void checkout(final Run<?, ?> run) {
+    long queueId = run.getQueueId();
+    submit(new Event(queueId, run.getParent().getFullName(), queuedAt(queueId, run), State.RUNNING)
+            .field("jobid", run.getNumber())
+            .field("checkouttime", System.currentTimeMillis()));
+  }
+
+  /**
+   * Records a completed build.
+   *
+   * @param run - The build.
+   * @param result - The result of the build.
+   * @param duration - The duration of the build, in seconds.
+   */
+  static void finished(final Run<?, ?> run, final String result, final double duration) {
+    long queueId = run.getQueueId();
+    long since = queuedAt(queueId, run);
+    queuedAt.remove(queueId);
+    submit(new Event(queueId, run.getParent().getFullName(), since, State.FINISHED)
+            .field("jobid", run.getNumber())
+            .field("jobstatus", result)
+            .field("jobduration", duration)
+            .field("endtime", System.currentTimeMillis()));
+  }
+
+  private static long queuedAt(final long queueId, final Run<?, ?> run) {
+    Long since = queuedAt.get(queueId);
+    // Jenkins restarted since the build was queued
+    return since != null ? since : run.getStartTimeInMillis();
+  }
+
+  /**
+   * Queues an event without waiting, and schedules a flush unless one is already scheduled.
+   *
+   * @param event - The event.
+   * @return false if the event was dropped, as too many events are waiting to be sent.
+   */
+  static boolean submit(final Event event) {
+    if (!pending.offer(event)) {
+      long count = dropped.incrementAndGet();
+      if (count == 1 || count % 1000 == 0) {
+        logger.warning(String.format("%s lifecycle events dropped, as ELK does not keep up", count));
+      }
+      return false;
+    }
+    if (flushScheduled.compareAndSet(false, true)) {
+      try {
+        JobPerformanceStatsExecutor.get().schedule(FLUSH, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        flushScheduled.set(false);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the events waiting to be sent, which are no longer queued.
+   */
+  static List<Event> drain() {
+    List<Event> events = new ArrayList<>();
+    pending.drainTo(events);
+    return events;
+  }
+
+  /**
+   * @return the number of events dropped as the queue was full.
+   */
+  static long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Sends the queued events in as few bulk requests as the configured limits allow.
+   */
+  static void flush() {
+    flushScheduled.set(false);
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor == null) {
+      return;
+    }
+    List<Event> events = drain();
+    if (events.isEmpty()) {
+      return;
+    }
+    JobPerformanceStatsIndexRouter router = JobPerformanceStatsIndexRouter.get();
+    JobPerformanceStatsSpool spool = JobPerformanceStatsSpool.get();
+    JobPerformanceStatsJsonWriter update = JobPerformanceStatsJsonWriter.acquire();
+    JobPerformanceStatsBulkWriter writer = new JobPerformanceStatsBulkWriter(descriptor.getBulkMaxDocs(),
+            descriptor.getBulkMaxBytes(), spool);
+    try {
+      try {
+        for (final Event event : events) {
+          // Spooled events wait in the spool for the write alias, the others are queued again once it exists
+          if (spool == null && router.hold(event.job, new Runnable() {
+            @Override
+            public void run() {
+              submit(event);
+            }
+          })) {
+            continue;
+          }
+          JobPerformanceStatsRateLimiter.acquireBuild();
+          append(writer, update, router.resolve(event.job, event.since), event);
+        }
+      } finally {
+        writer.close();
+      }
+    } catch (Exception e) {
+      logger.warning(String.format("Unable to send %s lifecycle events: %s", events.size(), e.toString()));
+    } finally {
+      JobPerformanceStatsJsonWriter.release(update);
+    }
+  }
+
+  /**
+   * Adds the update of an event to a bulk request.
+   *
+   * @param writer - The bulk request.
+   * @param update - A writer the body of the update is written to, reset first.
+   * @param index - The index of the document.
+   * @param event - The event.
+   * @throws IOException if pending documents of the request fail to be sent.
+   */
+  static void append(final JobPerformanceStatsBulkWriter writer, final JobPerformanceStatsJsonWriter update,
+                     final String index, final Event event) throws IOException {
+    update.reset();
+    update.beginObject()
+            .name("script").beginObject()
+              .field("lang", "painless")
+              .field("source", SCRIPT)
+              .name("params").beginObject()
+                .field("phase", event.state.ordinal())
+                .field("state", event.state.name().toLowerCase())
+                .name("fields").beginObject();
+    event.writeFields(update);
+    update.endObject().endObject().endObject();
+    // The document of an event arriving first: its fields, then the state and the type
+    update.name("upsert").beginObject();
+    event.writeFields(update);
+    update.field("type", TYPE)
+            .field("phase", event.state.ordinal())
+            .field("state", event.state.name().toLowerCase())
+            .endObject().endObject();
+    writer.update(index, JobPerformanceStatsDocumentIds.of(event.job, event.queueId, TYPE, null), update);
+  }
+
+  /**
+   * An event of a build: the fields it adds to the lifecycle document of the build.
+   */
+  static class Event {
+    private final long queueId;
+    private final String job;
+    private final long since;
+    private final State state;
+    // Field name to a String, a Long or a Double value
+    private final Map<String, Object> fields = new LinkedHashMap<>();
+
+    /**
+     * @param queueId - The queue id of the build.
+     * @param job - The full name of the job.
+     * @param since - When the build entered the queue, in milliseconds since the epoch.
+     * @param state - The state the build reached.
+     */
+    Event(final long queueId, final String job, final long since, final State state) {
+      this.queueId = queueId;
+      this.job = job;
+      this.since = since;
+      this.state = state;
+    }
+
+    Event field(final String name, final String value) {
+      fields.put(name, value);
+      return this;
+    }
+
+    Event field(final String name, final long value) {
+      fields.put(name, value);
+      return this;
+    }
+
+    Event field(final String name, final double value) {
+      fields.put(name, value);
+      return this;
+    }
+
+    State getState() {
+      return state;
+    }
+
+    private void writeFields(final JobPerformanceStatsJsonWriter json) {
+      for (Map.Entry<String, Object> field : fields.entrySet()) {
+        Object value = field.getValue();
+        if (value instanceof Double) {
+          json.field(field.getKey(), ((Double) value).doubleValue());
+        } else if (value instanceof Long) {
+          json.field(field.getKey(), ((Long) value).longValue());
+        } else {
+          json.field(field.getKey(), (String) value);
+        }
+      }
+      json.field("jobname", job).field("queueid", queueId);
+    }
+  }
+
+  /**
+   * Sends the queued and cancelled events of builds.
+   */
+  @Extension
+  public static class QueueEvents extends QueueListener {
+    @Override
+    public void onEnterWaiting(final Queue.WaitingItem item) {
+      if (item.task instanceof Job && isEnabled() && JobPerformanceStatsUtilities.isJobTracked(((Job) item.task).getFullName())) {
+        queued(item.getId(), ((Job) item.task).getFullName(), item.getInQueueSince());
+      }
+    }
+
+    @Override
+    public void onLeft(final Queue.LeftItem item) {
+      if (item.isCancelled() && item.task instanceof Job && isEnabled()
+              && JobPerformanceStatsUtilities.isJobTracked(((Job) item.task).getFullName())) {
+        cancelled(item.getId(), ((Job) item.task).getFullName(), item.getInQueueSince());
+      }
+    }
+  }
+
+  /**
+   * Sends the started events of builds. Completed builds are sent by the
+   * {@link JobPerformanceStatsBuildListener}, with the rest of their data.
+   */
+  @Extension
+  public static class RunEvents extends RunListener<Run> {
+    @Override
+    public void onStarted(final Run run, @Nonnull final TaskListener listener) {
+      if (!isEnabled() || !JobPerformanceStatsUtilities.isJobTracked(run.getParent().getFullName())) {
+        return;
+      }
+      EnvVars envVars = null;
+      try {
+        envVars = run.getEnvironment(listener);
+      } catch (Exception e) {
+        logger.fine(String.format("Unable to read the environment of %s: %s", run, e.toString()));
+      }
+      started(run, envVars);
+    }
+  }
+}
@@ -0,0 +1,425 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Collects the gauges, counters and service checks sent to the metric endpoint in memory, and
+ * posts them together once per flush interval.
+ *
+ * <p>Metrics are keyed by name, host and tag set. The points of a gauge are kept (up to
+ * {@link #MAX_POINTS} per series), counters are summed into one <code>count</code> point, and
+ * only the latest status of a service check is kept. Distributions, such as durations, are added
+ * to a {@link JobPerformanceStatsQuantileSketch} per series. On flush all series are posted as one
+ * <code>series</code> payload (split every {@link #MAX_SERIES_PER_POST} series), including the
+ * {@link #QUANTILES} of each distribution as gauges, followed by the sketches of the interval as
+ * one <code>sketches</code> payload and by one post per service check, so the number of requests
+ * follows the flush interval rather than the number of builds. With a flush interval of 0, each batch of metrics is posted as soon as it
+ * is added, see {@link #flushIfImmediate()}.
+ *
+ * <p>The <code>sketches</code> payload is a format of this plugin, posted as JSON to
+ * {@link JobPerformanceStatsBuildListener#SKETCH} for receivers that merge the sketches of
+ * several controllers or intervals into exact quantiles:
+ * <pre>
+ * {"sketches": [{"metric": "jenkins.job.duration.sketch", "timestamp": 1569972600, "interval": 10,
+ *                "host": "controller", "tags": ["job:folder/job"],
+ *                "sketch": {"relative_accuracy": 0.01, "count": 3, "sum": 6.0, "min": 1.0, "max": 3.0,
+ *                           "zero_count": 0, "offset": 0, "bins": [1, 0, ...]}}]}
+ * </pre>
+ * <code>timestamp</code> is the flush time in seconds and <code>interval</code> the flush interval
+ * in seconds. The <code>sketch</code> is described in {@link JobPerformanceStatsQuantileSketch#toJson()}.
+ */
+public class JobPerformanceStatsMetricAggregator {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsMetricAggregator.class.getName());
+  static final int DEFAULT_FLUSH_SECONDS = 10;
+  static final int MAX_POINTS = 100;
+  static final int MAX_SERIES_PER_POST = 1000;
+  // Bounds the memory held while the metric endpoint is unreachable or the tags have a high cardinality
+  static final int MAX_KEYS = 10000;
+  private static final char SEPARATOR = '\u0000';
+  static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.99};
+
+  private static final JobPerformanceStatsMetricAggregator instance = new JobPerformanceStatsMetricAggregator();
+
+  /**
+   * Posts a flushed payload to the metric endpoint.
+   */
+  interface Poster {
+    Poster HTTP = new Poster() {
+      @Override
+      public void post(final JSONObject payload, final String type) {
+        JobPerformanceStatsRateLimiter.acquireBuild();
+        try {
+          JobPerformanceStatsHttpRequests.post(payload, type);
+        } catch (Exception e) {
+          logger.severe(e.toString());
+        }
+      }
+    };
+
+    /**
+     * @param payload - The payload.
+     * @param type - The URL subpath of the payload, such as {@link JobPerformanceStatsBuildListener#METRIC}.
+     */
+    void post(JSONObject payload, String type);
+  }
+
+  private final Poster poster;
+
+  private Map<String, Series> series = new LinkedHashMap<>();
+  private Map<String, JSONObject> checks = new LinkedHashMap<>();
+  private Map<String, Distribution> distributions = new LinkedHashMap<>();
+  private boolean scheduled = false;
+  private final AtomicLong dropped = new AtomicLong();
+
+  JobPerformanceStatsMetricAggregator() {
+    this(Poster.HTTP);
+  }
+
+  /**
+   * @param poster - Posts the flushed payloads.
+   */
+  JobPerformanceStatsMetricAggregator(final Poster poster) {
+    this.poster = poster;
+  }
+
+  public static JobPerformanceStatsMetricAggregator get() {
+    return instance;
+  }
+
+  /**
+   * Adds a point to a gauge.
+   *
+   * @param metric - The name of the metric.
+   * @param value - The value of the metric.
+   * @param hostname - The host the metric was measured on.
+   * @param tags - The tags of the metric.
+   */
+  public void gauge(final String metric, final Object value, final String hostname, final JSONArray tags) {
+    long now = System.currentTimeMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG;
+    synchronized (this) {
+      Series gauge = seriesOf("gauge", metric, hostname, tags);
+      if (gauge != null) {
+        if (gauge.points.size() >= MAX_POINTS) {
+          gauge.points.remove(0);
+        }
+        JSONArray point = new JSONArray();
+        point.add(now);
+        point.add(value);
+        gauge.points.add(point);
+      }
+    }
+    added();
+  }
+
+  /**
+   * Increments a counter.
+   *
+   * @param metric - The name of the metric.
+   * @param delta - The amount added to the counter.
+   * @param hostname - The host the metric was measured on.
+   * @param tags - The tags of the metric.
+   */
+  public void count(final String metric, final long delta, final String hostname, final JSONArray tags) {
+    synchronized (this) {
+      Series counter = seriesOf("count", metric, hostname, tags);
+      if (counter != null) {
+        counter.count += delta;
+      }
+    }
+    added();
+  }
+
+  /**
+   * Adds a value to the sketch of a distribution.
+   *
+   * @param metric - The name of the metric.
+   * @param value - The value of the metric.
+   * @param hostname - The host the metric was measured on.
+   * @param tags - The tags of the metric.
+   */
+  public void distribution(final String metric, final double value, final String hostname, final JSONArray tags) {
+    String key = key("distribution", metric, hostname, tags);
+    synchronized (this) {
+      Distribution distribution = distributions.get(key);
+      if (distribution == null) {
+        if (size() >= MAX_KEYS) {
+          drop(metric);
+        } else {
+          distribution = new Distribution(metric, hostname, tags);
+          distributions.put(key, distribution);
+        }
+      }
+      if (distribution != null) {
+        distribution.sketch.add(value);
+      }
+    }
+    added();
+  }
+
+  /**
+   * Keeps the latest status of a service check.
+   *
+   * @param payload - The service check, with its name, host, status, timestamp and tags.
+   */
+  public void serviceCheck(final JSONObject payload) {
+    String key = key("check", payload.optString("check"), payload.optString("host_name"), payload.optJSONArray("tags"));
+    synchronized (this) {
+      if (!checks.containsKey(key) && size() >= MAX_KEYS) {
+        drop(payload.optString("check"));
+      } else {
+        checks.put(key, payload);
+      }
+    }
+    added();
+  }
+
+  private Series seriesOf(final String type, final String metric, final String hostname, final JSONArray tags) {
+    String key = key(type, metric, hostname, tags);
+    Series existing = series.get(key);
+    if (existing == null) {
+      if (size() >= MAX_KEYS) {
+        drop(metric);
+        return null;
+      }
+      existing = new Series(type, metric, hostname, tags);
+      series.put(key, existing);
+    }
+    return existing;
+  }
+
+  /**
+   * @return the key of a metric, the same for any order of its tags.
+   */
+  static String key(final String type, final String metric, final String hostname, final JSONArray tags) {
+    String[] sorted = new String[tags != null ? tags.size() : 0];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = tags.getString(i);
+    }
+    Arrays.sort(sorted);
+    StringBuilder key = new StringBuilder(type).append(SEPARATOR).append(metric).append(SEPARATOR).append(hostname);
+    for (String tag : sorted) {
+      key.append(SEPARATOR).append(tag);
+    }
+    return key.toString();
+  }
+
+  private void drop(final String metric) {
+    long count = dropped.incrementAndGet();
+    if (count == 1 || count % 1000 == 0) {
+      logger.warning(String.format("Dropped metric %s as %s metrics are waiting to be flushed (%s dropped so far)",
+              metric, MAX_KEYS, count));
+    }
+  }
+
+  private void added() {
+    long interval = flushMillis();
+    if (interval <= 0) {
+      // Posted by flushIfImmediate() once the caller added all its metrics
+      return;
+    }
+    synchronized (this) {
+      if (scheduled) {
+        return;
+      }
+      scheduled = true;
+    }
+    // The flush is only scheduled while metrics are waiting, an idle controller has nothing to post
+    try {
+      JobPerformanceStatsExecutor.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (JobPerformanceStatsMetricAggregator.this) {
+            scheduled = false;
+          }
+          flush();
+        }
+      }, interval, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Jenkins is stopping, the metrics are posted by the flush at shutdown
+      synchronized (this) {
+        scheduled = false;
+      }
+    }
+  }
+
+  private static long flushMillis() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null ? TimeUnit.SECONDS.toMillis(descriptor.getMetricFlushSeconds()) : 0;
+  }
+
+  /**
+   * Posts the metrics collected so far when the flush interval is 0, so the metrics added
+   * together are still posted together.
+   */
+  public void flushIfImmediate() {
+    if (flushMillis() <= 0) {
+      flush();
+    }
+  }
+
+  /**
+   * Posts the metrics collected so far. Metrics that fail to be posted are dropped, like the
+   * metric endpoint drops late points.
+   */
+  public void flush() {
+    Map<String, Series> flushedSeries;
+    Map<String, JSONObject> flushedChecks;
+    Map<String, Distribution> flushedDistributions;
+    synchronized (this) {
+      if (series.isEmpty() && checks.isEmpty() && distributions.isEmpty()) {
+        return;
+      }
+      flushedSeries = series;
+      flushedChecks = checks;
+      flushedDistributions = distributions;
+      series = new LinkedHashMap<>();
+      checks = new LinkedHashMap<>();
+      distributions = new LinkedHashMap<>();
+    }
+
+    long now = System.currentTimeMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG;
+    long interval = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(flushMillis()));
+    List<JSONObject> payloads = new ArrayList<>();
+    for (Series metric : flushedSeries.values()) {
+      payloads.add(metric.toJson(now, interval));
+    }
+    List<JSONObject> sketches = new ArrayList<>();
+    for (Distribution distribution : flushedDistributions.values()) {
+      payloads.addAll(distribution.quantiles(now));
+      sketches.add(distribution.toJson(now, interval));
+    }
+    for (int from = 0; from < payloads.size(); from += MAX_SERIES_PER_POST) {
+      JSONArray chunk = new JSONArray();
+      chunk.addAll(payloads.subList(from, Math.min(payloads.size(), from + MAX_SERIES_PER_POST)));
+      JSONObject payload = new JSONObject();
+      payload.put("series", chunk);
+      logger.fine(String.format("Resulting payload: %s", payload.toString()));
+      poster.post(payload, JobPerformanceStatsBuildListener.METRIC);
+    }
+    for (int from = 0; from < sketches.size(); from += MAX_SERIES_PER_POST) {
+      JSONArray chunk = new JSONArray();
+      chunk.addAll(sketches.subList(from, Math.min(sketches.size(), from + MAX_SERIES_PER_POST)));
+      JSONObject payload = new JSONObject();
+      payload.put("sketches", chunk);
+      poster.post(payload, JobPerformanceStatsBuildListener.SKETCH);
+    }
+    for (JSONObject check : flushedChecks.values()) {
+      poster.post(check, JobPerformanceStatsBuildListener.SERVICECHECK);
+    }
+  }
+
+  /**
+   * @return the number of metrics dropped because too many were waiting to be flushed.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of series, distributions and service checks waiting to be flushed.
+   */
+  public synchronized int size() {
+    return series.size() + checks.size() + distributions.size();
+  }
+
+  private static class Series {
+    final String type;
+    final String metric;
+    final String hostname;
+    final JSONArray tags;
+    final List<JSONArray> points = new ArrayList<>();
+    long count = 0;
+
+    Series(final String type, final String metric, final String hostname, final JSONArray tags) {
+      this.type = type;
+      this.metric = metric;
+      this.hostname = hostname;
+      this.tags = tags != null ? tags : new JSONArray();
+    }
+
+    JSONObject toJson(final long now, final long interval) {
+      JSONArray jsonPoints = new JSONArray();
+      if ("count".equals(type)) {
+        JSONArray point = new JSONArray();
+        point.add(now);
+        point.add(count);
+        jsonPoints.add(point);
+      } else {
+        jsonPoints.addAll(points);
+      }
+      JSONObject json = new JSONObject();
+      json.put("metric", metric);
+      json.put("points", jsonPoints);
+      json.put("type", type);
+      if ("count".equals(type)) {
+        json.put("interval", interval);
+      }
+      json.put("host", hostname);
+      json.put("tags", tags);
+      return json;
+    }
+  }
+
+  private static class Distribution {
+    final String metric;
+    final String hostname;
+    final JSONArray tags;
+    final JobPerformanceStatsQuantileSketch sketch = new JobPerformanceStatsQuantileSketch();
+
+    Distribution(final String metric, final String hostname, final JSONArray tags) {
+      this.metric = metric;
+      this.hostname = hostname;
+      this.tags = tags != null ? tags : new JSONArray();
+    }
+
+    /**
+     * @return one gauge per quantile, named after the metric and the percentile, and the maximum.
+     */
+    List<JSONObject> quantiles(final long now) {
+      List<JSONObject> gauges = new ArrayList<>();
+      for (double quantile : QUANTILES) {
+        gauges.add(gauge(metric + ".p" + Math.round(quantile * 100), sketch.getQuantile(quantile), now));
+      }
+      gauges.add(gauge(metric + ".max", sketch.getMax(), now));
+      return gauges;
+    }
+
+    private JSONObject gauge(final String name, final double value, final long now) {
+      JSONArray point = new JSONArray();
+      point.add(now);
+      point.add(value);
+      JSONArray points = new JSONArray();
+      points.add(point);
+      JSONObject json = new JSONObject();
+      json.put("metric", name);
+      json.put("points", points);
+      json.put("type", "gauge");
+      json.put("host", hostname);
+      json.put("tags", tags);
+      return json;
+    }
+
+    JSONObject toJson(final long now, final long interval) {
+      JSONObject json = new JSONObject();
+      json.put("metric", metric);
+      json.put("timestamp", now);
+      json.put("interval", interval);
+      json.put("host", hostname);
+      json.put("tags", tags);
+      json.put("sketch", sketch.toJson());
+      return json;
+    }
+  }
+}
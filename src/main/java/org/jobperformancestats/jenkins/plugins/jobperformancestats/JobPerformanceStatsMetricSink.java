@@ -0,0 +1,127 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Built-in sink posting gauges and service checks to the configured metric endpoint.
+ *
+ * <p>Metrics are handed to the {@link JobPerformanceStatsMetricAggregator}, which posts them
+ * once per flush interval. When duration sketches are enabled, the durations of jobs, stages and
+ * steps are also added to sketches tagged with the job, and the stage or step name only, so the
+ * number of sketches stays bounded by the number of jobs and stages rather than builds.
+ */
+@Extension
+public class JobPerformanceStatsMetricSink extends JobPerformanceStatsSink {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsMetricSink.class.getName());
+  static final int MAX_BATCH_SIZE = 100;
+
+  @Override
+  public String getName() {
+    return "metric endpoint";
+  }
+
+  @Override
+  public boolean accepts(final JobPerformanceStatsRecord.Type type) {
+    return type == JobPerformanceStatsRecord.Type.BUILD_COMPLETED || type == JobPerformanceStatsRecord.Type.GAUGE;
+  }
+
+  @Override
+  public int getMaxBatchSize() {
+    return MAX_BATCH_SIZE;
+  }
+
+  @Override
+  public void send(final List<JobPerformanceStatsRecord> records) {
+    JobPerformanceStatsMetricAggregator aggregator = JobPerformanceStatsMetricAggregator.get();
+    for (JobPerformanceStatsRecord record : records) {
+      if (record.getType() == JobPerformanceStatsRecord.Type.GAUGE) {
+        logger.fine(String.format("Sending metric '%s' with value %s", record.getMetric(), record.getValue()));
+        aggregator.gauge(record.getMetric(), record.getValue(), record.getHostname(), new JSONArray());
+        continue;
+      }
+      JSONObject builddata = record.getBuildData();
+      JSONArray tags = record.assembleTags();
+      aggregator.gauge("jenkins.job.duration", builddata.get("duration"), record.getHostname(), tags);
+      if (isDurationSketchesEnabled()) {
+        addDurations(aggregator, record);
+      }
+      serviceCheck("jenkins.job.status", "SUCCESS".equals(builddata.get("result"))
+              ? JobPerformanceStatsBuildListener.OK : JobPerformanceStatsBuildListener.CRITICAL, record);
+    }
+    aggregator.flushIfImmediate();
+  }
+
+  private static boolean isDurationSketchesEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.isDurationSketchesEnabled();
+  }
+
+  /**
+   * Adds the duration of the build, and of its stages and steps, in seconds to their sketches.
+   */
+  private void addDurations(final JobPerformanceStatsMetricAggregator aggregator, final JobPerformanceStatsRecord record) {
+    JSONObject builddata = record.getBuildData();
+    String job = builddata.optString("jobfullname", builddata.optString("job"));
+    JSONArray jobTags = new JSONArray();
+    jobTags.add("job:" + job);
+    aggregator.distribution("jenkins.job.duration.sketch", builddata.optDouble("duration", 0), record.getHostname(), jobTags);
+
+    addDurations(aggregator, "jenkins.stage.duration.sketch", "stage:", record.getEvent().createStagePayload(), jobTags, record);
+    addDurations(aggregator, "jenkins.step.duration.sketch", "step:", record.getEvent().createStepPayload(), jobTags, record);
+  }
+
+  private void addDurations(final JobPerformanceStatsMetricAggregator aggregator, final String metric, final String tag,
+                            final JSONArray nodes, final JSONArray jobTags, final JobPerformanceStatsRecord record) {
+    if (nodes == null) {
+      return;
+    }
+    for (Object node : nodes) {
+      JSONObject json = (JSONObject) node;
+      JSONArray tags = new JSONArray();
+      tags.addAll(jobTags);
+      tags.add(tag + json.optString("name"));
+      aggregator.distribution(metric, json.optLong("duration") / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE,
+              record.getHostname(), tags);
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    JobPerformanceStatsMetricAggregator.get().flush();
+  }
+
+  /**
+   * Adds a service check for the metric endpoint, including the check name, and status.
+   *
+   * @param checkName - A String with the name of the service check to record.
+   * @param status - An Integer with the status code to record for this service check.
+   * @param record - The completed build.
+   */
+  private void serviceCheck(final String checkName, final Integer status, final JobPerformanceStatsRecord record) {
+    logger.fine(String.format("Sending service check '%s' with status %s", checkName, status));
+
+    // Build payload
+    JSONObject payload = new JSONObject();
+    payload.put("check", checkName);
+    payload.put("host_name", record.getHostname());
+    payload.put("timestamp",
+                System.currentTimeMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG); // current time, s
+    payload.put("status", status);
+
+    // Remove result tag, so we don't create multiple service check groups. The build data is
+    // shared with the other sinks, so work on a copy.
+    JSONObject builddata = JSONObject.fromObject(record.getBuildData());
+    builddata.remove("result");
+    payload.put("tags", JobPerformanceStatsUtilities.assembleTags(builddata, new HashMap<>(record.getTags())));
+
+    JobPerformanceStatsMetricAggregator.get().serviceCheck(payload);
+  }
+}
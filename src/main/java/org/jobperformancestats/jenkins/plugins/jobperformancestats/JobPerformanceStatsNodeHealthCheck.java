@@ -0,0 +1,68 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * This class registers an {@link AsyncPeriodicWork} with Jenkins to probe the ELK nodes of the
+ * {@link JobPerformanceStatsNodePool}, marking the ones that do not answer as dead and bringing
+ * back the ones that recovered. It also discovers new nodes when discovery is enabled.
+ */
+@Extension
+public class JobPerformanceStatsNodeHealthCheck extends AsyncPeriodicWork {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsNodeHealthCheck.class.getName());
+  private static final long RECURRENCE_PERIOD = TimeUnit.SECONDS.toMillis(30);
+
+  public JobPerformanceStatsNodeHealthCheck() {
+    super("JobPerformanceStats ELK node health check");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return RECURRENCE_PERIOD;
+  }
+
+  @Override
+  protected void execute(final TaskListener listener) {
+    // The pool is created by the first request, there is nothing to probe before
+    JobPerformanceStatsNodePool pool = JobPerformanceStatsNodePool.peek();
+    if (pool == null) {
+      return;
+    }
+    check(pool);
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor != null && descriptor.isElkNodeDiscovery()) {
+      int added = pool.discover();
+      logger.fine(String.format("Discovered %s new ELK nodes", added));
+    }
+  }
+
+  /**
+   * Probes every node of a pool once. Probes are neither retried nor counted by the circuit
+   * breaker of the node: a probe is how a dead node is found to be back.
+   *
+   * @param pool - The nodes to probe.
+   */
+  static void check(final JobPerformanceStatsNodePool pool) {
+    for (JobPerformanceStatsNodePool.Node node : pool.getNodes()) {
+      try {
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.executeOnce(new HttpGet(node.getUrl().toString()));
+        if (response.isSuccess()) {
+          node.markAlive();
+        } else {
+          node.markDead(new JobPerformanceStatsHttpRequests.StatusException(response.getStatus(),
+                  String.format("Health check answered %s", response.getStatus())));
+        }
+      } catch (Exception e) {
+        node.markDead(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,471 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * The Elasticsearch nodes requests are spread across.
+ *
+ * <p>Nodes come from the <code>elkNodes</code> global setting, or from the <code>hostname</code>
+ * one when it is empty, and optionally from the <code>_nodes/http</code> API of the cluster.
+ * Each request goes to a live node picked round-robin or by the lowest number of requests in
+ * flight. A node that fails a request is marked dead and the request is sent to the next one at
+ * once; {@link JobPerformanceStatsNodeHealthCheck} brings dead nodes back once they answer again.
+ * Each node gets a single attempt, the retries with backoff go around the whole pool, see
+ * {@link #executeWithRetries(Request)}.
+ */
+public class JobPerformanceStatsNodePool {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsNodePool.class.getName());
+  static final int DEFAULT_PORT = 9200;
+  static final String DEFAULT_SCHEME = "http";
+
+  private static JobPerformanceStatsNodePool instance;
+
+  /**
+   * How a node is picked for a request.
+   */
+  public enum Selection {
+    /** Each live node in turn. */
+    ROUND_ROBIN,
+    /** The live node with the fewest requests in flight. */
+    LEAST_IN_FLIGHT
+  }
+
+  /**
+   * A request sent to a node.
+   *
+   * @param <T> - The result of the request.
+   */
+  public interface Request<T> {
+    /**
+     * @param node - The node to send the request to.
+     * @return the result of the request.
+     * @throws IOException if the request fails.
+     */
+    T send(Node node) throws IOException;
+  }
+
+  /**
+   * A request sent to a node without waiting for its response.
+   *
+   * @param <T> - The result of the request.
+   */
+  public interface AsyncRequest<T> {
+    /**
+     * @param node - The node to send the request to.
+     * @param callback - Told about the result of the request, or its failure.
+     */
+    void send(Node node, JobPerformanceStatsAsyncHttpClient.Callback<T> callback);
+  }
+
+  private final List<Node> nodes = new CopyOnWriteArrayList<>();
+  private final Selection selection;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param nodes - The node addresses, see {@link #parse(String)}.
+   * @param selection - How a node is picked for a request.
+   */
+  public JobPerformanceStatsNodePool(final List<URL> nodes, final Selection selection) {
+    for (URL url : nodes) {
+      this.nodes.add(new Node(url));
+    }
+    this.selection = selection != null ? selection : Selection.ROUND_ROBIN;
+  }
+
+  /**
+   * @return the shared pool, created from the global configuration on first use.
+   */
+  public static synchronized JobPerformanceStatsNodePool get() {
+    if (instance == null) {
+      JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+      String addresses = descriptor.getElkNodes();
+      if (addresses == null || addresses.trim().isEmpty()) {
+        addresses = descriptor.getHostname();
+      }
+      instance = new JobPerformanceStatsNodePool(parse(addresses), parseSelection(descriptor.getElkNodeSelection()));
+    }
+    return instance;
+  }
+
+  /**
+   * @return the shared pool, or null if no request created it yet.
+   */
+  public static synchronized JobPerformanceStatsNodePool peek() {
+    return instance;
+  }
+
+  /**
+   * Rebuilds the shared pool after the global configuration changed.
+   */
+  public static synchronized void reconfigure() {
+    instance = null;
+  }
+
+  /**
+   * Parses node addresses separated by commas, spaces or new lines. Each one is a host name,
+   * <code>host:port</code> or <code>scheme://host:port</code>; the port defaults to 9200 and the
+   * scheme to http.
+   *
+   * @param addresses - The node addresses.
+   * @return the base URL of each node.
+   */
+  static List<URL> parse(final String addresses) {
+    List<URL> urls = new ArrayList<>();
+    if (addresses == null) {
+      return urls;
+    }
+    for (String address : addresses.trim().split("[,\\s]+")) {
+      if (address.isEmpty()) {
+        continue;
+      }
+      try {
+        urls.add(toURL(address));
+      } catch (MalformedURLException e) {
+        logger.warning(String.format("Ignoring invalid ELK node '%s': %s", address, e.getMessage()));
+      }
+    }
+    return urls;
+  }
+
+  private static URL toURL(final String address) throws MalformedURLException {
+    String spec = address.contains("://") ? address : DEFAULT_SCHEME + "://" + address;
+    URL url = new URL(spec);
+    if (url.getHost().isEmpty()) {
+      throw new MalformedURLException("No host");
+    }
+    return new URL(url.getProtocol(), url.getHost(), url.getPort() != -1 ? url.getPort() : DEFAULT_PORT, "/");
+  }
+
+  static Selection parseSelection(final String selection) {
+    if (selection == null) {
+      return Selection.ROUND_ROBIN;
+    }
+    try {
+      return Selection.valueOf(selection);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown node selection '%s', using %s", selection, Selection.ROUND_ROBIN));
+      return Selection.ROUND_ROBIN;
+    }
+  }
+
+  /**
+   * Sends a request to a live node, and to the next ones if it fails, marking every node that
+   * failed as dead.
+   *
+   * @param request - The request to send.
+   * @param <T> - The result of the request.
+   * @return the result of the first node that answered.
+   * @throws IOException the failure of the last node tried.
+   */
+  public <T> T execute(final Request<T> request) throws IOException {
+    List<Node> candidates = order();
+    if (candidates.isEmpty()) {
+      throw new IOException("No ELK node configured");
+    }
+    IOException failure = null;
+    for (Node node : candidates) {
+      node.inFlight.incrementAndGet();
+      try {
+        T result = request.send(node);
+        node.markAlive();
+        return result;
+      } catch (IOException e) {
+        if (!isNodeFailure(e)) {
+          throw e;
+        }
+        node.markDead(e);
+        failure = e;
+      } finally {
+        node.inFlight.decrementAndGet();
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * Same as {@link #execute(Request)}, going through the nodes again after a backoff while they
+   * all failed or throttled the request, up to the configured number of attempts. The calling
+   * thread waits during the backoff.
+   *
+   * @param request - The request to send, a single attempt per node.
+   * @param <T> - The result of the request.
+   * @return the result of the first node that answered.
+   * @throws IOException the failure of the last node tried in the last attempt.
+   */
+  public <T> T executeWithRetries(final Request<T> request) throws IOException {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    int attempts = JobPerformanceStatsHttpClient.attempts(descriptor);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return execute(request);
+      } catch (IOException e) {
+        if (attempt >= attempts || !isRetryable(e)) {
+          throw e;
+        }
+        long delay = JobPerformanceStatsHttpClient.backoff(attempt, descriptor);
+        logger.fine(String.format("No ELK node accepted the request, retrying in %s ms: %s", delay, e.toString()));
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to retry: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param e - Why a request failed on every node.
+   * @return true if the request may pass later: the nodes could not be reached, or answered a
+   *         status worth retrying. Open circuit breakers fail requests until they probe again.
+   */
+  static boolean isRetryable(final IOException e) {
+    if (e instanceof JobPerformanceStatsHttpRequests.StatusException) {
+      return JobPerformanceStatsHttpClient.isRetryable(((JobPerformanceStatsHttpRequests.StatusException) e).getStatus());
+    }
+    return !(e instanceof JobPerformanceStatsCircuitBreaker.OpenException)
+            && !(e instanceof JobPerformanceStatsAsyncHttpClient.SaturatedException);
+  }
+
+  /**
+   * Same as {@link #execute(Request)} for a request sent without waiting for its response. The
+   * next node is tried from the {@link JobPerformanceStatsExecutor}, as the callback of the failed
+   * attempt runs on an I/O dispatcher thread.
+   *
+   * @param request - The request to send.
+   * @param callback - Told about the result of the first node that answered, or the failure of the last one.
+   * @param <T> - The result of the request.
+   */
+  public <T> void executeAsync(final AsyncRequest<T> request, final JobPerformanceStatsAsyncHttpClient.Callback<T> callback) {
+    List<Node> candidates = order();
+    if (candidates.isEmpty()) {
+      callback.failed(new IOException("No ELK node configured"));
+      return;
+    }
+    executeAsync(request, callback, candidates, 0);
+  }
+
+  private <T> void executeAsync(final AsyncRequest<T> request, final JobPerformanceStatsAsyncHttpClient.Callback<T> callback,
+                                final List<Node> candidates, final int index) {
+    final Node node = candidates.get(index);
+    node.inFlight.incrementAndGet();
+    request.send(node, new JobPerformanceStatsAsyncHttpClient.Callback<T>() {
+      @Override
+      public void completed(final T result) {
+        node.inFlight.decrementAndGet();
+        node.markAlive();
+        callback.completed(result);
+      }
+
+      @Override
+      public void failed(final Exception e) {
+        node.inFlight.decrementAndGet();
+        if (!isNodeFailure(e)) {
+          callback.failed(e);
+          return;
+        }
+        node.markDead(e);
+        if (index + 1 >= candidates.size()) {
+          callback.failed(e);
+          return;
+        }
+        try {
+          JobPerformanceStatsExecutor.get().submit(new JobPerformanceStatsExecutor.Droppable() {
+            @Override
+            public void run() {
+              executeAsync(request, callback, candidates, index + 1);
+            }
+
+            @Override
+            public void dropped() {
+              callback.failed(e);
+            }
+          });
+        } catch (RejectedExecutionException rejected) {
+          callback.failed(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * @param e - Why a request failed.
+   * @return false if the failure says nothing about the node: it answered and refused or throttled
+   *         the request, or the request was not sent as too many requests were in flight.
+   */
+  static boolean isNodeFailure(final Exception e) {
+    if (e instanceof JobPerformanceStatsHttpRequests.StatusException) {
+      return ((JobPerformanceStatsHttpRequests.StatusException) e).getStatus() >= 500;
+    }
+    return !(e instanceof JobPerformanceStatsAsyncHttpClient.SaturatedException);
+  }
+
+  /**
+   * @return the live nodes in the order they should be tried, followed by the dead ones.
+   */
+  List<Node> order() {
+    List<Node> alive = new ArrayList<>();
+    List<Node> dead = new ArrayList<>();
+    for (Node node : nodes) {
+      (node.isAlive() ? alive : dead).add(node);
+    }
+    if (!alive.isEmpty()) {
+      Collections.rotate(alive, -((next.getAndIncrement() & Integer.MAX_VALUE) % alive.size()));
+      if (selection == Selection.LEAST_IN_FLIGHT) {
+        // Stable sort, so ties keep the round-robin order
+        Collections.sort(alive, new Comparator<Node>() {
+          @Override
+          public int compare(final Node a, final Node b) {
+            return Integer.compare(a.getInFlight(), b.getInFlight());
+          }
+        });
+      }
+    }
+    alive.addAll(dead);
+    return alive;
+  }
+
+  /**
+   * Adds the HTTP addresses the cluster publishes through <code>_nodes/http</code>, asking the
+   * first live node.
+   *
+   * @return the number of nodes added.
+   */
+  public int discover() {
+    for (Node seed : nodes) {
+      if (!seed.isAlive()) {
+        continue;
+      }
+      try {
+        // A seed that cannot be reached gives way to the next one at once
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.executeAttempt(
+                new HttpGet(seed.resolve("_nodes/http").toString()));
+        if (!response.isSuccess()) {
+          continue;
+        }
+        JSONObject cluster = ((JSONObject) JSONSerializer.toJSON(response.getBody())).optJSONObject("nodes");
+        int added = 0;
+        if (cluster == null) {
+          return added;
+        }
+        for (Object id : cluster.keySet()) {
+          JSONObject http = cluster.getJSONObject((String) id).optJSONObject("http");
+          String address = http != null ? http.optString("publish_address", null) : null;
+          if (address == null) {
+            continue;
+          }
+          // Either "ip:port" or "hostname/ip:port"
+          address = address.substring(address.indexOf('/') + 1);
+          URL url = toURL(seed.getUrl().getProtocol() + "://" + address);
+          if (add(url)) {
+            logger.info(String.format("Discovered ELK node %s", url));
+            added++;
+          }
+        }
+        return added;
+      } catch (Exception e) {
+        logger.fine(String.format("Unable to discover ELK nodes through %s: %s", seed, e.toString()));
+      }
+    }
+    return 0;
+  }
+
+  private synchronized boolean add(final URL url) {
+    for (Node node : nodes) {
+      if (node.getUrl().equals(url)) {
+        return false;
+      }
+    }
+    nodes.add(new Node(url));
+    return true;
+  }
+
+  /**
+   * @return every known node.
+   */
+  public List<Node> getNodes() {
+    return new ArrayList<>(nodes);
+  }
+
+  /**
+   * An Elasticsearch node.
+   */
+  public static class Node {
+    private final URL url;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean alive = true;
+
+    Node(final URL url) {
+      this.url = url;
+    }
+
+    /**
+     * @param path - A path relative to the root of the node, such as <code>_bulk</code>.
+     * @return the URL of the path on this node.
+     * @throws MalformedURLException if the path does not form a valid URL.
+     */
+    public URL resolve(final String path) throws MalformedURLException {
+      return new URL(url, path);
+    }
+
+    void markDead(final Exception cause) {
+      failures.incrementAndGet();
+      if (alive) {
+        logger.warning(String.format("Marking ELK node %s dead: %s", url, cause.toString()));
+        alive = false;
+      }
+    }
+
+    void markAlive() {
+      if (!alive) {
+        logger.info(String.format("ELK node %s is back", url));
+        alive = true;
+      }
+    }
+
+    public URL getUrl() {
+      return url;
+    }
+
+    public boolean isAlive() {
+      return alive;
+    }
+
+    /**
+     * @return the number of requests currently sent to the node.
+     */
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    /**
+     * @return the number of requests that failed on the node.
+     */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    @Override
+    public String toString() {
+      return url.toString();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.RootAction;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the collectors of the {@link JobPerformanceStatsPrometheusSink} at
+ * <code>JENKINS_URL/prometheus</code>, in the Prometheus text exposition format (version 0.0.4),
+ * for Prometheus to scrape at its own pace.
+ *
+ * <p>The endpoint answers 404 unless Prometheus is enabled in the global configuration. Like any
+ * other page, it needs the overall read permission when Jenkins is secured.
+ */
+@Extension
+public class JobPerformanceStatsPrometheusAction implements RootAction {
+
+  static final String URL_NAME = "prometheus";
+  static final String CONTENT_TYPE = TextFormat.CONTENT_TYPE_004;
+
+  @Override
+  public String getIconFileName() {
+    // Not shown in the side panel
+    return null;
+  }
+
+  @Override
+  public String getDisplayName() {
+    return null;
+  }
+
+  @Override
+  public String getUrlName() {
+    return URL_NAME;
+  }
+
+  /**
+   * Writes the current value of every collector.
+   *
+   * @param req - The scrape request.
+   * @param rsp - The response the metrics are written to.
+   * @throws IOException if the response cannot be written.
+   */
+  public void doIndex(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor == null || !descriptor.isPrometheusEnabled()) {
+      rsp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    Queue queue = Queue.getInstance();
+    if (queue != null) {
+      JobPerformanceStatsPrometheusSink.QUEUE_SIZE.set(queue.getApproximateItemsQuickly().size());
+    }
+    rsp.setStatus(HttpServletResponse.SC_OK);
+    rsp.setContentType(CONTENT_TYPE);
+    Writer writer = new OutputStreamWriter(rsp.getOutputStream(), "UTF-8");
+    try {
+      TextFormat.write004(writer, JobPerformanceStatsPrometheusSink.REGISTRY.metricFamilySamples());
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Built-in sink recording builds into Prometheus collectors, scraped through the
+ * {@link JobPerformanceStatsPrometheusAction} or pushed by the {@link JobPerformanceStatsPushgateway}.
+ *
+ * <p>The collectors live in a registry of their own rather than the default one, so other
+ * plugins using the Prometheus client do not add their metrics to the scrape, nor the other way
+ * round. Builds only update the collectors: Prometheus reads the current values when it scrapes,
+ * and the Pushgateway gets them at the push interval.
+ *
+ * <p>Every label value is a new series, so the labels are bounded. Builds, stages and queue waits
+ * are labeled by job, one series set per job. Steps, of which a build runs many, are only labeled
+ * by step name, at most {@link #MAX_STEP_NAMES} of them: steps named otherwise are recorded as
+ * {@link #OTHER_STEP}.
+ */
+@Extension
+public class JobPerformanceStatsPrometheusSink extends JobPerformanceStatsSink {
+
+  static final int MAX_BATCH_SIZE = 100;
+  static final int MAX_STEP_NAMES = 100;
+  static final String OTHER_STEP = "other";
+  private static final double[] BUILD_BUCKETS = {1, 5, 10, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200};
+  private static final double[] STEP_BUCKETS = {0.1, 0.5, 1, 5, 10, 30, 60, 120, 300, 600, 1800, 3600};
+
+  static final CollectorRegistry REGISTRY = new CollectorRegistry();
+  static final Histogram JOB_DURATION = Histogram.build()
+          .name("jenkins_job_duration_seconds").help("Duration of completed builds.")
+          .labelNames("job", "result").buckets(BUILD_BUCKETS).register(REGISTRY);
+  static final Histogram STAGE_DURATION = Histogram.build()
+          .name("jenkins_stage_duration_seconds").help("Duration of the stages of completed builds.")
+          .labelNames("job", "stage").buckets(BUILD_BUCKETS).register(REGISTRY);
+  static final Histogram STEP_DURATION = Histogram.build()
+          .name("jenkins_step_duration_seconds").help("Duration of the steps of completed builds, of all jobs.")
+          .labelNames("step").buckets(STEP_BUCKETS).register(REGISTRY);
+  static final Histogram QUEUE_WAITING = Histogram.build()
+          .name("jenkins_queue_waiting_seconds").help("Time builds waited in the queue before they started.")
+          .labelNames("job").buckets(STEP_BUCKETS).register(REGISTRY);
+  static final Counter BUILDS = Counter.build()
+          .name("jenkins_builds_total").help("Completed builds.")
+          .labelNames("job", "result").register(REGISTRY);
+  static final Gauge QUEUE_SIZE = Gauge.build()
+          .name("jenkins_queue_size").help("Items in the build queue, as of the scrape.")
+          .register(REGISTRY);
+  // The step names that have a series of their own
+  private static final Set<String> stepNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  @Override
+  public String getName() {
+    return "Prometheus";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return isPrometheusEnabled();
+  }
+
+  /**
+   * @return whether the collectors are scraped or pushed.
+   */
+  static boolean isPrometheusEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && (descriptor.isPrometheusEnabled() || JobPerformanceStatsPushgateway.isEnabled());
+  }
+
+  @Override
+  public boolean accepts(final JobPerformanceStatsRecord.Type type) {
+    return type == JobPerformanceStatsRecord.Type.BUILD_COMPLETED;
+  }
+
+  @Override
+  public int getMaxBatchSize() {
+    return MAX_BATCH_SIZE;
+  }
+
+  @Override
+  public void send(final List<JobPerformanceStatsRecord> records) {
+    for (JobPerformanceStatsRecord record : records) {
+      JSONObject builddata = record.getBuildData();
+      String job = builddata.optString("jobfullname", builddata.optString("job"));
+      String result = builddata.optString("result");
+      JOB_DURATION.labels(job, result).observe(builddata.optDouble("duration", 0));
+      BUILDS.labels(job, result).inc();
+
+      JSONArray stages = record.getEvent().createStagePayload();
+      if (stages != null) {
+        for (Object stage : stages) {
+          JSONObject json = (JSONObject) stage;
+          STAGE_DURATION.labels(job, json.optString("name"))
+                  .observe(json.optLong("duration") / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE);
+        }
+      }
+      JSONArray steps = record.getEvent().createStepPayload();
+      if (steps != null) {
+        for (Object step : steps) {
+          JSONObject json = (JSONObject) step;
+          STEP_DURATION.labels(stepLabel(json.optString("name")))
+                  .observe(json.optLong("duration") / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param name - The name of a step.
+   * @return the name, or {@link #OTHER_STEP} once {@link #MAX_STEP_NAMES} other names have a series.
+   */
+  static String stepLabel(final String name) {
+    if (stepNames.contains(name)) {
+      return name;
+    }
+    synchronized (stepNames) {
+      if (stepNames.size() < MAX_STEP_NAMES) {
+        stepNames.add(name);
+        return name;
+      }
+    }
+    return OTHER_STEP;
+  }
+
+  /**
+   * Pushes the builds recorded since the last push, as nothing scrapes an ephemeral controller
+   * once it stopped.
+   */
+  @Override
+  public void shutdown() {
+    JobPerformanceStatsPushgateway.pushOnShutdown();
+  }
+
+  /**
+   * Records how long builds waited in the queue, when they leave it to start.
+   */
+  @Extension
+  public static class QueueEvents extends QueueListener {
+    @Override
+    public void onLeft(final Queue.LeftItem item) {
+      if (item.isCancelled() || !(item.task instanceof Job) || !isPrometheusEnabled()) {
+        return;
+      }
+      String job = ((Job) item.task).getFullName();
+      if (JobPerformanceStatsUtilities.isJobTracked(job)) {
+        long waiting = Math.max(0, System.currentTimeMillis() - item.getInQueueSince());
+        QUEUE_WAITING.labels(job).observe(waiting / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE);
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class registers an {@link AsyncPeriodicWork} with Jenkins to push the collectors of the
+ * {@link JobPerformanceStatsPrometheusSink} to a Prometheus Pushgateway, for controllers
+ * Prometheus cannot scrape, such as short-lived autoscaled ones.
+ *
+ * <p>The whole registry is pushed at the configured interval, and once more when Jenkins stops,
+ * replacing the metrics of the <code>job</code> and <code>instance</code> grouping key: the
+ * configured Pushgateway job name and the hostname of the controller. Jenkins jobs are a label of each series.
+ * Builds only update the collectors in memory, so a slow Pushgateway delays the next push but
+ * never a build.
+ *
+ * <p>The registry is sent like {@link io.prometheus.client.exporter.PushGateway#push} does, as a
+ * <code>PUT</code> of the text exposition format, but with connect and read timeouts of
+ * {@link #PUSH_TIMEOUT_MILLIS}, which that client cannot set. The push at shutdown runs on the
+ * thread stopping Jenkins, bounded by these timeouts.
+ */
+@Extension
+public class JobPerformanceStatsPushgateway extends AsyncPeriodicWork {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsPushgateway.class.getName());
+  // How often the push interval is checked, the interval itself is configurable
+  private static final long RECURRENCE_PERIOD = TimeUnit.SECONDS.toMillis(5);
+  static final int DEFAULT_INTERVAL_SECONDS = 30;
+  static final String DEFAULT_JOB = "jenkins";
+  static final int PUSH_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+
+  private static volatile String instance;
+
+  /**
+   * Sends the registry to a Pushgateway.
+   */
+  interface Pusher {
+    Pusher HTTP = new Pusher() {
+      @Override
+      public void push(final String address, final String job, final String instance, final int timeoutMillis)
+              throws IOException {
+        put(address, job, instance, timeoutMillis);
+      }
+    };
+
+    /**
+     * @param address - The address of the Pushgateway, <code>host:port</code> or a URL.
+     * @param job - The <code>job</code> of the grouping key.
+     * @param instance - The <code>instance</code> of the grouping key.
+     * @param timeoutMillis - The connect and read timeouts.
+     * @throws IOException if the Pushgateway cannot be reached in time or refuses the metrics.
+     */
+    void push(String address, String job, String instance, int timeoutMillis) throws IOException;
+  }
+
+  private final Pusher pusher;
+  private volatile long lastPush = 0;
+
+  public JobPerformanceStatsPushgateway() {
+    this(Pusher.HTTP);
+  }
+
+  /**
+   * @param pusher - Sends the registry.
+   */
+  JobPerformanceStatsPushgateway(final Pusher pusher) {
+    super("JobPerformanceStats Pushgateway export");
+    this.pusher = pusher;
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return RECURRENCE_PERIOD;
+  }
+
+  /**
+   * @return whether metrics are pushed to a Pushgateway.
+   */
+  static boolean isEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.isPushgatewayEnabled()
+            && descriptor.getPushgatewayAddress() != null && !descriptor.getPushgatewayAddress().trim().isEmpty();
+  }
+
+  @Override
+  protected void execute(final TaskListener listener) {
+    if (!isEnabled()) {
+      return;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    long interval = TimeUnit.SECONDS.toMillis(descriptor.getPushgatewayIntervalSeconds() > 0
+            ? descriptor.getPushgatewayIntervalSeconds() : DEFAULT_INTERVAL_SECONDS);
+    execute(System.currentTimeMillis(), interval, descriptor.getPushgatewayAddress().trim(), job(descriptor), instance());
+  }
+
+  /**
+   * Pushes the registry if the push interval elapsed since the last push.
+   *
+   * @param now - The current time, in milliseconds.
+   * @param intervalMillis - The push interval.
+   * @param address - The address of the Pushgateway.
+   * @param job - The <code>job</code> of the grouping key.
+   * @param instance - The <code>instance</code> of the grouping key.
+   * @return true if a push was attempted.
+   */
+  boolean execute(final long now, final long intervalMillis, final String address, final String job,
+                  final String instance) {
+    if (now - lastPush < intervalMillis) {
+      return false;
+    }
+    lastPush = now;
+    try {
+      push(pusher, address, job, instance);
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to push metrics to the Pushgateway: %s", e.toString()));
+    }
+    return true;
+  }
+
+  /**
+   * Pushes the current value of every collector, replacing what the Pushgateway holds for this
+   * controller.
+   *
+   * @throws IOException if the Pushgateway cannot be reached in time or refuses the metrics.
+   */
+  private static void push(final Pusher pusher, final String address, final String job, final String instance)
+          throws IOException {
+    Queue queue = Queue.getInstance();
+    if (queue != null) {
+      JobPerformanceStatsPrometheusSink.QUEUE_SIZE.set(queue.getApproximateItemsQuickly().size());
+    }
+    pusher.push(address, job, instance, PUSH_TIMEOUT_MILLIS);
+    logger.fine(String.format("Pushed metrics to %s", address));
+  }
+
+  private static String job(final JobPerformanceStatsBuildListener.DescriptorImpl descriptor) {
+    String job = descriptor.getPushgatewayJob();
+    return job != null && !job.trim().isEmpty() ? job.trim() : DEFAULT_JOB;
+  }
+
+  /**
+   * @return the hostname of the controller, or its id when the hostname cannot be found.
+   */
+  private static String instance() {
+    String id = instance;
+    if (id == null) {
+      String hostname = JobPerformanceStatsUtilities.getHostname(new EnvVars(System.getenv()));
+      id = hostname != null && !hostname.trim().isEmpty() ? hostname.trim() : JobPerformanceStatsDocumentIds.getControllerId();
+      instance = id;
+    }
+    return id;
+  }
+
+  /**
+   * Replaces the metrics of a grouping key with the current value of every collector.
+   *
+   * @param address - The address of the Pushgateway, <code>host:port</code> or a URL.
+   * @param job - The <code>job</code> of the grouping key.
+   * @param instance - The <code>instance</code> of the grouping key.
+   * @param timeoutMillis - The connect and read timeouts.
+   * @throws IOException if the Pushgateway cannot be reached in time or refuses the metrics.
+   */
+  static void put(final String address, final String job, final String instance, final int timeoutMillis)
+          throws IOException {
+    URL url = new URL((address.contains("://") ? address : "http://" + address)
+            + "/metrics/job/" + URLEncoder.encode(job, "UTF-8") + "/instance/" + URLEncoder.encode(instance, "UTF-8"));
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setRequestMethod("PUT");
+      connection.setRequestProperty("Content-Type", TextFormat.CONTENT_TYPE_004);
+      connection.setConnectTimeout(timeoutMillis);
+      connection.setReadTimeout(timeoutMillis);
+      connection.setDoOutput(true);
+      Writer writer = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
+      try {
+        TextFormat.write004(writer, JobPerformanceStatsPrometheusSink.REGISTRY.metricFamilySamples());
+      } finally {
+        writer.close();
+      }
+      int status = connection.getResponseCode();
+      if (status < 200 || status >= 300) {
+        throw new IOException(String.format("Pushgateway answered %s to %s", status, url));
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Pushes the metrics of the builds that completed since the last push, when Jenkins stops. The
+   * push runs on the calling thread, and the timeouts bound how long an unreachable Pushgateway
+   * holds up the shutdown.
+   */
+  static void pushOnShutdown() {
+    if (!isEnabled()) {
+      return;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    try {
+      push(Pusher.HTTP, descriptor.getPushgatewayAddress().trim(), job(descriptor), instance());
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to push metrics to the Pushgateway on shutdown: %s", e.toString()));
+    }
+  }
+}
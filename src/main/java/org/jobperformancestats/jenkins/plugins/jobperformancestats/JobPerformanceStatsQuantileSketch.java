@@ -0,0 +1,242 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Quantile sketch of durations after DDSketch (Masson, Rim and Lee, VLDB 2019).
+ *
+ * <p>Values are counted in logarithmic bins, bin <code>i</code> holding the values in
+ * <code>(gamma^(i-1), gamma^i]</code> with <code>gamma = (1 + a) / (1 - a)</code>, so any
+ * quantile is returned within a relative error <code>a</code> of the exact one. Sketches with
+ * the same accuracy merge exactly by adding their bins, which is what makes them cheap to combine
+ * across builds, controllers and flush intervals.
+ *
+ * <p>Memory is bounded by the maximum number of bins: once the bins span more than that, the
+ * lowest bins are folded into the lowest kept one. Only the accuracy of the lowest quantiles is
+ * lost, the tail keeps its guarantee. With the defaults, 2048 bins of 1% cover durations from a
+ * millisecond to well beyond a year. Not thread-safe.
+ */
+public class JobPerformanceStatsQuantileSketch {
+
+  static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+  static final int DEFAULT_MAX_BINS = 2048;
+  // Smaller values, such as a zero duration, are counted apart
+  static final double MIN_INDEXABLE_VALUE = 1e-9;
+  private static final int INITIAL_BINS = 32;
+
+  private final double relativeAccuracy;
+  private final double gamma;
+  private final double logGamma;
+  private final int maxBins;
+
+  private long[] bins = new long[0];
+  // The bin index of bins[0]
+  private int offset = 0;
+  private int minIndex = 0;
+  private int maxIndex = -1;
+  private long zeroCount = 0;
+  private long count = 0;
+  private double sum = 0;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public JobPerformanceStatsQuantileSketch() {
+    this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+  }
+
+  /**
+   * @param relativeAccuracy - The relative error of the quantiles, between 0 and 1.
+   * @param maxBins - The number of bins kept at most.
+   */
+  public JobPerformanceStatsQuantileSketch(final double relativeAccuracy, final int maxBins) {
+    if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+      throw new IllegalArgumentException("The relative accuracy must be between 0 and 1: " + relativeAccuracy);
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+    this.maxBins = Math.max(1, maxBins);
+  }
+
+  /**
+   * Adds a value. Negative values are counted as 0, durations cannot be negative.
+   *
+   * @param value - The value to add.
+   */
+  public void add(final double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    double positive = Math.max(0, value);
+    if (positive < MIN_INDEXABLE_VALUE) {
+      zeroCount++;
+    } else {
+      increment((int) Math.ceil(Math.log(positive) / logGamma), 1);
+    }
+    count++;
+    sum += positive;
+    min = Math.min(min, positive);
+    max = Math.max(max, positive);
+  }
+
+  /**
+   * Adds the values of another sketch to this one.
+   *
+   * @param other - A sketch with the same relative accuracy.
+   */
+  public void merge(final JobPerformanceStatsQuantileSketch other) {
+    if (other.relativeAccuracy != relativeAccuracy) {
+      throw new IllegalArgumentException(String.format("Cannot merge a sketch of accuracy %s into one of accuracy %s",
+              other.relativeAccuracy, relativeAccuracy));
+    }
+    if (other.count == 0) {
+      return;
+    }
+    // Highest bins first, so folding the lowest ones never moves a bin added before
+    for (int index = other.maxIndex; index >= other.minIndex; index--) {
+      long binCount = other.bins[index - other.offset];
+      if (binCount > 0) {
+        increment(index, binCount);
+      }
+    }
+    zeroCount += other.zeroCount;
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  private void increment(final int index, final long binCount) {
+    int target = index;
+    if (maxIndex < minIndex) {
+      minIndex = index;
+      maxIndex = index;
+    } else if (index > maxIndex) {
+      int lowest = index - maxBins + 1;
+      long folded = 0;
+      if (lowest > minIndex) {
+        for (int i = minIndex; i <= Math.min(maxIndex, lowest - 1); i++) {
+          folded += bins[i - offset];
+          bins[i - offset] = 0;
+        }
+      }
+      minIndex = Math.max(minIndex, lowest);
+      maxIndex = index;
+      reserve();
+      bins[minIndex - offset] += folded;
+    } else if (index < minIndex) {
+      if (maxIndex - index >= maxBins) {
+        // Folded into the lowest bin kept
+        target = maxIndex - maxBins + 1;
+      }
+      minIndex = Math.min(minIndex, target);
+    }
+    reserve();
+    bins[target - offset] += binCount;
+  }
+
+  /**
+   * Makes room in the array for the bins from minIndex to maxIndex, keeping some spare room on
+   * both sides.
+   */
+  private void reserve() {
+    if (minIndex >= offset && maxIndex < offset + bins.length) {
+      return;
+    }
+    int span = maxIndex - minIndex + 1;
+    int length = Math.max(span, Math.min(maxBins, Math.max(INITIAL_BINS, bins.length * 2)));
+    int newOffset = minIndex - (length - span) / 2;
+    long[] grown = new long[length];
+    for (int i = Math.max(offset, newOffset); i < Math.min(offset + bins.length, newOffset + length); i++) {
+      grown[i - newOffset] = bins[i - offset];
+    }
+    bins = grown;
+    offset = newOffset;
+  }
+
+  /**
+   * @param quantile - The quantile, between 0 and 1.
+   * @return the value at the quantile, within the relative accuracy, or NaN if the sketch is empty.
+   */
+  public double getQuantile(final double quantile) {
+    if (count == 0 || quantile < 0 || quantile > 1) {
+      return Double.NaN;
+    }
+    double rank = quantile * (count - 1);
+    if (rank < zeroCount) {
+      return 0;
+    }
+    long seen = zeroCount;
+    for (int index = minIndex; index <= maxIndex; index++) {
+      seen += bins[index - offset];
+      if (seen > rank) {
+        // The middle of the bin, in relative terms
+        double value = 2 * Math.pow(gamma, index) / (gamma + 1);
+        return Math.max(min, Math.min(max, value));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return the number of values added.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the sum of the values added.
+   */
+  public double getSum() {
+    return sum;
+  }
+
+  /**
+   * @return the largest value added, or NaN if the sketch is empty.
+   */
+  public double getMax() {
+    return count > 0 ? max : Double.NaN;
+  }
+
+  /**
+   * @return the number of bins the values span.
+   */
+  public int getBinCount() {
+    return maxIndex < minIndex ? 0 : maxIndex - minIndex + 1;
+  }
+
+  /**
+   * Writes the sketch as JSON, from which it can be rebuilt and merged with sketches of the same
+   * accuracy:
+   * <ul>
+   *   <li><code>relative_accuracy</code>: the accuracy <code>a</code>, from which
+   *       <code>gamma = (1 + a) / (1 - a)</code>.</li>
+   *   <li><code>count</code>, <code>sum</code>, <code>min</code> and <code>max</code>: of the
+   *       values added, <code>min</code> and <code>max</code> are 0 when the sketch is empty.</li>
+   *   <li><code>zero_count</code>: the number of values below {@link #MIN_INDEXABLE_VALUE}.</li>
+   *   <li><code>offset</code>: the index of the first bin.</li>
+   *   <li><code>bins</code>: the counts of the consecutive bins from <code>offset</code> on, bin
+   *       <code>i</code> counting the values in <code>(gamma^(i-1), gamma^i]</code>.</li>
+   * </ul>
+   *
+   * @return the sketch as JSON.
+   */
+  public JSONObject toJson() {
+    JSONArray counts = new JSONArray();
+    for (int index = minIndex; index <= maxIndex; index++) {
+      counts.add(bins[index - offset]);
+    }
+    JSONObject json = new JSONObject();
+    json.put("relative_accuracy", relativeAccuracy);
+    json.put("count", count);
+    json.put("sum", sum);
+    json.put("min", count > 0 ? min : 0);
+    json.put("max", count > 0 ? max : 0);
+    json.put("zero_count", zeroCount);
+    json.put("offset", minIndex);
+    json.put("bins", counts);
+    return json;
+  }
+}
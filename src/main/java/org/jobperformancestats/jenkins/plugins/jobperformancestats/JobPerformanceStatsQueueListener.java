@@ -6,8 +6,6 @@ import hudson.model.PeriodicWork;
 import hudson.model.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
 
 /**
  * This class registers a {@link PeriodicWork} with Jenkins to run periodically in order to enable
@@ -15,7 +13,6 @@ import net.sf.json.JSONObject;
  */
 @Extension
 public class JobPerformanceStatsQueueListener extends PeriodicWork {
-  private static final String METRIC = "v1/series";
   private static final long RECURRENCE_PERIOD = TimeUnit.MINUTES.toMillis(1);
 
   private static final Logger logger = Logger.getLogger(JobPerformanceStatsQueueListener.class.getName());
@@ -37,35 +34,6 @@ public class JobPerformanceStatsQueueListener extends PeriodicWork {
   }
 
   private void gauge(String name, int value) {
-    // Setup data point, of type [<unix_timestamp>, <value>]
-    JSONArray points = new JSONArray();
-    JSONArray point = new JSONArray();
-
-    long currentTime = System.currentTimeMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG;
-    point.add(currentTime); // current time, s
-    point.add(value);
-    points.add(point); // api expects a list of points
-
-    JSONObject metric = new JSONObject();
-    metric.put("metric", name);
-    metric.put("points", points);
-    metric.put("type", "gauge");
-    metric.put("host", JobPerformanceStatsUtilities.getHostname(envVars)); // string
-
-    // Place metric as item of series list
-    JSONArray series = new JSONArray();
-    series.add(metric);
-
-    // Add series to payload
-    JSONObject payload = new JSONObject();
-    payload.put("series", series);
-
-    logger.fine(String.format("Resulting payload: %s", payload.toString()));
-
-    try {
-      JobPerformanceStatsHttpRequests.post(payload, METRIC);
-    } catch (Exception e) {
-      logger.severe(e.toString());
-    }
+    JobPerformanceStatsSink.publish(JobPerformanceStatsRecord.gauge(name, value, JobPerformanceStatsUtilities.getHostname(envVars)));
   }
 }
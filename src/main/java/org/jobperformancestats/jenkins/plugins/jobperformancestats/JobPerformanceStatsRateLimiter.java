@@ -0,0 +1,314 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * Token bucket in front of the documents and metrics sent to ELK and the metric endpoint, with
+ * one priority lane per kind of document.
+ *
+ * <p>The bucket holds up to the configured burst of tokens and is refilled at the configured
+ * rate, one token per document or metric post. Build-level traffic always goes through, going
+ * into debt if the bucket is empty, so job results and service checks are never held up. Stage
+ * and step documents only take a token while the bucket is above a reserve kept for the lanes
+ * before them (a fifth and half of the burst), otherwise they are deferred in memory and sent
+ * from the {@link JobPerformanceStatsExecutor} once tokens are available, stages first. Once the
+ * deferred documents reach the configured maximum, steps are shed to make room for stages, and
+ * new documents are shed.
+ */
+public class JobPerformanceStatsRateLimiter {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsRateLimiter.class.getName());
+  static final int DEFAULT_DOCS_PER_SECOND = 500;
+  static final int DEFAULT_BURST = 1000;
+  static final int DEFAULT_MAX_DEFERRED = 10000;
+  private static final long DRAIN_PERIOD_MILLIS = 100;
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static JobPerformanceStatsRateLimiter instance;
+
+  /**
+   * The priority of a document, highest first.
+   */
+  public enum Lane {
+    /** Job and build documents, lifecycle updates, metrics and service checks. Never delayed. */
+    BUILD(0),
+    /** Stage documents. */
+    STAGE(0.2),
+    /** Step documents. */
+    STEP(0.5);
+
+    // Share of the burst left to the lanes before this one
+    private final double reserve;
+
+    Lane(final double reserve) {
+      this.reserve = reserve;
+    }
+  }
+
+  private final double ratePerNano;
+  private final int burst;
+  private final int maxDeferred;
+  private double tokens;
+  private long refilledAt;
+  private final Deque<Deferred> stages = new ArrayDeque<>();
+  private final Deque<Deferred> steps = new ArrayDeque<>();
+  private boolean draining = false;
+  private final AtomicLong deferred = new AtomicLong();
+  private final AtomicLong shed = new AtomicLong();
+
+  /**
+   * @param docsPerSecond - The rate the bucket is refilled at.
+   * @param burst - The number of tokens the bucket holds.
+   * @param maxDeferred - The number of documents kept until tokens are available.
+   */
+  JobPerformanceStatsRateLimiter(final int docsPerSecond, final int burst, final int maxDeferred) {
+    this.ratePerNano = (double) Math.max(1, docsPerSecond) / NANOS_PER_SECOND;
+    this.burst = Math.max(1, burst);
+    this.maxDeferred = Math.max(0, maxDeferred);
+    this.tokens = this.burst;
+    this.refilledAt = System.nanoTime();
+  }
+
+  /**
+   * @return the rate limiter, or null when rate limiting is disabled.
+   */
+  public static synchronized JobPerformanceStatsRateLimiter get() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor == null || !descriptor.isRateLimitEnabled()) {
+      return null;
+    }
+    if (instance == null) {
+      instance = new JobPerformanceStatsRateLimiter(
+              descriptor.getRateLimitDocsPerSecond() > 0 ? descriptor.getRateLimitDocsPerSecond() : DEFAULT_DOCS_PER_SECOND,
+              descriptor.getRateLimitBurst() > 0 ? descriptor.getRateLimitBurst() : DEFAULT_BURST,
+              descriptor.getRateLimitMaxDeferred() >= 0 ? descriptor.getRateLimitMaxDeferred() : DEFAULT_MAX_DEFERRED);
+    }
+    return instance;
+  }
+
+  /**
+   * Replaces the rate limiter after the global configuration changed. Documents already deferred
+   * are still sent by the previous one.
+   */
+  public static synchronized void reconfigure() {
+    instance = null;
+  }
+
+  /**
+   * Takes a token for build-level traffic, such as a metric post, when rate limiting is enabled.
+   */
+  public static void acquireBuild() {
+    JobPerformanceStatsRateLimiter limiter = get();
+    if (limiter != null) {
+      limiter.tryAcquire(Lane.BUILD);
+    }
+  }
+
+  /**
+   * Takes a token for a document, if its lane may have one now.
+   *
+   * @param lane - The priority of the document.
+   * @return true if the document may be sent now, always for the build lane.
+   */
+  public boolean tryAcquire(final Lane lane) {
+    return tryAcquire(lane, System.nanoTime());
+  }
+
+  synchronized boolean tryAcquire(final Lane lane, final long now) {
+    refill(now);
+    if (lane == Lane.BUILD) {
+      // The debt delays the other lanes, it is bounded so they are not starved for long
+      tokens = Math.max(tokens - 1, -burst);
+      return true;
+    }
+    if (tokens - 1 < lane.reserve * burst) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  private void refill(final long now) {
+    tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+    refilledAt = now;
+  }
+
+  /**
+   * Keeps a document that could not have a token, to send it once tokens are available.
+   *
+   * @param lane - The priority of the document, stage or step.
+   * @param index - The index of the document.
+   * @param id - The id of the document.
+   * @param source - The document, copied.
+   * @param encoding - The encoding of the document.
+   * @param ledger - The ledger of the build of the document, or null.
+   * @return false if the document was shed.
+   */
+  public boolean defer(final Lane lane, final String index, final String id, final JobPerformanceStatsJsonWriter source,
+                       final JobPerformanceStatsJsonWriter.Encoding encoding, final JobPerformanceStatsShippingLedger ledger) {
+    Deferred document = new Deferred(index, id, Arrays.copyOf(source.buffer(), source.size()), encoding, ledger);
+    synchronized (this) {
+      if (stages.size() + steps.size() >= maxDeferred) {
+        if (lane == Lane.STEP || steps.isEmpty()) {
+          shed(lane, id);
+          return false;
+        }
+        // Stages go before steps
+        Deferred dropped = steps.pollFirst();
+        shed(Lane.STEP, dropped.id);
+      }
+      (lane == Lane.STEP ? steps : stages).addLast(document);
+      deferred.incrementAndGet();
+      if (!draining) {
+        draining = true;
+        schedule();
+      }
+    }
+    return true;
+  }
+
+  private void shed(final Lane lane, final String id) {
+    long count = shed.incrementAndGet();
+    // Log the first one and then every thousandth, a flood of shed documents is a flood of logs
+    if (count == 1 || count % 1000 == 0) {
+      logger.warning(String.format("Shed %s document %s as too many documents are waiting for the rate limit (%s shed so far)",
+              lane, id, count));
+    }
+  }
+
+  private void schedule() {
+    try {
+      JobPerformanceStatsExecutor.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, DRAIN_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Jenkins is stopping, the deferred documents are not sent
+      draining = false;
+      logger.warning(String.format("Jenkins is stopping, %s deferred documents are not sent", stages.size() + steps.size()));
+    }
+  }
+
+  /**
+   * Sends the deferred documents tokens are available for, then schedules itself again while
+   * documents are left.
+   */
+  void drain() {
+    List<Deferred> batch = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      while (!stages.isEmpty() && tryAcquire(Lane.STAGE, now)) {
+        batch.add(stages.pollFirst());
+      }
+      while (stages.isEmpty() && !steps.isEmpty() && tryAcquire(Lane.STEP, now)) {
+        batch.add(steps.pollFirst());
+      }
+    }
+    try {
+      send(batch);
+    } finally {
+      synchronized (this) {
+        if (stages.isEmpty() && steps.isEmpty()) {
+          draining = false;
+        } else {
+          schedule();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends documents through bulk writers, one per build ledger and encoding in a row.
+   */
+  private static void send(final List<Deferred> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    JobPerformanceStatsBulkWriter writer = null;
+    Deferred previous = null;
+    JobPerformanceStatsJsonWriter json = null;
+    try {
+      for (Deferred document : batch) {
+        if (writer == null || document.ledger != previous.ledger || document.encoding != previous.encoding) {
+          close(writer);
+          JobPerformanceStatsJsonWriter.release(json);
+          writer = new JobPerformanceStatsBulkWriter(descriptor.getBulkMaxDocs(), descriptor.getBulkMaxBytes(),
+                  JobPerformanceStatsSpool.get(), document.encoding);
+          writer.setLedger(document.ledger);
+          json = JobPerformanceStatsJsonWriter.acquire(writer.getEncoding());
+        }
+        previous = document;
+        try {
+          writer.add(document.index, document.id, json.reset().raw(document.source, 0, document.source.length));
+        } catch (IOException e) {
+          logger.warning(String.format("Unable to send deferred document %s: %s", document.id, e.toString()));
+        }
+      }
+    } finally {
+      close(writer);
+      JobPerformanceStatsJsonWriter.release(json);
+    }
+  }
+
+  private static void close(final JobPerformanceStatsBulkWriter writer) {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to send deferred documents: %s", e.toString()));
+    }
+  }
+
+  /**
+   * @return the number of documents deferred by this rate limiter.
+   */
+  public long getDeferred() {
+    return deferred.get();
+  }
+
+  /**
+   * @return the number of documents shed by this rate limiter.
+   */
+  public long getShed() {
+    return shed.get();
+  }
+
+  /**
+   * @return the number of documents waiting for tokens.
+   */
+  public synchronized int getBacklog() {
+    return stages.size() + steps.size();
+  }
+
+  private static class Deferred {
+    final String index;
+    final String id;
+    final byte[] source;
+    final JobPerformanceStatsJsonWriter.Encoding encoding;
+    final JobPerformanceStatsShippingLedger ledger;
+
+    Deferred(final String index, final String id, final byte[] source,
+             final JobPerformanceStatsJsonWriter.Encoding encoding, final JobPerformanceStatsShippingLedger ledger) {
+      this.index = index;
+      this.id = id;
+      this.source = source;
+      this.encoding = encoding;
+      this.ledger = ledger;
+    }
+  }
+}
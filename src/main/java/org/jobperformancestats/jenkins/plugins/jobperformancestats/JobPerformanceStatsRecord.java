@@ -0,0 +1,162 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.model.Run;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Something that happened in Jenkins, published to every {@link JobPerformanceStatsSink}.
+ *
+ * <p>Records are shared by every sink, so sinks must not modify them or the JSON they hold. A
+ * record holds a copy of the build metadata taken when it was created, and the id of the build
+ * rather than the build itself: sinks send it after the listener returned, and must neither see
+ * later changes nor keep a build in memory while it waits in their queue.
+ */
+public class JobPerformanceStatsRecord {
+
+  /**
+   * What a record is about.
+   */
+  public enum Type {
+    /** A build completed, see {@link #getRun()}, {@link #getEvent()} and {@link #getBuildData()}. */
+    BUILD_COMPLETED,
+    /** A build checked out its sources, see {@link #getRun()} and {@link #getEvent()}. */
+    CHECKOUT,
+    /** A gauge measured outside of any build, see {@link #getMetric()} and {@link #getValue()}. */
+    GAUGE
+  }
+
+  private final Type type;
+  private final long timestamp = System.currentTimeMillis();
+  // The externalizable id of the build, looked up again when a sink needs the build
+  private final String runId;
+  private final JobPerformanceStatsEvent event;
+  private final JSONObject builddata;
+  private final Map<String, String> tags;
+  private final String[] statsdTags;
+  private final String metric;
+  private final Number value;
+  private final String hostname;
+
+  private JobPerformanceStatsRecord(final Type type, final Run<?, ?> run, final JobPerformanceStatsEvent event,
+                                    final JSONObject builddata, final Map<String, String> tags, final String[] statsdTags,
+                                    final String metric, final Number value, final String hostname) {
+    this.type = type;
+    this.runId = run != null ? run.getExternalizableId() : null;
+    this.event = event;
+    this.builddata = builddata != null ? JSONObject.fromObject(builddata) : null;
+    this.tags = tags != null ? Collections.unmodifiableMap(new HashMap<>(tags)) : Collections.<String, String>emptyMap();
+    this.statsdTags = statsdTags != null ? statsdTags : new String[0];
+    this.metric = metric;
+    this.value = value;
+    this.hostname = hostname;
+  }
+
+  /**
+   * @param run - The completed build.
+   * @param event - The build finished event.
+   * @param builddata - The metadata of the build.
+   * @param tags - The tags of the build.
+   * @param statsdTags - The same tags, as StatsD <code>key:value</code> strings.
+   * @return a {@link Type#BUILD_COMPLETED} record.
+   */
+  public static JobPerformanceStatsRecord completed(final Run<?, ?> run, final JobPerformanceStatsEvent event,
+                                                    final JSONObject builddata, final Map<String, String> tags,
+                                                    final String[] statsdTags) {
+    return new JobPerformanceStatsRecord(Type.BUILD_COMPLETED, run, event, builddata, tags, statsdTags,
+            null, null, builddata != null ? builddata.optString("hostname", null) : null);
+  }
+
+  /**
+   * @param run - The build that checked out its sources.
+   * @param event - The checkout completed event.
+   * @return a {@link Type#CHECKOUT} record.
+   */
+  public static JobPerformanceStatsRecord checkout(final Run<?, ?> run, final JobPerformanceStatsEvent event) {
+    return new JobPerformanceStatsRecord(Type.CHECKOUT, run, event, null, null, null, null, null, null);
+  }
+
+  /**
+   * @param metric - The name of the metric.
+   * @param value - The measured value.
+   * @param hostname - The host the value was measured on.
+   * @return a {@link Type#GAUGE} record.
+   */
+  public static JobPerformanceStatsRecord gauge(final String metric, final Number value, final String hostname) {
+    return new JobPerformanceStatsRecord(Type.GAUGE, null, null, null, null, null, metric, value, hostname);
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return when the record was created, in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the build of the record, or null if the record is not about a build or the build was
+   *         deleted since.
+   */
+  public Run<?, ?> getRun() {
+    return runId != null ? Run.fromExternalizableId(runId) : null;
+  }
+
+  /**
+   * @return the externalizable id of the build of the record, or null.
+   */
+  public String getRunId() {
+    return runId;
+  }
+
+  public JobPerformanceStatsEvent getEvent() {
+    return event;
+  }
+
+  public JSONObject getBuildData() {
+    return builddata;
+  }
+
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  public String[] getStatsdTags() {
+    return statsdTags.clone();
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public Number getValue() {
+    return value;
+  }
+
+  public String getHostname() {
+    return hostname;
+  }
+
+  /**
+   * @return the tags of the record with the build metadata, as <code>key:value</code> strings.
+   */
+  JSONArray assembleTags() {
+    if (builddata == null) {
+      return new JSONArray();
+    }
+    return JobPerformanceStatsUtilities.assembleTags(builddata, new HashMap<>(tags));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %s", type, runId != null ? runId : metric);
+  }
+}
@@ -0,0 +1,194 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * Newline-delimited file rolled over by size and age, for a shipper such as Filebeat to tail.
+ *
+ * <p>Lines are appended to <code>jobperformancestats.ndjson</code> through a direct buffer, which
+ * is written to the file channel once full and on {@link #flush()}. When the file would exceed
+ * its size cap or is older than the rotation period, it is renamed to
+ * <code>jobperformancestats-yyyyMMdd-HHmmss-SSS.ndjson</code> (its rotation time, in UTC) and a
+ * new one is started; only the most recent rotated files are kept.
+ *
+ * <p>Unlike the {@link JobPerformanceStatsSpool}, files are not memory-mapped: a mapped file has
+ * to be sized up front, and a tailing shipper would read the unwritten part as zero bytes.
+ */
+public class JobPerformanceStatsRollingFile implements Closeable {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsRollingFile.class.getName());
+  static final String PREFIX = "jobperformancestats";
+  static final String SUFFIX = ".ndjson";
+  static final int BUFFER_BYTES = 64 * 1024;
+  private static final FastDateFormat ROTATED_FORMAT = FastDateFormat.getInstance("yyyyMMdd-HHmmss-SSS", TimeZone.getTimeZone("UTC"));
+
+  private final File directory;
+  private final File current;
+  private final long maxBytes;
+  private final long rotateMillis;
+  private final int maxFiles;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+  private FileChannel channel;
+  // Bytes written to the channel, not counting the buffer
+  private long size;
+  private long openedAt;
+  private long lastRotated;
+
+  /**
+   * @param directory - The directory of the files, created if needed.
+   * @param maxBytes - The size a file is rotated at.
+   * @param rotateMillis - The age a file is rotated at, or 0 to only rotate by size.
+   * @param maxFiles - The number of rotated files kept.
+   */
+  public JobPerformanceStatsRollingFile(final File directory, final long maxBytes, final long rotateMillis,
+                                        final int maxFiles) {
+    this.directory = directory;
+    this.current = new File(directory, PREFIX + SUFFIX);
+    this.maxBytes = Math.max(BUFFER_BYTES, maxBytes);
+    this.rotateMillis = rotateMillis;
+    this.maxFiles = Math.max(1, maxFiles);
+  }
+
+  /**
+   * Appends a line, rotating the file first if needed. The line is only written to the file
+   * once the buffer is full or {@link #flush()} is called.
+   *
+   * @param bytes - The bytes holding the line, without its trailing newline.
+   * @param offset - The offset of the line.
+   * @param length - The length of the line.
+   * @throws IOException if the file cannot be written or rotated.
+   */
+  public synchronized void append(final byte[] bytes, final int offset, final int length) throws IOException {
+    if (channel == null) {
+      open();
+    }
+    long written = size + buffer.position();
+    long now = System.currentTimeMillis();
+    if (written > 0 && (written + length + 1 > maxBytes || (rotateMillis > 0 && now - openedAt >= rotateMillis))) {
+      rotate(now);
+    }
+    if (length + 1 > buffer.remaining()) {
+      flush();
+    }
+    if (length + 1 > buffer.capacity()) {
+      // Larger than the buffer, written as is
+      write(ByteBuffer.wrap(bytes, offset, length));
+      buffer.put((byte) '\n');
+      return;
+    }
+    buffer.put(bytes, offset, length).put((byte) '\n');
+  }
+
+  /**
+   * Writes the buffered lines to the file.
+   *
+   * @throws IOException if the file cannot be written.
+   */
+  public synchronized void flush() throws IOException {
+    if (channel == null || buffer.position() == 0) {
+      return;
+    }
+    buffer.flip();
+    try {
+      write(buffer);
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  private void write(final ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      size += channel.write(bytes);
+    }
+  }
+
+  private void open() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    channel = FileChannel.open(current.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    size = channel.size();
+    // A file left by a previous run is as old as its last line, at most
+    openedAt = size > 0 ? Math.min(System.currentTimeMillis(), current.lastModified()) : System.currentTimeMillis();
+  }
+
+  private void rotate(final long now) throws IOException {
+    flush();
+    channel.close();
+    channel = null;
+    // Two rotations within the same millisecond must not overwrite each other
+    long stamp = Math.max(now, lastRotated + 1);
+    lastRotated = stamp;
+    File rotated = new File(directory, PREFIX + "-" + ROTATED_FORMAT.format(stamp) + SUFFIX);
+    Files.move(current.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    logger.fine(String.format("Rotated %s to %s", current, rotated));
+    prune();
+    open();
+  }
+
+  /**
+   * Deletes the oldest rotated files beyond the number kept.
+   */
+  private void prune() {
+    File[] rotated = rotatedFiles();
+    for (int i = 0; i < rotated.length - maxFiles; i++) {
+      if (!rotated[i].delete()) {
+        logger.warning(String.format("Unable to delete %s", rotated[i]));
+      }
+    }
+  }
+
+  /**
+   * @return the rotated files, oldest first.
+   */
+  File[] rotatedFiles() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.startsWith(PREFIX + "-") && name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    // The timestamp in their names sorts them by age
+    Arrays.sort(files);
+    return files;
+  }
+
+  public File getCurrent() {
+    return current;
+  }
+
+  /**
+   * Writes the buffered lines and closes the file.
+   *
+   * @throws IOException if the file cannot be written.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      channel.close();
+      channel = null;
+    }
+  }
+}
@@ -44,6 +44,9 @@ public class JobPerformanceStatsSCMListener extends SCMListener {
       return;
     }
     String jobName = build.getParent().getFullName();
+    if ( JobPerformanceStatsLifecycle.isEnabled() && JobPerformanceStatsUtilities.isJobTracked(jobName) ) {
+      JobPerformanceStatsLifecycle.checkout(build);
+    }
     String normalizedJobName = JobPerformanceStatsUtilities.normalizeFullDisplayName(jobName);
     HashMap<String,String> tags = new HashMap<String,String>();
     JobPerformanceStatsJobProperty prop = JobPerformanceStatsUtilities.retrieveProperty(build);
@@ -77,9 +80,9 @@ public class JobPerformanceStatsSCMListener extends SCMListener {
       long starttime = build.getStartTimeInMillis() / JobPerformanceStatsBuildListener.THOUSAND_LONG; // ms to s
       builddata.put("timestamp", starttime); // string
 
-      JobPerformanceStatsEvent evt = new CheckoutCompletedEventImpl(builddata, tags);
+      final JobPerformanceStatsEvent evt = new CheckoutCompletedEventImpl(builddata, tags);
 
-      JobPerformanceStatsHttpRequests.sendEvent(evt);
+      JobPerformanceStatsSink.publish(JobPerformanceStatsRecord.checkout(build, evt));
     }
   }
 }
@@ -0,0 +1,283 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Records which ELK documents of a build were acknowledged, so the documents a controller restart
+ * interrupted are sent after it, and only those.
+ *
+ * <p>Every completed build gets a small pending marker under
+ * <code>JENKINS_HOME/jobperformancestats-pending</code> before its documents are handed over to
+ * the sinks. The ids of the documents ELK accepted, or that were written to the
+ * {@link JobPerformanceStatsSpool}, are appended to <code>jobperformancestats-ledger</code> in the
+ * build directory, and the marker is deleted once every document of the build is in the ledger.
+ *
+ * <p>On startup, the builds that still have a marker are shipped again, skipping the documents
+ * already in their ledger. Only the markers are read, never the build history. As document ids
+ * are derived from the build (see {@link JobPerformanceStatsDocumentIds}), a document that was
+ * accepted but not recorded before the restart overwrites itself rather than being duplicated.
+ */
+public class JobPerformanceStatsShippingLedger {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsShippingLedger.class.getName());
+  static final String PENDING_DIRECTORY = "jobperformancestats-pending";
+  static final String LEDGER_FILE = "jobperformancestats-ledger";
+  // Builds left pending for longer are given up on, their documents would be stale anyway
+  static final long MAX_PENDING_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+  // Bounds the work done on startup after a long outage
+  static final int MAX_RECOVERED_BUILDS = 500;
+  private static final Charset UTF_8 = Charset.forName("utf-8");
+
+  private final File marker;
+  private final File file;
+  private final Set<String> expected = new HashSet<>();
+  private final Set<String> acknowledged = new HashSet<>();
+  private boolean sealed = false;
+
+  /**
+   * @param marker - The pending marker of the build.
+   * @param file - The ledger file of the build, read if it exists.
+   */
+  JobPerformanceStatsShippingLedger(final File marker, final File file) {
+    this.marker = marker;
+    this.file = file;
+    load();
+  }
+
+  /**
+   * @return whether documents are recorded in a ledger per build.
+   */
+  public static boolean isEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.isShippingLedgerEnabled();
+  }
+
+  /**
+   * Writes the pending marker of a build that just completed, before its documents are shipped.
+   *
+   * @param run - The completed build.
+   */
+  public static void markPending(final Run<?, ?> run) {
+    File marker = markerOf(run.getExternalizableId());
+    try {
+      File directory = marker.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create directory " + directory);
+      }
+      OutputStream out = new FileOutputStream(marker);
+      try {
+        out.write(run.getExternalizableId().getBytes(UTF_8));
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to mark %s as pending: %s", run.getExternalizableId(), e.toString()));
+    }
+  }
+
+  /**
+   * @param run - A completed build.
+   * @return the ledger of the build, with the documents already acknowledged.
+   */
+  public static JobPerformanceStatsShippingLedger of(final Run<?, ?> run) {
+    return new JobPerformanceStatsShippingLedger(markerOf(run.getExternalizableId()), new File(run.getRootDir(), LEDGER_FILE));
+  }
+
+  private static File markerOf(final String externalizableId) {
+    // The hash keeps folder separators and other characters of job names out of the file name
+    return new File(new File(Jenkins.getInstance().getRootDir(), PENDING_DIRECTORY),
+            JobPerformanceStatsDocumentIds.hash(externalizableId));
+  }
+
+  private void load() {
+    if (!file.isFile()) {
+      return;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          // A line cut short by a crash is not a valid id, and the document is sent again
+          if (!line.isEmpty()) {
+            acknowledged.add(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to read %s, sending every document again: %s", file, e.toString()));
+    }
+  }
+
+  /**
+   * @param id - The id of a document of the build.
+   * @return whether the document was acknowledged already.
+   */
+  public synchronized boolean isAcknowledged(final String id) {
+    return acknowledged.contains(id);
+  }
+
+  /**
+   * Adds a document about to be sent to the documents of the build.
+   *
+   * @param id - The id of the document.
+   */
+  public synchronized void expect(final String id) {
+    expected.add(id);
+  }
+
+  /**
+   * Tells the ledger every document of the build was handed over, so the build is complete once
+   * they are acknowledged.
+   */
+  public synchronized void seal() {
+    sealed = true;
+    completeIfDone();
+  }
+
+  /**
+   * Appends documents to the ledger. Ids of other builds are ignored, as a request may hold
+   * documents of several builds.
+   *
+   * @param ids - The ids of documents ELK accepted, or that were spooled.
+   */
+  public synchronized void acknowledged(final Collection<String> ids) {
+    StringBuilder lines = new StringBuilder();
+    for (String id : ids) {
+      if (expected.contains(id) && acknowledged.add(id)) {
+        lines.append(id).append('\n');
+      }
+    }
+    if (lines.length() == 0) {
+      return;
+    }
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+      try {
+        out.write(lines.toString());
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to update %s: %s", file, e.toString()));
+    }
+    completeIfDone();
+  }
+
+  private void completeIfDone() {
+    if (sealed && acknowledged.containsAll(expected) && marker.exists() && !marker.delete()) {
+      logger.warning(String.format("Unable to delete %s", marker));
+    }
+  }
+
+  /**
+   * @return whether the build still has documents to send.
+   */
+  public boolean isPending() {
+    return marker.exists();
+  }
+
+  /**
+   * Ships the documents of interrupted builds once the jobs are loaded, in the background so
+   * Jenkins starts without waiting for ELK.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void recoverOnStartup() {
+    if (!isEnabled() || JobPerformanceStatsUtilities.isApiKeyNull()) {
+      return;
+    }
+    JobPerformanceStatsExecutor.get().submit(new Runnable() {
+      @Override
+      public void run() {
+        recover();
+      }
+    });
+  }
+
+  /**
+   * Ships the missing documents of every build that still has a pending marker, the most recent
+   * builds first.
+   *
+   * @return the number of builds shipped again.
+   */
+  static int recover() {
+    File[] markers = new File(Jenkins.getInstance().getRootDir(), PENDING_DIRECTORY).listFiles();
+    if (markers == null) {
+      return 0;
+    }
+    Arrays.sort(markers, new Comparator<File>() {
+      @Override
+      public int compare(final File a, final File b) {
+        return Long.compare(b.lastModified(), a.lastModified());
+      }
+    });
+    int recovered = 0;
+    long now = System.currentTimeMillis();
+    for (File marker : markers) {
+      if (recovered >= MAX_RECOVERED_BUILDS || now - marker.lastModified() > MAX_PENDING_AGE_MILLIS) {
+        logger.warning(String.format("Giving up on the documents of pending build %s", read(marker)));
+        delete(marker);
+        continue;
+      }
+      String externalizableId = read(marker);
+      Run<?, ?> run = externalizableId != null ? Run.fromExternalizableId(externalizableId) : null;
+      if (run == null || run.isBuilding()) {
+        // Deleted since, or a marker left by a build that did not complete after all
+        delete(marker);
+        continue;
+      }
+      try {
+        JobPerformanceStatsRecord record = new JobPerformanceStatsBuildListener().completedRecord(run, TaskListener.NULL);
+        JobPerformanceStatsEvent event = record.getEvent();
+        logger.info(String.format("Sending the missing documents of %s", externalizableId));
+        JobPerformanceStatsHttpRequests.put(event.createPayload(), event.createStagePayload(), event.createStepPayload(),
+                JobPerformanceStatsBuildListener.EVENT, of(run));
+        recovered++;
+      } catch (Exception e) {
+        logger.warning(String.format("Unable to send the missing documents of %s: %s", externalizableId, e.toString()));
+      }
+    }
+    return recovered;
+  }
+
+  private static String read(final File marker) {
+    try {
+      byte[] bytes = Files.readAllBytes(marker.toPath());
+      return bytes.length > 0 ? new String(bytes, UTF_8) : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void delete(final File marker) {
+    if (!marker.delete()) {
+      logger.warning(String.format("Unable to delete %s", marker));
+    }
+  }
+}
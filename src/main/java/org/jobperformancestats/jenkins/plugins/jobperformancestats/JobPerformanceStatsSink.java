@@ -0,0 +1,212 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.init.Terminator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A destination of the records the plugin collects.
+ *
+ * <p>Every record is {@link #publish(JobPerformanceStatsRecord) published} to each enabled sink
+ * that {@link #accepts(JobPerformanceStatsRecord.Type) accepts} it, through a
+ * {@link JobPerformanceStatsSinkQueue} of its own: a slow or failing sink only fills its own
+ * queue, and never delays the other sinks. The sink receives records in batches of up to
+ * {@link #getMaxBatchSize()} records, from {@link #getWorkers()} threads.
+ *
+ * <p>Sinks are extensions: the ELK, metric endpoint, StatsD, NDJSON file and Prometheus sinks
+ * of this plugin, and those other plugins contribute by annotating a subclass with
+ * {@link hudson.Extension}.
+ */
+public abstract class JobPerformanceStatsSink implements ExtensionPoint {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsSink.class.getName());
+  static final long SHUTDOWN_DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  // Sink class name to its queue, so a sink keeps its queue while Jenkins runs
+  private static final ConcurrentMap<String, JobPerformanceStatsSinkQueue> queues = new ConcurrentHashMap<>();
+
+  /**
+   * @return the name of the sink, used in logs and thread names.
+   */
+  public abstract String getName();
+
+  /**
+   * @return true if the sink is configured and records should be published to it.
+   */
+  public boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * @param type - The type of a record.
+   * @return true if the sink sends records of that type. Other records are not queued for it.
+   */
+  public boolean accepts(final JobPerformanceStatsRecord.Type type) {
+    return true;
+  }
+
+  /**
+   * Called when Jenkins stops, once the queue of the sink was drained, to send what the sink
+   * buffers itself and release its resources.
+   */
+  public void shutdown() {
+  }
+
+  /**
+   * @return the maximum number of records given to a single {@link #send(List)} call.
+   */
+  public int getMaxBatchSize() {
+    return 1;
+  }
+
+  /**
+   * @return how long a batch waits for more records before it is sent, in milliseconds. With 0,
+   *         a batch holds the records already queued.
+   */
+  public long getMaxBatchDelayMillis() {
+    return 0;
+  }
+
+  /**
+   * @return the number of threads sending records to the sink. With more than one, batches are
+   *         sent concurrently and may complete out of order.
+   */
+  public int getWorkers() {
+    return 1;
+  }
+
+  /**
+   * @return the maximum number of records waiting for the sink, or 0 for the shipping queue capacity.
+   */
+  public int getQueueCapacity() {
+    return 0;
+  }
+
+  /**
+   * Sends a batch of records. Runs on the worker thread of the sink, so it may block.
+   *
+   * @param records - The records to send, oldest first.
+   * @throws Exception if the batch could not be sent. It is counted as failed and not retried.
+   */
+  public abstract void send(List<JobPerformanceStatsRecord> records) throws Exception;
+
+  /**
+   * @return the sinks registered as extensions.
+   */
+  public static List<JobPerformanceStatsSink> all() {
+    List<JobPerformanceStatsSink> sinks = new ArrayList<>();
+    try {
+      ExtensionList<JobPerformanceStatsSink> extensions = ExtensionList.lookup(JobPerformanceStatsSink.class);
+      if (extensions != null) {
+        sinks.addAll(extensions);
+      }
+    } catch (RuntimeException e) {
+      logger.fine(String.format("Unable to look up sink extensions: %s", e.toString()));
+    }
+    return sinks;
+  }
+
+  /**
+   * Queues a record for every enabled sink that accepts it. Never blocks, except under the
+   * {@link JobPerformanceStatsSinkQueue.OverflowPolicy#BLOCK} policy.
+   *
+   * @param record - The record to publish.
+   */
+  public static void publish(final JobPerformanceStatsRecord record) {
+    for (JobPerformanceStatsSink sink : all()) {
+      try {
+        if (sink.isEnabled() && sink.accepts(record.getType())) {
+          queueOf(sink).offer(record);
+        }
+      } catch (RuntimeException e) {
+        logger.warning(String.format("Unable to publish %s to sink %s: %s", record, sink.getName(), e.toString()));
+      }
+    }
+  }
+
+  private static JobPerformanceStatsSinkQueue queueOf(final JobPerformanceStatsSink sink) {
+    String key = sink.getClass().getName();
+    JobPerformanceStatsSinkQueue queue = queues.get(key);
+    if (queue == null) {
+      synchronized (queues) {
+        queue = queues.get(key);
+        if (queue == null) {
+          JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+          int capacity = sink.getQueueCapacity() > 0 ? sink.getQueueCapacity() : descriptor.getShippingQueueCapacity();
+          queue = new JobPerformanceStatsSinkQueue(sink, capacity, sink.getWorkers(),
+                  JobPerformanceStatsSinkQueue.parsePolicy(descriptor.getShippingOverflowPolicy()),
+                  descriptor.getShippingBlockTimeoutMillis());
+          queues.put(key, queue);
+        }
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * @return the queues of the sinks records were published to so far.
+   */
+  public static List<JobPerformanceStatsSinkQueue> getQueues() {
+    return new ArrayList<>(queues.values());
+  }
+
+  /**
+   * Waits until every sink sent the records queued for it.
+   *
+   * @param timeoutMillis - How long to wait at most.
+   * @return true if every queue is idle, false if the timeout expired first.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public static boolean awaitIdle(final long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (JobPerformanceStatsSinkQueue queue : getQueues()) {
+      if (!queue.awaitIdle(Math.max(0, deadline - System.currentTimeMillis()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replaces the sink queues after the global configuration changed. Records already queued are
+   * still sent.
+   */
+  public static void reconfigure() {
+    synchronized (queues) {
+      for (JobPerformanceStatsSinkQueue queue : queues.values()) {
+        queue.shutdown(0);
+      }
+      queues.clear();
+    }
+  }
+
+  /**
+   * Drains the sink queues when Jenkins stops, so builds that just completed are not lost.
+   */
+  @Terminator
+  public static void drainOnShutdown() {
+    List<JobPerformanceStatsSinkQueue> draining;
+    synchronized (queues) {
+      draining = getQueues();
+      queues.clear();
+    }
+    long deadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_MILLIS;
+    for (JobPerformanceStatsSinkQueue queue : draining) {
+      queue.shutdown(Math.max(1, deadline - System.currentTimeMillis()));
+    }
+    for (JobPerformanceStatsSink sink : all()) {
+      try {
+        sink.shutdown();
+      } catch (RuntimeException e) {
+        logger.warning(String.format("Unable to shut sink %s down: %s", sink.getName(), e.toString()));
+      }
+    }
+  }
+}
@@ -0,0 +1,273 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The bounded queue and worker threads of one {@link JobPerformanceStatsSink}.
+ *
+ * <p>Each worker takes the records queued for the sink in batches and hands them to
+ * {@link JobPerformanceStatsSink#send(List)}. A batch that fails is counted and logged, and the
+ * worker carries on with the next one. When the queue is full the configured
+ * {@link OverflowPolicy} decides which record is dropped, or how long the caller may wait for room.
+ */
+public class JobPerformanceStatsSinkQueue implements Runnable {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsSinkQueue.class.getName());
+  static final int DEFAULT_CAPACITY = 1000;
+  static final int DEFAULT_WORKERS = 2;
+  static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 500;
+  private static final long POLL_MILLIS = 1000;
+
+  /**
+   * What to do with a record offered while the queue is full.
+   */
+  public enum OverflowPolicy {
+    /** Discard the oldest queued record to make room for the new one. */
+    DROP_OLDEST,
+    /** Discard the new record. */
+    DROP_NEWEST,
+    /** Wait up to the configured timeout for room, then discard the new record. */
+    BLOCK
+  }
+
+  private final JobPerformanceStatsSink sink;
+  private final BlockingQueue<JobPerformanceStatsRecord> queue;
+  private final OverflowPolicy policy;
+  private final long blockTimeoutMillis;
+  private final List<Thread> workers = new ArrayList<>();
+  // Records queued or being sent, so idleness does not depend on when the worker polls
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean running = true;
+
+  /**
+   * @param sink - The sink the records are sent to, from a single worker.
+   * @param capacity - The maximum number of queued records.
+   * @param policy - The {@link OverflowPolicy} applied when the queue is full.
+   * @param blockTimeoutMillis - How long {@link OverflowPolicy#BLOCK} waits for room.
+   */
+  public JobPerformanceStatsSinkQueue(final JobPerformanceStatsSink sink, final int capacity,
+                                      final OverflowPolicy policy,
+                                      final long blockTimeoutMillis) {
+    this(sink, capacity, 1, policy, blockTimeoutMillis);
+  }
+
+  /**
+   * @param sink - The sink the records are sent to.
+   * @param capacity - The maximum number of queued records.
+   * @param workers - The number of threads sending records to the sink.
+   * @param policy - The {@link OverflowPolicy} applied when the queue is full.
+   * @param blockTimeoutMillis - How long {@link OverflowPolicy#BLOCK} waits for room.
+   */
+  public JobPerformanceStatsSinkQueue(final JobPerformanceStatsSink sink, final int capacity, final int workers,
+                                      final OverflowPolicy policy,
+                                      final long blockTimeoutMillis) {
+    this.sink = sink;
+    this.queue = new ArrayBlockingQueue<>(capacity > 0 ? capacity : DEFAULT_CAPACITY);
+    this.policy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+    this.blockTimeoutMillis = blockTimeoutMillis > 0 ? blockTimeoutMillis
+                                                    : DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    int threads = Math.max(1, workers);
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(this, "JobPerformanceStats sink " + sink.getName() + (threads > 1 ? " #" + (i + 1) : ""));
+      worker.setDaemon(true);
+      this.workers.add(worker);
+    }
+    for (Thread worker : this.workers) {
+      worker.start();
+    }
+  }
+
+  static OverflowPolicy parsePolicy(final String policy) {
+    if (policy == null) {
+      return OverflowPolicy.DROP_OLDEST;
+    }
+    try {
+      return OverflowPolicy.valueOf(policy);
+    } catch (IllegalArgumentException e) {
+      logger.warning(String.format("Unknown overflow policy '%s', using %s", policy, OverflowPolicy.DROP_OLDEST));
+      return OverflowPolicy.DROP_OLDEST;
+    }
+  }
+
+  /**
+   * Queues a record for the sink.
+   *
+   * @param record - The record to send.
+   * @return true if the record was queued, false if it was dropped.
+   */
+  public boolean offer(final JobPerformanceStatsRecord record) {
+    if (!running) {
+      drop(record, "the sink queue is shut down");
+      return false;
+    }
+    pending.incrementAndGet();
+    boolean queued;
+    switch (policy) {
+      case DROP_NEWEST:
+        queued = queue.offer(record);
+        break;
+      case BLOCK:
+        try {
+          queued = queue.offer(record, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          queued = false;
+        }
+        break;
+      case DROP_OLDEST:
+      default:
+        while (!(queued = queue.offer(record))) {
+          JobPerformanceStatsRecord oldest = queue.poll();
+          if (oldest != null) {
+            pending.decrementAndGet();
+            drop(oldest, "the sink queue is full");
+          }
+        }
+        break;
+    }
+    if (!queued) {
+      pending.decrementAndGet();
+      drop(record, "the sink queue is full");
+    }
+    return queued;
+  }
+
+  private void drop(final JobPerformanceStatsRecord record, final String reason) {
+    long count = dropped.incrementAndGet();
+    // Log the first drop and then every 100th, a full queue drops a lot at once
+    if (count == 1 || count % 100 == 0) {
+      logger.warning(String.format("Dropped %s for sink %s because %s (%s dropped so far)",
+              record, sink.getName(), reason, count));
+    }
+  }
+
+  @Override
+  public void run() {
+    List<JobPerformanceStatsRecord> batch = new ArrayList<>();
+    while (running || !queue.isEmpty()) {
+      try {
+        JobPerformanceStatsRecord first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        fill(batch);
+        send(batch);
+      } catch (InterruptedException e) {
+        // Stop waiting for records, the loop ends once the queue is empty
+        running = false;
+      } finally {
+        pending.addAndGet(-batch.size());
+        batch.clear();
+      }
+    }
+  }
+
+  private void fill(final List<JobPerformanceStatsRecord> batch) throws InterruptedException {
+    int max = Math.max(1, sink.getMaxBatchSize());
+    long deadline = System.currentTimeMillis() + Math.max(0, sink.getMaxBatchDelayMillis());
+    while (batch.size() < max) {
+      long remaining = deadline - System.currentTimeMillis();
+      JobPerformanceStatsRecord next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+      if (next == null) {
+        return;
+      }
+      batch.add(next);
+    }
+  }
+
+  private void send(final List<JobPerformanceStatsRecord> batch) {
+    try {
+      sink.send(batch);
+      sent.addAndGet(batch.size());
+    } catch (Exception e) {
+      failed.addAndGet(batch.size());
+      logger.warning(String.format("Sink %s failed to send %s records: %s", sink.getName(), batch.size(), e.toString()));
+    }
+  }
+
+  /**
+   * Stops accepting records. The workers send the records already queued, then end.
+   *
+   * @param timeoutMillis - How long to wait for the workers to end, or 0 not to wait.
+   */
+  public void shutdown(final long timeoutMillis) {
+    running = false;
+    if (timeoutMillis <= 0) {
+      return;
+    }
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    boolean alive = false;
+    for (Thread worker : workers) {
+      try {
+        worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      alive |= worker.isAlive();
+    }
+    if (alive) {
+      logger.warning(String.format("Sink %s did not send its %s queued records before shutdown", sink.getName(), queue.size()));
+    }
+  }
+
+  /**
+   * Waits until the queued records have been sent. Mostly useful for tests.
+   *
+   * @param timeoutMillis - How long to wait at most.
+   * @return true if the queue is idle, false if the timeout expired first.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean awaitIdle(final long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  public JobPerformanceStatsSink getSink() {
+    return sink;
+  }
+
+  /**
+   * @return the number of records waiting in the queue.
+   */
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * @return the number of records the sink sent.
+   */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * @return the number of records in batches the sink failed to send.
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return the number of records dropped because the queue was full or shut down.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+}
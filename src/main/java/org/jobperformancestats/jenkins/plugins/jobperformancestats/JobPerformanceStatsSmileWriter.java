@@ -0,0 +1,294 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+/**
+ * Streaming Smile encoder, a drop-in replacement of {@link JobPerformanceStatsJsonWriter}.
+ *
+ * <p>Smile is the binary form of JSON Elasticsearch accepts as <code>application/smile</code>.
+ * Field names and strings are written as their UTF-8 bytes behind a length prefix, with no
+ * quoting or escaping, and numbers as variable-length binary integers and raw IEEE 754 bits,
+ * which are cheaper to produce and for ELK to parse than their decimal text.
+ *
+ * <p>Every top-level value starts with the Smile header and {@link #newline()} writes the 0xFF
+ * end marker, which is what separates the documents of a Smile <code>_bulk</code> body. Shared
+ * names and values are not used, so each document can be copied into a request on its own.
+ *
+ * <p>A writer is not thread-safe.
+ */
+public class JobPerformanceStatsSmileWriter extends JobPerformanceStatsJsonWriter {
+
+  // ':' ')' '\n', then version 0 without shared names, shared values or raw binary
+  private static final byte[] HEADER = {':', ')', '\n', 0};
+  private static final byte[] REPLACEMENT = {(byte) 0xef, (byte) 0xbf, (byte) 0xbd};
+
+  private static final int TOKEN_EMPTY_STRING = 0x20;
+  private static final int TOKEN_NULL = 0x21;
+  private static final int TOKEN_FALSE = 0x22;
+  private static final int TOKEN_TRUE = 0x23;
+  private static final int TOKEN_INT_32 = 0x24;
+  private static final int TOKEN_INT_64 = 0x25;
+  private static final int TOKEN_FLOAT_64 = 0x29;
+  private static final int TOKEN_TINY_ASCII = 0x40;
+  private static final int TOKEN_SMALL_ASCII = 0x60;
+  private static final int TOKEN_TINY_UNICODE = 0x80;
+  private static final int TOKEN_SMALL_UNICODE = 0xa0;
+  private static final int TOKEN_SMALL_INT = 0xc0;
+  private static final int TOKEN_LONG_ASCII = 0xe0;
+  private static final int TOKEN_LONG_UNICODE = 0xe4;
+  private static final int TOKEN_START_ARRAY = 0xf8;
+  private static final int TOKEN_END_ARRAY = 0xf9;
+  private static final int TOKEN_START_OBJECT = 0xfa;
+  private static final int TOKEN_END_OBJECT = 0xfb;
+  private static final int TOKEN_END_STRING = 0xfc;
+  private static final int TOKEN_END_CONTENT = 0xff;
+  private static final int KEY_LONG_UNICODE = 0x34;
+  private static final int KEY_SHORT_ASCII = 0x80;
+  private static final int KEY_SHORT_UNICODE = 0xc0;
+
+  // The nesting level of the current object or array, 0 at the top level
+  private int depth = 0;
+
+  public JobPerformanceStatsSmileWriter() {
+    super();
+  }
+
+  /**
+   * @param capacity - The initial size of the buffer, in bytes.
+   */
+  public JobPerformanceStatsSmileWriter(final int capacity) {
+    super(capacity);
+  }
+
+  @Override
+  public Encoding getEncoding() {
+    return Encoding.SMILE;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter reset() {
+    depth = 0;
+    return super.reset();
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter beginObject() {
+    begin();
+    writeToken(TOKEN_START_OBJECT);
+    depth++;
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter endObject() {
+    writeToken(TOKEN_END_OBJECT);
+    depth--;
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter beginArray() {
+    begin();
+    writeToken(TOKEN_START_ARRAY);
+    depth++;
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter endArray() {
+    writeToken(TOKEN_END_ARRAY);
+    depth--;
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter name(final String name) {
+    int start = reserve();
+    int length = writeUtf8(name);
+    if (length == 0) {
+      buffer[start] = (byte) TOKEN_EMPTY_STRING;
+    } else if (length == name.length() && length <= 64) {
+      buffer[start] = (byte) (KEY_SHORT_ASCII + length - 1);
+    } else if (length != name.length() && length >= 2 && length <= 57) {
+      buffer[start] = (byte) (KEY_SHORT_UNICODE + length - 2);
+    } else {
+      buffer[start] = (byte) KEY_LONG_UNICODE;
+      writeToken(TOKEN_END_STRING);
+    }
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter value(final CharSequence value) {
+    begin();
+    if (value == null) {
+      writeToken(TOKEN_NULL);
+      return this;
+    }
+    int start = reserve();
+    int length = writeUtf8(value);
+    boolean ascii = length == value.length();
+    if (length == 0) {
+      buffer[start] = (byte) TOKEN_EMPTY_STRING;
+    } else if (ascii && length <= 32) {
+      buffer[start] = (byte) (TOKEN_TINY_ASCII + length - 1);
+    } else if (ascii && length <= 64) {
+      buffer[start] = (byte) (TOKEN_SMALL_ASCII + length - 33);
+    } else if (!ascii && length <= 33) {
+      buffer[start] = (byte) (TOKEN_TINY_UNICODE + length - 2);
+    } else if (!ascii && length <= 65) {
+      buffer[start] = (byte) (TOKEN_SMALL_UNICODE + length - 34);
+    } else {
+      buffer[start] = (byte) (ascii ? TOKEN_LONG_ASCII : TOKEN_LONG_UNICODE);
+      writeToken(TOKEN_END_STRING);
+    }
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter value(final long value) {
+    begin();
+    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      int zigzag = ((int) value << 1) ^ ((int) value >> 31);
+      if (zigzag >= 0 && zigzag <= 0x1f) {
+        writeToken(TOKEN_SMALL_INT + zigzag);
+      } else {
+        writeVInt(TOKEN_INT_32, zigzag & 0xffffffffL);
+      }
+    } else {
+      writeVInt(TOKEN_INT_64, (value << 1) ^ (value >> 63));
+    }
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter value(final double value) {
+    begin();
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      // Same as the JSON writer, ELK rejects them in numeric fields
+      writeToken(TOKEN_NULL);
+      return this;
+    }
+    long bits = Double.doubleToRawLongBits(value);
+    ensure(11);
+    buffer[size++] = (byte) TOKEN_FLOAT_64;
+    // 64 bits as 10 bytes of 7 bits, most significant first
+    for (int shift = 63; shift >= 0; shift -= 7) {
+      buffer[size++] = (byte) ((bits >>> shift) & 0x7f);
+    }
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter value(final boolean value) {
+    begin();
+    writeToken(value ? TOKEN_TRUE : TOKEN_FALSE);
+    return this;
+  }
+
+  @Override
+  public JobPerformanceStatsJsonWriter raw(final byte[] bytes, final int offset, final int length) {
+    writeBytes(bytes, offset, length);
+    depth = 0;
+    return this;
+  }
+
+  /**
+   * Appends the 0xFF end marker, which ends a document of a <code>_bulk</code> body, and starts a
+   * new top-level value.
+   *
+   * @return this writer.
+   */
+  @Override
+  public JobPerformanceStatsJsonWriter newline() {
+    writeToken(TOKEN_END_CONTENT);
+    depth = 0;
+    return this;
+  }
+
+  /**
+   * Writes the header before a top-level value.
+   */
+  private void begin() {
+    if (depth == 0) {
+      writeBytes(HEADER, 0, HEADER.length);
+    }
+  }
+
+  /**
+   * Reserves the byte of a token that depends on what follows.
+   *
+   * @return the position of the reserved byte.
+   */
+  private int reserve() {
+    ensure(1);
+    return size++;
+  }
+
+  private void writeToken(final int token) {
+    ensure(1);
+    buffer[size++] = (byte) token;
+  }
+
+  /**
+   * Writes an unsigned variable-length integer: 7 bits per byte, most significant first, and 6
+   * bits in the last byte, which has its high bit set.
+   */
+  private void writeVInt(final int token, final long value) {
+    long remaining = value >>> 6;
+    int groups = 0;
+    for (long rest = remaining; rest != 0; rest >>>= 7) {
+      groups++;
+    }
+    ensure(groups + 2);
+    buffer[size++] = (byte) token;
+    for (int group = groups - 1; group >= 0; group--) {
+      buffer[size++] = (byte) ((remaining >>> (7 * group)) & 0x7f);
+    }
+    buffer[size++] = (byte) (0x80 | (value & 0x3f));
+  }
+
+  /**
+   * Writes the UTF-8 bytes of a string, replacing unpaired surrogates.
+   *
+   * @return the number of bytes written.
+   */
+  private int writeUtf8(final CharSequence value) {
+    int start = size;
+    int length = value.length();
+    ensure(length);
+    int i = 0;
+    // Plain ASCII, by far the most common, fits in the space ensured above
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        break;
+      }
+      buffer[size++] = (byte) c;
+    }
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        ensure(1);
+        buffer[size++] = (byte) c;
+      } else if (c < 0x800) {
+        ensure(2);
+        buffer[size++] = (byte) (0xc0 | (c >> 6));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        ensure(4);
+        buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        writeBytes(REPLACEMENT, 0, REPLACEMENT.length);
+      } else {
+        ensure(3);
+        buffer[size++] = (byte) (0xe0 | (c >> 12));
+        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return size - start;
+  }
+}
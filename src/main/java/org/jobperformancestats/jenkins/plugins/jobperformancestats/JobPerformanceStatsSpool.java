@@ -0,0 +1,501 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import hudson.init.Terminator;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Durable write-ahead spool for the documents sent to ELK.
+ *
+ * <p>Documents are appended to fixed-size, memory-mapped segment files under
+ * <code>JENKINS_HOME/jobperformancestats-spool</code> before they are sent, and are only
+ * acknowledged once ELK accepted them. The acknowledged position is kept in a small cursor file,
+ * so the backlog survives an ELK outage as well as a controller restart, and is drained by the
+ * {@link JobPerformanceStatsSpoolReplayer}.
+ *
+ * <p>Each record is stored as its length, a CRC32 of its content and the content itself. A zero
+ * length marks the end of the written part of a segment. The oldest segments are dropped when
+ * the spool exceeds its size cap or its retention period.
+ */
+public class JobPerformanceStatsSpool {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsSpool.class.getName());
+  static final String DIRECTORY = "jobperformancestats-spool";
+  static final int DEFAULT_SEGMENT_MEGABYTES = 64;
+  static final int DEFAULT_MAX_MEGABYTES = 1024;
+  static final int DEFAULT_RETENTION_HOURS = 72;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String CURSOR_FILE = "cursor";
+  private static final int HEADER = 8;
+  private static final long MEGABYTE = 1024L * 1024L;
+
+  private static JobPerformanceStatsSpool instance;
+
+  private final File directory;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final long retentionMillis;
+  private final TreeSet<Long> segments = new TreeSet<>();
+  private final RandomAccessFile cursor;
+
+  private long writeSegment;
+  private int writeOffset;
+  private MappedByteBuffer writeBuffer;
+  private long readSegment = -1;
+  private MappedByteBuffer readBuffer;
+  private long ackSegment;
+  private int ackOffset;
+  private long droppedSegments = 0;
+  // Once closed the segments are unmapped, and must not be touched again
+  private boolean closed = false;
+
+  /**
+   * Opens the spool, creating the directory if needed and recovering the write position of the
+   * last segment after a restart.
+   *
+   * @param directory - The directory holding the segment files.
+   * @param segmentBytes - The size of a segment file.
+   * @param maxBytes - The maximum total size of the segment files.
+   * @param retentionMillis - How long a finished segment is kept before it is dropped.
+   * @throws IOException if the spool cannot be opened.
+   */
+  public JobPerformanceStatsSpool(final File directory, final int segmentBytes, final long maxBytes,
+                                  final long retentionMillis) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = Math.max(maxBytes, 2L * segmentBytes);
+    this.retentionMillis = retentionMillis;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create spool directory " + directory);
+    }
+
+    String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    for (String name : names != null ? names : new String[0]) {
+      try {
+        segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+      } catch (NumberFormatException e) {
+        logger.warning(String.format("Ignoring unexpected file %s in the spool", name));
+      }
+    }
+
+    this.cursor = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+    if (cursor.length() >= 12) {
+      cursor.seek(0);
+      ackSegment = cursor.readLong();
+      ackOffset = cursor.readInt();
+    }
+
+    if (segments.isEmpty()) {
+      writeSegment = Math.max(ackSegment, 0);
+      writeBuffer = map(writeSegment, true);
+      segments.add(writeSegment);
+      writeOffset = 0;
+    } else {
+      writeSegment = segments.last();
+      writeBuffer = map(writeSegment, false);
+      writeOffset = scan(writeBuffer);
+    }
+    if (!segments.contains(ackSegment)) {
+      ackSegment = segments.first();
+      ackOffset = 0;
+    }
+    logger.fine(String.format("Opened spool %s: %s segments, backlog starts at %s:%s",
+            directory, segments.size(), ackSegment, ackOffset));
+  }
+
+  /**
+   * @return the shared spool, or null if spooling is disabled or the spool cannot be opened.
+   */
+  public static synchronized JobPerformanceStatsSpool get() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor == null || !descriptor.isSpoolEnabled()) {
+      return null;
+    }
+    return open();
+  }
+
+  /**
+   * Opens the shared spool even when spooling is disabled, for documents that could not be sent.
+   *
+   * @return the shared spool, or null if it cannot be opened.
+   */
+  public static synchronized JobPerformanceStatsSpool open() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (instance == null) {
+      if (descriptor == null) {
+        // Jenkins is not running, there is no home to spool to
+        return null;
+      }
+      int segmentMegabytes = descriptor.getSpoolSegmentMegabytes() > 0 ? descriptor.getSpoolSegmentMegabytes() : DEFAULT_SEGMENT_MEGABYTES;
+      int maxMegabytes = descriptor.getSpoolMaxMegabytes() > 0 ? descriptor.getSpoolMaxMegabytes() : DEFAULT_MAX_MEGABYTES;
+      int retentionHours = descriptor.getSpoolRetentionHours() > 0 ? descriptor.getSpoolRetentionHours() : DEFAULT_RETENTION_HOURS;
+      try {
+        instance = new JobPerformanceStatsSpool(new File(Jenkins.getInstance().getRootDir(), DIRECTORY),
+                (int) (segmentMegabytes * MEGABYTE), maxMegabytes * MEGABYTE, TimeUnit.HOURS.toMillis(retentionHours));
+        JobPerformanceStatsSpoolReplayer.start(instance);
+      } catch (IOException e) {
+        logger.severe(String.format("Unable to open the spool, documents are sent without it: %s", e.toString()));
+        return null;
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Closes the shared spool after the global configuration changed. The next call to
+   * {@link #get()} opens it again with the new settings; the backlog is kept.
+   */
+  public static synchronized void reconfigure() {
+    shutdown();
+  }
+
+  /**
+   * Stops the replayer and flushes the spool to disk when Jenkins stops.
+   */
+  @Terminator
+  public static synchronized void shutdown() {
+    JobPerformanceStatsSpoolReplayer.stop();
+    if (instance != null) {
+      instance.close();
+      instance = null;
+    }
+  }
+
+  /**
+   * Appends a record at the end of the spool.
+   *
+   * @param record - The record content.
+   * @throws IOException if the record cannot be written.
+   */
+  public void append(final byte[] record) throws IOException {
+    append(record, 0, record.length);
+  }
+
+  /**
+   * Appends part of a byte array as one record.
+   *
+   * @param bytes - The bytes holding the record.
+   * @param offset - The offset of the record.
+   * @param length - The length of the record.
+   * @throws IOException if the record is larger than a segment or a new segment cannot be created.
+   */
+  public synchronized void append(final byte[] bytes, final int offset, final int length) throws IOException {
+    checkOpen();
+    int needed = HEADER + length;
+    if (needed > segmentBytes) {
+      throw new IOException(String.format("Record of %s bytes does not fit in a spool segment", length));
+    }
+    if (writeOffset + needed > segmentBytes) {
+      roll();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, offset, length);
+    writeBuffer.position(writeOffset + HEADER);
+    writeBuffer.put(bytes, offset, length);
+    // The length is written last, so a torn record is never seen as complete
+    writeBuffer.putInt(writeOffset + 4, (int) crc.getValue());
+    writeBuffer.putInt(writeOffset, length);
+    writeOffset += needed;
+    if (writeOffset + 4 <= segmentBytes) {
+      writeBuffer.putInt(writeOffset, 0);
+    }
+  }
+
+  /**
+   * Reads the oldest records that were not acknowledged yet. The same records are returned until
+   * they are acknowledged with {@link #ack(Batch)}.
+   *
+   * @param maxRecords - The maximum number of records to read.
+   * @param maxBatchBytes - The maximum total size of the records to read.
+   * @return the {@link Batch} of records, possibly empty.
+   * @throws IOException if a segment cannot be read.
+   */
+  public synchronized Batch read(final int maxRecords, final long maxBatchBytes) throws IOException {
+    checkOpen();
+    List<byte[]> records = new ArrayList<>();
+    long bytes = 0;
+    long segment = ackSegment;
+    int offset = ackOffset;
+
+    while (records.size() < maxRecords) {
+      if (segment == writeSegment && offset >= writeOffset) {
+        break;
+      }
+      MappedByteBuffer buffer = segment == writeSegment ? writeBuffer : readBuffer(segment);
+      byte[] record = buffer != null ? readRecord(buffer, offset) : null;
+      if (record == null) {
+        // End of a finished segment, continue with the next one
+        Long next = segments.higher(segment);
+        if (next == null) {
+          break;
+        }
+        segment = next;
+        offset = 0;
+        continue;
+      }
+      if (!records.isEmpty() && bytes + record.length > maxBatchBytes) {
+        break;
+      }
+      records.add(record);
+      bytes += record.length;
+      offset += HEADER + record.length;
+    }
+    return new Batch(records, bytes, segment, offset);
+  }
+
+  /**
+   * Acknowledges the records of a batch, deleting the segments that are fully acknowledged.
+   *
+   * @param batch - A batch returned by {@link #read(int, long)}.
+   * @throws IOException if the cursor cannot be written.
+   */
+  public synchronized void ack(final Batch batch) throws IOException {
+    checkOpen();
+    if (batch.endSegment < ackSegment || !segments.contains(batch.endSegment)) {
+      // The segment was dropped meanwhile, the cursor already moved past it
+      return;
+    }
+    ackSegment = batch.endSegment;
+    ackOffset = batch.endOffset;
+    cursor.seek(0);
+    cursor.writeLong(ackSegment);
+    cursor.writeInt(ackOffset);
+    while (segments.first() < ackSegment) {
+      delete(segments.first());
+    }
+  }
+
+  /**
+   * Flushes written records to disk and applies the retention period. Called periodically by
+   * the {@link JobPerformanceStatsSpoolReplayer}.
+   */
+  public synchronized void maintain() {
+    if (closed) {
+      return;
+    }
+    writeBuffer.force();
+    long oldest = System.currentTimeMillis() - retentionMillis;
+    while (segments.first() != writeSegment && segmentFile(segments.first()).lastModified() < oldest) {
+      logger.warning(String.format("Dropping spool segment %s, it is older than the retention period", segments.first()));
+      drop(segments.first());
+    }
+  }
+
+  /**
+   * @return the approximate number of bytes waiting to be acknowledged.
+   */
+  public synchronized long getBacklogBytes() {
+    return (writeSegment - ackSegment) * (long) segmentBytes + writeOffset - ackOffset;
+  }
+
+  /**
+   * @return the number of segments dropped because of the size cap or the retention period.
+   */
+  public synchronized long getDroppedSegments() {
+    return droppedSegments;
+  }
+
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeBuffer.force();
+      cursor.close();
+    } catch (IOException e) {
+      logger.warning(String.format("Error while closing the spool: %s", e.toString()));
+    }
+    unmap(writeBuffer);
+    unmap(readBuffer);
+    readSegment = -1;
+    readBuffer = null;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("The spool " + directory + " is closed");
+    }
+  }
+
+  private void roll() throws IOException {
+    writeBuffer.force();
+    MappedByteBuffer next = map(writeSegment + 1, true);
+    // The finished segment is mapped again for reading when the backlog reaches it
+    unmap(writeBuffer);
+    // Segments are mapped, so their modification time is set explicitly for the retention period
+    segmentFile(writeSegment).setLastModified(System.currentTimeMillis());
+    writeSegment++;
+    writeBuffer = next;
+    writeOffset = 0;
+    segments.add(writeSegment);
+    while ((long) segments.size() * segmentBytes > maxBytes) {
+      logger.warning(String.format("Spool is over %s bytes, dropping segment %s", maxBytes, segments.first()));
+      drop(segments.first());
+    }
+  }
+
+  private void drop(final long segment) {
+    droppedSegments++;
+    if (segment >= ackSegment) {
+      Long next = segments.higher(segment);
+      ackSegment = next != null ? next : writeSegment;
+      ackOffset = 0;
+    }
+    delete(segment);
+  }
+
+  private void delete(final long segment) {
+    segments.remove(segment);
+    if (segment == readSegment) {
+      unmap(readBuffer);
+      readSegment = -1;
+      readBuffer = null;
+    }
+    File file = segmentFile(segment);
+    if (!file.delete()) {
+      logger.fine(String.format("Unable to delete spool segment %s", file));
+    }
+  }
+
+  private MappedByteBuffer readBuffer(final long segment) throws IOException {
+    if (segment != readSegment) {
+      unmap(readBuffer);
+      readSegment = -1;
+      readBuffer = null;
+      readBuffer = map(segment, false);
+      readSegment = segment;
+    }
+    return readBuffer;
+  }
+
+  /**
+   * Releases the mapping of a segment now rather than when the buffer is garbage collected: until
+   * then the segment keeps its address space and, on Windows, its file cannot be deleted. The
+   * buffer must not be used afterwards, so only the spool calls this, holding its lock.
+   *
+   * @param buffer - The buffer to unmap, or null.
+   */
+  static void unmap(final MappedByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = null;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        // Before Java 9, the buffer has a cleaner of its own
+      }
+      if (invokeCleaner != null) {
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } else {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // The mapping is released when the buffer is garbage collected
+      logger.fine(String.format("Unable to unmap a spool segment: %s", e.toString()));
+    }
+  }
+
+  private MappedByteBuffer map(final long segment, final boolean create) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw")) {
+      if (create || file.length() < segmentBytes) {
+        file.setLength(segmentBytes);
+      }
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+  }
+
+  private File segmentFile(final long segment) {
+    return new File(directory, String.format("%020d%s", segment, SEGMENT_SUFFIX));
+  }
+
+  private int scan(final MappedByteBuffer buffer) {
+    int offset = 0;
+    byte[] record;
+    while ((record = readRecord(buffer, offset)) != null) {
+      offset += HEADER + record.length;
+    }
+    return offset;
+  }
+
+  private byte[] readRecord(final MappedByteBuffer buffer, final int offset) {
+    if (offset + HEADER > segmentBytes) {
+      return null;
+    }
+    int length = buffer.getInt(offset);
+    if (length <= 0 || offset + HEADER + length > segmentBytes) {
+      return null;
+    }
+    byte[] record = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + HEADER);
+    view.get(record);
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, length);
+    if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+      logger.warning(String.format("Corrupted spool record at offset %s, skipping the rest of the segment", offset));
+      return null;
+    }
+    return record;
+  }
+
+  /**
+   * Records read from the spool, together with the position following the last one.
+   */
+  public static class Batch {
+    private final List<byte[]> records;
+    private final long bytes;
+    private final long endSegment;
+    private final int endOffset;
+
+    Batch(final List<byte[]> records, final long bytes, final long endSegment, final int endOffset) {
+      this.records = records;
+      this.bytes = bytes;
+      this.endSegment = endSegment;
+      this.endOffset = endOffset;
+    }
+
+    public List<byte[]> getRecords() {
+      return records;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public boolean isEmpty() {
+      return records.isEmpty();
+    }
+  }
+}
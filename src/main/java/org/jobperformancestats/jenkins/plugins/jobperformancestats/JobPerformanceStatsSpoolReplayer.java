@@ -0,0 +1,172 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Background thread that drains the {@link JobPerformanceStatsSpool} into ELK.
+ *
+ * <p>The oldest unacknowledged records are sent as <code>_bulk</code> requests and acknowledged
+ * once ELK answered. While ELK is unreachable the replayer backs off exponentially and keeps the
+ * backlog on disk, then drains it after recovery. In ALIAS index mode, the replay waits until
+ * every write alias exists.
+ */
+public class JobPerformanceStatsSpoolReplayer implements Runnable {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsSpoolReplayer.class.getName());
+  private static final long IDLE_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long MAINTENANCE_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private static volatile JobPerformanceStatsSpoolReplayer replayer;
+  private static Thread thread;
+
+  private final JobPerformanceStatsSpool spool;
+  private final Object signal = new Object();
+  private volatile boolean running = true;
+  private boolean pending = false;
+  // Number of consecutive batches ELK throttled
+  private int throttles = 0;
+
+  JobPerformanceStatsSpoolReplayer(final JobPerformanceStatsSpool spool) {
+    this.spool = spool;
+  }
+
+  static synchronized void start(final JobPerformanceStatsSpool spool) {
+    stop();
+    replayer = new JobPerformanceStatsSpoolReplayer(spool);
+    thread = new Thread(replayer, "JobPerformanceStats spool replayer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  static synchronized void stop() {
+    if (replayer != null) {
+      replayer.running = false;
+      replayer.wakeUp();
+      try {
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      replayer = null;
+      thread = null;
+    }
+  }
+
+  /**
+   * Tells the replayer that new records were appended to the spool.
+   */
+  public static void notifyAppended() {
+    JobPerformanceStatsSpoolReplayer current = replayer;
+    if (current != null) {
+      current.wakeUp();
+    }
+  }
+
+  private void wakeUp() {
+    synchronized (signal) {
+      pending = true;
+      signal.notifyAll();
+    }
+  }
+
+  @Override
+  public void run() {
+    long backoff = MIN_BACKOFF_MILLIS;
+    long lastMaintenance = 0;
+    while (running) {
+      try {
+        synchronized (signal) {
+          if (!pending) {
+            signal.wait(IDLE_WAIT_MILLIS);
+          }
+          pending = false;
+        }
+        if (System.currentTimeMillis() - lastMaintenance > MAINTENANCE_PERIOD_MILLIS) {
+          spool.maintain();
+          lastMaintenance = System.currentTimeMillis();
+        }
+        drain();
+        backoff = MIN_BACKOFF_MILLIS;
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        logger.warning(String.format("Unable to replay the spool, retrying in %s ms: %s", backoff, e.toString()));
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+  }
+
+  private void drain() throws IOException {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    // Spooled documents would create plain indices named after write aliases that do not exist yet
+    if (!JobPerformanceStatsIndexRouter.get().checkAliases()) {
+      logger.finer("Waiting for the write aliases before replaying the spool");
+      return;
+    }
+    while (running) {
+      JobPerformanceStatsSpool.Batch batch = spool.read(Math.max(1, descriptor.getBulkMaxDocs()), descriptor.getBulkMaxBytes());
+      if (batch.isEmpty()) {
+        return;
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream((int) batch.getBytes());
+      for (byte[] record : batch.getRecords()) {
+        body.write(record, 0, record.length);
+      }
+      String result = JobPerformanceStatsHttpRequests.sendBulkRequest(body.toByteArray(), body.size());
+      JobPerformanceStatsBulkResponse response = JobPerformanceStatsBulkResponse.parse(result);
+      JobPerformanceStatsBulkWriter.STATS.accepted.addAndGet(response.getAccepted());
+      int requeued = 0;
+      for (JobPerformanceStatsBulkResponse.Item failure : response.getFailures()) {
+        if (failure.isRetryable()) {
+          // Spool records map one to one to bulk items, throttled ones go back to the end of the spool
+          spool.append(batch.getRecords().get(failure.getPosition()));
+          requeued++;
+        } else {
+          JobPerformanceStatsBulkWriter.STATS.rejected.incrementAndGet();
+          logger.warning(String.format("ELK rejected spooled document %s", failure));
+        }
+      }
+      spool.ack(batch);
+      logger.finer(String.format("Replayed %s spooled documents, %s bytes still spooled",
+              batch.getRecords().size(), spool.getBacklogBytes()));
+      if (requeued > 0) {
+        JobPerformanceStatsBulkWriter.STATS.retried.addAndGet(requeued);
+        throttled(requeued, ++throttles, descriptor);
+      } else {
+        throttles = 0;
+      }
+    }
+  }
+
+  /**
+   * Slows down the replay while ELK is throttling.
+   */
+  private void throttled(final int requeued, final int attempt,
+                         final JobPerformanceStatsBuildListener.DescriptorImpl descriptor) throws IOException {
+    long delay = Math.max(MIN_BACKOFF_MILLIS, JobPerformanceStatsHttpClient.backoff(attempt, descriptor));
+    logger.fine(String.format("ELK throttled %s spooled documents, pausing the replay for %s ms", requeued, delay));
+    synchronized (signal) {
+      try {
+        // Only stop() wakes the replayer up early, appended records can wait
+        long deadline = System.currentTimeMillis() + delay;
+        while (running && System.currentTimeMillis() < deadline) {
+          signal.wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while ELK was throttling");
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import com.timgroup.statsd.NonBlockingStatsDClient;
+import com.timgroup.statsd.StatsDClient;
+
+import java.util.logging.Logger;
+
+/**
+ * Holds the {@link StatsDClient} shared by all builds. The client is kept until the daemon host
+ * changes or Jenkins stops, so its sender thread packs the queued metrics into as few UDP
+ * datagrams as possible.
+ *
+ * <p>Senders lease the client for the metrics of a build and release it afterwards. A client
+ * replaced because the daemon host changed, or retired when Jenkins stops, is only stopped once
+ * its last lease is released, so the metrics of builds being sent are neither lost nor sent
+ * through a stopped client.
+ */
+public class JobPerformanceStatsStatsDClients {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsStatsDClients.class.getName());
+  static final String PREFIX = "jenkins.job";
+
+  /**
+   * Creates and stops the clients.
+   */
+  interface Factory {
+    Factory DOGSTATSD = new Factory() {
+      @Override
+      public StatsDClient create(final String host, final int port) {
+        return new NonBlockingStatsDClient(PREFIX, host, port);
+      }
+
+      @Override
+      public void stop(final StatsDClient client) {
+        client.stop();
+      }
+    };
+
+    /**
+     * @param host - The hostname of the StatsD daemon.
+     * @param port - The port of the StatsD daemon.
+     * @return a client sending to the daemon.
+     */
+    StatsDClient create(String host, int port);
+
+    /**
+     * @param client - A client no lease holds anymore, to stop after sending what it still holds.
+     */
+    void stop(StatsDClient client);
+  }
+
+  /**
+   * A client and the number of leases holding it.
+   */
+  private static final class Shared {
+    private final StatsDClient client;
+    private final String daemonHost;
+    private int leases = 0;
+    private boolean retired = false;
+
+    private Shared(final StatsDClient client, final String daemonHost) {
+      this.client = client;
+      this.daemonHost = daemonHost;
+    }
+  }
+
+  /**
+   * The client held by one sender. Released once, whatever the number of calls to {@link #release()}.
+   */
+  public final class Lease {
+    private final Shared shared;
+    private boolean released = false;
+
+    private Lease(final Shared shared) {
+      this.shared = shared;
+    }
+
+    public StatsDClient getClient() {
+      return shared.client;
+    }
+
+    /**
+     * Returns the client, stopping it if it was retired and this was its last lease.
+     */
+    public void release() {
+      StatsDClient stopped;
+      synchronized (JobPerformanceStatsStatsDClients.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+        shared.leases--;
+        stopped = shared.retired && shared.leases == 0 ? shared.client : null;
+      }
+      stop(stopped);
+    }
+  }
+
+  private final Factory factory;
+  private Shared current;
+
+  public JobPerformanceStatsStatsDClients() {
+    this(Factory.DOGSTATSD);
+  }
+
+  /**
+   * @param factory - Creates and stops the clients.
+   */
+  JobPerformanceStatsStatsDClients(final Factory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Leases the client of the daemon host, creating it on first use or when the daemon host
+   * changed. The client it replaces is stopped once its last lease is released.
+   *
+   * @param daemonHost - The StatsD daemon, as <code>host:port</code>.
+   * @return - A lease to release once the metrics are sent, or null if the daemon host is invalid.
+   */
+  public Lease lease(final String daemonHost) {
+    StatsDClient stopped = null;
+    Lease lease = null;
+    synchronized (this) {
+      if (current == null || !current.daemonHost.equals(daemonHost)) {
+        stopped = retireCurrent();
+        try {
+          current = new Shared(factory.create(daemonHost.split(":")[0],
+                  Integer.parseInt(daemonHost.split(":")[1])), daemonHost);
+          logger.finer(String.format("Created new DogStatsD client (%s)", daemonHost));
+        } catch (Exception e) {
+          logger.severe(String.format("Error while configuring StatsDClient. Exception: %s", e.toString()));
+        }
+      }
+      if (current != null) {
+        current.leases++;
+        lease = new Lease(current);
+      }
+    }
+    stop(stopped);
+    return lease;
+  }
+
+  /**
+   * Retires the client, which is stopped, sending the metrics it still holds, once its last lease
+   * is released. The next lease creates a new one.
+   */
+  public void retire() {
+    StatsDClient stopped;
+    synchronized (this) {
+      stopped = retireCurrent();
+    }
+    stop(stopped);
+  }
+
+  /**
+   * @return - The number of leases of the current client.
+   */
+  synchronized int getLeases() {
+    return current != null ? current.leases : 0;
+  }
+
+  /**
+   * @return - The client to stop now, if no lease holds it.
+   */
+  private StatsDClient retireCurrent() {
+    if (current == null) {
+      return null;
+    }
+    Shared retired = current;
+    current = null;
+    retired.retired = true;
+    return retired.leases == 0 ? retired.client : null;
+  }
+
+  // Stopping waits for the queued metrics to be sent, so it runs outside of the lock
+  private void stop(final StatsDClient client) {
+    if (client == null) {
+      return;
+    }
+    try {
+      factory.stop(client);
+    } catch (Exception e) {
+      logger.warning(String.format("Unable to stop StatsDClient. Exception: %s", e.toString()));
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import com.timgroup.statsd.StatsDClient;
+import com.timgroup.statsd.StatsDClientException;
+
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Built-in sink sending the completed counter and the KPIs of builds (lead time, cycle time,
+ * MTTR, feedback time and MTBF) to the configured StatsD daemon.
+ */
+@Extension
+public class JobPerformanceStatsStatsDSink extends JobPerformanceStatsSink {
+
+  private static final Logger logger =  Logger.getLogger(JobPerformanceStatsStatsDSink.class.getName());
+
+  @Override
+  public String getName() {
+    return "StatsD";
+  }
+
+  @Override
+  public boolean isEnabled() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    return descriptor != null && descriptor.getDaemonHost() != null
+            && JobPerformanceStatsUtilities.isValidDaemon(descriptor.getDaemonHost());
+  }
+
+  @Override
+  public boolean accepts(final JobPerformanceStatsRecord.Type type) {
+    return type == JobPerformanceStatsRecord.Type.BUILD_COMPLETED;
+  }
+
+  @Override
+  public void send(final List<JobPerformanceStatsRecord> records) {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    logger.fine(String.format("Sending 'completed' counter to %s ", descriptor.getDaemonHost()));
+    // The client is a threadpool so instead of creating a new instance of the pool
+    // we lease the existing one registered with Jenkins, and leave it running.
+    JobPerformanceStatsStatsDClients.Lease lease = descriptor.leaseClient();
+    if (lease == null) {
+      return;
+    }
+    try {
+      StatsDClient statsd = lease.getClient();
+      for (JobPerformanceStatsRecord record : records) {
+        send(statsd, record);
+      }
+    } finally {
+      // A client replaced meanwhile is stopped once its last lease is released
+      lease.release();
+    }
+  }
+
+  private void send(final StatsDClient statsd, final JobPerformanceStatsRecord record) {
+    Run<?, ?> run = record.getRun();
+    String[] statsdTags = record.getStatsdTags();
+    try {
+      statsd.incrementCounter("completed", statsdTags);
+      logger.fine(String.format("Attempted to send 'completed' counter with tags: %s", Arrays.toString(statsdTags)));
+
+      if (run == null) {
+        // The build was deleted since it completed, there is no history to compute KPIs from
+        return;
+      }
+      logger.fine("Computing KPI metrics");
+      // Send KPIs
+      if (run.getResult() == Result.SUCCESS) {
+        long mttr = getMeanTimeToRecovery(run);
+        long cycleTime = getCycleTime(run);
+        long leadTime = run.getDuration() + mttr;
+
+        statsd.gauge("leadtime", leadTime / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE, statsdTags);
+        if (cycleTime > 0) {
+          statsd.gauge("cycletime", cycleTime / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE, statsdTags);
+        }
+        if (mttr > 0) {
+          statsd.gauge("mttr", mttr / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE, statsdTags);
+        }
+      } else {
+        long feedbackTime = run.getDuration();
+        long mtbf = getMeanTimeBetweenFailure(run);
+
+        statsd.gauge("feedbacktime", feedbackTime / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE, statsdTags);
+
+        if (mtbf > 0) {
+          statsd.gauge("mtbf", mtbf / JobPerformanceStatsBuildListener.THOUSAND_DOUBLE, statsdTags);
+        }
+      }
+
+    } catch (StatsDClientException e) {
+      logger.severe(String.format("Runtime exception thrown using the StatsDClient. Exception: %s", e.getMessage()));
+    }
+  }
+
+  /**
+   * Stops the shared client once the builds being sent released it, which sends the metrics it
+   * still holds.
+   */
+  @Override
+  public void shutdown() {
+    JobPerformanceStatsBuildListener.DescriptorImpl descriptor = JobPerformanceStatsUtilities.getJobPerformanceStatsDescriptor();
+    if (descriptor != null) {
+      descriptor.releaseClient();
+    }
+  }
+
+  private long getMeanTimeBetweenFailure(Run<?, ?> run) {
+    Run<?, ?> lastGreenRun = run.getPreviousNotFailedBuild();
+    if (lastGreenRun != null) {
+      return run.getStartTimeInMillis() - lastGreenRun.getStartTimeInMillis();
+    }
+    return 0;
+  }
+
+  private long getCycleTime(Run<?, ?> run) {
+    Run<?, ?> previousSuccessfulBuild = run.getPreviousSuccessfulBuild();
+    if (previousSuccessfulBuild != null) {
+      return (run.getStartTimeInMillis() + run.getDuration()) -
+              (previousSuccessfulBuild.getStartTimeInMillis() + previousSuccessfulBuild.getDuration());
+    }
+    return 0;
+  }
+
+  private long getMeanTimeToRecovery(Run<?, ?> run) {
+    if (buildFailed(run.getPreviousBuiltBuild())) {
+      Run<?, ?> firstFailedRun = run.getPreviousBuiltBuild();
+
+      while (buildFailed(firstFailedRun.getPreviousBuiltBuild())) {
+        firstFailedRun = firstFailedRun.getPreviousBuiltBuild();
+      }
+
+      return run.getStartTimeInMillis() - firstFailedRun.getStartTimeInMillis();
+    }
+    return 0;
+  }
+
+  private boolean buildFailed(Run<?, ?> run) {
+    return run != null && run.getResult() != Result.SUCCESS;
+  }
+}
@@ -32,10 +32,14 @@ public class JobPerformanceStatsUtilities {
   /**
    *
    * @return - The descriptor for the JobPerformanceStats plugin. In this case the global
-   *         - configuration.
+   *         - configuration. Null when Jenkins is not running, such as in unit tests.
    */
   public static JobPerformanceStatsBuildListener.DescriptorImpl getJobPerformanceStatsDescriptor() {
-    JobPerformanceStatsBuildListener.DescriptorImpl desc = (JobPerformanceStatsBuildListener.DescriptorImpl)Jenkins.getInstance().getDescriptorOrDie(JobPerformanceStatsBuildListener.class);
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return null;
+    }
+    JobPerformanceStatsBuildListener.DescriptorImpl desc = (JobPerformanceStatsBuildListener.DescriptorImpl)jenkins.getDescriptorOrDie(JobPerformanceStatsBuildListener.class);
     return desc;
   }
 
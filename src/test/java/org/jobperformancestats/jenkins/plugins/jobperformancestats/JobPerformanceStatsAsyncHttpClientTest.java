@@ -0,0 +1,141 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsAsyncHttpClientTest {
+
+    private final List<Object> outcomes = new CopyOnWriteArrayList<>();
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void cancelledProbe_letsTheNextRequestProbe() {
+        final long[] now = {0};
+        JobPerformanceStatsCircuitBreaker breaker = new JobPerformanceStatsCircuitBreaker("http://elk:9200", 1, 1000,
+                new JobPerformanceStatsCircuitBreaker.Clock() {
+                    @Override
+                    public long millis() {
+                        return now[0];
+                    }
+                });
+        breaker.onFailure();
+        now[0] += 1000;
+        JobPerformanceStatsAsyncHttpClient.InFlight limit = new JobPerformanceStatsAsyncHttpClient.InFlight(1, 1000);
+        limit.submit(sender("probe"), callback());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        new JobPerformanceStatsAsyncHttpClient.Outcome(breaker, limit, callback()).cancelled();
+
+        assertTrue(outcomes.get(0) instanceof InterruptedIOException);
+        assertEquals(0, limit.getInFlight());
+        assertEquals(1, breaker.getFailures());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void inFlight_queuesRequestsOverTheCapWithoutWaiting() throws Exception {
+        JobPerformanceStatsAsyncHttpClient.InFlight limit = new JobPerformanceStatsAsyncHttpClient.InFlight(2, 60000);
+        final CountDownLatch third = new CountDownLatch(1);
+
+        limit.submit(sender("1"), callback());
+        limit.submit(sender("2"), callback());
+        limit.submit(new Runnable() {
+            @Override
+            public void run() {
+                sent.add("3");
+                third.countDown();
+            }
+        }, callback());
+
+        assertEquals("[1, 2]", sent.toString());
+        assertEquals(2, limit.getInFlight());
+        assertEquals(1, limit.getWaiting());
+
+        // The permit of a completed request goes to the queued one
+        limit.release();
+        assertTrue(third.await(5, TimeUnit.SECONDS));
+        assertEquals("[1, 2, 3]", sent.toString());
+        assertEquals(2, limit.getInFlight());
+        assertEquals(0, limit.getWaiting());
+
+        limit.release();
+        limit.release();
+        assertEquals(0, limit.getInFlight());
+        assertEquals("[]", outcomes.toString());
+    }
+
+    @Test
+    public void inFlight_failsRequestsOnceTheQueueIsFull() {
+        JobPerformanceStatsAsyncHttpClient.InFlight limit = new JobPerformanceStatsAsyncHttpClient.InFlight(1, 60000);
+
+        limit.submit(sender("1"), callback());
+        limit.submit(sender("2"), callback());
+        limit.submit(sender("3"), callback());
+
+        assertEquals("[1]", sent.toString());
+        assertEquals(1, limit.getWaiting());
+        assertEquals(1, outcomes.size());
+        assertTrue(outcomes.get(0) instanceof JobPerformanceStatsAsyncHttpClient.SaturatedException);
+    }
+
+    @Test
+    public void inFlight_failsRequestsQueuedForTooLong() throws Exception {
+        JobPerformanceStatsAsyncHttpClient.InFlight limit = new JobPerformanceStatsAsyncHttpClient.InFlight(1, 50);
+        final CountDownLatch expired = new CountDownLatch(1);
+
+        limit.submit(sender("1"), callback());
+        limit.submit(sender("2"), new JobPerformanceStatsAsyncHttpClient.Callback<Object>() {
+            @Override
+            public void completed(final Object result) {
+                outcomes.add(result);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                outcomes.add(e);
+                expired.countDown();
+            }
+        });
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(outcomes.get(0) instanceof JobPerformanceStatsAsyncHttpClient.SaturatedException);
+        assertEquals(0, limit.getWaiting());
+        // The expired request is not sent once a permit is free
+        limit.release();
+        assertEquals("[1]", sent.toString());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    private Runnable sender(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                sent.add(name);
+            }
+        };
+    }
+
+    private <T> JobPerformanceStatsAsyncHttpClient.Callback<T> callback() {
+        return new JobPerformanceStatsAsyncHttpClient.Callback<T>() {
+            @Override
+            public void completed(final T result) {
+                outcomes.add(result);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                outcomes.add(e);
+            }
+        };
+    }
+}
@@ -1,6 +1,7 @@
 package org.jobperformancestats.jenkins.plugins.jobperformancestats;
 
 import hudson.EnvVars;
+import hudson.ExtensionList;
 import hudson.model.*;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONArray;
@@ -19,6 +20,7 @@ import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
@@ -35,6 +37,10 @@ public class JobPerformanceStatsBuildListenerTest {
     public void setUp() throws Exception {
         PowerMockito.mockStatic(Jenkins.class);
         PowerMockito.when(Jenkins.getInstance()).thenReturn(jenkins);
+        // Completed builds are published to the sinks Jenkins registered, JobPerformanceStatsSink.all() copies them
+        ExtensionList sinks = mock(ExtensionList.class);
+        when(sinks.toArray()).thenReturn(new Object[] {new JobPerformanceStatsMetricSink()});
+        when(jenkins.getExtensionList(JobPerformanceStatsSink.class)).thenReturn(sinks);
 
         PowerMockito.mockStatic(JobPerformanceStatsUtilities.class);
         when(JobPerformanceStatsUtilities.isJobTracked(anyString())).thenReturn(true);
@@ -103,7 +109,9 @@ public class JobPerformanceStatsBuildListenerTest {
         return mock(JobPerformanceStatsBuildListener.DescriptorImpl.class);
     }
 
-    private JSONObject capturePostMetricRequestPayload() throws IOException {
+    private JSONObject capturePostMetricRequestPayload() throws Exception {
+        // Metrics are shipped asynchronously, wait for the sink queues to send them
+        assertTrue(JobPerformanceStatsSink.awaitIdle(5000));
         PowerMockito.verifyStatic();
         ArgumentCaptor<JSONObject> captor = ArgumentCaptor.forClass(JSONObject.class);
         JobPerformanceStatsHttpRequests.post(captor.capture(), eq(JobPerformanceStatsBuildListener.METRIC));
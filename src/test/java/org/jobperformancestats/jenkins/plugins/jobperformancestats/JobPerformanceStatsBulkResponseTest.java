@@ -0,0 +1,66 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsBulkResponseTest {
+
+    @Test
+    public void parse_allItemsAccepted() {
+        String body = "{\"took\":3,\"errors\":false,\"items\":["
+                + "{\"index\":{\"_index\":\"jenkins-2019-10-01\",\"_id\":\"a\",\"status\":201}},"
+                + "{\"index\":{\"_index\":\"jenkins-2019-10-01\",\"_id\":\"b\",\"status\":200}}]}";
+
+        JobPerformanceStatsBulkResponse response = JobPerformanceStatsBulkResponse.parse(body);
+
+        assertEquals(2, response.getAccepted());
+        assertTrue(response.getFailures().isEmpty());
+    }
+
+    @Test
+    public void parse_reportsRejectedItemsWithTheirPosition() {
+        String body = "{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_id\":\"a\",\"status\":201}},"
+                + "{\"index\":{\"_id\":\"b\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}},"
+                + "{\"index\":{\"_id\":\"c\",\"status\":201}}]}";
+
+        JobPerformanceStatsBulkResponse response = JobPerformanceStatsBulkResponse.parse(body);
+
+        assertEquals(2, response.getAccepted());
+        assertEquals(Arrays.asList("a", "c"), response.getAcceptedIds());
+        assertEquals(1, response.getFailures().size());
+        JobPerformanceStatsBulkResponse.Item failure = response.getFailures().get(0);
+        assertEquals(1, failure.getPosition());
+        assertEquals("b", failure.getId());
+        assertEquals(400, failure.getStatus());
+        assertEquals("mapper_parsing_exception: failed to parse", failure.getReason());
+    }
+
+    @Test
+    public void parse_toleratesMissingItems() {
+        JobPerformanceStatsBulkResponse response = JobPerformanceStatsBulkResponse.parse("{\"took\":0,\"errors\":false}");
+
+        assertEquals(0, response.getAccepted());
+        assertTrue(response.getFailures().isEmpty());
+    }
+
+    @Test
+    public void parse_flagsThrottledItemsAsRetryable() {
+        String body = "{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_id\":\"a\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution\"}}},"
+                + "{\"index\":{\"_id\":\"b\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}},"
+                + "{\"index\":{\"_id\":\"c\",\"status\":503,\"error\":{\"type\":\"unavailable_shards_exception\",\"reason\":\"primary shard is not active\"}}}]}";
+
+        JobPerformanceStatsBulkResponse response = JobPerformanceStatsBulkResponse.parse(body);
+
+        assertEquals(3, response.getFailures().size());
+        assertTrue(response.getFailures().get(0).isRetryable());
+        assertFalse(response.getFailures().get(1).isRetryable());
+        assertTrue(response.getFailures().get(2).isRetryable());
+    }
+}
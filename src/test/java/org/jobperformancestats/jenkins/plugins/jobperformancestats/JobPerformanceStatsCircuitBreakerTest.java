@@ -0,0 +1,106 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsCircuitBreakerTest {
+
+    private static final int THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 30000;
+
+    private long now = 1000;
+    private final JobPerformanceStatsCircuitBreaker breaker = new JobPerformanceStatsCircuitBreaker("http://elk:9200",
+            THRESHOLD, OPEN_MILLIS, new JobPerformanceStatsCircuitBreaker.Clock() {
+                @Override
+                public long millis() {
+                    return now;
+                }
+            });
+
+    @Test
+    public void opensAfterTheConsecutiveFailures() {
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        // A success in between starts the count again
+        breaker.onSuccess();
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure();
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpened());
+    }
+
+    @Test
+    public void rejectsRequestsWhileOpen() {
+        open();
+
+        now += OPEN_MILLIS - 1;
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejected());
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void letsASingleProbeThroughOnceTheOpenPeriodIsOver() {
+        open();
+
+        now += OPEN_MILLIS;
+        assertTrue(breaker.allowRequest());
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Other requests wait for the outcome of the probe
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void opensAgainWhenTheProbeFails() {
+        open();
+        now += OPEN_MILLIS;
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpened());
+
+        // The open period starts over from the failed probe
+        now += OPEN_MILLIS - 1;
+        assertFalse(breaker.allowRequest());
+        now += 1;
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void letsTheNextRequestProbeWhenTheProbeIsCancelled() {
+        open();
+        now += OPEN_MILLIS;
+        assertTrue(breaker.allowRequest());
+
+        breaker.onCancelled();
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpened());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    private void open() {
+        for (int i = 0; i < THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,43 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class JobPerformanceStatsDocumentIdsTest {
+
+    @Test
+    public void hash_matchesMurmur3ReferenceValues() {
+        assertEquals("00000000000000000000000000000000", JobPerformanceStatsDocumentIds.hash(""));
+        assertEquals("cbd8a7b341bd9b025b1e906a48ae1d19", JobPerformanceStatsDocumentIds.hash("hello"));
+        assertEquals("e34bbc7bbc071b6c7a433ca9c49a9347",
+                JobPerformanceStatsDocumentIds.hash("The quick brown fox jumps over the lazy dog"));
+    }
+
+    @Test
+    public void of_isStableForTheSameDocument() {
+        String first = JobPerformanceStatsDocumentIds.of("controller", "team/service", 42, "stage", "17");
+        String second = JobPerformanceStatsDocumentIds.of("controller", "team/service", 42, "stage", "17");
+
+        assertEquals(first, second);
+        assertEquals(32, first.length());
+    }
+
+    @Test
+    public void of_differsForEveryPart() {
+        String id = JobPerformanceStatsDocumentIds.of("controller", "team/service", 42, "stage", "17");
+
+        assertNotEquals(id, JobPerformanceStatsDocumentIds.of("other", "team/service", 42, "stage", "17"));
+        assertNotEquals(id, JobPerformanceStatsDocumentIds.of("controller", "team/other", 42, "stage", "17"));
+        assertNotEquals(id, JobPerformanceStatsDocumentIds.of("controller", "team/service", 43, "stage", "17"));
+        assertNotEquals(id, JobPerformanceStatsDocumentIds.of("controller", "team/service", 42, "step", "17"));
+        assertNotEquals(id, JobPerformanceStatsDocumentIds.of("controller", "team/service", 42, "stage", "18"));
+    }
+
+    @Test
+    public void of_separatesItsParts() {
+        assertNotEquals(JobPerformanceStatsDocumentIds.of("controller", "job", 1, "stage", "23"),
+                JobPerformanceStatsDocumentIds.of("controller", "job", 12, "stage", "3"));
+    }
+}
@@ -0,0 +1,77 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsExecutorTest {
+
+    private final List<String> ran = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void stop_runsTheTasksDueBeforeTheTimeout() {
+        ScheduledThreadPoolExecutor executor = JobPerformanceStatsExecutor.create();
+        executor.schedule(task("soon"), 10, TimeUnit.MILLISECONDS);
+
+        assertEquals(0, JobPerformanceStatsExecutor.stop(executor, 5000));
+        assertEquals("[ran soon]", ran.toString());
+    }
+
+    @Test
+    public void stop_tellsTheDroppableTasksItDrops() {
+        ScheduledThreadPoolExecutor executor = JobPerformanceStatsExecutor.create();
+        executor.schedule(task("retry"), 1, TimeUnit.HOURS);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("ran flush");
+            }
+        }, 1, TimeUnit.HOURS);
+
+        assertEquals(2, JobPerformanceStatsExecutor.stop(executor, 50));
+        assertEquals("[dropped retry]", ran.toString());
+        assertTrue(executor.isShutdown());
+    }
+
+    @Test
+    public void droppableTasksAreRemovedOnceCancelled() {
+        ScheduledThreadPoolExecutor executor = JobPerformanceStatsExecutor.create();
+        ScheduledFuture<?> retry = executor.schedule(task("retry"), 1, TimeUnit.HOURS);
+
+        assertTrue(retry.cancel(false));
+        assertEquals(0, executor.getQueue().size());
+        assertEquals(0, JobPerformanceStatsExecutor.stop(executor, 50));
+        assertEquals("[]", ran.toString());
+    }
+
+    @Test
+    public void droppableTasksRunInTheOrderTheyAreDue() throws Exception {
+        ScheduledThreadPoolExecutor executor = JobPerformanceStatsExecutor.create();
+        executor.schedule(task("second"), 100, TimeUnit.MILLISECONDS);
+        executor.schedule(task("first"), 10, TimeUnit.MILLISECONDS).get();
+
+        assertEquals(0, JobPerformanceStatsExecutor.stop(executor, 5000));
+        assertEquals("[ran first, ran second]", ran.toString());
+    }
+
+    private JobPerformanceStatsExecutor.Droppable task(final String name) {
+        return new JobPerformanceStatsExecutor.Droppable() {
+            @Override
+            public void run() {
+                ran.add("ran " + name);
+            }
+
+            @Override
+            public void dropped() {
+                ran.add("dropped " + name);
+            }
+        };
+    }
+}
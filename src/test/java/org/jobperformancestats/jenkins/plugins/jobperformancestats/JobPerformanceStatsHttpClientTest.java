@@ -0,0 +1,307 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsHttpClientTest {
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    // Statuses answered to the first requests, 200 afterwards
+    private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+    private volatile long delayMillis = 0;
+    private volatile String retryAfter = null;
+    private volatile String receivedEncoding;
+    private volatile byte[] received;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                int n = requests.getAndIncrement();
+                receivedEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                InputStream in = exchange.getRequestBody();
+                received = read("gzip".equals(receivedEncoding) ? new GZIPInputStream(in) : in);
+                int status = n < statuses.size() ? statuses.get(n) : 200;
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                }
+                byte[] body = String.valueOf(status).getBytes("utf-8");
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        JobPerformanceStatsHttpClient.close();
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private JobPerformanceStatsCircuitBreaker breaker() {
+        return JobPerformanceStatsCircuitBreaker.forEndpoint("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @Test
+    public void retriesOverloadedAnswersUntilTheyPass() throws Exception {
+        statuses.add(503);
+        statuses.add(429);
+
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.execute(new HttpGet(url()));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(3, requests.get());
+        assertEquals(2, breaker().getRetries());
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.CLOSED, breaker().getState());
+    }
+
+    @Test
+    public void returnsTheLastAnswerOnceTheAttemptsAreSpent() throws Exception {
+        for (int i = 0; i < JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS + 1; i++) {
+            statuses.add(502);
+        }
+
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.execute(new HttpGet(url()));
+
+        assertEquals(502, response.getStatus());
+        assertEquals(JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS, requests.get());
+        assertEquals(JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS, breaker().getFailures());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        statuses.add(400);
+
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.execute(new HttpGet(url()));
+
+        assertEquals(400, response.getStatus());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void waitsAtLeastAsLongAsRetryAfterAsks() throws Exception {
+        statuses.add(503);
+        retryAfter = "1";
+
+        long start = System.nanoTime();
+        JobPerformanceStatsHttpClient.execute(new HttpGet(url()));
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void schedulesRetriesWithoutHoldingTheCallingThread() throws Exception {
+        statuses.add(503);
+        retryAfter = "1";
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Object> outcome = new CopyOnWriteArrayList<>();
+
+        long start = System.nanoTime();
+        JobPerformanceStatsHttpClient.execute(new HttpGet(url()),
+                new JobPerformanceStatsAsyncHttpClient.Callback<JobPerformanceStatsHttpClient.Response>() {
+                    @Override
+                    public void completed(final JobPerformanceStatsHttpClient.Response result) {
+                        outcome.add(result.getStatus());
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void failed(final Exception e) {
+                        outcome.add(e);
+                        done.countDown();
+                    }
+                });
+
+        // The first attempt was answered, the retry waits on the executor
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(1, requests.get());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[200]", outcome.toString());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void backoff_staysUnderTheExponentialCeiling() {
+        for (int attempt = 1; attempt <= 30; attempt++) {
+            long ceiling = Math.min(JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_DELAY_MILLIS,
+                    JobPerformanceStatsHttpClient.DEFAULT_RETRY_BASE_DELAY_MILLIS << Math.min(attempt - 1, 20));
+            long delay = JobPerformanceStatsHttpClient.backoff(attempt, null);
+            assertTrue(delay >= 0 && delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void executeAttempt_sendsOnceThroughTheBreaker() throws Exception {
+        statuses.add(503);
+
+        JobPerformanceStatsHttpClient.Response response = JobPerformanceStatsHttpClient.executeAttempt(new HttpGet(url()));
+
+        assertEquals(503, response.getStatus());
+        assertEquals(1, requests.get());
+        assertEquals(1, breaker().getFailures());
+        assertEquals(0, breaker().getRetries());
+    }
+
+    @Test
+    public void maxWaitMillis_coversEveryAttemptAndBackoff() {
+        int attempts = JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS;
+        assertEquals(attempts * (JobPerformanceStatsHttpClient.DEFAULT_CONNECT_TIMEOUT_MILLIS
+                        + JobPerformanceStatsHttpClient.DEFAULT_READ_TIMEOUT_MILLIS)
+                        + (attempts - 1) * JobPerformanceStatsHttpClient.MAX_RETRY_AFTER_MILLIS,
+                JobPerformanceStatsHttpClient.maxWaitMillis(null));
+    }
+
+    @Test
+    public void retryAfter_readsSecondsAndCapsTheDelay() {
+        assertEquals(2000, JobPerformanceStatsHttpClient.retryAfter("2"));
+        assertEquals(JobPerformanceStatsHttpClient.MAX_RETRY_AFTER_MILLIS, JobPerformanceStatsHttpClient.retryAfter("3600"));
+        assertEquals(0, JobPerformanceStatsHttpClient.retryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(0, JobPerformanceStatsHttpClient.retryAfter(null));
+    }
+
+    @Test
+    public void reconfigure_letsRequestsInFlightComplete() throws Exception {
+        delayMillis = 20;
+        final int threads = 8;
+        final int perThread = 10;
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            if (JobPerformanceStatsHttpClient.execute(new HttpGet(url())).isSuccess()) {
+                                succeeded.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        // Replace the client again and again while requests use it
+        while (!done.await(5, TimeUnit.MILLISECONDS)) {
+            JobPerformanceStatsHttpClient.reconfigure();
+        }
+
+        assertEquals("[]", errors.toString());
+        assertEquals(threads * perThread, succeeded.get());
+        assertEquals(threads * perThread, requests.get());
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.CLOSED, breaker().getState());
+    }
+
+    @Test
+    public void entity_compressesBodiesFromTheThreshold() throws Exception {
+        byte[] body = ndjson(200);
+
+        HttpEntity entity = JobPerformanceStatsHttpClient.entity(body, 0, body.length, ContentType.APPLICATION_JSON, 1024, 6);
+
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        assertTrue(entity.getContentLength() < body.length);
+        assertArrayEquals(body, read(new GZIPInputStream(entity.getContent())));
+    }
+
+    @Test
+    public void entity_sendsSmallBodiesAsTheyAre() throws Exception {
+        byte[] body = ndjson(200);
+
+        HttpEntity entity = JobPerformanceStatsHttpClient.entity(body, 0, body.length, ContentType.APPLICATION_JSON,
+                body.length + 1, 6);
+
+        assertNull(entity.getContentEncoding());
+        assertArrayEquals(body, EntityUtils.toByteArray(entity));
+    }
+
+    @Test
+    public void entity_compressesOnlyTheGivenRange() throws Exception {
+        byte[] body = ndjson(200);
+        int offset = 100;
+        int length = body.length - 200;
+        byte[] range = new byte[length];
+        System.arraycopy(body, offset, range, 0, length);
+
+        // An out of range level falls back to the default one
+        HttpEntity entity = JobPerformanceStatsHttpClient.entity(body, offset, length, ContentType.APPLICATION_JSON, 0, 42);
+
+        assertArrayEquals(range, read(new GZIPInputStream(entity.getContent())));
+    }
+
+    @Test
+    public void sendsCompressedBodiesWithTheirContentEncoding() throws Exception {
+        byte[] body = ndjson(200);
+        HttpPost request = new HttpPost(url());
+        request.setEntity(JobPerformanceStatsHttpClient.entity(body, 0, body.length, ContentType.APPLICATION_JSON, 1024, 6));
+
+        assertEquals(200, JobPerformanceStatsHttpClient.execute(request).getStatus());
+        assertEquals("gzip", receivedEncoding);
+        assertArrayEquals(body, received);
+    }
+
+    private static byte[] ndjson(final int lines) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            body.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n{\"jobname\":\"job\",\"jobid\":").append(i).append("}\n");
+        }
+        return body.toString().getBytes("utf-8");
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
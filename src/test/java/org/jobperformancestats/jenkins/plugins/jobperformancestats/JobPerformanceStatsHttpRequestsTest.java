@@ -0,0 +1,64 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JobPerformanceStatsHttpRequestsTest {
+
+    @Test
+    public void writeBuild_nestsStepsInTheirStage() {
+        JSONArray stages = new JSONArray();
+        stages.add(node("6", "Build", null, 12000));
+        stages.add(node("12", "Test", null, 30000));
+        JSONArray steps = new JSONArray();
+        steps.add(node("7", "Shell Script", "6", 11000));
+        steps.add(node("13", "Shell Script", "12", 20000));
+        steps.add(node("14", "Archive", "12", 9000));
+
+        JobPerformanceStatsJsonWriter json = new JobPerformanceStatsJsonWriter();
+        JobPerformanceStatsHttpRequests.writeBuild(json, "2019-10-01T10:15:30Z", "team/service", "42", "SUCCESS",
+                45.5, "job/team/job/service/42/", "master", stages, steps);
+
+        JSONObject build = JSONObject.fromObject(json.toString());
+        assertEquals("build", build.getString("type"));
+        assertEquals("team/service", build.getString("jobname"));
+        JSONArray nested = build.getJSONArray("stages");
+        assertEquals(2, nested.size());
+        assertEquals("Build", nested.getJSONObject(0).getString("name"));
+        assertEquals(12, nested.getJSONObject(0).getLong("duration"));
+        assertEquals(1, nested.getJSONObject(0).getJSONArray("steps").size());
+        assertEquals(2, nested.getJSONObject(1).getJSONArray("steps").size());
+        assertEquals("Archive", nested.getJSONObject(1).getJSONArray("steps").getJSONObject(1).getString("name"));
+    }
+
+    @Test
+    public void writeBuild_keepsStepsOfUnknownStages() {
+        JSONArray steps = new JSONArray();
+        steps.add(node("3", "Checkout", "2", 1000));
+
+        JobPerformanceStatsJsonWriter json = new JobPerformanceStatsJsonWriter();
+        JobPerformanceStatsHttpRequests.writeBuild(json, "2019-10-01T10:15:30Z", "job", "1", "SUCCESS",
+                1.0, "job/job/1/", "master", new JSONArray(), steps);
+
+        JSONArray nested = JSONObject.fromObject(json.toString()).getJSONArray("stages");
+        assertEquals(1, nested.size());
+        assertEquals("2", nested.getJSONObject(0).getString("id"));
+        assertEquals("Checkout", nested.getJSONObject(0).getJSONArray("steps").getJSONObject(0).getString("name"));
+    }
+
+    private static JSONObject node(String id, String name, String stageid, long duration) {
+        JSONObject node = new JSONObject();
+        node.put("id", id);
+        node.put("name", name);
+        node.put("status", "SUCCESS");
+        node.put("duration", duration);
+        if (stageid != null) {
+            node.put("stageid", stageid);
+            node.put("stagename", "Stage " + stageid);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,272 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JobPerformanceStatsIndexRouterTest {
+
+    // 2019-10-01T23:30:00Z, already the 2nd in timezones east of UTC
+    private static final long START = 1569972600000L;
+
+    @Test
+    public void resolve_usesTheBuildStartTimeInUtc() {
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.DATED, null, null, null);
+
+        assertEquals("jenkins-2019-10-01", router.resolve("job", START));
+        assertEquals("jenkins-2019-10-02", router.resolve("job", START + 3600000L));
+    }
+
+    @Test
+    public void resolve_appliesTheDatePattern() {
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.DATED, "builds", "yyyy.MM", null);
+
+        assertEquals("builds-2019.10", router.resolve("job", START));
+    }
+
+    @Test
+    public void resolve_usesTheMostSpecificFolderPrefix() {
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.DATED, "jenkins", "yyyy-MM-dd",
+                "team=team\nteam/release/=release\n");
+
+        assertEquals("release-2019-10-01", router.resolve("team/release/deploy", START));
+        assertEquals("team-2019-10-01", router.resolve("team/build", START));
+        assertEquals("jenkins-2019-10-01", router.resolve("teammate/build", START));
+    }
+
+    @Test
+    public void bucket_followsThePatternResolution() {
+        assertEquals(86400000L, JobPerformanceStatsIndexRouter.bucket("yyyy-MM-dd"));
+        assertEquals(3600000L, JobPerformanceStatsIndexRouter.bucket("yyyy-MM-dd-HH"));
+        assertEquals(86400000L, JobPerformanceStatsIndexRouter.bucket("yyyy.MM'-month'"));
+        assertEquals(0L, JobPerformanceStatsIndexRouter.bucket("yyyy-MM-dd-HH-mm"));
+    }
+
+    @Test
+    public void checkWritable_createsTheAliasOnceInTheBackground() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> created = new CopyOnWriteArrayList<>();
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.ALIAS, "builds", null, null,
+                new JobPerformanceStatsIndexRouter.Bootstrap() {
+                    @Override
+                    public boolean create(final String alias) {
+                        created.add(alias);
+                        try {
+                            return release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            return false;
+                        }
+                    }
+                }, 0);
+
+        // Resolving never waits for ELK
+        assertEquals("builds", router.resolve("job", START));
+        for (int i = 0; i < 3; i++) {
+            assertNotReady(router);
+        }
+        release.countDown();
+        awaitAlias(router, "builds");
+
+        router.checkWritable("job");
+        assertEquals("[builds]", created.toString());
+    }
+
+    @Test
+    public void checkWritable_triesAFailedAliasAgainAfterTheRetryPeriod() throws Exception {
+        final List<String> created = new CopyOnWriteArrayList<>();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.ALIAS, "builds", null, null,
+                new JobPerformanceStatsIndexRouter.Bootstrap() {
+                    @Override
+                    public boolean create(final String alias) {
+                        created.add(alias);
+                        return !failing.get();
+                    }
+                }, 200);
+
+        assertNotReady(router);
+        awaitAttempts(created, 1);
+        // Within the retry period the failed alias is not created again
+        assertNotReady(router);
+        Thread.sleep(300);
+        failing.set(false);
+        assertNotReady(router);
+        awaitAlias(router, "builds");
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void checkWritable_acceptsDatedIndices() throws Exception {
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.DATED, null, null, null);
+
+        router.checkWritable("job");
+    }
+
+    @Test
+    public void hold_runsTheTasksOnceTheAliasIsCreated() throws Exception {
+        final List<String> created = new CopyOnWriteArrayList<>();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.ALIAS, "builds", null, null,
+                new JobPerformanceStatsIndexRouter.Bootstrap() {
+                    @Override
+                    public boolean create(final String alias) {
+                        created.add(alias);
+                        return !failing.get();
+                    }
+                }, 100);
+        final CountDownLatch sent = new CountDownLatch(2);
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                sent.countDown();
+            }
+        };
+
+        assertTrue(router.hold("job", send));
+        assertTrue(router.hold("job", send));
+        awaitAttempts(created, 1);
+        assertEquals(2, router.getHeld("builds"));
+        // The failed alias is created again without any other write
+        failing.set(false);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(0, router.getHeld("builds"));
+        assertFalse(router.hold("job", send));
+    }
+
+    @Test
+    public void hold_dropsTheOldestTasksPastMaxHeld() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.ALIAS, "builds", null, null,
+                new JobPerformanceStatsIndexRouter.Bootstrap() {
+                    @Override
+                    public boolean create(final String alias) {
+                        try {
+                            return release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            return false;
+                        }
+                    }
+                }, 0);
+        final AtomicInteger first = new AtomicInteger();
+        final CountDownLatch sent = new CountDownLatch(JobPerformanceStatsIndexRouter.MAX_HELD);
+        router.hold("job", new Runnable() {
+            @Override
+            public void run() {
+                first.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < JobPerformanceStatsIndexRouter.MAX_HELD; i++) {
+            assertTrue(router.hold("job", new Runnable() {
+                @Override
+                public void run() {
+                    sent.countDown();
+                }
+            }));
+        }
+
+        assertEquals(JobPerformanceStatsIndexRouter.MAX_HELD, router.getHeld("builds"));
+        release.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(0, first.get());
+    }
+
+    @Test
+    public void hold_sendsDatedIndicesAtOnce() {
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.DATED, null, null, null);
+
+        assertFalse(router.hold("job", new Runnable() {
+            @Override
+            public void run() {
+                fail();
+            }
+        }));
+        assertTrue(router.checkAliases());
+    }
+
+    @Test
+    public void checkAliases_waitsForTheAliasOfEveryPrefix() throws Exception {
+        final List<String> created = new CopyOnWriteArrayList<>();
+        JobPerformanceStatsIndexRouter router = new JobPerformanceStatsIndexRouter(
+                JobPerformanceStatsIndexRouter.Mode.ALIAS, "builds", null, "team=team-builds",
+                new JobPerformanceStatsIndexRouter.Bootstrap() {
+                    @Override
+                    public boolean create(final String alias) {
+                        created.add(alias);
+                        return true;
+                    }
+                }, 0);
+
+        assertFalse(router.checkAliases());
+        awaitAlias(router, "builds");
+        awaitAlias(router, "team-builds");
+        assertTrue(router.checkAliases());
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void checkPrefix_rejectsNamesElasticsearchRefuses() {
+        assertNull(JobPerformanceStatsIndexRouter.checkPrefix("jenkins-builds.v2"));
+        assertNull(JobPerformanceStatsIndexRouter.checkPrefix(""));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkPrefix("Jenkins"));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkPrefix("jenkins builds"));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkPrefix("team/jenkins"));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkPrefix("_jenkins"));
+    }
+
+    @Test
+    public void checkDatePattern_rejectsInvalidAndCapitalizedPatterns() {
+        assertNull(JobPerformanceStatsIndexRouter.checkDatePattern("yyyy-MM-dd"));
+        assertNull(JobPerformanceStatsIndexRouter.checkDatePattern("yyyy.MM'-month'"));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkDatePattern("yyyy-MM-dd-ii"));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkDatePattern("yyyy-MMM"));
+        assertNotNull(JobPerformanceStatsIndexRouter.checkDatePattern("yyyy-MM-dd HH"));
+    }
+
+    private static void assertNotReady(final JobPerformanceStatsIndexRouter router) {
+        try {
+            router.checkWritable("job");
+            fail();
+        } catch (JobPerformanceStatsIndexRouter.AliasNotReadyException e) {
+            assertTrue(e.getMessage().contains("builds"));
+        }
+    }
+
+    private static void awaitAlias(final JobPerformanceStatsIndexRouter router, final String alias) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!router.getAliases().contains(alias)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitAttempts(final List<String> created, final int attempts) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (created.size() < attempts) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // The attempt is recorded right after it returns
+        Thread.sleep(50);
+    }
+}
@@ -0,0 +1,88 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsIndexTemplateTest {
+
+    private static final List<String> PATTERNS = Arrays.asList("jenkins-*", "release-*");
+
+    @Test
+    public void build_mapsTheDocumentFields() {
+        JSONObject template = JobPerformanceStatsIndexTemplate.build(PATTERNS, "30s", false);
+
+        assertEquals("[\"jenkins-*\",\"release-*\"]", template.getJSONArray("index_patterns").toString());
+        assertEquals(JobPerformanceStatsIndexTemplate.VERSION, template.getInt("version"));
+        assertEquals("30s", template.getJSONObject("settings").getJSONObject("index").getString("refresh_interval"));
+
+        JSONObject mappings = template.getJSONObject("mappings");
+        assertEquals("strict", mappings.getString("dynamic"));
+        JSONObject properties = mappings.getJSONObject("properties");
+        assertEquals("{\"type\":\"keyword\",\"ignore_above\":1024}", properties.getJSONObject("jobname").toString());
+        assertEquals("{\"type\":\"long\"}", properties.getJSONObject("jobid").toString());
+        assertEquals("{\"type\":\"double\"}", properties.getJSONObject("jobduration").toString());
+        assertEquals("{\"type\":\"date\",\"format\":\"strict_date_time_no_millis||strict_date_time||epoch_millis\"}",
+                properties.getJSONObject("jobstarttime").toString());
+        assertEquals("{\"type\":\"keyword\",\"ignore_above\":1024,\"index\":false,\"doc_values\":false}",
+                properties.getJSONObject("joburl").toString());
+
+        // Stages and their steps are nested, so each is queried on its own
+        JSONObject stages = properties.getJSONObject("stages");
+        assertEquals("nested", stages.getString("type"));
+        JSONObject steps = stages.getJSONObject("properties").getJSONObject("steps");
+        assertEquals("nested", steps.getString("type"));
+        assertEquals("{\"type\":\"keyword\",\"ignore_above\":1024}",
+                steps.getJSONObject("properties").getJSONObject("status").toString());
+    }
+
+    @Test
+    public void build_nestsTheMappingsUnderTheTypeBeforeElk7() {
+        JSONObject template = JobPerformanceStatsIndexTemplate.build(PATTERNS, "30s", true);
+
+        JSONObject mappings = template.getJSONObject("mappings");
+        assertNull(mappings.optJSONObject("properties"));
+        assertEquals("strict", mappings.getJSONObject("doc").getString("dynamic"));
+        assertEquals(JobPerformanceStatsIndexTemplate.build(PATTERNS, "30s", false).getJSONObject("mappings").toString(),
+                mappings.getJSONObject("doc").toString());
+    }
+
+    @Test
+    public void isCurrent_acceptsThisVersionAndLaterOnes() {
+        assertTrue(JobPerformanceStatsIndexTemplate.isCurrent(installed(JobPerformanceStatsIndexTemplate.VERSION), PATTERNS, "30s"));
+        assertTrue(JobPerformanceStatsIndexTemplate.isCurrent(installed(JobPerformanceStatsIndexTemplate.VERSION + 1), PATTERNS, "30s"));
+        assertFalse(JobPerformanceStatsIndexTemplate.isCurrent(installed(JobPerformanceStatsIndexTemplate.VERSION - 1), PATTERNS, "30s"));
+        assertFalse(JobPerformanceStatsIndexTemplate.isCurrent(null, PATTERNS, "30s"));
+
+        JSONObject unversioned = installed(JobPerformanceStatsIndexTemplate.VERSION);
+        unversioned.remove("version");
+        assertFalse(JobPerformanceStatsIndexTemplate.isCurrent(unversioned, PATTERNS, "30s"));
+    }
+
+    @Test
+    public void isCurrent_comparesThePatternsAndTheRefreshInterval() {
+        JSONObject installed = installed(JobPerformanceStatsIndexTemplate.VERSION);
+
+        // The order of the patterns does not matter
+        assertTrue(JobPerformanceStatsIndexTemplate.isCurrent(installed, Arrays.asList("release-*", "jenkins-*"), "30s"));
+        assertFalse(JobPerformanceStatsIndexTemplate.isCurrent(installed, Arrays.asList("jenkins-*"), "30s"));
+        assertFalse(JobPerformanceStatsIndexTemplate.isCurrent(installed, Arrays.asList("jenkins-*", "team-*"), "30s"));
+        assertFalse(JobPerformanceStatsIndexTemplate.isCurrent(installed, PATTERNS, "1s"));
+    }
+
+    /**
+     * @return the template as ELK returns it from <code>GET _template</code>.
+     */
+    private static JSONObject installed(final int version) {
+        return JSONObject.fromObject("{\"order\":0,\"version\":" + version + ","
+                + "\"index_patterns\":[\"jenkins-*\",\"release-*\"],"
+                + "\"settings\":{\"index\":{\"refresh_interval\":\"30s\"}},\"mappings\":{},\"aliases\":{}}");
+    }
+}
@@ -0,0 +1,139 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the bytes allocated per stage document by the previous String concatenation and by
+ * {@link JobPerformanceStatsJsonWriter}, with the HotSpot per-thread allocation counter, and
+ * compares the encoded size and encode time of the concatenated JSON, the streamed JSON and
+ * {@link JobPerformanceStatsSmileWriter} Smile. The figures are logged; only the allocations
+ * and the sizes are asserted, as the times depend on the machine.
+ */
+public class JobPerformanceStatsJsonWriterBenchmarkTest {
+
+    private static final Logger logger =  Logger.getLogger(JobPerformanceStatsJsonWriterBenchmarkTest.class.getName());
+
+    private static final int WARMUP = 50000;
+    private static final int DOCUMENTS = 100000;
+    // The writer reuses its buffer, only the boxing of a few values may allocate
+    private static final double MAX_BYTES_PER_DOCUMENT = 64;
+
+    private static final String STARTTIME = "2019-10-01T10:15:30Z";
+    private static final String JOB = "team/service/master";
+    private static final String NUMBER = "1234";
+    private static final String URL = "https://jenkins.example.com/job/team/job/service/job/master/1234/";
+    private static final String NAME = "Integration tests";
+    private static final String STATUS = "SUCCESS";
+    private static final long DURATION = 123456;
+
+    private long sink = 0;
+
+    @Test
+    public void writer_allocatesLessPerDocumentThanConcatenation() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long id = Thread.currentThread().getId();
+        JobPerformanceStatsJsonWriter writer = JobPerformanceStatsJsonWriter.acquire();
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                sink += concatenate(DURATION + i).length + write(writer, DURATION + i).size();
+            }
+
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                sink += concatenate(DURATION + i).length;
+            }
+            double concatenated = (double) (threads.getThreadAllocatedBytes(id) - before) / DOCUMENTS;
+
+            before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                sink += write(writer, DURATION + i).size();
+            }
+            double streamed = (double) (threads.getThreadAllocatedBytes(id) - before) / DOCUMENTS;
+
+            logger.info(String.format("String concatenation: %.1f bytes allocated per document", concatenated));
+            logger.info(String.format("Streaming JSON writer: %.1f bytes allocated per document", streamed));
+            assertTrue(sink > 0);
+            assertTrue(String.format("%.1f bytes allocated per document", streamed), streamed < MAX_BYTES_PER_DOCUMENT);
+            assertTrue(streamed < concatenated);
+        } finally {
+            JobPerformanceStatsJsonWriter.release(writer);
+        }
+    }
+
+    @Test
+    public void smile_isSmallerThanJsonForTheSameDocument() {
+        JobPerformanceStatsJsonWriter json = JobPerformanceStatsJsonWriter.acquire();
+        JobPerformanceStatsJsonWriter smile = JobPerformanceStatsJsonWriter.acquire(JobPerformanceStatsJsonWriter.Encoding.SMILE);
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                sink += concatenate(DURATION + i).length + write(json, DURATION + i).size() + write(smile, DURATION + i).size();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                sink += concatenate(DURATION + i).length;
+            }
+            long concatenatedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                sink += write(json, DURATION + i).size();
+            }
+            long jsonNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                sink += write(smile, DURATION + i).size();
+            }
+            long smileNanos = System.nanoTime() - start;
+
+            int concatenated = concatenate(DURATION).length;
+            int streamed = write(json, DURATION).size();
+            int binary = write(smile, DURATION).size();
+            logger.info(String.format("String concatenation: %s bytes, %.0f ns per document",
+                    concatenated, (double) concatenatedNanos / DOCUMENTS));
+            logger.info(String.format("Streaming JSON writer: %s bytes, %.0f ns per document",
+                    streamed, (double) jsonNanos / DOCUMENTS));
+            logger.info(String.format("Streaming Smile writer: %s bytes, %.0f ns per document",
+                    binary, (double) smileNanos / DOCUMENTS));
+            assertTrue(sink > 0);
+            assertTrue(binary + " bytes of Smile against " + streamed + " of JSON", binary < streamed);
+            assertTrue(streamed <= concatenated);
+        } finally {
+            JobPerformanceStatsJsonWriter.release(json);
+            JobPerformanceStatsJsonWriter.release(smile);
+        }
+    }
+
+    static byte[] concatenate(final long duration) {
+        String json = "{\"jobstarttime\":\"" + STARTTIME + "\", \"jobname\":\"" + JOB + "\", \"jobid\":\"" + NUMBER
+                + "\", \"joburl\":\"" + URL + "\", \"type\":\"stage\", \"name\":\"" + NAME + "\", \"status\":\""
+                + STATUS + "\", \"duration\":" + duration / 1000 + "}";
+        try {
+            return json.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static JobPerformanceStatsJsonWriter write(final JobPerformanceStatsJsonWriter writer, final long duration) {
+        return writer.reset().beginObject()
+                .field("jobstarttime", STARTTIME)
+                .field("jobname", JOB)
+                .field("jobid", NUMBER)
+                .field("joburl", URL)
+                .field("type", "stage")
+                .field("name", NAME)
+                .field("status", STATUS)
+                .field("duration", duration / 1000)
+                .endObject();
+    }
+}
@@ -0,0 +1,80 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JobPerformanceStatsJsonWriterTest {
+
+    @Test
+    public void writesFieldsOfEveryType() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsJsonWriter(16);
+
+        writer.beginObject()
+                .field("name", "build")
+                .field("number", 42L)
+                .field("negative", -1234567890123L)
+                .field("duration", 12.0)
+                .field("ratio", 0.25)
+                .field("success", true)
+                .field("missing", (String) null)
+                .name("tags").beginArray().value("a").value("b").endArray()
+                .endObject();
+
+        assertEquals("{\"name\":\"build\",\"number\":42,\"negative\":-1234567890123,\"duration\":12.0,"
+                + "\"ratio\":0.25,\"success\":true,\"missing\":null,\"tags\":[\"a\",\"b\"]}", writer.toString());
+    }
+
+    @Test
+    public void escapesStrings() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsJsonWriter();
+
+        writer.beginObject().field("name", "say \"hi\"\\ \n\t\u0001").endObject();
+
+        assertEquals("{\"name\":\"say \\\"hi\\\"\\\\ \\n\\t\\u0001\"}", writer.toString());
+        assertEquals("say \"hi\"\\ \n\t\u0001", JSONObject.fromObject(writer.toString()).getString("name"));
+    }
+
+    @Test
+    public void encodesUtf8() throws Exception {
+        String name = "d\u00e9ploiement \u6784\u5efa \ud83d\ude80";
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsJsonWriter();
+
+        writer.beginObject().field("name", name).endObject();
+
+        assertEquals("{\"name\":\"" + name + "\"}", new String(writer.toByteArray(), "utf-8"));
+    }
+
+    @Test
+    public void writesLongBoundaries() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsJsonWriter();
+
+        writer.beginArray().value(0L).value(Long.MAX_VALUE).value(Long.MIN_VALUE).value(Double.NaN).endArray();
+
+        assertEquals("[0," + Long.MAX_VALUE + "," + Long.MIN_VALUE + ",null]", writer.toString());
+    }
+
+    @Test
+    public void resetReusesTheWriter() {
+        JobPerformanceStatsJsonWriter writer = JobPerformanceStatsJsonWriter.acquire();
+        writer.beginObject().field("first", 1L).endObject();
+
+        writer.reset().beginObject().field("second", 2L).endObject().newline();
+
+        assertEquals("{\"second\":2}\n", writer.toString());
+        JobPerformanceStatsJsonWriter.release(writer);
+    }
+
+    @Test
+    public void discardKeepsTheRemainingBytes() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsJsonWriter();
+        writer.beginObject().endObject().newline();
+        int first = writer.size();
+        writer.beginObject().field("kept", true).endObject();
+
+        writer.discard(first);
+
+        assertEquals("{\"kept\":true}", writer.toString());
+    }
+}
@@ -0,0 +1,116 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsLifecycleTest {
+
+    private File directory;
+    private JobPerformanceStatsSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        JobPerformanceStatsLifecycle.drain();
+        directory = Files.createTempDirectory("lifecycle").toFile();
+        spool = new JobPerformanceStatsSpool(directory, 1 << 20, 1 << 24, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        JobPerformanceStatsLifecycle.drain();
+        spool.close();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void append_writesTheUpdateAndTheUpsertDocument() throws IOException {
+        JobPerformanceStatsLifecycle.Event event = new JobPerformanceStatsLifecycle.Event(42, "folder/job", 1000,
+                JobPerformanceStatsLifecycle.State.FINISHED)
+                .field("jobid", 7)
+                .field("jobstatus", "SUCCESS")
+                .field("jobduration", 1.5);
+
+        List<String> items = send(event);
+
+        String id = JobPerformanceStatsDocumentIds.of("folder/job", 42, "lifecycle", null);
+        String fields = "\"jobid\":7,\"jobstatus\":\"SUCCESS\",\"jobduration\":1.5,\"jobname\":\"folder/job\",\"queueid\":42";
+        assertEquals(1, items.size());
+        assertEquals("{\"update\":{\"_index\":\"jenkins-lifecycle\",\"_type\":\"doc\",\"_id\":\"" + id + "\",\"retry_on_conflict\":3}}\n"
+                + "{\"script\":{\"lang\":\"painless\","
+                + "\"source\":\"" + JobPerformanceStatsLifecycle.SCRIPT + "\","
+                + "\"params\":{\"phase\":2,\"state\":\"finished\",\"fields\":{" + fields + "}}},"
+                + "\"upsert\":{" + fields + ",\"type\":\"lifecycle\",\"phase\":2,\"state\":\"finished\"}}\n",
+                items.get(0));
+    }
+
+    @Test
+    public void append_writesEventsWithoutFieldsOfTheirOwn() throws IOException {
+        List<String> items = send(new JobPerformanceStatsLifecycle.Event(1, "job", 1000,
+                JobPerformanceStatsLifecycle.State.QUEUED));
+
+        assertTrue(items.get(0).contains("\"fields\":{\"jobname\":\"job\",\"queueid\":1}"));
+        assertTrue(items.get(0).endsWith(
+                "\"upsert\":{\"jobname\":\"job\",\"queueid\":1,\"type\":\"lifecycle\",\"phase\":0,\"state\":\"queued\"}}\n"));
+    }
+
+    @Test
+    public void queuedEventsAreSentTogether() {
+        JobPerformanceStatsLifecycle.queued(1, "job", 1000);
+        JobPerformanceStatsLifecycle.cancelled(1, "job", 1000);
+        JobPerformanceStatsLifecycle.queued(2, "job", 2000);
+
+        List<JobPerformanceStatsLifecycle.Event> events = JobPerformanceStatsLifecycle.drain();
+
+        assertEquals(3, events.size());
+        assertEquals(JobPerformanceStatsLifecycle.State.QUEUED, events.get(0).getState());
+        assertEquals(JobPerformanceStatsLifecycle.State.CANCELLED, events.get(1).getState());
+        assertEquals(JobPerformanceStatsLifecycle.State.QUEUED, events.get(2).getState());
+        assertTrue(JobPerformanceStatsLifecycle.drain().isEmpty());
+    }
+
+    @Test
+    public void submit_dropsEventsOnceTheQueueIsFullWithoutWaiting() {
+        long dropped = JobPerformanceStatsLifecycle.getDropped();
+        for (int i = 0; i < JobPerformanceStatsLifecycle.MAX_PENDING; i++) {
+            assertTrue(JobPerformanceStatsLifecycle.submit(new JobPerformanceStatsLifecycle.Event(i, "job", 1000,
+                    JobPerformanceStatsLifecycle.State.QUEUED)));
+        }
+
+        assertFalse(JobPerformanceStatsLifecycle.submit(new JobPerformanceStatsLifecycle.Event(-1, "job", 1000,
+                JobPerformanceStatsLifecycle.State.QUEUED)));
+        assertEquals(dropped + 1, JobPerformanceStatsLifecycle.getDropped());
+        assertEquals(JobPerformanceStatsLifecycle.MAX_PENDING, JobPerformanceStatsLifecycle.drain().size());
+    }
+
+    /**
+     * @return the bulk items the events were spooled as.
+     */
+    private List<String> send(final JobPerformanceStatsLifecycle.Event... events) throws IOException {
+        JobPerformanceStatsBulkWriter writer = new JobPerformanceStatsBulkWriter(100, 1 << 20, spool);
+        JobPerformanceStatsJsonWriter update = new JobPerformanceStatsJsonWriter();
+        for (JobPerformanceStatsLifecycle.Event event : events) {
+            JobPerformanceStatsLifecycle.append(writer, update, "jenkins-lifecycle", event);
+        }
+        writer.close();
+        List<String> items = new ArrayList<>();
+        for (byte[] record : spool.read(100, Long.MAX_VALUE).getRecords()) {
+            items.add(new String(record, "utf-8"));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,209 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class JobPerformanceStatsMetricAggregatorTest {
+
+    private final List<String> types = new ArrayList<>();
+    private final List<JSONObject> posted = new ArrayList<>();
+    private final JobPerformanceStatsMetricAggregator aggregator = new JobPerformanceStatsMetricAggregator(
+            new JobPerformanceStatsMetricAggregator.Poster() {
+                @Override
+                public void post(final JSONObject payload, final String type) {
+                    types.add(type);
+                    posted.add(payload);
+                }
+            });
+
+    @Test
+    public void key_ignoresTheOrderOfTags() {
+        JSONArray tags = JSONArray.fromObject(Arrays.asList("job:a", "result:SUCCESS"));
+        JSONArray reversed = JSONArray.fromObject(Arrays.asList("result:SUCCESS", "job:a"));
+
+        assertEquals(JobPerformanceStatsMetricAggregator.key("gauge", "jenkins.job.duration", "host", tags),
+                JobPerformanceStatsMetricAggregator.key("gauge", "jenkins.job.duration", "host", reversed));
+    }
+
+    @Test
+    public void key_separatesMetricsByTypeHostAndTags() {
+        JSONArray tags = JSONArray.fromObject(Arrays.asList("job:a"));
+        String key = JobPerformanceStatsMetricAggregator.key("gauge", "jenkins.job.duration", "host", tags);
+
+        assertNotEquals(key, JobPerformanceStatsMetricAggregator.key("count", "jenkins.job.duration", "host", tags));
+        assertNotEquals(key, JobPerformanceStatsMetricAggregator.key("gauge", "jenkins.job.duration", "other", tags));
+        assertNotEquals(key, JobPerformanceStatsMetricAggregator.key("gauge", "jenkins.job.duration", "host",
+                JSONArray.fromObject(Arrays.asList("job:b"))));
+        assertNotEquals(key, JobPerformanceStatsMetricAggregator.key("gauge", "jenkins.job.duration", "host", null));
+    }
+
+    @Test
+    public void flush_sumsCountersIntoOnePoint() {
+        aggregator.count("jenkins.job.retried", 2, "host", JSONArray.fromObject(Arrays.asList("job:a", "result:FAILURE")));
+        aggregator.count("jenkins.job.retried", 3, "host", JSONArray.fromObject(Arrays.asList("result:FAILURE", "job:a")));
+        aggregator.count("jenkins.job.retried", 4, "other", null);
+
+        aggregator.flush();
+
+        assertEquals(Arrays.asList(JobPerformanceStatsBuildListener.METRIC), types);
+        JSONArray series = posted.get(0).getJSONArray("series");
+        assertEquals(2, series.size());
+        JSONObject counter = series.getJSONObject(0);
+        assertEquals("jenkins.job.retried", counter.getString("metric"));
+        assertEquals("count", counter.getString("type"));
+        assertEquals("host", counter.getString("host"));
+        assertEquals("[\"job:a\",\"result:FAILURE\"]", counter.getJSONArray("tags").toString());
+        assertEquals(1, counter.getLong("interval"));
+        assertEquals(1, counter.getJSONArray("points").size());
+        assertEquals(5, counter.getJSONArray("points").getJSONArray(0).getLong(1));
+        assertEquals(4, series.getJSONObject(1).getJSONArray("points").getJSONArray(0).getLong(1));
+        assertEquals(0, aggregator.size());
+    }
+
+    @Test
+    public void flush_keepsTheLatestPointsOfAGauge() {
+        int added = JobPerformanceStatsMetricAggregator.MAX_POINTS + 5;
+        for (int i = 0; i < added; i++) {
+            aggregator.gauge("jenkins.queue.size", i, "host", null);
+        }
+
+        aggregator.flush();
+
+        JSONObject gauge = posted.get(0).getJSONArray("series").getJSONObject(0);
+        assertEquals("gauge", gauge.getString("type"));
+        JSONArray points = gauge.getJSONArray("points");
+        assertEquals(JobPerformanceStatsMetricAggregator.MAX_POINTS, points.size());
+        assertEquals(5, points.getJSONArray(0).getInt(1));
+        assertEquals(added - 1, points.getJSONArray(points.size() - 1).getInt(1));
+    }
+
+    @Test
+    public void dropsNewMetricsOnceMaxKeysAreWaiting() {
+        for (int i = 0; i < JobPerformanceStatsMetricAggregator.MAX_KEYS; i++) {
+            aggregator.gauge("metric." + i, i, "host", null);
+        }
+
+        aggregator.gauge("metric.new", 1, "host", null);
+        aggregator.count("counter.new", 1, "host", null);
+        // Metrics already waiting still take points
+        aggregator.gauge("metric.0", 1, "host", null);
+
+        assertEquals(2, aggregator.getDropped());
+        assertEquals(JobPerformanceStatsMetricAggregator.MAX_KEYS, aggregator.size());
+        aggregator.flush();
+        int flushed = 0;
+        for (JSONObject payload : posted) {
+            for (Object series : payload.getJSONArray("series")) {
+                String metric = ((JSONObject) series).getString("metric");
+                assertNotEquals("metric.new", metric);
+                if ("metric.0".equals(metric)) {
+                    assertEquals(2, ((JSONObject) series).getJSONArray("points").size());
+                }
+                flushed++;
+            }
+        }
+        assertEquals(JobPerformanceStatsMetricAggregator.MAX_KEYS, flushed);
+    }
+
+    @Test
+    public void flush_splitsTheSeriesIntoPostsOfMaxSeriesPerPost() {
+        int count = 2 * JobPerformanceStatsMetricAggregator.MAX_SERIES_PER_POST + 1;
+        for (int i = 0; i < count; i++) {
+            aggregator.gauge("metric." + i, i, "host", null);
+        }
+
+        aggregator.flush();
+
+        assertEquals(3, posted.size());
+        assertEquals(JobPerformanceStatsMetricAggregator.MAX_SERIES_PER_POST, posted.get(0).getJSONArray("series").size());
+        assertEquals(JobPerformanceStatsMetricAggregator.MAX_SERIES_PER_POST, posted.get(1).getJSONArray("series").size());
+        assertEquals(1, posted.get(2).getJSONArray("series").size());
+        assertEquals("metric." + (count - 1), posted.get(2).getJSONArray("series").getJSONObject(0).getString("metric"));
+        for (String type : types) {
+            assertEquals(JobPerformanceStatsBuildListener.METRIC, type);
+        }
+    }
+
+    @Test
+    public void flush_postsTheLatestStatusOfEachServiceCheck() {
+        aggregator.serviceCheck(check(2));
+        aggregator.serviceCheck(check(0));
+
+        aggregator.flush();
+
+        assertEquals(Arrays.asList(JobPerformanceStatsBuildListener.SERVICECHECK), types);
+        assertEquals(0, posted.get(0).getInt("status"));
+    }
+
+    @Test
+    public void flush_postsTheQuantilesOfADistributionAndItsSketch() {
+        JSONArray tags = JSONArray.fromObject(Arrays.asList("job:a"));
+        for (int i = 100; i >= 1; i--) {
+            aggregator.distribution("jenkins.job.duration.sketch", i, "host", tags);
+        }
+
+        aggregator.flush();
+
+        assertEquals(Arrays.asList(JobPerformanceStatsBuildListener.METRIC, JobPerformanceStatsBuildListener.SKETCH), types);
+        JSONArray series = posted.get(0).getJSONArray("series");
+        String[] names = {"p50", "p75", "p95", "p99", "max"};
+        double[] expected = {50, 75, 95, 99, 100};
+        assertEquals(names.length, series.size());
+        for (int i = 0; i < names.length; i++) {
+            JSONObject gauge = series.getJSONObject(i);
+            assertEquals("jenkins.job.duration.sketch." + names[i], gauge.getString("metric"));
+            assertEquals("gauge", gauge.getString("type"));
+            assertEquals("host", gauge.getString("host"));
+            assertEquals("[\"job:a\"]", gauge.getJSONArray("tags").toString());
+            double value = gauge.getJSONArray("points").getJSONArray(0).getDouble(1);
+            assertEquals(expected[i], value, expected[i] * JobPerformanceStatsQuantileSketch.DEFAULT_RELATIVE_ACCURACY * 2);
+        }
+        assertEquals(100, series.getJSONObject(4).getJSONArray("points").getJSONArray(0).getDouble(1), 0);
+
+        JSONArray sketches = posted.get(1).getJSONArray("sketches");
+        assertEquals(1, sketches.size());
+        JSONObject distribution = sketches.getJSONObject(0);
+        assertEquals("jenkins.job.duration.sketch", distribution.getString("metric"));
+        assertEquals("host", distribution.getString("host"));
+        assertEquals("[\"job:a\"]", distribution.getJSONArray("tags").toString());
+        assertEquals(1, distribution.getLong("interval"));
+        assertEquals(series.getJSONObject(0).getJSONArray("points").getJSONArray(0).getLong(0),
+                distribution.getLong("timestamp"));
+
+        JSONObject sketch = distribution.getJSONObject("sketch");
+        assertEquals(JobPerformanceStatsQuantileSketch.DEFAULT_RELATIVE_ACCURACY, sketch.getDouble("relative_accuracy"), 0);
+        assertEquals(100, sketch.getLong("count"));
+        assertEquals(5050, sketch.getDouble("sum"), 0);
+        assertEquals(1, sketch.getDouble("min"), 0);
+        assertEquals(100, sketch.getDouble("max"), 0);
+        assertEquals(0, sketch.getLong("zero_count"));
+        // 1 falls in the bin of index 0, the bins run from there to the bin of 100
+        assertEquals(0, sketch.getInt("offset"));
+        JSONArray bins = sketch.getJSONArray("bins");
+        long binned = 0;
+        for (int i = 0; i < bins.size(); i++) {
+            binned += bins.getLong(i);
+        }
+        assertEquals(100, binned);
+        assertEquals(1, bins.getLong(0));
+        assertEquals(1, bins.getLong(bins.size() - 1));
+        assertEquals(0, aggregator.size());
+    }
+
+    private static JSONObject check(final int status) {
+        JSONObject check = new JSONObject();
+        check.put("check", "jenkins.job.status");
+        check.put("host_name", "host");
+        check.put("status", status);
+        check.put("tags", JSONArray.fromObject(Arrays.asList("job:a")));
+        return check;
+    }
+}
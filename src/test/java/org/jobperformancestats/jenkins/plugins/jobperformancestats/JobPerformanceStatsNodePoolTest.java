@@ -0,0 +1,305 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JobPerformanceStatsNodePoolTest {
+
+    private HttpServer server;
+    private volatile int status = 200;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        JobPerformanceStatsHttpClient.close();
+    }
+
+    @Test
+    public void parse_defaultsTheSchemeAndPort() throws Exception {
+        List<URL> urls = JobPerformanceStatsNodePool.parse(" elk1, elk2:9300\nhttps://elk3:443 :bad ");
+
+        assertEquals(Arrays.asList(new URL("http://elk1:9200/"), new URL("http://elk2:9300/"), new URL("https://elk3:443/")),
+                urls);
+        assertTrue(JobPerformanceStatsNodePool.parse(null).isEmpty());
+    }
+
+    @Test
+    public void order_turnsRoundTheLiveNodesAndTriesTheDeadOnesLast() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b", "c");
+        pool.getNodes().get(1).markDead(new IOException("down"));
+
+        assertEquals("[http://a:9200/, http://c:9200/, http://b:9200/]", pool.order().toString());
+        assertEquals("[http://c:9200/, http://a:9200/, http://b:9200/]", pool.order().toString());
+        assertEquals("[http://a:9200/, http://c:9200/, http://b:9200/]", pool.order().toString());
+    }
+
+    @Test
+    public void leastInFlight_picksTheLeastBusyNode() throws Exception {
+        final JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.LEAST_IN_FLIGHT, "a", "b");
+        final List<String> picked = new ArrayList<>();
+
+        // While a request is in flight on one node, the next one goes to the other
+        pool.execute(new JobPerformanceStatsNodePool.Request<Void>() {
+            @Override
+            public Void send(final JobPerformanceStatsNodePool.Node busy) throws IOException {
+                picked.add(busy.getUrl().getHost());
+                picked.add(pool.order().get(0).getUrl().getHost());
+                return null;
+            }
+        });
+
+        assertEquals(2, picked.size());
+        assertFalse(picked.get(0).equals(picked.get(1)));
+    }
+
+    @Test
+    public void execute_failsOverToTheNextNode() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b");
+        final List<String> tried = new ArrayList<>();
+
+        String result = pool.execute(new JobPerformanceStatsNodePool.Request<String>() {
+            @Override
+            public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                tried.add(node.getUrl().getHost());
+                if (tried.size() == 1) {
+                    throw new IOException("Connection refused");
+                }
+                return node.getUrl().getHost();
+            }
+        });
+
+        assertEquals(tried.get(1), result);
+        JobPerformanceStatsNodePool.Node failed = node(pool, tried.get(0));
+        assertFalse(failed.isAlive());
+        assertEquals(1, failed.getFailures());
+        assertTrue(node(pool, result).isAlive());
+        assertEquals(0, failed.getInFlight());
+    }
+
+    @Test
+    public void execute_doesNotFailOverRequestsTheNodeRefused() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b");
+        final List<String> tried = new ArrayList<>();
+
+        try {
+            pool.execute(new JobPerformanceStatsNodePool.Request<String>() {
+                @Override
+                public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                    tried.add(node.getUrl().getHost());
+                    throw new JobPerformanceStatsHttpRequests.StatusException(429, "Too many requests");
+                }
+            });
+            fail();
+        } catch (JobPerformanceStatsHttpRequests.StatusException e) {
+            assertEquals(429, e.getStatus());
+        }
+        assertEquals(1, tried.size());
+        assertTrue(node(pool, tried.get(0)).isAlive());
+    }
+
+    @Test
+    public void execute_doesNotMarkNodesDeadWhenTooManyRequestsAreInFlight() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b");
+        final List<String> tried = new ArrayList<>();
+
+        try {
+            pool.execute(new JobPerformanceStatsNodePool.Request<String>() {
+                @Override
+                public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                    tried.add(node.getUrl().getHost());
+                    throw new JobPerformanceStatsAsyncHttpClient.SaturatedException(64);
+                }
+            });
+            fail();
+        } catch (JobPerformanceStatsAsyncHttpClient.SaturatedException e) {
+            assertEquals(1, tried.size());
+        }
+        assertTrue(pool.getNodes().get(0).isAlive());
+        assertTrue(pool.getNodes().get(1).isAlive());
+    }
+
+    @Test
+    public void execute_throwsTheLastFailureOnceEveryNodeFailed() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b");
+
+        try {
+            pool.execute(new JobPerformanceStatsNodePool.Request<String>() {
+                @Override
+                public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                    throw new IOException(node.getUrl().getHost());
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertFalse(pool.getNodes().get(0).isAlive());
+            assertFalse(pool.getNodes().get(1).isAlive());
+        }
+    }
+
+    @Test
+    public void executeWithRetries_goesThroughEveryNodeOncePerAttempt() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b");
+        final List<String> tried = new ArrayList<>();
+
+        String result = pool.executeWithRetries(new JobPerformanceStatsNodePool.Request<String>() {
+            @Override
+            public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                tried.add(node.getUrl().getHost());
+                if (tried.size() <= 2) {
+                    throw new IOException("Connection refused");
+                }
+                return node.getUrl().getHost();
+            }
+        });
+
+        // Both nodes failed at once, then the pool was tried again after a backoff
+        assertEquals(3, tried.size());
+        assertFalse(tried.get(0).equals(tried.get(1)));
+        assertEquals(tried.get(2), result);
+        assertTrue(node(pool, result).isAlive());
+    }
+
+    @Test
+    public void executeWithRetries_givesUpOnceTheAttemptsAreSpent() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a", "b");
+        final List<String> tried = new ArrayList<>();
+
+        try {
+            pool.executeWithRetries(new JobPerformanceStatsNodePool.Request<String>() {
+                @Override
+                public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                    tried.add(node.getUrl().getHost());
+                    throw new JobPerformanceStatsHttpRequests.StatusException(429, "Too many requests");
+                }
+            });
+            fail();
+        } catch (JobPerformanceStatsHttpRequests.StatusException e) {
+            assertEquals(429, e.getStatus());
+        }
+        assertEquals(JobPerformanceStatsHttpClient.DEFAULT_RETRY_MAX_ATTEMPTS, tried.size());
+    }
+
+    @Test
+    public void executeWithRetries_doesNotRetryRequestsTheNodesRejected() throws Exception {
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, "a");
+        final List<String> tried = new ArrayList<>();
+
+        try {
+            pool.executeWithRetries(new JobPerformanceStatsNodePool.Request<String>() {
+                @Override
+                public String send(final JobPerformanceStatsNodePool.Node node) throws IOException {
+                    tried.add(node.getUrl().getHost());
+                    throw new JobPerformanceStatsHttpRequests.StatusException(400, "Bad request");
+                }
+            });
+            fail();
+        } catch (JobPerformanceStatsHttpRequests.StatusException e) {
+            assertEquals(400, e.getStatus());
+        }
+        assertEquals(1, tried.size());
+        assertFalse(JobPerformanceStatsNodePool.isRetryable(new JobPerformanceStatsCircuitBreaker.OpenException("http://a:9200")));
+        assertTrue(JobPerformanceStatsNodePool.isRetryable(new IOException("Connection refused")));
+    }
+
+    @Test
+    public void healthCheck_marksNodesDeadAndBringsThemBack() throws Exception {
+        startServer();
+        String live = "127.0.0.1:" + server.getAddress().getPort();
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN, live, "127.0.0.1:" + closedPort());
+        JobPerformanceStatsNodePool.Node up = pool.getNodes().get(0);
+        JobPerformanceStatsNodePool.Node down = pool.getNodes().get(1);
+
+        JobPerformanceStatsNodeHealthCheck.check(pool);
+        assertTrue(up.isAlive());
+        assertFalse(down.isAlive());
+
+        status = 503;
+        JobPerformanceStatsNodeHealthCheck.check(pool);
+        assertFalse(up.isAlive());
+
+        status = 200;
+        JobPerformanceStatsNodeHealthCheck.check(pool);
+        assertTrue(up.isAlive());
+    }
+
+    @Test
+    public void healthCheck_probesNodesWhoseBreakerIsOpen() throws Exception {
+        startServer();
+        JobPerformanceStatsNodePool pool = pool(JobPerformanceStatsNodePool.Selection.ROUND_ROBIN,
+                "127.0.0.1:" + server.getAddress().getPort());
+        JobPerformanceStatsNodePool.Node node = pool.getNodes().get(0);
+        node.markDead(new IOException("down"));
+        JobPerformanceStatsCircuitBreaker breaker = JobPerformanceStatsCircuitBreaker.forEndpoint(
+                "http://127.0.0.1:" + server.getAddress().getPort());
+        for (int i = 0; i < JobPerformanceStatsCircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        long failures = breaker.getFailures();
+
+        JobPerformanceStatsNodeHealthCheck.check(pool);
+
+        assertTrue(node.isAlive());
+        // The probe neither went through the breaker nor was counted by it
+        assertEquals(JobPerformanceStatsCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(0, breaker.getRejected());
+        assertEquals(failures, breaker.getFailures());
+        assertEquals(0, breaker.getSuccesses());
+    }
+
+    private JobPerformanceStatsNodePool pool(final JobPerformanceStatsNodePool.Selection selection, final String... addresses) {
+        StringBuilder joined = new StringBuilder();
+        for (String address : addresses) {
+            joined.append(address).append(',');
+        }
+        return new JobPerformanceStatsNodePool(JobPerformanceStatsNodePool.parse(joined.toString()), selection);
+    }
+
+    private static JobPerformanceStatsNodePool.Node node(final JobPerformanceStatsNodePool pool, final String host) {
+        for (JobPerformanceStatsNodePool.Node node : pool.getNodes()) {
+            if (node.getUrl().getHost().equals(host)) {
+                return node;
+            }
+        }
+        throw new AssertionError(host);
+    }
+
+    private void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                byte[] body = "{}".getBytes("utf-8");
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JobPerformanceStatsPrometheusSinkTest {
+
+    @Test
+    public void stepLabel_boundsTheNumberOfStepSeries() {
+        for (int i = 0; i < JobPerformanceStatsPrometheusSink.MAX_STEP_NAMES; i++) {
+            assertEquals("step " + i, JobPerformanceStatsPrometheusSink.stepLabel("step " + i));
+        }
+
+        assertEquals(JobPerformanceStatsPrometheusSink.OTHER_STEP, JobPerformanceStatsPrometheusSink.stepLabel("one more"));
+        // Names that have a series keep it
+        assertEquals("step 0", JobPerformanceStatsPrometheusSink.stepLabel("step 0"));
+    }
+}
@@ -0,0 +1,135 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JobPerformanceStatsPushgatewayTest {
+
+    private static final long INTERVAL = 30000;
+    private static final long NOW = 1569972600000L;
+
+    private HttpServer server;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private volatile int status = 202;
+    private volatile long delayMillis = 0;
+
+    private final List<String> pushes = new CopyOnWriteArrayList<>();
+    private volatile boolean failing = false;
+    private final JobPerformanceStatsPushgateway pushgateway = new JobPerformanceStatsPushgateway(
+            new JobPerformanceStatsPushgateway.Pusher() {
+                @Override
+                public void push(final String address, final String job, final String instance, final int timeoutMillis)
+                        throws IOException {
+                    pushes.add(address + " " + job + " " + instance + " " + timeoutMillis);
+                    if (failing) {
+                        throw new IOException("unreachable");
+                    }
+                }
+            });
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                received.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath() + " "
+                        + exchange.getRequestHeaders().getFirst("Content-Type"));
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String address() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Test
+    public void execute_pushesOncePerInterval() {
+        assertTrue(pushgateway.execute(NOW, INTERVAL, "gateway:9091", "jenkins", "controller"));
+        assertFalse(pushgateway.execute(NOW + INTERVAL - 1, INTERVAL, "gateway:9091", "jenkins", "controller"));
+        assertTrue(pushgateway.execute(NOW + INTERVAL, INTERVAL, "gateway:9091", "jenkins", "controller"));
+
+        assertEquals(2, pushes.size());
+        assertEquals("gateway:9091 jenkins controller " + JobPerformanceStatsPushgateway.PUSH_TIMEOUT_MILLIS, pushes.get(0));
+    }
+
+    @Test
+    public void execute_waitsForTheNextIntervalAfterAFailedPush() {
+        failing = true;
+
+        assertTrue(pushgateway.execute(NOW, INTERVAL, "gateway:9091", "jenkins", "controller"));
+        assertFalse(pushgateway.execute(NOW + 1000, INTERVAL, "gateway:9091", "jenkins", "controller"));
+        assertEquals(1, pushes.size());
+    }
+
+    @Test
+    public void put_replacesTheMetricsOfTheGroupingKey() throws IOException {
+        JobPerformanceStatsPushgateway.put(address(), "jenkins", "controller 1", 1000);
+
+        assertEquals("[PUT /metrics/job/jenkins/instance/controller+1 text/plain; version=0.0.4; charset=utf-8]",
+                received.toString());
+    }
+
+    @Test
+    public void put_acceptsAnAddressWithItsScheme() throws IOException {
+        JobPerformanceStatsPushgateway.put("http://" + address(), "jenkins", "controller", 1000);
+
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void put_failsWhenThePushgatewayRefusesTheMetrics() {
+        status = 400;
+
+        try {
+            JobPerformanceStatsPushgateway.put(address(), "jenkins", "controller", 1000);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("400"));
+        }
+    }
+
+    @Test
+    public void put_givesUpOnASlowPushgatewayAfterTheTimeout() throws IOException {
+        delayMillis = 5000;
+
+        long start = System.nanoTime();
+        try {
+            JobPerformanceStatsPushgateway.put(address(), "jenkins", "controller", 200);
+            fail();
+        } catch (SocketTimeoutException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        }
+    }
+}
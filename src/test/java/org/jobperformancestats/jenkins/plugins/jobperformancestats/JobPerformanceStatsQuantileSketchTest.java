@@ -0,0 +1,75 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsQuantileSketchTest {
+
+    private static final double ACCURACY = 0.01;
+
+    @Test
+    public void returnsQuantilesWithinTheRelativeAccuracy() {
+        JobPerformanceStatsQuantileSketch sketch = new JobPerformanceStatsQuantileSketch(ACCURACY, 2048);
+        for (int i = 1; i <= 10000; i++) {
+            sketch.add(i / 10.0);
+        }
+
+        assertEquals(10000, sketch.getCount());
+        for (double quantile : new double[] {0.5, 0.95, 0.99}) {
+            double exact = Math.floor(quantile * 9999 + 1) / 10.0;
+            assertEquals(exact, sketch.getQuantile(quantile), exact * ACCURACY);
+        }
+        assertEquals(1000.0, sketch.getMax(), 0);
+        assertEquals(0.1, sketch.getQuantile(0), 0);
+    }
+
+    @Test
+    public void mergesLikeASingleSketch() {
+        JobPerformanceStatsQuantileSketch all = new JobPerformanceStatsQuantileSketch();
+        JobPerformanceStatsQuantileSketch even = new JobPerformanceStatsQuantileSketch();
+        JobPerformanceStatsQuantileSketch odd = new JobPerformanceStatsQuantileSketch();
+        for (int i = 0; i < 5000; i++) {
+            all.add(i);
+            (i % 2 == 0 ? even : odd).add(i);
+        }
+
+        even.merge(odd);
+        assertEquals(all.getCount(), even.getCount());
+        assertEquals(all.getSum(), even.getSum(), 0);
+        for (double quantile : new double[] {0, 0.25, 0.5, 0.75, 0.99, 1}) {
+            assertEquals(all.getQuantile(quantile), even.getQuantile(quantile), 0);
+        }
+    }
+
+    @Test
+    public void foldsTheLowestBinsToBoundItsMemory() {
+        JobPerformanceStatsQuantileSketch sketch = new JobPerformanceStatsQuantileSketch(ACCURACY, 100);
+        // From a millisecond to a day spans far more than 100 bins of 1%
+        for (double value = 0.001; value < 86400; value *= 1.5) {
+            sketch.add(value);
+        }
+        sketch.add(0.001);
+
+        assertEquals(100, sketch.getBinCount());
+        // The tail keeps its accuracy
+        double max = sketch.getMax();
+        assertEquals(max, sketch.getQuantile(1), max * ACCURACY);
+        assertTrue(sketch.getQuantile(0) >= 0.001);
+    }
+
+    @Test
+    public void countsZeroDurationsApart() {
+        JobPerformanceStatsQuantileSketch sketch = new JobPerformanceStatsQuantileSketch();
+        sketch.add(0);
+        sketch.add(0);
+        sketch.add(-1);
+        sketch.add(30);
+
+        assertEquals(4, sketch.getCount());
+        assertEquals(0, sketch.getQuantile(0.5), 0);
+        assertEquals(30, sketch.getQuantile(1), 30 * ACCURACY);
+        assertEquals(1, sketch.getBinCount());
+    }
+}
@@ -0,0 +1,63 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void keepsAReserveForHigherLanes() {
+        JobPerformanceStatsRateLimiter limiter = new JobPerformanceStatsRateLimiter(10, 10, 100);
+        long now = System.nanoTime();
+
+        // Steps stop at half of the burst, stages at a fifth, builds never
+        int steps = 0;
+        while (limiter.tryAcquire(JobPerformanceStatsRateLimiter.Lane.STEP, now)) {
+            steps++;
+        }
+        assertEquals(5, steps);
+        int stages = 0;
+        while (limiter.tryAcquire(JobPerformanceStatsRateLimiter.Lane.STAGE, now)) {
+            stages++;
+        }
+        assertEquals(3, stages);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire(JobPerformanceStatsRateLimiter.Lane.BUILD, now));
+        }
+    }
+
+    @Test
+    public void buildDebtDelaysLowerLanes() {
+        JobPerformanceStatsRateLimiter limiter = new JobPerformanceStatsRateLimiter(10, 10, 100);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 15; i++) {
+            limiter.tryAcquire(JobPerformanceStatsRateLimiter.Lane.BUILD, now);
+        }
+        // 5 tokens of debt, then 3 for the reserve of stages
+        assertFalse(limiter.tryAcquire(JobPerformanceStatsRateLimiter.Lane.STAGE, now + SECOND / 2));
+        assertTrue(limiter.tryAcquire(JobPerformanceStatsRateLimiter.Lane.STAGE, now + SECOND));
+    }
+
+    @Test
+    public void shedsDocumentsOnceTheBacklogIsFull() throws Exception {
+        JobPerformanceStatsRateLimiter limiter = new JobPerformanceStatsRateLimiter(1, 10, 0);
+        JobPerformanceStatsJsonWriter json = JobPerformanceStatsJsonWriter.acquire();
+        try {
+            json.beginObject().field("type", "step").endObject();
+            assertFalse(limiter.defer(JobPerformanceStatsRateLimiter.Lane.STEP, "index", "id", json,
+                    JobPerformanceStatsJsonWriter.Encoding.JSON, null));
+        } finally {
+            JobPerformanceStatsJsonWriter.release(json);
+        }
+        assertEquals(1, limiter.getShed());
+        assertEquals(0, limiter.getBacklog());
+    }
+}
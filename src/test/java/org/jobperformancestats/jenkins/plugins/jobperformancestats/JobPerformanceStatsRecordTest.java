@@ -0,0 +1,31 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JobPerformanceStatsRecordTest {
+
+    @Test
+    public void completed_snapshotsTheBuildData() {
+        JSONObject builddata = new JSONObject();
+        builddata.put("result", "SUCCESS");
+        builddata.put("hostname", "controller");
+        Map<String, String> tags = new HashMap<>();
+        tags.put("team", "a");
+
+        JobPerformanceStatsRecord record = JobPerformanceStatsRecord.completed(null, null, builddata, tags, null);
+        builddata.put("result", "FAILURE");
+        tags.put("team", "b");
+
+        assertEquals("SUCCESS", record.getBuildData().getString("result"));
+        assertEquals("a", record.getTags().get("team"));
+        assertEquals("controller", record.getHostname());
+        assertNull(record.getRun());
+    }
+}
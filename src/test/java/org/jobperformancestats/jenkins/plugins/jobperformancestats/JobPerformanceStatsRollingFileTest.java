@@ -0,0 +1,71 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsRollingFileTest {
+
+    @Test
+    public void appendsOneLinePerDocument() throws Exception {
+        File directory = Files.createTempDirectory("rolling").toFile();
+        JobPerformanceStatsRollingFile file = new JobPerformanceStatsRollingFile(directory, 1024 * 1024, 0, 3);
+
+        append(file, "{\"a\":1}");
+        append(file, "{\"b\":2}");
+        file.close();
+
+        List<String> lines = Files.readAllLines(file.getCurrent().toPath(), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("{\"a\":1}", "{\"b\":2}"), lines);
+        assertEquals(0, file.rotatedFiles().length);
+    }
+
+    @Test
+    public void rotatesBySizeAndKeepsTheLatestFiles() throws Exception {
+        File directory = Files.createTempDirectory("rolling").toFile();
+        // The size cap is at least the buffer size
+        JobPerformanceStatsRollingFile file = new JobPerformanceStatsRollingFile(directory, 1, 0, 2);
+        char[] chars = new char[999];
+        Arrays.fill(chars, 'x');
+        String line = new String(chars);
+
+        for (int i = 0; i < 300; i++) {
+            append(file, line);
+        }
+        file.close();
+
+        File[] rotated = file.rotatedFiles();
+        assertEquals(2, rotated.length);
+        for (File f : rotated) {
+            assertTrue(f.length() <= JobPerformanceStatsRollingFile.BUFFER_BYTES);
+            // Files are only rotated between lines
+            assertEquals(0, f.length() % (line.length() + 1));
+        }
+    }
+
+    @Test
+    public void rotatesByAge() throws Exception {
+        File directory = Files.createTempDirectory("rolling").toFile();
+        JobPerformanceStatsRollingFile file = new JobPerformanceStatsRollingFile(directory, 1024 * 1024, 1, 5);
+
+        append(file, "{\"a\":1}");
+        Thread.sleep(10);
+        append(file, "{\"b\":2}");
+        file.close();
+
+        assertEquals(1, file.rotatedFiles().length);
+        assertEquals(Arrays.asList("{\"b\":2}"), Files.readAllLines(file.getCurrent().toPath(), StandardCharsets.UTF_8));
+    }
+
+    private static void append(final JobPerformanceStatsRollingFile file, final String line) throws Exception {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        file.append(bytes, 0, bytes.length);
+    }
+}
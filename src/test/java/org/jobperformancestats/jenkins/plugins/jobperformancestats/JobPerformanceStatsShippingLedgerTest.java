@@ -0,0 +1,65 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsShippingLedgerTest {
+
+    @Test
+    public void staysPendingUntilEveryDocumentIsAcknowledged() throws Exception {
+        File directory = Files.createTempDirectory("ledger").toFile();
+        File marker = marker(directory);
+        JobPerformanceStatsShippingLedger ledger = new JobPerformanceStatsShippingLedger(marker, new File(directory, "ledger"));
+
+        ledger.expect("job");
+        ledger.expect("stage");
+        ledger.acknowledged(Collections.singletonList("job"));
+        ledger.seal();
+        assertTrue(ledger.isPending());
+
+        ledger.acknowledged(Collections.singletonList("stage"));
+        assertFalse(ledger.isPending());
+    }
+
+    @Test
+    public void keepsAcknowledgedDocumentsAcrossRestarts() throws Exception {
+        File directory = Files.createTempDirectory("ledger").toFile();
+        File file = new File(directory, "ledger");
+        JobPerformanceStatsShippingLedger ledger = new JobPerformanceStatsShippingLedger(marker(directory), file);
+
+        ledger.expect("job");
+        ledger.expect("stage");
+        // Documents of other builds in the same request are not recorded
+        ledger.acknowledged(Arrays.asList("job", "other"));
+
+        JobPerformanceStatsShippingLedger reloaded = new JobPerformanceStatsShippingLedger(marker(directory), file);
+        assertTrue(reloaded.isAcknowledged("job"));
+        assertFalse(reloaded.isAcknowledged("stage"));
+        assertFalse(reloaded.isAcknowledged("other"));
+        assertTrue(reloaded.isPending());
+    }
+
+    @Test
+    public void completesWhenNothingIsLeftToSend() throws Exception {
+        File directory = Files.createTempDirectory("ledger").toFile();
+        JobPerformanceStatsShippingLedger ledger = new JobPerformanceStatsShippingLedger(marker(directory), new File(directory, "ledger"));
+
+        ledger.seal();
+        assertFalse(ledger.isPending());
+    }
+
+    private static File marker(final File directory) throws Exception {
+        File marker = new File(directory, "marker");
+        if (!marker.exists()) {
+            Files.write(marker.toPath(), "job#1".getBytes("utf-8"));
+        }
+        return marker;
+    }
+}
@@ -0,0 +1,236 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsSinkQueueTest {
+
+    @Test
+    public void sendsQueuedRecordsInBatches() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(3, release);
+        JobPerformanceStatsSinkQueue queue = queue(sink, 10, JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_NEWEST);
+
+        // The first record holds the worker until the others are queued
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(gauge(i)));
+        }
+        release.countDown();
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(5, queue.getSent());
+        assertEquals(5, sink.records.size());
+        for (List<JobPerformanceStatsRecord> batch : sink.batches) {
+            assertTrue(batch.size() <= 3);
+        }
+        queue.shutdown(1000);
+    }
+
+    @Test
+    public void keepsSendingAfterAFailedBatch() throws Exception {
+        RecordingSink sink = new RecordingSink(1, null);
+        sink.failures = 1;
+        JobPerformanceStatsSinkQueue queue = queue(sink, 10, JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_NEWEST);
+
+        queue.offer(gauge(0));
+        queue.offer(gauge(1));
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(1, queue.getFailed());
+        assertEquals(1, queue.getSent());
+        assertEquals("gauge.1", sink.records.get(0).getMetric());
+        queue.shutdown(1000);
+    }
+
+    @Test
+    public void dropsRecordsOnceFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(1, release);
+        JobPerformanceStatsSinkQueue queue = queue(sink, 2, JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_NEWEST);
+
+        queue.offer(gauge(0));
+        assertTrue(sink.started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.offer(gauge(1)));
+        assertTrue(queue.offer(gauge(2)));
+        assertFalse(queue.offer(gauge(3)));
+        release.countDown();
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(1, queue.getDropped());
+        assertEquals(3, queue.getSent());
+        queue.shutdown(1000);
+    }
+
+    @Test
+    public void dropOldest_discardsTheOldestQueuedRecord() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(1, release);
+        JobPerformanceStatsSinkQueue queue = queue(sink, 2, JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_OLDEST);
+
+        queue.offer(gauge(0));
+        assertTrue(sink.started.await(5, TimeUnit.SECONDS));
+        queue.offer(gauge(1));
+        queue.offer(gauge(2));
+        assertTrue(queue.offer(gauge(3)));
+        release.countDown();
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(1, queue.getDropped());
+        assertEquals("[gauge.0, gauge.2, gauge.3]", metrics(sink.records));
+        queue.shutdown(1000);
+    }
+
+    @Test
+    public void block_waitsForRoomThenDrops() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(1, release);
+        JobPerformanceStatsSinkQueue queue = queue(sink, 1, JobPerformanceStatsSinkQueue.OverflowPolicy.BLOCK);
+
+        queue.offer(gauge(0));
+        assertTrue(sink.started.await(5, TimeUnit.SECONDS));
+        queue.offer(gauge(1));
+        long start = System.currentTimeMillis();
+        assertFalse(queue.offer(gauge(2)));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        release.countDown();
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(1, queue.getDropped());
+        assertEquals(2, queue.getSent());
+        queue.shutdown(1000);
+    }
+
+    @Test
+    public void block_queuesTheRecordOnceThereIsRoom() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingSink sink = new RecordingSink(1, release);
+        JobPerformanceStatsSinkQueue queue = new JobPerformanceStatsSinkQueue(sink, 1,
+                JobPerformanceStatsSinkQueue.OverflowPolicy.BLOCK, 5000);
+
+        queue.offer(gauge(0));
+        assertTrue(sink.started.await(5, TimeUnit.SECONDS));
+        queue.offer(gauge(1));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        }).start();
+        assertTrue(queue.offer(gauge(2)));
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(0, queue.getDropped());
+        assertEquals(3, queue.getSent());
+        queue.shutdown(1000);
+    }
+
+    @Test
+    public void parsePolicy_fallsBackToDropOldest() {
+        assertEquals(JobPerformanceStatsSinkQueue.OverflowPolicy.BLOCK, JobPerformanceStatsSinkQueue.parsePolicy("BLOCK"));
+        assertEquals(JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_OLDEST, JobPerformanceStatsSinkQueue.parsePolicy(null));
+        assertEquals(JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_OLDEST, JobPerformanceStatsSinkQueue.parsePolicy("DROP_ALL"));
+    }
+
+    @Test
+    public void sendsFromSeveralWorkersAtOnce() throws Exception {
+        final CountDownLatch bothSending = new CountDownLatch(2);
+        final AtomicInteger concurrent = new AtomicInteger();
+        JobPerformanceStatsSink sink = new JobPerformanceStatsSink() {
+            @Override
+            public String getName() {
+                return "concurrent";
+            }
+
+            @Override
+            public void send(final List<JobPerformanceStatsRecord> batch) throws Exception {
+                bothSending.countDown();
+                // Only returns in time if the other worker is sending too
+                if (bothSending.await(5, TimeUnit.SECONDS)) {
+                    concurrent.incrementAndGet();
+                }
+            }
+        };
+        JobPerformanceStatsSinkQueue queue = new JobPerformanceStatsSinkQueue(sink, 10, 2,
+                JobPerformanceStatsSinkQueue.OverflowPolicy.DROP_NEWEST, 100);
+
+        queue.offer(gauge(0));
+        queue.offer(gauge(1));
+
+        assertTrue(queue.awaitIdle(10000));
+        assertEquals(2, concurrent.get());
+        assertEquals(2, queue.getSent());
+        queue.shutdown(1000);
+    }
+
+    private static JobPerformanceStatsSinkQueue queue(final JobPerformanceStatsSink sink, final int capacity,
+                                                      final JobPerformanceStatsSinkQueue.OverflowPolicy policy) {
+        return new JobPerformanceStatsSinkQueue(sink, capacity, policy, 100);
+    }
+
+    private static String metrics(final List<JobPerformanceStatsRecord> records) {
+        List<String> metrics = new ArrayList<>();
+        synchronized (records) {
+            for (JobPerformanceStatsRecord record : records) {
+                metrics.add(record.getMetric());
+            }
+        }
+        return metrics.toString();
+    }
+
+    private static JobPerformanceStatsRecord gauge(final int i) {
+        return JobPerformanceStatsRecord.gauge("gauge." + i, i, "host");
+    }
+
+    private static class RecordingSink extends JobPerformanceStatsSink {
+        final List<List<JobPerformanceStatsRecord>> batches = Collections.synchronizedList(new ArrayList<List<JobPerformanceStatsRecord>>());
+        final List<JobPerformanceStatsRecord> records = Collections.synchronizedList(new ArrayList<JobPerformanceStatsRecord>());
+        final CountDownLatch started = new CountDownLatch(1);
+        private final int maxBatchSize;
+        private final CountDownLatch release;
+        volatile int failures = 0;
+
+        RecordingSink(final int maxBatchSize, final CountDownLatch release) {
+            this.maxBatchSize = maxBatchSize;
+            this.release = release;
+        }
+
+        @Override
+        public String getName() {
+            return "recording";
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        @Override
+        public void send(final List<JobPerformanceStatsRecord> batch) throws Exception {
+            started.countDown();
+            if (release != null) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            if (failures > 0) {
+                failures--;
+                throw new IllegalStateException("failing");
+            }
+            batches.add(new ArrayList<>(batch));
+            records.addAll(batch);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class JobPerformanceStatsSmileWriterTest {
+
+    private static final int[] HEADER = {0x3a, 0x29, 0x0a, 0x00};
+
+    @Test
+    public void writesTheHeaderAndObject() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsSmileWriter(16);
+
+        writer.beginObject().field("a", 1L).endObject();
+
+        assertBytes(writer, HEADER, new int[] {0xfa, 0x80, 'a', 0xc2, 0xfb});
+    }
+
+    @Test
+    public void writesIntegersAsZigzagVInts() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsSmileWriter(16);
+
+        writer.beginArray().value(-1L).value(20L).value(100L).value(4294967296L).endArray();
+
+        assertBytes(writer, HEADER, new int[] {0xf8,
+            0xc1,
+            0x24, 0xa8,
+            0x24, 0x03, 0x88,
+            0x25, 0x40, 0x00, 0x00, 0x00, 0x80,
+            0xf9});
+    }
+
+    @Test
+    public void writesDoublesAsSevenBitGroups() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsSmileWriter(16);
+
+        writer.beginArray().value(0.5).value(Double.NaN).endArray();
+
+        assertBytes(writer, HEADER, new int[] {0xf8,
+            0x29, 0x00, 0x3f, 0x70, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x21,
+            0xf9});
+    }
+
+    @Test
+    public void writesStringsByLengthAndCharset() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsSmileWriter(16);
+
+        writer.beginObject()
+                .field("\u00e9", "abc")
+                .field("e", "\u00e9")
+                .field("s", "")
+                .field("b", true)
+                .endObject();
+
+        assertBytes(writer, HEADER, new int[] {0xfa,
+            0xc0, 0xc3, 0xa9, 0x42, 'a', 'b', 'c',
+            0x80, 'e', 0x80, 0xc3, 0xa9,
+            0x80, 's', 0x20,
+            0x80, 'b', 0x23,
+            0xfb});
+    }
+
+    @Test
+    public void writesLongStringsWithAnEndMarker() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsSmileWriter(16);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            value.append('x');
+        }
+
+        writer.beginArray().value(value).endArray();
+
+        byte[] bytes = writer.toByteArray();
+        assertEquals(HEADER.length + 1 + 1 + 70 + 1 + 1, bytes.length);
+        assertEquals((byte) 0xe0, bytes[HEADER.length + 1]);
+        assertEquals((byte) 0xfc, bytes[bytes.length - 2]);
+    }
+
+    @Test
+    public void separatesDocumentsWithTheEndMarker() {
+        JobPerformanceStatsJsonWriter writer = JobPerformanceStatsJsonWriter.acquire(JobPerformanceStatsJsonWriter.Encoding.SMILE);
+        try {
+            writer.beginObject().endObject().newline().beginObject().endObject().newline();
+
+            assertBytes(writer, HEADER, new int[] {0xfa, 0xfb, 0xff}, HEADER, new int[] {0xfa, 0xfb, 0xff});
+            assertEquals(JobPerformanceStatsJsonWriter.Encoding.SMILE, writer.getEncoding());
+        } finally {
+            JobPerformanceStatsJsonWriter.release(writer);
+        }
+    }
+
+    @Test
+    public void itemOffsets_splitsOnTheEndMarker() {
+        JobPerformanceStatsJsonWriter writer = new JobPerformanceStatsSmileWriter(16);
+        writer.beginObject().field("n", 10L).endObject().newline()
+                .beginObject().endObject().newline();
+        int item = writer.size();
+        writer.beginObject().endObject().newline()
+                .beginObject().endObject().newline();
+
+        int[] offsets = JobPerformanceStatsBulkWriter.itemOffsets(writer.buffer(), writer.size(), (byte) 0xff);
+
+        assertArrayEquals(new int[] {0, item, writer.size()}, offsets);
+    }
+
+    private static void assertBytes(JobPerformanceStatsJsonWriter writer, int[]... parts) {
+        int length = 0;
+        for (int[] part : parts) {
+            length += part.length;
+        }
+        byte[] expected = new byte[length];
+        int i = 0;
+        for (int[] part : parts) {
+            for (int b : part) {
+                expected[i++] = (byte) b;
+            }
+        }
+        assertArrayEquals(expected, writer.toByteArray());
+    }
+}
@@ -0,0 +1,183 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsSpoolTest {
+
+    // Two records of 20 bytes and their 8 byte headers fit in a segment
+    private static final int SEGMENT = 64;
+    private static final long RETENTION = TimeUnit.HOURS.toMillis(1);
+
+    private File directory;
+    private JobPerformanceStatsSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool").toFile();
+        spool = new JobPerformanceStatsSpool(directory, SEGMENT, 10 * SEGMENT, RETENTION);
+    }
+
+    @After
+    public void tearDown() {
+        spool.close();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void readsAndAcknowledgesAcrossSegments() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            spool.append(record(i));
+        }
+        assertEquals(3, segmentFiles().length);
+
+        JobPerformanceStatsSpool.Batch first = spool.read(3, Long.MAX_VALUE);
+        assertEquals(names(0, 3), names(first));
+        // Records are read again until they are acknowledged
+        assertEquals(names(0, 3), names(spool.read(3, Long.MAX_VALUE)));
+
+        spool.ack(first);
+        assertEquals(2, segmentFiles().length);
+        JobPerformanceStatsSpool.Batch rest = spool.read(10, Long.MAX_VALUE);
+        assertEquals(names(3, 5), names(rest));
+
+        spool.ack(rest);
+        assertTrue(spool.read(10, Long.MAX_VALUE).isEmpty());
+        assertEquals(0, spool.getBacklogBytes());
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    public void read_stopsAtTheBatchSize() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            spool.append(record(i));
+        }
+
+        // The first record is always read, even when it is larger than the batch
+        assertEquals(names(0, 1), names(spool.read(10, 10)));
+        assertEquals(names(0, 2), names(spool.read(10, 40)));
+    }
+
+    @Test
+    public void restoresTheCursorAfterReopening() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            spool.append(record(i));
+        }
+        spool.ack(spool.read(3, Long.MAX_VALUE));
+        spool.close();
+
+        spool = new JobPerformanceStatsSpool(directory, SEGMENT, 10 * SEGMENT, RETENTION);
+        assertEquals(names(3, 5), names(spool.read(10, Long.MAX_VALUE)));
+
+        // New records go after the recovered ones
+        spool.append(record(5));
+        assertEquals(names(3, 6), names(spool.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void truncatesATornRecordWhenReopening() throws IOException {
+        spool.append(record(0));
+        spool.append(record(1));
+        spool.close();
+        // Flip a byte of the second record, its CRC no longer matches
+        try (RandomAccessFile segment = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            segment.seek(28 + 8 + 3);
+            segment.write('X');
+        }
+
+        spool = new JobPerformanceStatsSpool(directory, SEGMENT, 10 * SEGMENT, RETENTION);
+        assertEquals(names(0, 1), names(spool.read(10, Long.MAX_VALUE)));
+
+        // The torn record is overwritten by the next one
+        spool.append(record(2));
+        List<String> expected = names(0, 1);
+        expected.addAll(names(2, 3));
+        assertEquals(expected, names(spool.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void dropsSegmentsOlderThanTheRetentionPeriod() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            spool.append(record(i));
+        }
+        File oldest = segmentFiles()[0];
+        assertTrue(oldest.setLastModified(System.currentTimeMillis() - 2 * RETENTION));
+
+        spool.maintain();
+
+        assertEquals(1, spool.getDroppedSegments());
+        assertEquals(2, segmentFiles().length);
+        assertEquals(names(2, 5), names(spool.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void dropsTheOldestSegmentsOverTheSizeCap() throws IOException {
+        spool.close();
+        spool = new JobPerformanceStatsSpool(directory, SEGMENT, 2 * SEGMENT, RETENTION);
+        for (int i = 0; i < 6; i++) {
+            spool.append(record(i));
+        }
+
+        assertEquals(1, spool.getDroppedSegments());
+        assertEquals(2, segmentFiles().length);
+        assertEquals(names(2, 6), names(spool.read(10, Long.MAX_VALUE)));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesRecordsOnceClosed() throws IOException {
+        spool.close();
+        spool.append(record(0));
+    }
+
+    /**
+     * @return a record of 20 bytes.
+     */
+    private static byte[] record(final int i) throws IOException {
+        return String.format("record-%013d", i).getBytes("utf-8");
+    }
+
+    private static List<String> names(final int from, final int to) {
+        List<String> names = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            names.add(String.format("record-%013d", i));
+        }
+        return names;
+    }
+
+    private static List<String> names(final JobPerformanceStatsSpool.Batch batch) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (byte[] record : batch.getRecords()) {
+            names.add(new String(record, "utf-8"));
+        }
+        return names;
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".seg");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,103 @@
+package org.jobperformancestats.jenkins.plugins.jobperformancestats;
+
+import com.timgroup.statsd.NonBlockingStatsDClient;
+import com.timgroup.statsd.StatsDClient;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JobPerformanceStatsStatsDClientsTest {
+
+    private final List<String> created = new CopyOnWriteArrayList<>();
+    private final List<StatsDClient> stopped = new CopyOnWriteArrayList<>();
+    private final JobPerformanceStatsStatsDClients clients = new JobPerformanceStatsStatsDClients(
+            new JobPerformanceStatsStatsDClients.Factory() {
+                @Override
+                public StatsDClient create(final String host, final int port) {
+                    created.add(host + ":" + port);
+                    return new NonBlockingStatsDClient(JobPerformanceStatsStatsDClients.PREFIX, host, port);
+                }
+
+                @Override
+                public void stop(final StatsDClient client) {
+                    stopped.add(client);
+                    client.stop();
+                }
+            });
+
+    @Test
+    public void lease_reusesTheClientUntilTheDaemonHostChanges() {
+        JobPerformanceStatsStatsDClients.Lease first = clients.lease("localhost:8125");
+        first.release();
+        JobPerformanceStatsStatsDClients.Lease second = clients.lease("localhost:8125");
+        second.release();
+
+        assertSame(first.getClient(), second.getClient());
+        assertEquals("[localhost:8125]", created.toString());
+        assertTrue(stopped.isEmpty());
+
+        JobPerformanceStatsStatsDClients.Lease moved = clients.lease("localhost:8126");
+        moved.release();
+
+        assertNotSame(first.getClient(), moved.getClient());
+        assertEquals("[localhost:8125, localhost:8126]", created.toString());
+        assertEquals(1, stopped.size());
+        assertSame(first.getClient(), stopped.get(0));
+        clients.retire();
+    }
+
+    @Test
+    public void retire_stopsTheClientOnceItsLastLeaseIsReleased() {
+        JobPerformanceStatsStatsDClients.Lease first = clients.lease("localhost:8125");
+        JobPerformanceStatsStatsDClients.Lease second = clients.lease("localhost:8125");
+        assertEquals(2, clients.getLeases());
+
+        clients.retire();
+        assertTrue(stopped.isEmpty());
+        first.release();
+        // Releasing twice does not stop a client another sender holds
+        first.release();
+        assertTrue(stopped.isEmpty());
+
+        second.release();
+        assertEquals(1, stopped.size());
+        assertSame(second.getClient(), stopped.get(0));
+
+        // The next lease creates a new client
+        JobPerformanceStatsStatsDClients.Lease next = clients.lease("localhost:8125");
+        assertNotSame(second.getClient(), next.getClient());
+        assertEquals(1, clients.getLeases());
+        next.release();
+        clients.retire();
+        assertEquals(2, stopped.size());
+    }
+
+    @Test
+    public void lease_keepsAReplacedClientForItsSenders() {
+        JobPerformanceStatsStatsDClients.Lease sending = clients.lease("localhost:8125");
+
+        JobPerformanceStatsStatsDClients.Lease moved = clients.lease("localhost:8126");
+        assertTrue(stopped.isEmpty());
+
+        sending.release();
+        assertEquals(1, stopped.size());
+        assertSame(sending.getClient(), stopped.get(0));
+        moved.release();
+        clients.retire();
+    }
+
+    @Test
+    public void lease_returnsNullForAnInvalidDaemonHost() {
+        assertNull(clients.lease("localhost"));
+        assertNull(clients.lease(null));
+        assertEquals(0, clients.getLeases());
+        assertTrue(created.isEmpty());
+    }
+}